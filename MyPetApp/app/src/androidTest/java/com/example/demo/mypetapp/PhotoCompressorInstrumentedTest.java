@@ -0,0 +1,112 @@
+package com.example.demo.mypetapp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// Encodes real pixels, which the JVM unit tests can't: Robolectric's bitmaps have no pixels
+@RunWith(AndroidJUnit4.class)
+public class PhotoCompressorInstrumentedTest {
+
+    private static final String TAG = PhotoCompressorInstrumentedTest.class.getSimpleName();
+
+    // A 12 MP camera photo
+    private static final int SOURCE_WIDTH = 4032;
+    private static final int SOURCE_HEIGHT = 3024;
+
+    private File mDir;
+    private File mSource;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "compressor-test");
+        deleteRecursively(mDir);
+        assertTrue(mDir.mkdirs());
+        mSource = new File(mDir, "IMG_0001.jpg");
+        writeCameraPhoto(mSource);
+    }
+
+    @Test
+    public void cameraPhoto_isScaledAndReencodedSmaller() throws IOException {
+        PhotoCompressor compressor = new PhotoCompressor(new File(mDir, "out"), NewPetPipeline.PHOTO_MAX_DIMENSION,
+                85, PhotoCompressor.Format.JPEG);
+
+        PhotoCompressor.Result result = compressor.compress(mSource.getPath(), NewPetPipeline.contentHash(mSource));
+        Log.i(TAG, "Encoded " + result.sourceBytes + " bytes into " + result.outputBytes + " bytes in "
+                + result.encodeMillis + " ms");
+
+        assertEquals(mSource.length(), result.sourceBytes);
+        assertEquals(result.file.length(), result.outputBytes);
+        assertTrue(result.outputBytes < result.sourceBytes);
+        assertEquals("image/jpeg", result.mimeType);
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(result.file.getPath(), bounds);
+        assertEquals("image/jpeg", bounds.outMimeType);
+        assertEquals(NewPetPipeline.PHOTO_MAX_DIMENSION, bounds.outWidth);
+        assertEquals(NewPetPipeline.PHOTO_MAX_DIMENSION * SOURCE_HEIGHT / SOURCE_WIDTH, bounds.outHeight);
+    }
+
+    @Test
+    public void thumbnail_isSmallerThanThePhoto() throws IOException {
+        String hash = NewPetPipeline.contentHash(mSource);
+        File out = new File(mDir, "out");
+        PhotoCompressor.Result photo = new PhotoCompressor(out, NewPetPipeline.PHOTO_MAX_DIMENSION, 85,
+                PhotoCompressor.Format.JPEG).compress(mSource.getPath(), hash);
+        PhotoCompressor.Result thumbnail = new PhotoCompressor(out, NewPetPipeline.THUMBNAIL_MAX_DIMENSION, 85,
+                PhotoCompressor.Format.JPEG).compress(mSource.getPath(), hash);
+        Log.i(TAG, "Photo " + photo.outputBytes + " bytes, thumbnail " + thumbnail.outputBytes + " bytes");
+
+        assertNotEquals(photo.file, thumbnail.file);
+        assertTrue(thumbnail.outputBytes < photo.outputBytes);
+    }
+
+    // Smooth gradients with sensor-like noise, saved the way a camera app would
+    private static void writeCameraPhoto(File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(SOURCE_WIDTH, SOURCE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(42);
+        int[] row = new int[SOURCE_WIDTH];
+        for (int y = 0; y < SOURCE_HEIGHT; y++) {
+            for (int x = 0; x < SOURCE_WIDTH; x++) {
+                int noise = random.nextInt(16);
+                int r = (x * 255 / SOURCE_WIDTH + noise) & 0xff;
+                int g = (y * 255 / SOURCE_HEIGHT + noise) & 0xff;
+                int b = ((x + y) * 255 / (SOURCE_WIDTH + SOURCE_HEIGHT) + noise) & 0xff;
+                row[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+            bitmap.setPixels(row, 0, SOURCE_WIDTH, 0, y, SOURCE_WIDTH, 1);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out));
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,12 +1,9 @@
 package com.example.demo.mypetapp;
 
 import android.Manifest;
-import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -19,28 +16,12 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import com.amazonaws.amplify.generated.graphql.CreatePetMutation;
 import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
 import com.amazonaws.mobile.config.AWSConfiguration;
-import com.amazonaws.mobileconnectors.appsync.AWSAppSyncClient;
-import com.amazonaws.mobileconnectors.appsync.fetcher.AppSyncResponseFetchers;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
-import com.apollographql.apollo.GraphQLCall;
-import com.apollographql.apollo.api.Response;
-import com.apollographql.apollo.exception.ApolloException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
-
-import javax.annotation.Nonnull;
-
 import type.CreatePetInput;
 import type.S3ObjectInput;
 
@@ -134,25 +115,29 @@ public class AddPetActivity extends AppCompatActivity {
                         new String[]{Manifest.permission.READ_EXTERNAL_STORAGE},
                         1);
             }
-
-            // Upload a photo first. We will only call save on its successful callback.
-            uploadWithTransferUtility(photoPath);
-        } else {
-            save();
         }
-    }
-
 
-    private CreatePetInput getCreatePetInput() {
+        // Read here, the mutation is sent from the pipeline's thread once the photo is hashed
         final String name = ((EditText) findViewById(R.id.editTxt_name)).getText().toString();
         final String description = ((EditText) findViewById(R.id.editText_description)).getText().toString();
 
-        if (photoPath != null && !photoPath.isEmpty()){
+        // The photo keys are known once the photo is hashed, so the mutation does not wait for the upload
+        NewPetPipeline.create(this).run(photoPath, new NewPetPipeline.MutationSender() {
+            @Override
+            public void send(String photoKey, NewPetPipeline.StepCallback callback) {
+                save(getCreatePetInput(name, description, photoKey), callback);
+            }
+        }, pipelineListener);
+    }
+
+
+    private CreatePetInput getCreatePetInput(String name, String description, String photoKey) {
+        if (photoKey != null){
             final S3ObjectInput s3ObjectInput = S3ObjectInput.builder()
                     .bucket(storageBucketName)
-                    .key(getS3Key(photoPath))
+                    .key(photoKey)
                     .region(region)
-                    .mimeType("image/jpg")
+                    .mimeType(NewPetPipeline.photoMimeType())
                     .build();
 
             return CreatePetInput.builder()
@@ -168,174 +153,96 @@ public class AddPetActivity extends AppCompatActivity {
     }
 
 
-    private void save() {
+    private void save(CreatePetInput input, final NewPetPipeline.StepCallback callback) {
 
-        CreatePetInput input = getCreatePetInput();
+        // Queued on disk first and sent with whatever else was added in the same window
+        PetMutationQueue.PendingPet pet = PetMutationQueue.PendingPet.create(
+                input.name(),
+                input.description(),
+                input.photo() != null ? input.photo().bucket() : null,
+                input.photo() != null ? input.photo().key() : null,
+                input.photo() != null ? input.photo().region() : null,
+                input.photo() != null ? photoPath : null,
+                input.photo() != null ? input.photo().mimeType() : null);
 
-        CreatePetMutation addPetMutation = CreatePetMutation.builder()
-                .input(input)
-                .build();
+        ClientFactory.petMutationQueue().enqueue(pet, new PetMutationQueue.Listener() {
+            @Override
+            public void onCreated(PetMutationQueue.PendingPet pet, String id) {
+                // The optimistic row takes the server id in place, whichever of the response,
+                // the subscription and the refetch gets there first
+                ClientFactory.reconciler().onCreated(pet.clientId, id);
+                ListPetsQuery.Item optimistic = pet.optimisticItem();
+                ClientFactory.subscriptionManager().dispatchLocal(LiveSync.Event.UPDATED,
+                        new ListPetsQuery.Item(optimistic.__typename(), id, optimistic.name(),
+                                optimistic.description(), optimistic.photo()));
+                callback.onDone(true);
+            }
 
-        ClientFactory.appSyncClient().mutate(addPetMutation).
-                refetchQueries(ListPetsQuery.builder().build()).
-                enqueue(mutateCallback);
+            @Override
+            public void onFailed(PetMutationQueue.PendingPet pet, Exception e) {
+                Log.e(TAG, "Failed to perform AddPetMutation", e);
+                ClientFactory.reconciler().onFailed(pet.clientId);
+                callback.onDone(false);
+            }
+        });
 
         // Enables offline support via an optimistic update
         // Add to event list while offline or before request returns
-        addPetOffline(input);
+        addPetOffline(pet);
     }
 
-    // Mutation callback code
-    private GraphQLCall.Callback<CreatePetMutation.Data> mutateCallback = new GraphQLCall.Callback<CreatePetMutation.Data>() {
+    // Pipeline callback code
+    private NewPetPipeline.Listener pipelineListener = new NewPetPipeline.Listener() {
         @Override
-        public void onResponse(@Nonnull final Response<CreatePetMutation.Data> response) {
+        public void onMutationDone(final boolean succeeded) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    Toast.makeText(AddPetActivity.this, "Added pet", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(AddPetActivity.this, succeeded ? "Added pet" : "Failed to add pet",
+                            Toast.LENGTH_SHORT).show();
                     AddPetActivity.this.finish();
                 }
             });
         }
 
         @Override
-        public void onFailure(@Nonnull final ApolloException e) {
+        public void onPhotosUploaded(boolean succeeded) {
+            if (succeeded) {
+                Log.d(TAG, "Photo and thumbnail uploads are completed. ");
+                return;
+            }
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    Log.e("", "Failed to perform AddPetMutation", e);
-                    Toast.makeText(AddPetActivity.this, "Failed to add pet", Toast.LENGTH_SHORT).show();
-                    AddPetActivity.this.finish();
+                    Toast.makeText(AddPetActivity.this, "Failed to upload photo", Toast.LENGTH_LONG).show();
                 }
             });
         }
     };
 
-    private void addPetOffline(final CreatePetInput input) {
-
-        final CreatePetMutation.CreatePet expected =
-                new CreatePetMutation.CreatePet(
-                        "Pet",
-                        UUID.randomUUID().toString(),
-                        input.name(),
-                        input.description(),
-                        input.photo() != null?
-                                new CreatePetMutation.Photo(
-                                        "Photo",
-                                        input.photo().bucket(),
-                                        input.photo().key(),
-                                        input.photo().region(),
-                                        photoPath,
-                                        input.photo().mimeType())
-                                : null);
-
-
-        final AWSAppSyncClient awsAppSyncClient = ClientFactory.appSyncClient();
-        final ListPetsQuery listEventsQuery = ListPetsQuery.builder().build();
-
-        awsAppSyncClient.query(listEventsQuery)
-                .responseFetcher(AppSyncResponseFetchers.CACHE_ONLY)
-                .enqueue(new GraphQLCall.Callback<ListPetsQuery.Data>() {
-                    @Override
-                    public void onResponse(@Nonnull Response<ListPetsQuery.Data> response) {
-                        List<ListPetsQuery.Item> items = new ArrayList<>();
-                        if (response.data() != null) {
-                            items.addAll(response.data().listPets().items());
-                        }
-
-                        items.add(new ListPetsQuery.Item(expected.__typename(),
-                                expected.id(),
-                                expected.name(),
-                                expected.description(),
-                                expected.photo() != null ? new ListPetsQuery.Photo(
-                                        "Photo",
-                                        input.photo().bucket(),
-                                        input.photo().key(),
-                                        input.photo().region(),
-                                        photoPath,
-                                        input.photo().mimeType()) : null
-                                ));
-                        ListPetsQuery.Data data = new ListPetsQuery.Data(
-                                new ListPetsQuery.ListPets("ListPets", items, null));
-                        awsAppSyncClient.getStore().write(listEventsQuery, data).enqueue(null);
-                        Log.d(TAG, "Successfully wrote item to local store while being offline.");
-
-                        finishIfOffline();
-                    }
-
-                    @Override
-                    public void onFailure(@Nonnull ApolloException e) {
-                        Log.e(TAG, "Failed to update event query list.", e);
-                    }
-                });
-    }
+    private void addPetOffline(final PetMutationQueue.PendingPet pet) {
 
-    private void finishIfOffline(){
-        // Close the add activity when offline otherwise allow callback to close
-        ConnectivityManager cm =
-                (ConnectivityManager) getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        ListPetsQuery.Item item = pet.optimisticItem();
 
-        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        boolean isConnected = activeNetwork != null &&
-                activeNetwork.isConnectedOrConnecting();
-
-        if (!isConnected) {
-            Log.d(TAG, "App is offline. Returning to MainActivity .");
-            finish();
-        }
-    }
-
-    private String getS3Key(String localPath) {
-        //We have read and write ability under the public folder
-        return "public/" + new File(localPath).getName();
-    }
-
-    public void uploadWithTransferUtility(String localPath) {
-        String key = getS3Key(localPath);
-
-        Log.d(TAG, "Uploading file from " + localPath + " to " + key);
-
-        TransferObserver uploadObserver =
-                ClientFactory.transferUtility().upload(
-                        key,
-                        new File(localPath));
-
-        // Attach a listener to the observer to get state update and progress notifications
-        uploadObserver.setTransferListener(new TransferListener() {
+        // Shows up in the list right away, before the subscription reports it
+        ClientFactory.reconciler().track(item);
+        ClientFactory.subscriptionManager().dispatchLocal(LiveSync.Event.CREATED, item);
 
+        ClientFactory.petCacheWriter().addPet(item, new Runnable() {
             @Override
-            public void onStateChanged(int id, TransferState state) {
-                if (TransferState.COMPLETED == state) {
-                    // Handle a completed upload.
-                    Log.d(TAG, "Upload is completed. ");
-
-                    // Upload is successful. Save the rest and send the mutation to server.
-                    save();
-                }
+            public void run() {
+                Log.d(TAG, "Successfully wrote item to local store while being offline.");
+                finishIfOffline();
             }
-
-            @Override
-            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-                float percentDonef = ((float) bytesCurrent / (float) bytesTotal) * 100;
-                int percentDone = (int)percentDonef;
-
-                Log.d(TAG, "ID:" + id + " bytesCurrent: " + bytesCurrent
-                        + " bytesTotal: " + bytesTotal + " " + percentDone + "%");
-            }
-
-            @Override
-            public void onError(int id, Exception ex) {
-                // Handle errors
-                Log.e(TAG, "Failed to upload photo. ", ex);
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Toast.makeText(AddPetActivity.this, "Failed to upload photo", Toast.LENGTH_LONG).show();
-                    }
-                });
-            }
-
         });
     }
+
+    private void finishIfOffline(){
+        // Close the add activity when offline otherwise allow callback to close. The pet is
+        // sent by the sync scheduler once the network is back.
+        if (!ClientFactory.syncScheduler().isConnected()) {
+            Log.d(TAG, "App is offline. Returning to MainActivity .");
+            finish();
+        }
+    }
 }
@@ -0,0 +1,143 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A value that is built once, either ahead of time on a background executor or on first
+// use. Once built it is read through a volatile field without taking a lock.
+public class AsyncLazy<T> {
+
+    private static final String TAG = AsyncLazy.class.getSimpleName();
+
+    interface Callback<T> {
+        void onReady(T value);
+
+        void onError(Exception e);
+    }
+
+    private final Callable<T> mFactory;
+    private final Executor mExecutor;
+
+    private volatile T mValue;
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+    // Replaced whenever a failed build lets the next caller try again
+    private CountDownLatch mBuilt = new CountDownLatch(1);
+    private Exception mError;
+    private final List<Callback<T>> mWaiting = new ArrayList<>();
+
+    AsyncLazy(Callable<T> factory, Executor executor) {
+        mFactory = factory;
+        mExecutor = executor;
+    }
+
+    // Starts building on the executor unless that already happened
+    public void warm() {
+        if (mValue != null || !mStarted.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        });
+    }
+
+    // Blocks until the value is built, building it on this thread if nobody started yet
+    public T get() {
+        T value = mValue;
+        if (value != null) {
+            return value;
+        }
+        // Taken before building, since a failed build replaces it for the next attempt
+        CountDownLatch built;
+        synchronized (this) {
+            built = mBuilt;
+        }
+        if (mStarted.compareAndSet(false, true)) {
+            build();
+        }
+        try {
+            built.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a client", e);
+        }
+
+        synchronized (this) {
+            if (mValue == null) {
+                throw new IllegalStateException("Failed to build a client", mError);
+            }
+            return mValue;
+        }
+    }
+
+    // Runs callback with the value, right away if it is built or else on the thread that builds it
+    public void whenReady(Callback<T> callback) {
+        T value = mValue;
+        if (value == null) {
+            synchronized (this) {
+                value = mValue;
+                if (value == null) {
+                    mWaiting.add(callback);
+                }
+            }
+        }
+        if (value != null) {
+            callback.onReady(value);
+            return;
+        }
+        warm();
+    }
+
+    // The value if it was built already, null otherwise
+    public T peek() {
+        return mValue;
+    }
+
+    private void build() {
+        T value = null;
+        Exception error = null;
+        long start = System.nanoTime();
+        try {
+            value = mFactory.call();
+        } catch (Exception e) {
+            error = e;
+        }
+
+        List<Callback<T>> waiting;
+        CountDownLatch built;
+        synchronized (this) {
+            waiting = new ArrayList<>(mWaiting);
+            mWaiting.clear();
+            built = mBuilt;
+            if (value != null) {
+                mValue = value;
+            } else {
+                mError = error;
+                mBuilt = new CountDownLatch(1);
+                mStarted.set(false);
+            }
+        }
+        built.countDown();
+
+        if (value != null) {
+            Log.d(TAG, "Built " + value.getClass().getSimpleName() + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            for (Callback<T> callback : waiting) {
+                callback.onReady(value);
+            }
+        } else {
+            Log.e(TAG, "Failed to build a client", error);
+            for (Callback<T> callback : waiting) {
+                callback.onError(error);
+            }
+        }
+    }
+}
@@ -1,31 +1,104 @@
 package com.example.demo.mypetapp;
 
+import android.content.Intent;
+import android.os.AsyncTask;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 
+import com.amazonaws.mobile.auth.core.IdentityManager;
 import com.amazonaws.mobile.auth.ui.SignInUI;
 import com.amazonaws.mobile.client.AWSMobileClient;
 import com.amazonaws.mobile.client.AWSStartupHandler;
 import com.amazonaws.mobile.client.AWSStartupResult;
+import com.amazonaws.mobile.config.AWSConfiguration;
 
 public class AuthenticationActivity extends AppCompatActivity {
 
+    private static final String TAG = AuthenticationActivity.class.getSimpleName();
+
+    private static final int UNCHECKED = -1;
+
+    // Both are set on the main thread, and the user is routed once both are known
+    private int mSession = UNCHECKED;
+    private boolean mInitialized;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        // Startup phases are timed from here
+        final StartupTrace.Section identityRestore = StartupTrace.get().begin(StartupTrace.IDENTITY_RESTORE);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_authentication);
 
+        // A returning user with unexpired tokens goes straight to the list. The check reads
+        // the persisted tokens only; initialize() then resumes the session without a round trip.
+        // Parsing the configuration and reading the preferences is disk work, so it runs off
+        // the main thread while the client initializes.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int session = new CachedSession(new CachedSession.PreferencesTokenStore(
+                        AuthenticationActivity.this, new AWSConfiguration(AuthenticationActivity.this)))
+                        .check(System.currentTimeMillis());
+                Log.d(TAG, "Cached session state: " + session);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSession = session;
+                        route();
+                    }
+                });
+            }
+        });
+
         // Add a call to initialize AWSMobileClient
         AWSMobileClient.getInstance().initialize(this, new AWSStartupHandler() {
             @Override
             public void onComplete(AWSStartupResult awsStartupResult) {
-                SignInUI signin = (SignInUI) AWSMobileClient.getInstance().getClient(
-                        AuthenticationActivity.this,
-                        SignInUI.class);
-                signin.login(
-                        AuthenticationActivity.this,
-                        MainActivity.class).execute();
+                identityRestore.end();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mInitialized = true;
+                        route();
+                    }
+                });
             }
         }).execute();
     }
+
+    private void route() {
+        if (mSession == UNCHECKED || !mInitialized || isFinishing()) {
+            return;
+        }
+        // ClientFactory builds the AppSync client from the resumed user pool provider
+        if (mSession != CachedSession.SIGN_IN_REQUIRED
+                && IdentityManager.getDefaultIdentityManager().getCurrentIdentityProvider() != null) {
+            if (mSession == CachedSession.NEEDS_REFRESH) {
+                refreshTokens();
+            }
+            startActivity(new Intent(this, MainActivity.class));
+            finish();
+            return;
+        }
+
+        SignInUI signin = (SignInUI) AWSMobileClient.getInstance().getClient(this, SignInUI.class);
+        signin.login(this, MainActivity.class).execute();
+    }
+
+    // Trades the refresh token for new tokens before they expire, without holding up the list
+    private void refreshTokens() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IdentityManager.getDefaultIdentityManager().getCurrentIdentityProvider().refreshToken();
+                    Log.d(TAG, "Refreshed tokens that were about to expire");
+                } catch (Exception e) {
+                    // The SDK refreshes on demand once they do expire
+                    Log.w(TAG, "Failed to refresh tokens", e);
+                }
+            }
+        });
+    }
 }
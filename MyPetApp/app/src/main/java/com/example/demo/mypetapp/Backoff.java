@@ -0,0 +1,46 @@
+package com.example.demo.mypetapp;
+
+import java.util.Random;
+
+// Exponential backoff with jitter: the n-th delay is picked between half and all of
+// min(max, base * 2^n), so clients that lost the connection together do not all retry at once.
+public class Backoff {
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom;
+    private int mAttempts;
+
+    public Backoff(long baseMillis, long maxMillis) {
+        this(baseMillis, maxMillis, new Random());
+    }
+
+    Backoff(long baseMillis, long maxMillis, Random random) {
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mRandom = random;
+    }
+
+    public synchronized long nextDelayMillis() {
+        long ceiling = ceilingMillis(mAttempts);
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    public synchronized int attempts() {
+        return mAttempts;
+    }
+
+    long ceilingMillis(int attempt) {
+        // stop doubling well before the shift overflows
+        if (attempt >= 30) {
+            return mMaxMillis;
+        }
+        return Math.min(mMaxMillis, mBaseMillis << attempt);
+    }
+}
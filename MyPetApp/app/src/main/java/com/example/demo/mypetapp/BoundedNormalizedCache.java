@@ -0,0 +1,563 @@
+package com.example.demo.mypetapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.apollographql.apollo.cache.CacheHeaders;
+import com.apollographql.apollo.cache.normalized.CacheKey;
+import com.apollographql.apollo.cache.normalized.CacheReference;
+import com.apollographql.apollo.cache.normalized.NormalizedCache;
+import com.apollographql.apollo.cache.normalized.NormalizedCacheFactory;
+import com.apollographql.apollo.cache.normalized.Record;
+import com.apollographql.apollo.cache.normalized.RecordFieldJsonAdapter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// Keeps the normalized cache under a record count and a byte budget. Every listPets page and
+// pet the app ever saw would otherwise stay in the database for good, and reads slow down as
+// it grows. Records are removed a whole query at a time, off the calling thread: the least
+// recently read record that no other record references goes, along with the records only it
+// referenced, and the query root's field that pointed at it. A page is never left pointing at
+// pets that are gone. The database is compacted once the removals have freed a good share of
+// the budget. The query root and pinned records, the pets still waiting for their mutation,
+// are never removed. Which records exist, how large they are and what they reference is read
+// from the database once, in the background; records the process has not read yet count as
+// the least recently read. A pass that frees nothing, when everything left is pinned or
+// referenced, makes the next one wait for more writes, twice as many after every such pass.
+public class BoundedNormalizedCache extends NormalizedCache {
+
+    private static final String TAG = BoundedNormalizedCache.class.getSimpleName();
+
+    static final int DEFAULT_MAX_RECORDS = 20000;
+    static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    // Eviction stops once the cache is back under this share of both budgets
+    private static final int LOW_WATER_PERCENT = 90;
+    // Compacts once evictions have freed this share of the byte budget
+    private static final int COMPACT_AFTER_PERCENT = 25;
+    // Records removed per hold of the lock, so writes are not held up for long
+    private static final int EVICTION_BATCH = 50;
+    // Writes to wait for after a pass that freed nothing, doubled up to the maximum
+    static final int MIN_EVICTION_BACKOFF = 16;
+    static final int MAX_EVICTION_BACKOFF = 1024;
+
+    interface Pins {
+        boolean isPinned(String key);
+    }
+
+    // What the cache needs from the database beyond the NormalizedCache calls
+    interface Storage {
+        // Calls back with every stored record, its size as sizeOf measures it, and the keys it references
+        void forEachRecord(RecordVisitor visitor);
+
+        // The size of the record as stored, so sizes read back and sizes of new writes add up
+        long sizeOf(Record record);
+
+        // Returns the space freed by removed records to the file system
+        void compact();
+
+        // Stores the record in place of the one under its key, fields it lacks included, in a
+        // single write, so a concurrent read sees either the old record or the new one
+        void replace(Record record);
+    }
+
+    interface RecordVisitor {
+        void onRecord(String key, long bytes, List<String> references);
+    }
+
+    private final NormalizedCache mStore;
+    private final Storage mStorage;
+    private final Pins mPins;
+    private final int mMaxRecords;
+    private final long mMaxBytes;
+    private final Executor mExecutor;
+
+    // Sizes by key, least recently read or written first
+    private LinkedHashMap<String, Long> mSizes = new LinkedHashMap<>(16, 0.75f, true);
+    // The keys each record references, and how many references each key has. The query
+    // root's references are not counted, its fields are pruned with their targets instead.
+    private Map<String, String[]> mReferences = new HashMap<>();
+    private final Map<String, Integer> mReferrers = new HashMap<>();
+    private long mBytes;
+    private boolean mIndexed;
+    private boolean mEvictionScheduled;
+    private int mEvictionBackoff;
+    private int mWritesUntilEviction;
+    private long mFreedSinceCompaction;
+    private int mEvictionCount;
+    private int mCompactionCount;
+
+    private final Runnable mEvict = new Runnable() {
+        @Override
+        public void run() {
+            evict();
+        }
+    };
+
+    BoundedNormalizedCache(NormalizedCache store, Storage storage, Pins pins, int maxRecords, long maxBytes,
+                           Executor executor) {
+        if (maxRecords <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxRecords and maxBytes must be positive");
+        }
+        mStore = store;
+        mStorage = storage;
+        mPins = pins;
+        mMaxRecords = maxRecords;
+        mMaxBytes = maxBytes;
+        mExecutor = executor;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+            }
+        });
+    }
+
+    @Nullable
+    @Override
+    public Record loadRecord(@Nonnull String key, @Nonnull CacheHeaders cacheHeaders) {
+        Record record = mStore.loadRecord(key, cacheHeaders);
+        if (record != null) {
+            synchronized (this) {
+                if (mSizes.get(key) == null) {
+                    index(record);
+                    scheduleEvictionIfNeeded();
+                }
+            }
+        }
+        return record;
+    }
+
+    // Writes the whole set in one go, as the database does it in one transaction
+    @Nonnull
+    @Override
+    public synchronized Set<String> merge(@Nonnull Collection<Record> recordSet, @Nonnull CacheHeaders cacheHeaders) {
+        Set<String> changedKeys = mStore.merge(recordSet, cacheHeaders);
+        for (Record record : recordSet) {
+            written(record.key());
+        }
+        scheduleEvictionIfNeeded();
+        return changedKeys;
+    }
+
+    @Nonnull
+    @Override
+    protected synchronized Set<String> performMerge(@Nonnull Record apolloRecord, @Nonnull CacheHeaders cacheHeaders) {
+        Set<String> changedKeys = mStore.merge(apolloRecord, cacheHeaders);
+        written(apolloRecord.key());
+        scheduleEvictionIfNeeded();
+        return changedKeys;
+    }
+
+    @Override
+    public synchronized void clearAll() {
+        mStore.clearAll();
+        mSizes.clear();
+        mReferences.clear();
+        mReferrers.clear();
+        mBytes = 0;
+        mEvictionBackoff = 0;
+        mWritesUntilEviction = 0;
+    }
+
+    @Override
+    public synchronized boolean remove(@Nonnull CacheKey cacheKey) {
+        Long size = mSizes.remove(cacheKey.key());
+        if (size != null) {
+            mBytes -= size;
+        }
+        setReferences(cacheKey.key(), Collections.<String>emptyList());
+        return mStore.remove(cacheKey);
+    }
+
+    public synchronized int recordCount() {
+        return mSizes.size();
+    }
+
+    public synchronized long sizeBytes() {
+        return mBytes;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int compactionCount() {
+        return mCompactionCount;
+    }
+
+    // A merge replaces fields, which may grow or shrink the record and change what it
+    // references, so the stored record is measured again
+    private void written(String key) {
+        Record stored = mStore.loadRecord(key, CacheHeaders.NONE);
+        if (stored != null) {
+            index(stored);
+        }
+    }
+
+    private void index(Record record) {
+        long size = mStorage.sizeOf(record);
+        Long previous = mSizes.put(record.key(), size);
+        mBytes += size - (previous != null ? previous : 0);
+        if (!isRoot(record.key())) {
+            setReferences(record.key(), references(record.fields()));
+        }
+    }
+
+    private void setReferences(String key, List<String> references) {
+        String[] previous = references.isEmpty()
+                ? mReferences.remove(key) : mReferences.put(key, references.toArray(new String[0]));
+        for (String reference : references) {
+            refer(mReferrers, reference);
+        }
+        if (previous != null) {
+            for (String reference : previous) {
+                unrefer(reference);
+            }
+        }
+    }
+
+    private static void refer(Map<String, Integer> referrers, String key) {
+        Integer count = referrers.get(key);
+        referrers.put(key, count != null ? count + 1 : 1);
+    }
+
+    // Returns the references key has left
+    private int unrefer(String key) {
+        Integer count = mReferrers.get(key);
+        if (count == null || count <= 1) {
+            mReferrers.remove(key);
+            return 0;
+        }
+        mReferrers.put(key, count - 1);
+        return count - 1;
+    }
+
+    // The keys of the records the fields point to, in lists too
+    static List<String> references(Map<String, Object> fields) {
+        List<String> keys = new ArrayList<>();
+        for (Object value : fields.values()) {
+            collectReferences(value, keys);
+        }
+        return keys;
+    }
+
+    private static void collectReferences(Object value, List<String> keys) {
+        if (value instanceof CacheReference) {
+            keys.add(((CacheReference) value).key());
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                collectReferences(item, keys);
+            }
+        }
+    }
+
+    private static boolean isRoot(String key) {
+        return key.equals(PetCacheWriter.QUERY_ROOT);
+    }
+
+    private boolean overBudget() {
+        return mSizes.size() > mMaxRecords || mBytes > mMaxBytes;
+    }
+
+    private void scheduleEvictionIfNeeded() {
+        if (!mIndexed || mEvictionScheduled || !overBudget()) {
+            return;
+        }
+        if (mWritesUntilEviction > 0) {
+            mWritesUntilEviction--;
+            return;
+        }
+        mEvictionScheduled = true;
+        mExecutor.execute(mEvict);
+    }
+
+    // The stored records go in front of the ones this process already touched, oldest first
+    private void loadIndex() {
+        final LinkedHashMap<String, Long> stored = new LinkedHashMap<>(16, 0.75f, true);
+        final Map<String, String[]> references = new HashMap<>();
+        try {
+            mStorage.forEachRecord(new RecordVisitor() {
+                @Override
+                public void onRecord(String key, long bytes, List<String> recordReferences) {
+                    stored.put(key, bytes);
+                    if (!recordReferences.isEmpty() && !isRoot(key)) {
+                        references.put(key, recordReferences.toArray(new String[0]));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read the cached records, the cache stays unbounded", e);
+            return;
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Long> entry : mSizes.entrySet()) {
+                String key = entry.getKey();
+                stored.remove(key);
+                stored.put(key, entry.getValue());
+                String[] known = mReferences.get(key);
+                if (known != null) {
+                    references.put(key, known);
+                } else {
+                    references.remove(key);
+                }
+            }
+            mSizes = stored;
+            mReferences = references;
+            mReferrers.clear();
+            for (String[] keys : references.values()) {
+                for (String key : keys) {
+                    refer(mReferrers, key);
+                }
+            }
+            mBytes = 0;
+            for (long size : stored.values()) {
+                mBytes += size;
+            }
+            mIndexed = true;
+            Log.d(TAG, "Indexed " + mSizes.size() + " cached records, " + mBytes + " bytes");
+            scheduleEvictionIfNeeded();
+        }
+    }
+
+    private boolean underLowWater() {
+        return mSizes.size() <= (long) mMaxRecords * LOW_WATER_PERCENT / 100
+                && mBytes <= mMaxBytes / 100 * LOW_WATER_PERCENT;
+    }
+
+    private void evict() {
+        int evicted = 0;
+        while (true) {
+            synchronized (this) {
+                // the least recently read records that nothing references, each the top of a query
+                List<String> candidates = new ArrayList<>(EVICTION_BATCH);
+                for (String key : mSizes.keySet()) {
+                    if (candidates.size() == EVICTION_BATCH) {
+                        break;
+                    }
+                    if (!isRoot(key) && !mReferrers.containsKey(key) && !mPins.isPinned(key)) {
+                        candidates.add(key);
+                    }
+                }
+                Set<String> removed = new HashSet<>();
+                boolean done = candidates.size() < EVICTION_BATCH;
+                for (String key : candidates) {
+                    if (underLowWater()) {
+                        done = true;
+                        break;
+                    }
+                    evictTree(key, removed);
+                }
+                pruneRoot(removed);
+                mEvictionCount += removed.size();
+                evicted += removed.size();
+                if (done) {
+                    mEvictionScheduled = false;
+                    backOffIfStuck(evicted);
+                    break;
+                }
+            }
+        }
+
+        boolean compact;
+        synchronized (this) {
+            compact = mFreedSinceCompaction >= mMaxBytes / 100 * COMPACT_AFTER_PERCENT;
+            if (compact) {
+                mFreedSinceCompaction = 0;
+                mCompactionCount++;
+            }
+            Log.d(TAG, "Evicted " + evicted + " records, " + mSizes.size() + " records and " + mBytes
+                    + " bytes left");
+        }
+        if (compact) {
+            try {
+                mStorage.compact();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to compact the cache", e);
+            }
+        }
+    }
+
+    // Every record left may be pinned or referenced, and scanning them again on the next write
+    // would find the same
+    private void backOffIfStuck(int evicted) {
+        if (evicted > 0 || !overBudget()) {
+            mEvictionBackoff = 0;
+            return;
+        }
+        mEvictionBackoff = mEvictionBackoff == 0
+                ? MIN_EVICTION_BACKOFF : Math.min(2 * mEvictionBackoff, MAX_EVICTION_BACKOFF);
+        mWritesUntilEviction = mEvictionBackoff;
+        Log.w(TAG, "Nothing to evict, waiting for " + mEvictionBackoff + " writes");
+    }
+
+    // Removes the record and the records no other record references once it is gone
+    private void evictTree(String top, Set<String> removed) {
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(top);
+        while (!queue.isEmpty()) {
+            String key = queue.poll();
+            Long size = mSizes.remove(key);
+            if (size != null) {
+                mBytes -= size;
+                mFreedSinceCompaction += size;
+            }
+            mStore.remove(CacheKey.from(key));
+            removed.add(key);
+            String[] references = mReferences.remove(key);
+            if (references == null) {
+                continue;
+            }
+            for (String reference : references) {
+                if (unrefer(reference) == 0 && mSizes.containsKey(reference) && !isRoot(reference)
+                        && !mPins.isPinned(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+    }
+
+    // Drops the fields of the query root that point at removed records, so the root does not
+    // gain a field for every set of query variables ever used
+    private void pruneRoot(Set<String> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        Record root = mStore.loadRecord(PetCacheWriter.QUERY_ROOT, CacheHeaders.NONE);
+        if (root == null) {
+            return;
+        }
+        Record.Builder pruned = Record.builder(root.key());
+        boolean changed = false;
+        for (Map.Entry<String, Object> field : root.fields().entrySet()) {
+            List<String> keys = new ArrayList<>();
+            collectReferences(field.getValue(), keys);
+            if (!Collections.disjoint(keys, removed)) {
+                changed = true;
+            } else {
+                pruned.addField(field.getKey(), field.getValue());
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        // a merge only adds fields, so the root is replaced by one without the pruned fields.
+        // Reads do not take this lock, and a remove followed by a merge would let them miss it.
+        Record rewritten = pruned.build();
+        try {
+            mStorage.replace(rewritten);
+        } catch (RuntimeException e) {
+            // the fields stay until the next pass
+            Log.e(TAG, "Failed to prune the query root", e);
+            return;
+        }
+        index(rewritten);
+    }
+
+    // Wraps the cache the factory creates, which stores the records
+    static class Factory extends NormalizedCacheFactory<BoundedNormalizedCache> {
+        private final NormalizedCacheFactory<?> mStoreFactory;
+        private final Storage mStorage;
+        private final Pins mPins;
+        private final int mMaxRecords;
+        private final long mMaxBytes;
+        private final Executor mExecutor;
+
+        Factory(NormalizedCacheFactory<?> storeFactory, Storage storage, Pins pins, int maxRecords, long maxBytes,
+                Executor executor) {
+            mStoreFactory = storeFactory;
+            mStorage = storage;
+            mPins = pins;
+            mMaxRecords = maxRecords;
+            mMaxBytes = maxBytes;
+            mExecutor = executor;
+        }
+
+        @Override
+        public BoundedNormalizedCache create(RecordFieldJsonAdapter recordFieldAdapter) {
+            return new BoundedNormalizedCache(mStoreFactory.create(recordFieldAdapter), mStorage, mPins,
+                    mMaxRecords, mMaxBytes, mExecutor);
+        }
+    }
+
+    // The records of the pets that were added on this device and are still waiting for the server
+    static class OptimisticPins implements Pins {
+        private final OptimisticReconciler mReconciler;
+
+        OptimisticPins(OptimisticReconciler reconciler) {
+            mReconciler = reconciler;
+        }
+
+        @Override
+        public boolean isPinned(String key) {
+            String petId = key.endsWith(PetCacheWriter.PHOTO_KEY_SUFFIX)
+                    ? key.substring(0, key.length() - PetCacheWriter.PHOTO_KEY_SUFFIX.length()) : key;
+            return mReconciler.isPending(petId);
+        }
+    }
+
+    // The records table of the AppSync SQL cache, which stores every record as its fields in JSON.
+    // A record's size is the length of that JSON, read back or written.
+    static class SqlStorage implements Storage {
+        private final SQLiteOpenHelper mHelper;
+        private final RecordFieldJsonAdapter mAdapter = RecordFieldJsonAdapter.create();
+
+        SqlStorage(SQLiteOpenHelper helper) {
+            mHelper = helper;
+        }
+
+        @Override
+        public void forEachRecord(RecordVisitor visitor) {
+            Cursor cursor = mHelper.getReadableDatabase().rawQuery("SELECT key, record FROM records", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String key = cursor.getString(0);
+                    String json = cursor.getString(1);
+                    List<String> references;
+                    try {
+                        references = references(mAdapter.from(json));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to read the references of " + key, e);
+                        references = Collections.emptyList();
+                    }
+                    visitor.onRecord(key, json.length(), references);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public long sizeOf(Record record) {
+            return mAdapter.toJson(record.fields()).length();
+        }
+
+        @Override
+        public void compact() {
+            mHelper.getWritableDatabase().execSQL("VACUUM");
+        }
+
+        @Override
+        public void replace(Record record) {
+            ContentValues values = new ContentValues();
+            values.put("record", mAdapter.toJson(record.fields()));
+            mHelper.getWritableDatabase().update("records", values, "key = ?", new String[] {record.key()});
+        }
+    }
+}
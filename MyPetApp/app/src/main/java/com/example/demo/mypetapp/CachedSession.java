@@ -0,0 +1,122 @@
+package com.example.demo.mypetapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.amazonaws.mobile.config.AWSConfiguration;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+// Decides from the persisted Cognito tokens alone whether a returning user can skip the
+// sign-in screen. Nothing here touches the network: the id token's expiry is read from
+// its payload, and the signature was already checked when the token was issued.
+public class CachedSession {
+
+    private static final String TAG = CachedSession.class.getSimpleName();
+
+    static final int SIGN_IN_REQUIRED = 0;
+    static final int VALID = 1;
+    // Still valid, but close enough to expiry to refresh in the background
+    static final int NEEDS_REFRESH = 2;
+
+    // Tolerates a device clock that runs a little ahead of Cognito's
+    static final long CLOCK_SKEW_MS = 60 * 1000;
+    static final long REFRESH_WINDOW_MS = 5 * 60 * 1000;
+
+    private static final Pattern EXP = Pattern.compile("\"exp\"\\s*:\\s*(\\d+)");
+
+    interface TokenStore {
+        @Nullable
+        String idToken();
+
+        @Nullable
+        String refreshToken();
+    }
+
+    private final TokenStore mStore;
+
+    CachedSession(TokenStore store) {
+        mStore = store;
+    }
+
+    public int check(long nowMillis) {
+        long expiry = expiryMillis(mStore.idToken());
+        if (expiry < 0 || nowMillis >= expiry - CLOCK_SKEW_MS) {
+            // An expired session needs a round trip either way, let the sign-in flow do it
+            return SIGN_IN_REQUIRED;
+        }
+        if (nowMillis >= expiry - REFRESH_WINDOW_MS && mStore.refreshToken() != null) {
+            return NEEDS_REFRESH;
+        }
+        return VALID;
+    }
+
+    // The exp claim of a JWT in milliseconds, or -1 if the token is missing or malformed
+    static long expiryMillis(@Nullable String jwt) {
+        if (jwt == null) {
+            return -1;
+        }
+        String[] parts = jwt.split("\\.");
+        if (parts.length != 3) {
+            return -1;
+        }
+        try {
+            String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+            Matcher matcher = EXP.matcher(payload);
+            if (!matcher.find()) {
+                return -1;
+            }
+            return Long.parseLong(matcher.group(1)) * 1000;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Cached id token is not a JWT", e);
+            return -1;
+        }
+    }
+
+    // Reads the tokens where the Cognito user pool SDK persists them after a sign-in
+    static class PreferencesTokenStore implements TokenStore {
+        private static final String PREFERENCES = "CognitoIdentityProviderCache";
+        private static final String PREFIX = "CognitoIdentityProvider.";
+
+        private final SharedPreferences mPreferences;
+        private final String mClientId;
+
+        PreferencesTokenStore(Context context, AWSConfiguration configuration) {
+            mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            JSONObject userPool = configuration.optJsonObject("CognitoUserPool");
+            mClientId = userPool != null ? userPool.optString("AppClientId", null) : null;
+        }
+
+        @Nullable
+        @Override
+        public String idToken() {
+            return token("idToken");
+        }
+
+        @Nullable
+        @Override
+        public String refreshToken() {
+            return token("refreshToken");
+        }
+
+        @Nullable
+        private String token(String name) {
+            if (mClientId == null) {
+                return null;
+            }
+            String user = mPreferences.getString(PREFIX + mClientId + ".LastAuthUser", null);
+            if (user == null) {
+                return null;
+            }
+            return mPreferences.getString(PREFIX + mClientId + "." + user + "." + name, null);
+        }
+    }
+}
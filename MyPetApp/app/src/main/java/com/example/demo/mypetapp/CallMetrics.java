@@ -0,0 +1,299 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histograms and counters for the GraphQL operations and S3 transfers the app runs.
+// Recording a sample only bumps a few atomic counters, so it neither allocates nor takes a
+// lock and is cheap enough for every call. Snapshots are taken when exported, and handed to
+// a pluggable sink.
+public class CallMetrics {
+
+    private static final String TAG = CallMetrics.class.getSimpleName();
+
+    static final int CREATE_PET = 0;
+    static final int LIST_PETS = 1;
+    static final int ON_CREATE_PET = 2;
+    static final int UPLOAD = 3;
+    static final int DOWNLOAD = 4;
+    private static final String[] NAMES = {
+            "CreatePetMutation", "ListPetsQuery", "OnCreatePetSubscription", "s3_upload", "s3_download"};
+
+    static final long EXPORT_INTERVAL_MS = 60 * 1000;
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    interface Sink {
+        // Called on the thread that exported the snapshot
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    // Counts values into buckets that double in width every 8 buckets, as HdrHistogram does
+    // with 3 significant bits: values up to 8 are exact, every other value is kept within
+    // 12.5%, and the whole range up to about three days in microseconds takes 288 counters.
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final long MAX_VALUE = (1L << 38) - 1;
+        static final int BUCKETS = (38 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, Math.min(value, MAX_VALUE));
+            mCounts.incrementAndGet(bucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long count() {
+            return mCount.get();
+        }
+
+        long sum() {
+            return mSum.get();
+        }
+
+        long max() {
+            return mMax.get();
+        }
+
+        // The largest value of the bucket that holds the given percentile, or 0 when empty.
+        // Samples recorded while this runs may or may not be counted.
+        long valueAt(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= target) {
+                    return Math.min(highestIn(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowestIn(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        static long highestIn(int bucket) {
+            return bucket + 1 < BUCKETS ? lowestIn(bucket + 1) - 1 : MAX_VALUE;
+        }
+    }
+
+    // The samples of one operation
+    private static class Operation {
+        final Histogram latencyMicros = new Histogram();
+        // Per transfer, in bytes per second
+        final Histogram throughput = new Histogram();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong networkResponses = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        // Uploads of an object that was already stored, which sent nothing
+        final AtomicLong skipped = new AtomicLong();
+    }
+
+    // One operation as of a snapshot. Latencies are in microseconds.
+    static class OperationSnapshot {
+        final String name;
+        final long count;
+        final long cacheHits;
+        final long networkResponses;
+        final long errors;
+        final long bytes;
+        final long skipped;
+        final long p50Micros;
+        final long p90Micros;
+        final long p99Micros;
+        final long maxMicros;
+        final long meanMicros;
+        // Median over the transfers, 0 for GraphQL operations
+        final long p50BytesPerSecond;
+
+        OperationSnapshot(String name, Operation operation) {
+            Histogram latency = operation.latencyMicros;
+            this.name = name;
+            count = latency.count();
+            cacheHits = operation.cacheHits.get();
+            networkResponses = operation.networkResponses.get();
+            errors = operation.errors.get();
+            bytes = operation.bytes.get();
+            skipped = operation.skipped.get();
+            p50Micros = latency.valueAt(50);
+            p90Micros = latency.valueAt(90);
+            p99Micros = latency.valueAt(99);
+            maxMicros = latency.max();
+            meanMicros = count > 0 ? latency.sum() / count : 0;
+            p50BytesPerSecond = operation.throughput.valueAt(50);
+        }
+
+        @Override
+        public String toString() {
+            return "op=" + name + " count=" + count + " cache=" + cacheHits + " network=" + networkResponses
+                    + " errors=" + errors + " p50_us=" + p50Micros + " p90_us=" + p90Micros + " p99_us=" + p99Micros
+                    + " max_us=" + maxMicros + " mean_us=" + meanMicros
+                    + (bytes > 0 ? " bytes=" + bytes + " p50_bytes_per_s=" + p50BytesPerSecond : "")
+                    + (skipped > 0 ? " skipped=" + skipped : "");
+        }
+    }
+
+    // Every operation that has seen a call, with totals since the process started
+    static class Snapshot {
+        final List<OperationSnapshot> operations;
+
+        Snapshot(List<OperationSnapshot> operations) {
+            this.operations = Collections.unmodifiableList(operations);
+        }
+
+        OperationSnapshot operation(String name) {
+            for (OperationSnapshot operation : operations) {
+                if (operation.name.equals(name)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final Clock mClock;
+    private volatile Sink mSink;
+    private final Operation[] mOperations = new Operation[NAMES.length];
+    // Samples and errors recorded, so an export with nothing new is skipped
+    private final AtomicLong mRecorded = new AtomicLong();
+    private long mExported;
+
+    CallMetrics(Sink sink) {
+        this(SYSTEM_CLOCK, sink);
+    }
+
+    CallMetrics(Clock clock, Sink sink) {
+        mClock = clock;
+        mSink = sink;
+        for (int i = 0; i < mOperations.length; i++) {
+            mOperations[i] = new Operation();
+        }
+    }
+
+    public void setSink(Sink sink) {
+        mSink = sink;
+    }
+
+    // The start time to pass to the record methods once the call is answered
+    public long start() {
+        return mClock.nanoTime();
+    }
+
+    // A response to a query or mutation, from the normalized cache or from the network
+    public void recordResponse(int operation, long startNanos, boolean fromCache) {
+        Operation op = mOperations[operation];
+        op.latencyMicros.record(micros(startNanos));
+        (fromCache ? op.cacheHits : op.networkResponses).incrementAndGet();
+        mRecorded.incrementAndGet();
+    }
+
+    // An event pushed on a subscription, which has no request to time
+    public void recordEvent(int operation) {
+        mOperations[operation].networkResponses.incrementAndGet();
+        mRecorded.incrementAndGet();
+    }
+
+    // A finished upload or download, with the bytes that went over the network
+    public void recordTransfer(int operation, long startNanos, long bytes) {
+        Operation op = mOperations[operation];
+        long micros = micros(startNanos);
+        op.latencyMicros.record(micros);
+        op.networkResponses.incrementAndGet();
+        op.bytes.addAndGet(bytes);
+        op.throughput.record(bytes * 1000000 / Math.max(micros, 1));
+        mRecorded.incrementAndGet();
+    }
+
+    // A transfer that had nothing to send, kept out of the latency and throughput
+    public void recordSkipped(int operation) {
+        mOperations[operation].skipped.incrementAndGet();
+        mRecorded.incrementAndGet();
+    }
+
+    public void recordError(int operation) {
+        mOperations[operation].errors.incrementAndGet();
+        mRecorded.incrementAndGet();
+    }
+
+    public Snapshot snapshot() {
+        List<OperationSnapshot> operations = new ArrayList<>();
+        for (int i = 0; i < mOperations.length; i++) {
+            Operation operation = mOperations[i];
+            if (operation.latencyMicros.count() > 0 || operation.networkResponses.get() > 0
+                    || operation.errors.get() > 0 || operation.skipped.get() > 0) {
+                operations.add(new OperationSnapshot(NAMES[i], operation));
+            }
+        }
+        return new Snapshot(operations);
+    }
+
+    // Hands a snapshot to the sink, unless nothing was recorded since the last export
+    public void export() {
+        long recorded = mRecorded.get();
+        synchronized (this) {
+            if (recorded == mExported) {
+                return;
+            }
+            mExported = recorded;
+        }
+        mSink.onSnapshot(snapshot());
+    }
+
+    private long micros(long startNanos) {
+        return (mClock.nanoTime() - startNanos) / 1000;
+    }
+
+    // Writes one line per operation to logcat, e.g. for `adb logcat -s CallMetrics`
+    static class LogSink implements Sink {
+        @Override
+        public void onSnapshot(Snapshot snapshot) {
+            for (OperationSnapshot operation : snapshot.operations) {
+                Log.i(TAG, operation.toString());
+            }
+        }
+    }
+}
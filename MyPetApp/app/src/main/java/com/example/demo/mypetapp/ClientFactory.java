@@ -1,52 +1,275 @@
 package com.example.demo.mypetapp;
 
 import android.content.Context;
+import android.util.Log;
 
 import com.amazonaws.mobile.auth.core.IdentityManager;
 import com.amazonaws.mobile.auth.userpools.CognitoUserPoolsSignInProvider;
 import com.amazonaws.mobile.client.AWSMobileClient;
 import com.amazonaws.mobile.config.AWSConfiguration;
 import com.amazonaws.mobileconnectors.appsync.AWSAppSyncClient;
+import com.amazonaws.mobileconnectors.appsync.cache.normalized.sql.AppSyncSqlHelper;
+import com.amazonaws.mobileconnectors.appsync.cache.normalized.sql.SqlNormalizedCacheFactory;
 import com.amazonaws.mobileconnectors.appsync.sigv4.BasicCognitoUserPoolsAuthProvider;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 import com.amazonaws.services.s3.AmazonS3Client;
 
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Hands out the shared clients. Nothing here is built on the main thread: the AppSync
+// client is warmed on a background thread as soon as init() runs, and the S3 client is
+// only built for the first transfer. Once built, a client is read without taking a lock.
 public class ClientFactory {
-    private static volatile AWSAppSyncClient client;
-    private static volatile TransferUtility transferUtility;
+    private static final String TAG = ClientFactory.class.getSimpleName();
 
-    public static synchronized void init(final Context context) {
-        if (client == null) {
-            final AWSConfiguration awsConfiguration = new AWSConfiguration(context);
+    // Builds the clients. Nothing else runs here, so no build waits behind other startup work
+    private static final Executor WARM_EXECUTOR = Executors.newSingleThreadExecutor();
+    // Startup work that reads the app's own files, kept off the client builds
+    private static final Executor STARTUP_EXECUTOR = Executors.newSingleThreadExecutor();
+    // Every read and write of the photo cache, which touches the disk, runs here in order
+    private static final Executor PHOTO_CACHE_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final String CACHE_DB_NAME = "appsyncstore";
+
+    private static volatile Context appContext;
+    private static volatile PetMutationQueue petMutationQueue;
+    private static volatile PetCacheWriter petCacheWriter;
+    private static volatile SubscriptionManager subscriptionManager;
+    private static volatile MultipartUploader photoUploader;
+    private static volatile PhotoDiskCache photoDiskCache;
+    private static volatile TransferMonitor transferMonitor;
+    private static volatile SyncScheduler syncScheduler;
+    private static volatile ScheduledExecutorService metricsExporter;
+    // Set by the TransferUtility build, before the TransferUtility is published
+    private static volatile AmazonS3Client s3Client;
+    private static final CallMetrics callMetrics = new CallMetrics(new CallMetrics.LogSink());
+    private static final OptimisticReconciler reconciler = new OptimisticReconciler();
+    private static final ListPetsCoalescer listPetsCoalescer =
+            new ListPetsCoalescer(new ListPetsCoalescer.AppSyncClient());
+
+    private static final AsyncLazy<AWSAppSyncClient> client = new AsyncLazy<>(new Callable<AWSAppSyncClient>() {
+        @Override
+        public AWSAppSyncClient call() {
+            StartupTrace.Section clientBuild = StartupTrace.get().begin(StartupTrace.CLIENT_BUILD);
+            StartupTrace.Section configParse = StartupTrace.get().begin(StartupTrace.CONFIG_PARSE);
+            final AWSConfiguration awsConfiguration = new AWSConfiguration(appContext);
+            configParse.end();
 
             CognitoUserPoolsSignInProvider cognitoUserPoolsSignInProvider =
                     (CognitoUserPoolsSignInProvider) IdentityManager.getDefaultIdentityManager().getCurrentIdentityProvider();
             BasicCognitoUserPoolsAuthProvider basicCognitoUserPoolsAuthProvider =
                     new BasicCognitoUserPoolsAuthProvider(cognitoUserPoolsSignInProvider.getCognitoUserPool());
 
-            client = AWSAppSyncClient.builder()
-                    .context(context)
+            // The same database the client would open by default, kept under a budget
+            AppSyncSqlHelper sqlHelper = AppSyncSqlHelper.create(appContext, CACHE_DB_NAME);
+            BoundedNormalizedCache.Factory normalizedCache = new BoundedNormalizedCache.Factory(
+                    new SqlNormalizedCacheFactory(sqlHelper),
+                    new BoundedNormalizedCache.SqlStorage(sqlHelper),
+                    new BoundedNormalizedCache.OptimisticPins(reconciler),
+                    BoundedNormalizedCache.DEFAULT_MAX_RECORDS,
+                    BoundedNormalizedCache.DEFAULT_MAX_BYTES,
+                    Executors.newSingleThreadExecutor());
+
+            AWSAppSyncClient client = AWSAppSyncClient.builder()
+                    .context(appContext)
                     .awsConfiguration(awsConfiguration)
                     .cognitoUserPoolsAuthProvider(basicCognitoUserPoolsAuthProvider)
+                    .normalizedCache(normalizedCache)
+                    .build();
+            clientBuild.end();
+            return client;
+        }
+    }, WARM_EXECUTOR);
+
+    // The S3 client is built here rather than waited for, which on the single warm thread
+    // could wait behind this very build
+    private static final AsyncLazy<TransferUtility> transferUtility = new AsyncLazy<>(new Callable<TransferUtility>() {
+        @Override
+        public TransferUtility call() {
+            AmazonS3Client s3 = new AmazonS3Client(AWSMobileClient.getInstance().getCredentialsProvider());
+            TransferUtility utility = TransferUtility.builder()
+                    .context(appContext)
+                    .awsConfiguration(AWSMobileClient.getInstance().getConfiguration())
+                    .s3Client(s3)
                     .build();
+            s3Client = s3;
+            return utility;
+        }
+    }, WARM_EXECUTOR);
+
+    // Cheap enough for the main thread: only wires up objects and starts warming the clients
+    public static synchronized void init(final Context context) {
+        if (appContext == null) {
+            appContext = context.getApplicationContext();
         }
+        client.warm();
 
-        if (transferUtility == null) {
-            if (transferUtility == null) {
-                transferUtility = TransferUtility.builder()
-                        .context(context)
-                        .awsConfiguration(AWSMobileClient.getInstance().getConfiguration())
-                        .s3Client(new AmazonS3Client(AWSMobileClient.getInstance().getCredentialsProvider()))
-                        .build();
-            }
+        if (metricsExporter == null) {
+            metricsExporter = Executors.newSingleThreadScheduledExecutor();
+            metricsExporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    callMetrics.export();
+                }
+            }, CallMetrics.EXPORT_INTERVAL_MS, CallMetrics.EXPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
         }
+
+        if (petCacheWriter == null) {
+            petCacheWriter = new PetCacheWriter(Executors.newSingleThreadExecutor());
+        }
+
+        if (subscriptionManager == null) {
+            ScheduledExecutorService subscriptionExecutor = Executors.newSingleThreadScheduledExecutor();
+            subscriptionManager = new SubscriptionManager(
+                    new SubscriptionManager.AppSyncConnection(subscriptionExecutor,
+                            SubscriptionManager.ACK_TIMEOUT_MS),
+                    new SubscriptionManager.FirstPageCatchUp(),
+                    new Backoff(SubscriptionManager.BACKOFF_BASE_MS, SubscriptionManager.BACKOFF_MAX_MS),
+                    subscriptionExecutor,
+                    SubscriptionManager.IDLE_TIMEOUT_MS);
+        }
+
+        if (syncScheduler == null) {
+            syncScheduler = new SyncScheduler(
+                    new SyncScheduler.ConnectivityManagerSource(appContext),
+                    new SyncScheduler.ExecutorTimer(Executors.newSingleThreadScheduledExecutor()),
+                    new Backoff(SyncScheduler.BACKOFF_BASE_MS, SyncScheduler.BACKOFF_MAX_MS),
+                    SyncScheduler.BATCH_WINDOW_MS,
+                    SyncScheduler.METERED_MAX_BYTES);
+        }
+
+        if (transferMonitor == null) {
+            transferMonitor = new TransferMonitor(new TransferMonitor.MainThreadScheduler(),
+                    TransferMonitor.DEFAULT_SNAPSHOTS_PER_SECOND);
+        }
+
+        if (photoUploader == null) {
+            photoUploader = new MultipartUploader(
+                    new MultipartUploader.AmazonS3Api(),
+                    new MultipartUploader.FileJournal(new File(appContext.getFilesDir(), "uploads")),
+                    MultipartUploader.MIN_PART_SIZE,
+                    Executors.newFixedThreadPool(2));
+            // Uploads left unfinished by the last process go out once there is a network
+            photoUploader.scheduleWith(syncScheduler);
+        }
+
+        if (photoDiskCache == null) {
+            photoDiskCache = new PhotoDiskCache(new File(appContext.getCacheDir(), "photos"),
+                    PhotoDiskCache.DEFAULT_MAX_BYTES);
+            // Reads the journal off the main thread before the list asks for the first photo,
+            // without waiting for the AppSync client
+            final PhotoDiskCache cache = photoDiskCache;
+            PHOTO_CACHE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cache.size();
+                }
+            });
+        }
+
+        if (petMutationQueue == null) {
+            petMutationQueue = new PetMutationQueue(
+                    new PetMutationQueue.FileStore(new File(appContext.getFilesDir(), "pending_pets")),
+                    new PetMutationQueue.AppSyncSender(),
+                    Executors.newSingleThreadScheduledExecutor(),
+                    PetMutationQueue.DEFAULT_MAX_BATCH,
+                    PetMutationQueue.DEFAULT_WINDOW_MS);
+            syncScheduler.addJob(petMutationQueue);
+            // Replays pets that were added before the process was last killed, reading
+            // the file off the main thread
+            final PetMutationQueue queue = petMutationQueue;
+            STARTUP_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queue.start();
+                    // replayed pets are still shown under their client ids
+                    for (PetMutationQueue.PendingPet pet : queue.pending()) {
+                        reconciler.track(pet.optimisticItem());
+                    }
+                }
+            });
+        }
+        // Holds the queued work until a network callback reports a connection
+        syncScheduler.start();
+        Log.d(TAG, "Initialized, clients are warming in the background");
+    }
+
+    // Blocks until the client is built. Call it from a background thread, or use
+    // whenAppSyncReady() on the main thread.
+    public static AWSAppSyncClient appSyncClient() {
+        return client.get();
+    }
+
+    // Runs callback as soon as the client is built, on the thread that built it
+    public static void whenAppSyncReady(AsyncLazy.Callback<AWSAppSyncClient> callback) {
+        client.whenReady(callback);
+    }
+
+    // Blocks until the S3 client is built. Call it from a background thread, or use
+    // whenTransferUtilityReady() on the main thread.
+    public static TransferUtility transferUtility() {
+        return transferUtility.get();
+    }
+
+    // Builds the S3 client on first use, off the calling thread
+    public static void whenTransferUtilityReady(AsyncLazy.Callback<TransferUtility> callback) {
+        transferUtility.whenReady(callback);
+    }
+
+    // Blocks until the S3 client is built, call it from a background thread
+    public static AmazonS3Client s3Client() {
+        transferUtility.get();
+        return s3Client;
+    }
+
+    public static MultipartUploader photoUploader() {
+        return photoUploader;
+    }
+
+    public static TransferMonitor transferMonitor() {
+        return transferMonitor;
+    }
+
+    public static SyncScheduler syncScheduler() {
+        return syncScheduler;
+    }
+
+    public static PhotoDiskCache photoDiskCache() {
+        return photoDiskCache;
+    }
+
+    // Where the photo cache is used, so the main thread never waits for its disk I/O
+    public static Executor photoCacheExecutor() {
+        return PHOTO_CACHE_EXECUTOR;
+    }
+
+    public static PetMutationQueue petMutationQueue() {
+        return petMutationQueue;
+    }
+
+    public static OptimisticReconciler reconciler() {
+        return reconciler;
+    }
+
+    // Every GraphQL call and S3 transfer records its latency and outcome here
+    public static CallMetrics callMetrics() {
+        return callMetrics;
+    }
+
+    // Every listPets page query goes through it, so concurrent ones share an execution
+    public static ListPetsCoalescer listPetsCoalescer() {
+        return listPetsCoalescer;
     }
 
-    public static synchronized AWSAppSyncClient appSyncClient() {
-        return client;
+    public static PetCacheWriter petCacheWriter() {
+        return petCacheWriter;
     }
 
-    public static synchronized TransferUtility transferUtility() {
-        return transferUtility;
+    public static SubscriptionManager subscriptionManager() {
+        return subscriptionManager;
     }
-}
\ No newline at end of file
+}
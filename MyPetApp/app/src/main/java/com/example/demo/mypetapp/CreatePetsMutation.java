@@ -0,0 +1,206 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.CreatePetMutation;
+import com.apollographql.apollo.api.Error;
+import com.apollographql.apollo.api.InputFieldMarshaller;
+import com.apollographql.apollo.api.InputFieldWriter;
+import com.apollographql.apollo.api.Mutation;
+import com.apollographql.apollo.api.Operation;
+import com.apollographql.apollo.api.OperationName;
+import com.apollographql.apollo.api.ResponseField;
+import com.apollographql.apollo.api.ResponseFieldMapper;
+import com.apollographql.apollo.api.ResponseFieldMarshaller;
+import com.apollographql.apollo.api.ResponseReader;
+import com.apollographql.apollo.api.ResponseWriter;
+import com.apollographql.apollo.api.internal.UnmodifiableMapBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import type.CreatePetInput;
+
+// Creates a batch of pets with a single request. The document has one createPet field per
+// pet, aliased p0, p1, ... and each with its own input variable, and every field selects
+// what the generated CreatePetMutation selects, so its mapper reads them. The fields succeed
+// or fail one by one: a failed field is null and has an error whose path starts with its alias.
+final class CreatePetsMutation
+        implements Mutation<CreatePetsMutation.Data, CreatePetsMutation.Data, CreatePetsMutation.Variables> {
+
+    private static final String OPERATION = "CreatePets";
+    // Raised by the resolver's attribute_not_exists(id) condition
+    private static final String ALREADY_EXISTS = "ConditionalCheckFailedException";
+
+    private static final OperationName OPERATION_NAME = new OperationName() {
+        @Override
+        public String name() {
+            return OPERATION;
+        }
+    };
+
+    private final Variables mVariables;
+    private final ResponseField[] mFields;
+    private final String mDocument;
+
+    CreatePetsMutation(List<CreatePetInput> inputs) {
+        mVariables = new Variables(inputs);
+        mFields = new ResponseField[inputs.size()];
+        String selection = petSelection();
+        StringBuilder arguments = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
+        for (int i = 0; i < inputs.size(); i++) {
+            arguments.append(i == 0 ? "" : ", ").append('$').append(variable(i)).append(": CreatePetInput!");
+            fields.append("  ").append(alias(i)).append(": createPet(input: $").append(variable(i)).append(") ")
+                    .append(selection).append('\n');
+            mFields[i] = ResponseField.forObject(alias(i), "createPet",
+                    new UnmodifiableMapBuilder<String, Object>(1)
+                            .put("input", new UnmodifiableMapBuilder<String, Object>(2)
+                                    .put("kind", "Variable")
+                                    .put("variableName", variable(i))
+                                    .build())
+                            .build(),
+                    true, Collections.<ResponseField.Condition>emptyList());
+        }
+        mDocument = "mutation " + OPERATION + "(" + arguments + ") {\n" + fields + "}";
+    }
+
+    static String alias(int index) {
+        return "p" + index;
+    }
+
+    private static String variable(int index) {
+        return "input" + index;
+    }
+
+    // The braces after createPet(input: $input) in the generated document
+    private static String petSelection() {
+        String document = CreatePetMutation.QUERY_DOCUMENT;
+        int start = document.indexOf('{', document.indexOf("createPet("));
+        return document.substring(start, document.lastIndexOf('}')).trim();
+    }
+
+    // Whether the pet of the field at index was not created because the server has a pet
+    // under its id already, i.e. an earlier send of it got there
+    static boolean alreadyCreated(List<Error> errors, int index) {
+        for (Error error : errors) {
+            Object path = error.customAttributes().get("path");
+            Object type = error.customAttributes().get("errorType");
+            if (path instanceof List && !((List<?>) path).isEmpty()
+                    && alias(index).equals(((List<?>) path).get(0))
+                    && type != null && type.toString().contains(ALREADY_EXISTS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String queryDocument() {
+        return mDocument;
+    }
+
+    @Override
+    public Variables variables() {
+        return mVariables;
+    }
+
+    @Override
+    public ResponseFieldMapper<Data> responseFieldMapper() {
+        return new ResponseFieldMapper<Data>() {
+            @Override
+            public Data map(ResponseReader reader) {
+                final CreatePetMutation.CreatePet.Mapper mapper = new CreatePetMutation.CreatePet.Mapper();
+                List<CreatePetMutation.CreatePet> pets = new ArrayList<>(mFields.length);
+                for (ResponseField field : mFields) {
+                    pets.add(reader.readObject(field, new ResponseReader.ObjectReader<CreatePetMutation.CreatePet>() {
+                        @Override
+                        public CreatePetMutation.CreatePet read(ResponseReader reader) {
+                            return mapper.map(reader);
+                        }
+                    }));
+                }
+                return new Data(mFields, pets);
+            }
+        };
+    }
+
+    @Override
+    public Data wrapData(Data data) {
+        return data;
+    }
+
+    @Nonnull
+    @Override
+    public OperationName name() {
+        return OPERATION_NAME;
+    }
+
+    // One document per batch size
+    @Nonnull
+    @Override
+    public String operationId() {
+        return OPERATION + "_" + mFields.length;
+    }
+
+    static final class Variables extends Operation.Variables {
+        private final List<CreatePetInput> mInputs;
+        private final transient Map<String, Object> mValueMap = new LinkedHashMap<>();
+
+        Variables(List<CreatePetInput> inputs) {
+            mInputs = new ArrayList<>(inputs);
+            for (int i = 0; i < mInputs.size(); i++) {
+                mValueMap.put(variable(i), mInputs.get(i));
+            }
+        }
+
+        @Override
+        public Map<String, Object> valueMap() {
+            return Collections.unmodifiableMap(mValueMap);
+        }
+
+        @Override
+        public InputFieldMarshaller marshaller() {
+            return new InputFieldMarshaller() {
+                @Override
+                public void marshal(InputFieldWriter writer) throws IOException {
+                    for (int i = 0; i < mInputs.size(); i++) {
+                        writer.writeObject(variable(i), mInputs.get(i).marshaller());
+                    }
+                }
+            };
+        }
+    }
+
+    static final class Data implements Operation.Data {
+        private final ResponseField[] mFields;
+        private final List<CreatePetMutation.CreatePet> mPets;
+
+        Data(ResponseField[] fields, List<CreatePetMutation.CreatePet> pets) {
+            mFields = fields;
+            mPets = pets;
+        }
+
+        // The pet created for the input at index, or null when that field failed
+        CreatePetMutation.CreatePet createPet(int index) {
+            return mPets.get(index);
+        }
+
+        @Override
+        public ResponseFieldMarshaller marshaller() {
+            return new ResponseFieldMarshaller() {
+                @Override
+                public void marshal(ResponseWriter writer) {
+                    for (int i = 0; i < mFields.length; i++) {
+                        CreatePetMutation.CreatePet pet = mPets.get(i);
+                        writer.writeObject(mFields[i], pet != null ? pet.marshaller() : null);
+                    }
+                }
+            };
+        }
+    }
+}
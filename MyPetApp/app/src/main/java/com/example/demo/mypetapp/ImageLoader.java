@@ -0,0 +1,269 @@
+package com.example.demo.mypetapp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+// Loads downsampled photos into ImageViews off the main thread and keeps
+// the decoded bitmaps in a size-bounded LRU memory cache.
+public class ImageLoader {
+
+    interface Decoder {
+        Bitmap decode(String path, int reqWidth, int reqHeight);
+    }
+
+    private static volatile ImageLoader sInstance;
+
+    public static ImageLoader getInstance() {
+        if (sInstance == null) {
+            synchronized (ImageLoader.class) {
+                if (sInstance == null) {
+                    // Use 1/8th of the available memory for the bitmap cache
+                    int cacheSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+                    sInstance = new ImageLoader(SAMPLED_DECODER, cacheSize,
+                            Executors.newFixedThreadPool(2), mainThreadExecutor());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final Decoder mDecoder;
+    private final BitmapCache mCache;
+    private final Executor mDecodeExecutor;
+    private final Executor mMainExecutor;
+
+    // Pending request per view. Only touched from the main thread.
+    private final Map<ImageView, Request> mRequests = new HashMap<>();
+    // Keys being decoded ahead of the rows that will show them. Only touched from the main thread.
+    private final Set<String> mPreloads = new HashSet<>();
+
+    ImageLoader(Decoder decoder, int cacheSizeBytes, Executor decodeExecutor, Executor mainExecutor) {
+        mDecoder = decoder;
+        mDecodeExecutor = decodeExecutor;
+        mMainExecutor = mainExecutor;
+        mCache = new BitmapCache(cacheSizeBytes);
+    }
+
+    // Shows the photo at path in the view, decoded no larger than needed for reqWidth x reqHeight.
+    // Must be called from the main thread.
+    public void load(ImageView view, String path, int reqWidth, int reqHeight) {
+        String key = cacheKey(path, reqWidth, reqHeight);
+
+        Request pending = mRequests.get(view);
+        if (pending != null) {
+            if (pending.key.equals(key)) {
+                return;
+            }
+            pending.cancel();
+            mRequests.remove(view);
+        }
+
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageBitmap(null);
+        Request request = new Request(view, path, key, reqWidth, reqHeight);
+        mRequests.put(view, request);
+        if (!mPreloads.contains(key)) {
+            // otherwise the preload shows the photo once it is decoded
+            mDecodeExecutor.execute(request.task);
+        }
+    }
+
+    // Decodes the photo into the cache before a row shows it, so that binding the row finds it
+    // there. Must be called from the main thread.
+    public void preload(final String path, final int reqWidth, final int reqHeight) {
+        final String key = cacheKey(path, reqWidth, reqHeight);
+        // not a get(), which would count as a hit or a miss
+        if (mPreloads.contains(key) || isLoading(key) || mCache.contains(key)) {
+            return;
+        }
+        mPreloads.add(key);
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap result = mDecoder.decode(path, reqWidth, reqHeight);
+                if (result != null) {
+                    mCache.putBitmap(key, result);
+                }
+                mMainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPreloads.remove(key);
+                        // rows that were bound while the decode was running
+                        for (Iterator<Request> it = mRequests.values().iterator(); it.hasNext(); ) {
+                            Request request = it.next();
+                            if (request.key.equals(key)) {
+                                it.remove();
+                                request.view.setImageBitmap(result);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean isLoading(String key) {
+        for (Request request : mRequests.values()) {
+            if (request.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Drops any pending decode for the view, e.g. when its ViewHolder is recycled.
+    // Must be called from the main thread.
+    public void cancel(ImageView view) {
+        Request pending = mRequests.remove(view);
+        if (pending != null) {
+            pending.cancel();
+        }
+    }
+
+    LruCache<String, Bitmap> cache() {
+        return mCache;
+    }
+
+    static String cacheKey(String path, int reqWidth, int reqHeight) {
+        return path + "@" + reqWidth + "x" + reqHeight;
+    }
+
+    // Largest power of two that keeps both dimensions at or above the requested size
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while ((width / (inSampleSize * 2)) >= reqWidth
+                && (height / (inSampleSize * 2)) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    static final Decoder SAMPLED_DECODER = new Decoder() {
+        @Override
+        public Bitmap decode(String path, int reqWidth, int reqHeight) {
+            // Read the dimensions only, then decode at the smallest sample size that still fits
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            options.inSampleSize = calculateInSampleSize(
+                    options.outWidth, options.outHeight, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    };
+
+    private static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    // Sized by bytes, and tells whether it holds a key without touching its hit and miss counts
+    static class BitmapCache extends LruCache<String, Bitmap> {
+        private final Set<String> mKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        BitmapCache(int maxSizeBytes) {
+            super(maxSizeBytes);
+        }
+
+        boolean contains(String key) {
+            return mKeys.contains(key);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            if (newValue == null) {
+                mKeys.remove(key);
+            }
+        }
+
+        // Added before the entry, so that an entry evicted right away is not left behind
+        void putBitmap(String key, Bitmap bitmap) {
+            mKeys.add(key);
+            put(key, bitmap);
+        }
+    }
+
+    private class Request implements Runnable {
+        final ImageView view;
+        final String path;
+        final String key;
+        final int reqWidth;
+        final int reqHeight;
+        final FutureTask<Void> task;
+        volatile boolean cancelled;
+
+        Request(ImageView view, String path, String key, int reqWidth, int reqHeight) {
+            this.view = view;
+            this.path = path;
+            this.key = key;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.task = new FutureTask<>(this, null);
+        }
+
+        void cancel() {
+            cancelled = true;
+            task.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            final Bitmap result = mDecoder.decode(path, reqWidth, reqHeight);
+            if (result != null) {
+                mCache.putBitmap(key, result);
+            }
+
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled || mRequests.get(view) != Request.this) {
+                        return;
+                    }
+                    mRequests.remove(view);
+                    view.setImageBitmap(result);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.amazonaws.mobileconnectors.appsync.AWSAppSyncClient;
+import com.amazonaws.mobileconnectors.appsync.fetcher.AppSyncResponseFetchers;
+import com.apollographql.apollo.GraphQLCall;
+import com.apollographql.apollo.api.Response;
+import com.apollographql.apollo.exception.ApolloException;
+import com.apollographql.apollo.fetcher.ResponseFetcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+// Runs the listPets page queries of the whole app: the pager, the refresh after a batch of
+// added pets and the catch-up after a reconnect all ask for the first page, often at the
+// same time. Callers that ask for the same page with the same fetcher while it is in flight
+// share one execution, and a network-only caller also shares the network half of a
+// cache-and-network one. A caller that needs what the server had after some point, such as
+// a batch of created pets or a reconnect, passes a mark() taken at that point and only shares
+// executions started after it. When the network copy of a page equals the cached copy the same
+// execution delivered, the callers are told it is unchanged instead of being given it again.
+public class ListPetsCoalescer {
+
+    static final int CACHE_ONLY = 0;
+    static final int NETWORK_ONLY = 1;
+    static final int CACHE_AND_NETWORK = 2;
+    static final int NETWORK_FIRST = 3;
+
+    interface Client {
+        // Runs the query once. CACHE_AND_NETWORK may answer twice, from the cache first.
+        void query(String nextToken, int limit, int fetcher, PetPager.PageCallback callback);
+    }
+
+    private final Client mClient;
+    private final Map<String, Execution> mInFlight = new HashMap<>();
+    private int mExecutions;
+    private int mShared;
+
+    ListPetsCoalescer(Client client) {
+        mClient = client;
+    }
+
+    public void query(String nextToken, int limit, int fetcher, PetPager.PageCallback callback) {
+        query(nextToken, limit, fetcher, -1, callback);
+    }
+
+    // Only shares an execution started after freshAfter, a value of mark()
+    public void query(String nextToken, int limit, int fetcher, long freshAfter, PetPager.PageCallback callback) {
+        Execution execution;
+        Page replay = null;
+        boolean start = false;
+        synchronized (this) {
+            execution = joinable(key(nextToken, limit, fetcher), freshAfter);
+            if (execution == null && fetcher == NETWORK_ONLY) {
+                execution = joinable(key(nextToken, limit, CACHE_AND_NETWORK), freshAfter);
+            }
+            if (execution == null) {
+                execution = new Execution(key(nextToken, limit, fetcher), fetcher, ++mExecutions);
+                mInFlight.put(execution.key, execution);
+                start = true;
+            } else {
+                mShared++;
+            }
+            if (fetcher == execution.fetcher) {
+                execution.callbacks.add(callback);
+                // joined after the cached copy went out
+                replay = execution.cached;
+            } else {
+                execution.networkCallbacks.add(callback);
+            }
+        }
+        if (replay != null) {
+            callback.onPage(replay.items, replay.nextToken, true);
+        }
+        if (start) {
+            mClient.query(nextToken, limit, fetcher, execution);
+        }
+    }
+
+    // Executions started after this call compare greater, whatever thread starts them
+    public synchronized long mark() {
+        return mExecutions;
+    }
+
+    private Execution joinable(String key, long freshAfter) {
+        Execution execution = mInFlight.get(key);
+        return execution != null && execution.sequence > freshAfter ? execution : null;
+    }
+
+    // Executions started, and queries that joined one instead of starting their own
+    public synchronized int executions() {
+        return mExecutions;
+    }
+
+    public synchronized int shared() {
+        return mShared;
+    }
+
+    private static String key(String nextToken, int limit, int fetcher) {
+        return fetcher + "/" + limit + "/" + nextToken;
+    }
+
+    private static class Page {
+        final List<ListPetsQuery.Item> items;
+        final String nextToken;
+
+        Page(List<ListPetsQuery.Item> items, String nextToken) {
+            this.items = items;
+            this.nextToken = nextToken;
+        }
+
+        boolean sameAs(List<ListPetsQuery.Item> otherItems, String otherNextToken) {
+            return items.equals(otherItems)
+                    && (nextToken == null ? otherNextToken == null : nextToken.equals(otherNextToken));
+        }
+    }
+
+    private class Execution implements PetPager.PageCallback {
+        final String key;
+        final int fetcher;
+        final long sequence;
+        final List<PetPager.PageCallback> callbacks = new ArrayList<>();
+        // Joined for the network copy only
+        final List<PetPager.PageCallback> networkCallbacks = new ArrayList<>();
+        Page cached;
+
+        Execution(String key, int fetcher, long sequence) {
+            this.key = key;
+            this.fetcher = fetcher;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+            boolean first = fetcher == CACHE_AND_NETWORK && fromCache;
+            List<PetPager.PageCallback> all;
+            List<PetPager.PageCallback> network;
+            boolean unchanged;
+            synchronized (ListPetsCoalescer.this) {
+                if (first) {
+                    cached = new Page(items, nextToken);
+                } else {
+                    finish();
+                }
+                all = new ArrayList<>(callbacks);
+                network = first ? Collections.<PetPager.PageCallback>emptyList() : new ArrayList<>(networkCallbacks);
+                unchanged = !first && cached != null && cached.sameAs(items, nextToken);
+            }
+            for (PetPager.PageCallback callback : all) {
+                if (unchanged) {
+                    callback.onUnchanged(nextToken);
+                } else {
+                    callback.onPage(items, nextToken, fromCache);
+                }
+            }
+            for (PetPager.PageCallback callback : network) {
+                callback.onPage(items, nextToken, fromCache);
+            }
+        }
+
+        // The callers that share the execution may only have had the cached copy, or nothing
+        @Override
+        public void onUnchanged(String nextToken) {
+            onPage(cached != null ? cached.items : Collections.<ListPetsQuery.Item>emptyList(), nextToken, false);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            List<PetPager.PageCallback> all;
+            synchronized (ListPetsCoalescer.this) {
+                finish();
+                all = new ArrayList<>(callbacks);
+                all.addAll(networkCallbacks);
+            }
+            for (PetPager.PageCallback callback : all) {
+                callback.onError(e);
+            }
+        }
+
+        // Queries made from here on start a new execution
+        private void finish() {
+            if (mInFlight.get(key) == this) {
+                mInFlight.remove(key);
+            }
+        }
+    }
+
+    // Runs the queries through the AppSync client, once it is built, recording each answer
+    // in the app's CallMetrics
+    static class AppSyncClient implements Client {
+        @Override
+        public void query(final String nextToken, final int limit, final int fetcher,
+                          final PetPager.PageCallback callback) {
+            final CallMetrics metrics = ClientFactory.callMetrics();
+            ClientFactory.whenAppSyncReady(new AsyncLazy.Callback<AWSAppSyncClient>() {
+                @Override
+                public void onReady(AWSAppSyncClient client) {
+                    final long start = metrics.start();
+                    client.query(PetPager.pageQuery(nextToken, limit))
+                            .responseFetcher(responseFetcher(fetcher))
+                            .enqueue(new GraphQLCall.Callback<ListPetsQuery.Data>() {
+                                @Override
+                                public void onResponse(@Nonnull Response<ListPetsQuery.Data> response) {
+                                    metrics.recordResponse(CallMetrics.LIST_PETS, start, response.fromCache());
+                                    if (response.data() == null || response.data().listPets() == null) {
+                                        callback.onPage(Collections.<ListPetsQuery.Item>emptyList(), null,
+                                                response.fromCache());
+                                        return;
+                                    }
+                                    ListPetsQuery.ListPets page = response.data().listPets();
+                                    callback.onPage(page.items(), page.nextToken(), response.fromCache());
+                                }
+
+                                @Override
+                                public void onFailure(@Nonnull ApolloException e) {
+                                    metrics.recordError(CallMetrics.LIST_PETS);
+                                    callback.onError(e);
+                                }
+                            });
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    metrics.recordError(CallMetrics.LIST_PETS);
+                    callback.onError(e);
+                }
+            });
+        }
+
+        private static ResponseFetcher responseFetcher(int fetcher) {
+            switch (fetcher) {
+                case CACHE_ONLY:
+                    return AppSyncResponseFetchers.CACHE_ONLY;
+                case NETWORK_ONLY:
+                    return AppSyncResponseFetchers.NETWORK_ONLY;
+                case CACHE_AND_NETWORK:
+                    return AppSyncResponseFetchers.CACHE_AND_NETWORK;
+                default:
+                    return AppSyncResponseFetchers.NETWORK_FIRST;
+            }
+        }
+    }
+}
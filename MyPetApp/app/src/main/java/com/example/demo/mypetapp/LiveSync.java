@@ -0,0 +1,234 @@
+package com.example.demo.mypetapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps the pet list in step with onCreatePet, onUpdatePet and onDeletePet. Events may
+// arrive on any thread; they are buffered by pet id and applied to the list once per frame,
+// so a burst of events costs a single adapter update. A server record of a pet added on this
+// device replaces the optimistic row in place rather than adding a second one.
+public class LiveSync implements SubscriptionManager.EventSink {
+
+    public static class Event {
+        static final int CREATED = 0;
+        static final int UPDATED = 1;
+        static final int DELETED = 2;
+
+        final int type;
+        final ListPetsQuery.Item pet;
+
+        Event(int type, ListPetsQuery.Item pet) {
+            this.type = type;
+            this.pet = pet;
+        }
+    }
+
+    interface FrameScheduler {
+        // Runs frame on the main thread before the next frame is drawn
+        void postFrame(Runnable frame);
+    }
+
+    // Receives the events of every frame, to be written to the local store
+    interface Store {
+        void apply(List<Event> events);
+    }
+
+    interface Listener {
+        // Called on the main thread after the events of a frame were applied to the list
+        void onPetsChanged(List<Event> applied);
+    }
+
+    private final List<ListPetsQuery.Item> mPets;
+    private final FrameScheduler mScheduler;
+    private final Store mStore;
+    private final Listener mListener;
+    private final OptimisticReconciler mReconciler;
+
+    // Filled by the subscription threads, swapped with mApplying at every frame
+    private LinkedHashMap<String, Event> mPending = new LinkedHashMap<>();
+    private LinkedHashMap<String, Event> mApplying = new LinkedHashMap<>();
+    private boolean mFrameScheduled;
+
+    // Only touched on the main thread
+    private final Set<String> mMatched = new HashSet<>();
+    // The server event for each optimistic row it replaces in this frame, by client id
+    private final Map<String, Event> mClaimed = new HashMap<>();
+    private final Set<String> mClaimedIds = new HashSet<>();
+    private final List<String> mReplaced = new ArrayList<>();
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    // pets is the list shown by the adapter and is only modified on the main thread
+    LiveSync(List<ListPetsQuery.Item> pets, FrameScheduler scheduler, Store store, Listener listener) {
+        this(pets, scheduler, store, listener, new OptimisticReconciler());
+    }
+
+    LiveSync(List<ListPetsQuery.Item> pets, FrameScheduler scheduler, Store store, Listener listener,
+             OptimisticReconciler reconciler) {
+        mPets = pets;
+        mScheduler = scheduler;
+        mStore = store;
+        mListener = listener;
+        mReconciler = reconciler;
+    }
+
+    @Override
+    public void onEvent(int type, ListPetsQuery.Item pet) {
+        boolean schedule;
+        synchronized (this) {
+            Event previous = mPending.get(pet.id());
+            if (type == Event.UPDATED && previous != null && previous.type == Event.CREATED) {
+                // still a create as far as the list is concerned
+                type = Event.CREATED;
+            }
+            mPending.put(pet.id(), new Event(type, pet));
+            schedule = !mFrameScheduled;
+            mFrameScheduled = true;
+        }
+        if (schedule) {
+            mScheduler.postFrame(mFrame);
+        }
+    }
+
+    private void applyPending() {
+        LinkedHashMap<String, Event> events;
+        synchronized (this) {
+            events = mPending;
+            mPending = mApplying;
+            mApplying = events;
+            mFrameScheduled = false;
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+
+        for (Event event : events.values()) {
+            if (event.type != Event.DELETED) {
+                String clientId = mReconciler.claim(event.pet);
+                if (clientId != null) {
+                    mClaimed.put(clientId, event);
+                    mClaimedIds.add(event.pet.id());
+                }
+            }
+        }
+
+        // One pass replaces or drops the pets already in the list
+        int write = 0;
+        for (int read = 0; read < mPets.size(); read++) {
+            ListPetsQuery.Item pet = mPets.get(read);
+            Event event = events.get(pet.id());
+            Event claimed = mClaimed.get(pet.id());
+            if (claimed != null) {
+                // the optimistic row, which takes the server record in place
+                event = claimed;
+                mMatched.add(claimed.pet.id());
+                mReplaced.add(pet.id());
+            }
+            if (event != null) {
+                mMatched.add(pet.id());
+                if (event.type == Event.DELETED) {
+                    continue;
+                }
+                pet = keepLocalPhoto(event.pet, pet);
+            }
+            mPets.set(write++, pet);
+        }
+        for (int i = mPets.size() - 1; i >= write; i--) {
+            mPets.remove(i);
+        }
+
+        // Created pets that were not in the list yet go to the end
+        for (Event event : events.values()) {
+            if (event.type != Event.CREATED || mMatched.contains(event.pet.id())) {
+                continue;
+            }
+            // an optimistic pet whose server record came in the same frame is added as the latter
+            Event claimed = mClaimed.get(event.pet.id());
+            if (claimed == null) {
+                mPets.add(event.pet);
+            } else if (mMatched.add(claimed.pet.id())) {
+                mPets.add(keepLocalPhoto(claimed.pet, event.pet));
+                mReplaced.add(event.pet.id());
+            }
+        }
+
+        List<Event> applied = new ArrayList<>(events.size() + mReplaced.size());
+        for (Event event : events.values()) {
+            // the optimistic events were replaced, the server events are added below
+            if (!mClaimed.containsKey(event.pet.id()) && !mClaimedIds.contains(event.pet.id())) {
+                applied.add(event);
+            }
+        }
+        if (!mClaimed.isEmpty()) {
+            for (Map.Entry<String, Event> claimed : mClaimed.entrySet()) {
+                Event event = claimed.getValue();
+                if (!mReplaced.contains(claimed.getKey())) {
+                    applied.add(event);
+                    continue;
+                }
+                // the store and the search index swap the client id for the server's
+                ListPetsQuery.Item pet = event.pet;
+                applied.add(new Event(Event.CREATED, pet));
+                applied.add(new Event(Event.DELETED, new ListPetsQuery.Item(pet.__typename(), claimed.getKey(),
+                        pet.name(), pet.description(), pet.photo())));
+            }
+        }
+        events.clear();
+        mMatched.clear();
+        mClaimed.clear();
+        mClaimedIds.clear();
+        mReplaced.clear();
+        mStore.apply(applied);
+        mListener.onPetsChanged(applied);
+    }
+
+    // The server never knows where a photo was downloaded to, so an update of the same photo
+    // keeps pointing at the local copy
+    static ListPetsQuery.Item keepLocalPhoto(ListPetsQuery.Item updated, ListPetsQuery.Item current) {
+        ListPetsQuery.Photo photo = updated.photo();
+        ListPetsQuery.Photo currentPhoto = current.photo();
+        if (photo == null || currentPhoto == null || photo.localUri() != null
+                || currentPhoto.localUri() == null || !photo.key().equals(currentPhoto.key())) {
+            return updated;
+        }
+        return new ListPetsQuery.Item(updated.__typename(), updated.id(), updated.name(), updated.description(),
+                new ListPetsQuery.Photo(photo.__typename(), photo.bucket(), photo.key(), photo.region(),
+                        currentPhoto.localUri(), photo.mimeType()));
+    }
+
+    // Posts to the Choreographer from the main looper, whatever thread the event came from
+    static class ChoreographerScheduler implements FrameScheduler {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postFrame(final Runnable frame) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            frame.run();
+                        }
+                    });
+                }
+            });
+        }
+    }
+}
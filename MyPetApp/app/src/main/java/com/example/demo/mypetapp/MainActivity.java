@@ -1,59 +1,128 @@
 package com.example.demo.mypetapp;
 
-import android.Manifest;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.design.widget.FloatingActionButton;
-import android.support.v4.app.ActivityCompat;
-import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 
 import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
-import com.amazonaws.amplify.generated.graphql.OnCreatePetSubscription;
 import com.amazonaws.mobile.client.AWSMobileClient;
 import com.amazonaws.mobileconnectors.appsync.AWSAppSyncClient;
-import com.amazonaws.mobileconnectors.appsync.AppSyncSubscriptionCall;
-import com.amazonaws.mobileconnectors.appsync.fetcher.AppSyncResponseFetchers;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
-import com.apollographql.apollo.GraphQLCall;
-import com.apollographql.apollo.api.Response;
-import com.apollographql.apollo.exception.ApolloException;
 
 import java.io.File;
 import java.util.ArrayList;
-
-import javax.annotation.Nonnull;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    // Typing pauses this long before the server is asked for pets that are not loaded yet
+    private static final long REMOTE_SEARCH_DELAY_MS = 400;
+    // Photos of this many rows past the edge of the screen are decoded before they scroll in
+    private static final int PRELOAD_ROWS = 6;
+    // Rows inflated into the pool once the first frame is drawn, about a screen's worth
+    private static final int PREWARMED_ROWS = 8;
+
     RecyclerView mRecyclerView;
     MyAdapter mAdapter;
-
-    private ArrayList<ListPetsQuery.Item> mPets;
+    PetPager mPager;
+    PhotoDownloadScheduler mDownloads;
+    LiveSync mLiveSync;
+    PetListSnapshot mSnapshot;
+    PetSearchIndex mSearchIndex = new PetSearchIndex();
+    PetSearchIndex.RemoteSearch mRemoteSearch = new PetSearchIndex.AppSyncRemoteSearch();
+    private String mQuery = "";
+    private boolean mSortDescending;
+    // The rows whose photos were last moved up the download queue
+    private int mPrioritizedFirst = -1;
+    private int mPrioritizedLast = -1;
+
+    // Startup timings, measured from onCreate
+    private long mCreatedNanos;
+    private boolean mFirstRowShown;
+    // The subscription gaps there were when the list was last fetched
+    private int mGapsLoaded;
+
+    // Indexed by id and photo key, written on the main thread only
+    private final PetStore mPets = new PetStore();
     private final String TAG = MainActivity.class.getSimpleName();
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedNanos = System.nanoTime();
         setContentView(R.layout.activity_main);
 
         mRecyclerView = findViewById(R.id.recycler_view);
 
         // use a linear layout manager
-        mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        mRecyclerView.setLayoutManager(layoutManager);
+
+        ClientFactory.init(this);
 
         // specify an adapter (see also next example)
-        mAdapter = new MyAdapter(this);
+        mAdapter = new MyAdapter(this, ClientFactory.reconciler());
         mRecyclerView.setAdapter(mAdapter);
+        // the rows of the last launch are in the first frame, the first page replaces them
+        mSnapshot = new PetListSnapshot(new File(getFilesDir(), PetListSnapshot.FILE_NAME), PetPager.DEFAULT_PAGE_SIZE);
+        showSnapshot();
+        // photos that were fetched before, in this process or an earlier one, are not fetched again
+        mDownloads = new PhotoDownloadScheduler(
+                new TransferUtilityTransport(ClientFactory.transferMonitor(), ClientFactory.callMetrics()),
+                ClientFactory.photoDiskCache(), ClientFactory.photoCacheExecutor(), MAX_CONCURRENT_DOWNLOADS);
+        ClientFactory.photoDiskCache().setEvictionListener(evictionListener);
+        // photos that failed to download are tried again as soon as the network is back
+        ClientFactory.syncScheduler().addJob(photoRetryJob);
+
+        // fetch the next page before the user reaches the end of the list
+        mPager = new PetPager(new PetPager.AppSyncPageSource(), PetPager.DEFAULT_PAGE_SIZE, pageListener);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisible = layoutManager.findFirstVisibleItemPosition();
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                // the layout manager binds the next row ahead of time, the photos of the rows
+                // after it are decoded ahead as well
+                if (dy > 0) {
+                    mAdapter.preload(lastVisible + 1, lastVisible + PRELOAD_ROWS);
+                } else if (dy < 0) {
+                    mAdapter.preload(firstVisible - 1, firstVisible - PRELOAD_ROWS);
+                }
+                if (isSearching()) {
+                    // search results come from the index, not from the pages
+                    return;
+                }
+                mPager.loadMoreIfNeeded(lastVisible, mPets.size());
+                prioritizeVisiblePhotos(firstVisible, lastVisible);
+            }
+        });
 
-        ClientFactory.init(this);
+        logFirstFrame();
+
+        // subscription events are applied to mPets by id, once per frame
+        mLiveSync = new LiveSync(mPets, new LiveSync.ChoreographerScheduler(), new LiveSync.Store() {
+            @Override
+            public void apply(List<LiveSync.Event> events) {
+                ClientFactory.petCacheWriter().applyEvents(events);
+            }
+        }, liveSyncListener, ClientFactory.reconciler());
+        ClientFactory.subscriptionManager().setSink(mLiveSync);
+
+        // Live events keep the list current from here on, returning to the screen only refetches
+        // it after a gap in them
+        query();
 
         FloatingActionButton btnAddPet = findViewById(R.id.btn_addPet);
         btnAddPet.setOnClickListener(new View.OnClickListener() {
@@ -66,155 +135,468 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The subscriptions outlive this screen for a while, so switching apps or
+        // activities does not reconnect
+        ClientFactory.subscriptionManager().acquire();
+        // the catch-up after a gap only covers the first page, and no deletes
+        if (ClientFactory.subscriptionManager().gaps() != mGapsLoaded) {
+            query();
+        }
+        // rows show the progress of their photo's transfer while the list is visible
+        TransferMonitor monitor = ClientFactory.transferMonitor();
+        monitor.addObserver(transferObserver);
+        mAdapter.setTransfers(monitor.latest());
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
-        subscriptionWatcher.cancel();
+        final PhotoDiskCache cache = ClientFactory.photoDiskCache();
+        ClientFactory.photoCacheExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.flush();
+            }
+        });
+        ClientFactory.transferMonitor().removeObserver(transferObserver);
+        ClientFactory.subscriptionManager().release();
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-
-        // Refresh the list data when we return to the screen
-        query();
-        subscribe();
+    protected void onDestroy() {
+        super.onDestroy();
+        ClientFactory.subscriptionManager().setSink(null);
+        ClientFactory.photoDiskCache().setEvictionListener(null);
+        ClientFactory.syncScheduler().removeJob(photoRetryJob);
     }
 
     public void query(){
-        ClientFactory.appSyncClient().query(ListPetsQuery.builder().build())
-                .responseFetcher(AppSyncResponseFetchers.CACHE_AND_NETWORK)
-                .enqueue(queryCallback);
+        mGapsLoaded = ClientFactory.subscriptionManager().gaps();
+        mPager.refresh();
     }
 
-    private GraphQLCall.Callback<ListPetsQuery.Data> queryCallback = new GraphQLCall.Callback<ListPetsQuery.Data>() {
-        @Override
-        public void onResponse(@Nonnull Response<ListPetsQuery.Data> response) {
-
-            mPets = new ArrayList<>(response.data().listPets().items());
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
 
-            Log.i(TAG, "Retrieved list items: " + mPets.toString());
+            @Override
+            public boolean onQueryTextChange(String query) {
+                search(query);
+                return true;
+            }
+        });
+        return true;
+    }
 
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mAdapter.setItems(mPets);
-                    mAdapter.notifyDataSetChanged();
-                }
-            });
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_sort_descending) {
+            mSortDescending = !item.isChecked();
+            item.setChecked(mSortDescending);
+            showPets();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
 
+    // Answers from the local index as the user types. While pages are still unloaded, the
+    // server is asked too once typing pauses, and what it finds is indexed.
+    private void search(String query) {
+        mQuery = query.trim();
+        showPets();
 
-            for (ListPetsQuery.Item item : mPets) {
-                // We only download the file if this callback is triggered by a network call
-                if (!response.fromCache() && item.photo() != null) {
-                    downloadWithTransferUtility(item);
-                }
-            }
+        mRecyclerView.removeCallbacks(remoteSearch);
+        if (isSearching() && mPager.hasMore()) {
+            mRecyclerView.postDelayed(remoteSearch, REMOTE_SEARCH_DELAY_MS);
         }
+    }
 
+    private final Runnable remoteSearch = new Runnable() {
         @Override
-        public void onFailure(@Nonnull ApolloException e) {
-            Log.e(TAG, e.toString());
+        public void run() {
+            final String query = mQuery;
+            mRemoteSearch.search(query, new PetSearchIndex.RemoteCallback() {
+                @Override
+                public void onResults(List<ListPetsQuery.Item> items) {
+                    Log.i(TAG, "Server found " + items.size() + " pets for \"" + query + "\"");
+                    mSearchIndex.putAll(items);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (query.equals(mQuery)) {
+                                showPets();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    Log.w(TAG, "Server search failed, showing local results only", e);
+                }
+            });
         }
     };
 
-    private AppSyncSubscriptionCall subscriptionWatcher;
+    private boolean isSearching() {
+        return !mQuery.isEmpty();
+    }
 
-    private void subscribe(){
-        OnCreatePetSubscription subscription = OnCreatePetSubscription.builder().build();
-        subscriptionWatcher = ClientFactory.appSyncClient().subscribe(subscription);
-        subscriptionWatcher.execute(subCallback);
+    // The loaded pages, or the best matches of the current search
+    private void showPets() {
+        if (isSearching()) {
+            mAdapter.setItems(mSearchIndex.search(mQuery, PetSearchIndex.DEFAULT_LIMIT, mSortDescending));
+        } else {
+            List<ListPetsQuery.Item> pets = mPets.snapshot();
+            mAdapter.setItems(pets);
+            // the rows on screen may now show other pets
+            mPrioritizedFirst = -1;
+            mPrioritizedLast = -1;
+            // written off the main thread once the list settles
+            mSnapshot.save(pets);
+        }
     }
 
-    private AppSyncSubscriptionCall.Callback subCallback = new AppSyncSubscriptionCall.Callback() {
-        @Override
-        public void onResponse(@Nonnull Response response) {
-            Log.i("Response", "Received subscription notification: " + response.data().toString());
+    private void showSnapshot() {
+        StartupTrace.Section snapshotRead = StartupTrace.get().begin(StartupTrace.SNAPSHOT_READ);
+        List<ListPetsQuery.Item> pets = mSnapshot.read();
+        snapshotRead.end();
+        if (pets.isEmpty()) {
+            return;
+        }
+        mPets.addAll(pets);
+        mSearchIndex.putAll(pets);
+        mAdapter.setItems(pets);
+        mFirstRowShown = true;
+        Log.i(TAG, "Time to first row: " + millisSinceCreate() + " ms (snapshot of " + pets.size() + " pets)");
+    }
 
-            // Update UI with the newly added item
-            OnCreatePetSubscription.OnCreatePet data = ((OnCreatePetSubscription.Data)response.data()).onCreatePet();
+    // Logs how long the first frame took, which no longer waits for the clients to be built
+    private void logFirstFrame() {
+        final View content = findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                content.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(TAG, "Time to first frame: " + millisSinceCreate() + " ms");
+                prewarmRowsWhenIdle();
+                return true;
+            }
+        });
+    }
 
-            final ListPetsQuery.Item addedItem =
-                    new ListPetsQuery.Item(data.__typename(), data.id(), data.name(), data.description(), null);
+    // Inflates the rows for the first fling once the first frame is out of the way
+    private void prewarmRowsWhenIdle() {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!isDestroyed()) {
+                    mAdapter.prewarm(mRecyclerView, PREWARMED_ROWS);
+                }
+                return false;
+            }
+        });
+    }
 
-            runOnUiThread(new Runnable() {
+    private long millisSinceCreate() {
+        return (System.nanoTime() - mCreatedNanos) / 1000000;
+    }
+
+    private PetPager.Listener pageListener = new PetPager.Listener() {
+        @Override
+        public void onPageLoaded(List<ListPetsQuery.Item> page, final boolean firstPage, final boolean fromCache) {
+
+            Log.i(TAG, "Retrieved " + page.size() + " list items, first page: " + firstPage);
+            // the pets this device added keep their rows until the server has them
+            final List<ListPetsQuery.Item> reconciled = ClientFactory.reconciler().reconcilePage(page, firstPage);
+            // photos fetched by an earlier session are shown straight from disk, looked up where
+            // the photo cache is used; the executor has one thread, so pages keep their order
+            ClientFactory.photoCacheExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
-                    mPets.add(addedItem);
-                    mAdapter.notifyItemInserted(mPets.size() - 1);
+                    showPage(withCachedPhotos(reconciled), firstPage, fromCache);
                 }
             });
         }
+    };
 
-        @Override
-        public void onFailure(@Nonnull ApolloException e) {
-            Log.e("Error", e.toString());
+    private void showPage(final List<ListPetsQuery.Item> items, final boolean firstPage, final boolean fromCache) {
+        // indexed off the main thread
+        mSearchIndex.putAll(items);
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (firstPage) {
+                    mPets.clear();
+                    mPets.addAll(items);
+                } else {
+                    appendPage(items);
+                }
+                showPets();
+                if (!mFirstRowShown && !mPets.isEmpty()) {
+                    mFirstRowShown = true;
+                    Log.i(TAG, "Time to first row: " + millisSinceCreate() + " ms" + (fromCache ? " (cached)" : ""));
+                }
+            }
+        });
+
+        downloadPhotos(items);
+    }
+
+    // An appended page goes to the end of the list. A pet this device added may already have a
+    // row under its client id, which the server record replaces.
+    private void appendPage(List<ListPetsQuery.Item> items) {
+        OptimisticReconciler reconciler = ClientFactory.reconciler();
+        for (ListPetsQuery.Item item : items) {
+            String rowId = reconciler.rowId(item.id());
+            int row = rowId.equals(item.id()) ? -1 : indexOfRow(rowId, item.id());
+            if (row >= 0) {
+                mPets.set(row, LiveSync.keepLocalPhoto(item, mPets.get(row)));
+            } else {
+                mPets.add(item);
+            }
         }
+    }
+
+    private int indexOfRow(String clientId, String serverId) {
+        int row = mPets.indexOfId(clientId);
+        return row >= 0 ? row : mPets.indexOfId(serverId);
+    }
 
+    private LiveSync.Listener liveSyncListener = new LiveSync.Listener() {
         @Override
-        public void onCompleted() {
-            Log.i("Completed", "Subscription completed");
+        public void onPetsChanged(List<LiveSync.Event> applied) {
+            Log.i(TAG, "Applied " + applied.size() + " subscription events");
+
+            List<ListPetsQuery.Item> changed = new ArrayList<>();
+            for (LiveSync.Event event : applied) {
+                if (event.type != LiveSync.Event.DELETED) {
+                    changed.add(event.pet);
+                } else {
+                    mSearchIndex.remove(event.pet.id());
+                }
+            }
+            mSearchIndex.putAll(changed);
+            showPets();
+            downloadPhotos(changed);
         }
     };
 
-
-    private void downloadWithTransferUtility(final ListPetsQuery.Item item) {
-
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                != PackageManager.PERMISSION_GRANTED) {
-            // Permission is not granted
-            Log.d(TAG, "WRITE_EXTERNAL_STORAGE permission not granted! Requesting...");
-            ActivityCompat.requestPermissions(this,
-                    new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
-                    2);
+    // Points each photo at the best copy on disk: the cached full photo, else the file it already
+    // points at (such as the photo this device added), else the cached thumbnail. A path from an
+    // earlier session may name a file that was evicted since, which is dropped. Runs on the
+    // photo cache executor.
+    private List<ListPetsQuery.Item> withCachedPhotos(List<ListPetsQuery.Item> items) {
+        PhotoDiskCache cache = ClientFactory.photoDiskCache();
+        List<ListPetsQuery.Item> resolved = new ArrayList<>(items.size());
+        for (ListPetsQuery.Item item : items) {
+            if (item.photo() == null) {
+                resolved.add(item);
+                continue;
+            }
+            String key = item.photo().key();
+            String thumbnailKey = NewPetPipeline.thumbnailKey(key);
+            String localUri = null;
+            if (cache.sizeOf(key) >= 0) {
+                localUri = localFile(key).getAbsolutePath();
+            } else if (item.photo().localUri() != null && new File(item.photo().localUri()).isFile()) {
+                localUri = item.photo().localUri();
+            } else if (cache.sizeOf(thumbnailKey) >= 0) {
+                localUri = localFile(thumbnailKey).getAbsolutePath();
+            }
+            if (localUri == null ? item.photo().localUri() == null : localUri.equals(item.photo().localUri())) {
+                resolved.add(item);
+                continue;
+            }
+            ListPetsQuery.Photo photo = new ListPetsQuery.Photo(item.photo().__typename(), item.photo().bucket(),
+                    key, item.photo().region(), localUri, item.photo().mimeType());
+            resolved.add(new ListPetsQuery.Item(item.__typename(), item.id(), item.name(), item.description(), photo));
         }
+        return resolved;
+    }
 
-        final String localPath = Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOWNLOADS).getAbsolutePath() + "/" + item.photo().key();
-
-        TransferObserver downloadObserver =
-                ClientFactory.transferUtility().download(
-                        item.photo().key(),
-                        new File(localPath));
+    // Thumbnails are queued ahead of the full photos so every row gets a picture quickly.
+    // Photos the rows already show from disk are skipped, and so are the thumbnails of pets
+    // that were not added through NewPetPipeline, which never had one.
+    private void downloadPhotos(List<ListPetsQuery.Item> items) {
+        for (ListPetsQuery.Item item : items) {
+            if (item.photo() != null && item.photo().localUri() == null
+                    && NewPetPipeline.hasThumbnail(item.photo().key())) {
+                String thumbnailKey = NewPetPipeline.thumbnailKey(item.photo().key());
+                mDownloads.enqueue(thumbnailKey, localFile(thumbnailKey),
+                        PhotoDownloadScheduler.PRIORITY_NORMAL, photoListener);
+            }
+        }
+        for (ListPetsQuery.Item item : items) {
+            if (item.photo() != null) {
+                File file = localFile(item.photo().key());
+                if (!file.getAbsolutePath().equals(item.photo().localUri())) {
+                    mDownloads.enqueue(item.photo().key(), file, PhotoDownloadScheduler.PRIORITY_NORMAL, photoListener);
+                }
+            }
+        }
+    }
 
-        // Attach a listener to the observer to get state update and progress notifications
-        downloadObserver.setTransferListener(new TransferListener() {
+    private File localFile(String key) {
+        return ClientFactory.photoDiskCache().fileFor(key);
+    }
 
-            @Override
-            public void onStateChanged(int id, TransferState state) {
-                if (TransferState.COMPLETED == state) {
-                    // Handle a completed upload.
-                    ListPetsQuery.Photo photo = new ListPetsQuery.Photo(
-                            item.photo().__typename(),
-                            item.photo().bucket(),
-                            item.photo().key(),
-                            item.photo().region(),
-                            localPath,
-                            "image/jpg");
-                    final ListPetsQuery.Item updatedItem =
-                            new ListPetsQuery.Item(item.__typename(),
-                                    item.id(), item.name(), item.description(), photo);
-
-                    int index = mPets.indexOf(item);
-                    mPets.set(index, updatedItem);
-                    mAdapter.notifyItemChanged(index);
+    // queued photos of the rows on screen are downloaded first, and the cache keeps them while
+    // they are on screen. A row whose photo was evicted is downloaded again once it scrolls back
+    // in. Most scroll callbacks move the list by less than a row, and leave the queue alone.
+    private void prioritizeVisiblePhotos(int first, int last) {
+        if (first == mPrioritizedFirst && last == mPrioritizedLast) {
+            return;
+        }
+        mPrioritizedFirst = first;
+        mPrioritizedLast = last;
+        Set<String> keys = new HashSet<>();
+        for (int i = Math.max(first, 0); i <= last && i < mPets.size(); i++) {
+            ListPetsQuery.Item item = mPets.get(i);
+            if (item.photo() != null) {
+                keys.add(NewPetPipeline.thumbnailKey(item.photo().key()));
+                keys.add(item.photo().key());
+                if (item.photo().localUri() == null) {
+                    mDownloads.enqueue(item.photo().key(), localFile(item.photo().key()),
+                            PhotoDownloadScheduler.PRIORITY_VISIBLE, photoListener);
                 }
             }
+        }
+        ClientFactory.photoDiskCache().keep(keys);
+        mDownloads.prioritize(keys);
+    }
 
-            @Override
-            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-                float percentDonef = ((float) bytesCurrent / (float) bytesTotal) * 100;
-                int percentDone = (int) percentDonef;
+    // Rows showing an evicted photo go blank rather than point at a missing file
+    private PhotoDiskCache.EvictionListener evictionListener = new PhotoDiskCache.EvictionListener() {
+        @Override
+        public void onEvicted(final String key, final File file) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean changed = false;
+                    for (String id : mPets.idsWithPhoto(key)) {
+                        ListPetsQuery.Item item = mPets.getById(id);
+                        if (item == null || !file.getAbsolutePath().equals(item.photo().localUri())) {
+                            continue;
+                        }
+                        ListPetsQuery.Photo photo = new ListPetsQuery.Photo(
+                                item.photo().__typename(),
+                                item.photo().bucket(),
+                                item.photo().key(),
+                                item.photo().region(),
+                                null,
+                                item.photo().mimeType());
+                        ListPetsQuery.Item withoutPhoto = new ListPetsQuery.Item(item.__typename(),
+                                item.id(), item.name(), item.description(), photo);
+                        mPets.replace(withoutPhoto);
+                        mSearchIndex.put(withoutPhoto);
+                        changed = true;
+                    }
+                    if (changed) {
+                        // also resets the visible range, so rows back on screen ask for their photo
+                        showPets();
+                    }
+                }
+            });
+        }
+    };
 
-                Log.d(TAG, "   ID:" + id + "   bytesCurrent: " + bytesCurrent + "   bytesTotal: " + bytesTotal + " " + percentDone + "%");
+    private TransferMonitor.Observer transferObserver = new TransferMonitor.Observer() {
+        @Override
+        public void onSnapshot(TransferMonitor.Snapshot snapshot) {
+            mAdapter.setTransfers(snapshot);
+            // a pet can reach the list before its photo is uploaded, the download that
+            // failed then is tried again once the upload is done
+            for (TransferMonitor.Transfer transfer : snapshot.transfers) {
+                if (transfer.direction == TransferMonitor.UPLOAD && transfer.state == TransferMonitor.COMPLETED) {
+                    mDownloads.retryNow(transfer.key);
+                    List<ListPetsQuery.Item> items = new ArrayList<>();
+                    for (String id : mPets.idsWithPhoto(transfer.key)) {
+                        ListPetsQuery.Item item = mPets.getById(id);
+                        if (item != null) {
+                            items.add(item);
+                        }
+                    }
+                    downloadPhotos(items);
+                }
             }
+        }
+    };
 
-            @Override
-            public void onError(int id, Exception ex) {
-                // Handle errors
-                Log.e(TAG, "Unable to download the file.", ex);
+    // Runs with every sync pass, the first of which follows a reconnect
+    private SyncScheduler.Job photoRetryJob = new SyncScheduler.Job() {
+        @Override
+        public void sync(long maxBytes, SyncScheduler.JobCallback callback) {
+            if (mDownloads.retryAllNow()) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        LinearLayoutManager layoutManager = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+                        // the rows on screen ask for their photo again
+                        mPrioritizedFirst = -1;
+                        mPrioritizedLast = -1;
+                        prioritizeVisiblePhotos(layoutManager.findFirstVisibleItemPosition(),
+                                layoutManager.findLastVisibleItemPosition());
+                    }
+                });
             }
+            callback.onSynced(true);
+        }
 
-        });
-    }
+        @Override
+        public void pause() {
+        }
+    };
+
+    private PhotoDownloadScheduler.Listener photoListener = new PhotoDownloadScheduler.Listener() {
+        @Override
+        public void onDownloaded(final String key, final File file) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Point every row showing this photo at the local copy, found through the
+                    // store's photo key index. A thumbnail is only used until the full photo is there.
+                    boolean changed = false;
+                    for (String id : mPets.idsWithPhoto(key)) {
+                        ListPetsQuery.Item item = mPets.getById(id);
+                        if (item == null || file.getAbsolutePath().equals(item.photo().localUri())) {
+                            continue;
+                        }
+                        boolean fullPhoto = key.equals(item.photo().key());
+                        boolean thumbnail = item.photo().localUri() == null
+                                && key.equals(NewPetPipeline.thumbnailKey(item.photo().key()));
+                        if (!fullPhoto && !thumbnail) {
+                            continue;
+                        }
+                        ListPetsQuery.Photo photo = new ListPetsQuery.Photo(
+                                item.photo().__typename(),
+                                item.photo().bucket(),
+                                item.photo().key(),
+                                item.photo().region(),
+                                file.getAbsolutePath(),
+                                item.photo().mimeType());
+                        ListPetsQuery.Item withPhoto = new ListPetsQuery.Item(item.__typename(),
+                                item.id(), item.name(), item.description(), photo);
+                        mPets.replace(withPhoto);
+                        mSearchIndex.put(withPhoto);
+                        changed = true;
+                    }
+                    if (changed) {
+                        showPets();
+                    }
+                }
+            });
+        }
+    };
 }
@@ -0,0 +1,674 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.mobile.client.AWSMobileClient;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+// Uploads content-addressed photos. Since a key names its content, an object that already
+// exists is never sent again. Files larger than one part go up as a multipart upload whose
+// completed parts are journaled, so an upload cut off by process death continues from the
+// last completed part instead of starting over. Once a sync scheduler is attached, new uploads
+// are journaled and wait for its next pass, which also retries the ones that failed until
+// MAX_ATTEMPTS of them did. Callers are told when bytes actually start going out and after
+// every part, not while an upload waits for a network.
+public class MultipartUploader implements SyncScheduler.Job {
+
+    private static final String TAG = MultipartUploader.class.getSimpleName();
+
+    // S3 rejects smaller parts, except for the last one
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    // Failed passes over a journaled upload before it is dropped and reported as failed
+    static final int MAX_ATTEMPTS = 5;
+
+    // The S3 calls the uploader needs, blocking
+    interface Api {
+        boolean exists(String key) throws IOException;
+
+        void putObject(String key, File file, String mimeType) throws IOException;
+
+        String initiate(String key, String mimeType) throws IOException;
+
+        // Returns the ETag of the part
+        String uploadPart(String key, String uploadId, int partNumber, File file, long offset, long length)
+                throws IOException;
+
+        void complete(String key, String uploadId, List<String> eTags) throws IOException;
+    }
+
+    // Told how an upload is getting on, on the uploader's thread
+    interface ProgressListener {
+        // Called when the object was not stored yet and sending begins, again on every retry
+        void onStarted(long bytesTotal);
+
+        void onProgress(long bytesSent, long bytesTotal);
+
+        // The attempt failed and the upload stays journaled for a later pass. Once MAX_ATTEMPTS
+        // failed the upload is dropped and onFailed follows instead
+        void onStopped(Exception e);
+    }
+
+    interface UploadCallback extends S3Transport.TransferCallback, ProgressListener {
+    }
+
+    private static final ProgressListener NO_PROGRESS = new ProgressListener() {
+        @Override
+        public void onStarted(long bytesTotal) {
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long bytesTotal) {
+        }
+
+        @Override
+        public void onStopped(Exception e) {
+        }
+    };
+
+    // Thrown by Api.uploadPart once S3 has dropped an unfinished upload
+    static class NoSuchUploadException extends IOException {
+        NoSuchUploadException(String uploadId, Throwable cause) {
+            super("Upload " + uploadId + " no longer exists", cause);
+        }
+    }
+
+    interface Journal {
+        @Nullable
+        Progress load(String key) throws IOException;
+
+        List<Progress> loadAll() throws IOException;
+
+        void save(Progress progress) throws IOException;
+
+        void remove(String key);
+    }
+
+    // A multipart upload in flight and the ETags of its completed parts, or an upload that
+    // has not started yet
+    static class Progress {
+        final String key;
+        final String path;
+        final String mimeType;
+        final long length;
+        // null until the upload was started
+        final String uploadId;
+        final List<String> eTags;
+
+        Progress(String key, String path, String mimeType, long length, String uploadId, List<String> eTags) {
+            this.key = key;
+            this.path = path;
+            this.mimeType = mimeType;
+            this.length = length;
+            this.uploadId = uploadId;
+            this.eTags = eTags;
+        }
+
+        boolean isFor(File file) {
+            return path.equals(file.getPath()) && length == file.length();
+        }
+    }
+
+    private final Api mApi;
+    private final Journal mJournal;
+    private final long mPartSize;
+    private final Executor mExecutor;
+    // A resumed upload and a new one of the same photo must not interleave their parts. A
+    // key's lock is dropped as soon as no upload holds or waits for it
+    private final Map<String, KeyLock> mKeyLocks = new HashMap<>();
+    // Callers waiting for a journaled upload, by key
+    private final Map<String, List<UploadCallback>> mWaiting = new HashMap<>();
+    // Failed passes by key, for the journaled uploads that failed at least once
+    private final Map<String, Integer> mFailures = new HashMap<>();
+    private volatile SyncScheduler mScheduler;
+    private volatile boolean mPaused;
+
+    MultipartUploader(Api api, Journal journal, long partSize, Executor executor) {
+        mApi = api;
+        mJournal = journal;
+        mPartSize = partSize;
+        mExecutor = executor;
+    }
+
+    // Leaves new uploads to the scheduler's passes instead of starting them right away
+    public void scheduleWith(SyncScheduler scheduler) {
+        mScheduler = scheduler;
+        scheduler.addJob(this);
+    }
+
+    public void upload(final String key, final File file, final String mimeType,
+                       final UploadCallback callback) {
+        final SyncScheduler scheduler = mScheduler;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (scheduler != null) {
+                    enqueue(key, file, mimeType, callback);
+                    scheduler.requestSync();
+                    return;
+                }
+                try {
+                    long sent = uploadBlocking(key, file, mimeType, callback);
+                    Log.d(TAG, "Uploaded " + key + ", sent " + sent + " of " + file.length() + " bytes");
+                    callback.onCompleted(sent);
+                } catch (IOException e) {
+                    callback.onFailed(e);
+                }
+            }
+        });
+    }
+
+    // Continues the uploads that the last process did not finish
+    public void resumeAll() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain(Long.MAX_VALUE);
+            }
+        });
+    }
+
+    // Sends the journaled uploads of at most maxBytes, the larger ones wait for another pass
+    @Override
+    public void sync(final long maxBytes, final SyncScheduler.JobCallback callback) {
+        mPaused = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSynced(drain(maxBytes));
+            }
+        });
+    }
+
+    // The upload in progress fails on its own once the network is gone, the rest wait
+    @Override
+    public void pause() {
+        mPaused = true;
+    }
+
+    private void enqueue(String key, File file, String mimeType, UploadCallback callback) {
+        synchronized (mWaiting) {
+            List<UploadCallback> callbacks = mWaiting.get(key);
+            if (callbacks == null) {
+                callbacks = new ArrayList<>();
+                mWaiting.put(key, callbacks);
+            }
+            callbacks.add(callback);
+        }
+        if (!file.exists()) {
+            finish(key, 0, new IOException(file + " does not exist"));
+            return;
+        }
+        try {
+            Progress progress = mJournal.load(key);
+            if (progress == null || !progress.isFor(file)) {
+                mJournal.save(new Progress(key, file.getPath(), mimeType, file.length(), null,
+                        new ArrayList<String>()));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to journal the upload of " + key, e);
+            finish(key, 0, e);
+        }
+    }
+
+    // Returns false if an upload failed
+    private boolean drain(long maxBytes) {
+        List<Progress> unfinished;
+        try {
+            unfinished = mJournal.loadAll();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read unfinished uploads", e);
+            return false;
+        }
+        boolean succeeded = true;
+        for (Progress progress : unfinished) {
+            if (mPaused) {
+                return false;
+            }
+            File file = new File(progress.path);
+            if (!progress.isFor(file)) {
+                // the encoded file was cleared from the cache, the next add starts over
+                mJournal.remove(progress.key);
+                finish(progress.key, 0, new IOException(progress.path + " no longer exists"));
+                continue;
+            }
+            if (progress.length > maxBytes) {
+                Log.d(TAG, "Holding " + progress.key + " for an unmetered network");
+                continue;
+            }
+            ProgressListener listener = new WaitingListener(progress.key);
+            try {
+                long sent = uploadBlocking(progress.key, file, progress.mimeType, listener);
+                Log.d(TAG, "Uploaded " + progress.key + ", sent the remaining " + sent + " bytes");
+                finish(progress.key, sent, null);
+            } catch (IOException e) {
+                // an upload cut off by a lost network does not count against its attempts
+                if (!mPaused && countFailure(progress.key) >= MAX_ATTEMPTS) {
+                    Log.e(TAG, "Giving up on " + progress.key + " after " + MAX_ATTEMPTS + " attempts", e);
+                    mJournal.remove(progress.key);
+                    finish(progress.key, 0, e);
+                    continue;
+                }
+                // stays journaled for the next pass
+                Log.e(TAG, "Failed to upload " + progress.key, e);
+                listener.onStopped(e);
+                succeeded = false;
+            }
+        }
+        return succeeded;
+    }
+
+    private List<UploadCallback> waitingFor(String key) {
+        synchronized (mWaiting) {
+            List<UploadCallback> callbacks = mWaiting.get(key);
+            return callbacks != null ? new ArrayList<>(callbacks) : new ArrayList<UploadCallback>();
+        }
+    }
+
+    // Returns the number of failed passes over the key so far
+    private int countFailure(String key) {
+        synchronized (mFailures) {
+            Integer failures = mFailures.get(key);
+            int count = failures != null ? failures + 1 : 1;
+            mFailures.put(key, count);
+            return count;
+        }
+    }
+
+    private void finish(String key, long sent, IOException error) {
+        synchronized (mFailures) {
+            mFailures.remove(key);
+        }
+        List<UploadCallback> callbacks;
+        synchronized (mWaiting) {
+            callbacks = mWaiting.remove(key);
+        }
+        if (callbacks == null) {
+            return;
+        }
+        for (UploadCallback callback : callbacks) {
+            if (error == null) {
+                callback.onCompleted(sent);
+            } else {
+                callback.onFailed(error);
+            }
+        }
+    }
+
+    // Returns the number of bytes sent, 0 if the object was already stored
+    long uploadBlocking(String key, File file, String mimeType) throws IOException {
+        return uploadBlocking(key, file, mimeType, NO_PROGRESS);
+    }
+
+    private long uploadBlocking(String key, File file, String mimeType, ProgressListener listener)
+            throws IOException {
+        KeyLock lock = acquireLock(key);
+        try {
+            synchronized (lock) {
+                return uploadLocked(key, file, mimeType, listener);
+            }
+        } finally {
+            releaseLock(key, lock);
+        }
+    }
+
+    private KeyLock acquireLock(String key) {
+        synchronized (mKeyLocks) {
+            KeyLock lock = mKeyLocks.get(key);
+            if (lock == null) {
+                lock = new KeyLock();
+                mKeyLocks.put(key, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private void releaseLock(String key, KeyLock lock) {
+        synchronized (mKeyLocks) {
+            if (--lock.users == 0) {
+                mKeyLocks.remove(key);
+            }
+        }
+    }
+
+    // Keys with an upload running or waiting for one
+    int lockedKeys() {
+        synchronized (mKeyLocks) {
+            return mKeyLocks.size();
+        }
+    }
+
+    private long uploadLocked(String key, File file, String mimeType, ProgressListener listener)
+            throws IOException {
+        Progress progress = mJournal.load(key);
+        if (progress != null && !progress.isFor(file)) {
+            mJournal.remove(key);
+            progress = null;
+        }
+        if (progress == null || progress.uploadId == null) {
+            if (mApi.exists(key)) {
+                mJournal.remove(key);
+                return 0;
+            }
+            listener.onStarted(file.length());
+            if (file.length() <= mPartSize) {
+                mApi.putObject(key, file, mimeType);
+                mJournal.remove(key);
+                listener.onProgress(file.length(), file.length());
+                return file.length();
+            }
+            progress = new Progress(key, file.getPath(), mimeType, file.length(),
+                    mApi.initiate(key, mimeType), new ArrayList<String>());
+            mJournal.save(progress);
+        } else {
+            listener.onStarted(file.length());
+        }
+
+        try {
+            return sendParts(progress, file, listener);
+        } catch (NoSuchUploadException e) {
+            // Unfinished uploads expire on the server after a while; start a fresh one
+            Log.w(TAG, "Restarting the upload of " + key, e);
+            mJournal.remove(key);
+            progress = new Progress(key, file.getPath(), mimeType, file.length(),
+                    mApi.initiate(key, mimeType), new ArrayList<String>());
+            mJournal.save(progress);
+            return sendParts(progress, file, listener);
+        }
+    }
+
+    private long sendParts(Progress progress, File file, ProgressListener listener) throws IOException {
+        long sent = 0;
+        int parts = (int) ((progress.length + mPartSize - 1) / mPartSize);
+        // parts sent by an earlier attempt count as done
+        long done = Math.min(progress.length, progress.eTags.size() * mPartSize);
+        listener.onProgress(done, progress.length);
+        for (int part = progress.eTags.size(); part < parts; part++) {
+            long offset = part * mPartSize;
+            long length = Math.min(mPartSize, progress.length - offset);
+            progress.eTags.add(mApi.uploadPart(progress.key, progress.uploadId, part + 1, file, offset, length));
+            mJournal.save(progress);
+            sent += length;
+            done += length;
+            listener.onProgress(done, progress.length);
+        }
+        mApi.complete(progress.key, progress.uploadId, progress.eTags);
+        mJournal.remove(progress.key);
+        return sent;
+    }
+
+    // The uploads of a key that hold or wait for it
+    private static class KeyLock {
+        int users;
+    }
+
+    // Passes progress on to whoever is waiting for the key when it is reported
+    private class WaitingListener implements ProgressListener {
+        private final String mKey;
+
+        WaitingListener(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onStarted(long bytesTotal) {
+            for (UploadCallback callback : waitingFor(mKey)) {
+                callback.onStarted(bytesTotal);
+            }
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long bytesTotal) {
+            for (UploadCallback callback : waitingFor(mKey)) {
+                callback.onProgress(bytesSent, bytesTotal);
+            }
+        }
+
+        @Override
+        public void onStopped(Exception e) {
+            for (UploadCallback callback : waitingFor(mKey)) {
+                callback.onStopped(e);
+            }
+        }
+    }
+
+    // One small binary file per unfinished upload, replaced atomically after every part
+    static class FileJournal implements Journal {
+        private static final int VERSION = 1;
+
+        private final File mDir;
+
+        FileJournal(File dir) {
+            mDir = dir;
+        }
+
+        @Nullable
+        @Override
+        public synchronized Progress load(String key) {
+            File file = fileFor(key);
+            return file.exists() ? readOrDelete(file) : null;
+        }
+
+        @Override
+        public synchronized List<Progress> loadAll() {
+            List<Progress> all = new ArrayList<>();
+            File[] files = mDir.listFiles();
+            if (files == null) {
+                return all;
+            }
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    continue;
+                }
+                Progress progress = readOrDelete(file);
+                if (progress != null) {
+                    all.add(progress);
+                }
+            }
+            return all;
+        }
+
+        @Override
+        public synchronized void save(Progress progress) throws IOException {
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                throw new IOException("Unable to create " + mDir);
+            }
+            File file = fileFor(progress.key);
+            File temp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(progress.key);
+                out.writeUTF(progress.path);
+                out.writeUTF(progress.mimeType);
+                out.writeLong(progress.length);
+                out.writeUTF(progress.uploadId != null ? progress.uploadId : "");
+                out.writeInt(progress.eTags.size());
+                for (String eTag : progress.eTags) {
+                    out.writeUTF(eTag);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            File file = fileFor(key);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+
+        private File fileFor(String key) {
+            return new File(mDir, key.replace('/', '_'));
+        }
+
+        // A file cut short or written by another version cannot be resumed, and left in place
+        // it would fail every later pass; its upload starts over the next time the pet is added
+        @Nullable
+        private static Progress readOrDelete(File file) {
+            try {
+                Progress progress = read(file);
+                if (progress != null) {
+                    return progress;
+                }
+                Log.w(TAG, "Dropping " + file + ", written by another version");
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable " + file, e);
+            }
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            return null;
+        }
+
+        @Nullable
+        private static Progress read(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                String key = in.readUTF();
+                String path = in.readUTF();
+                String mimeType = in.readUTF();
+                long length = in.readLong();
+                String uploadId = in.readUTF();
+                if (uploadId.isEmpty()) {
+                    uploadId = null;
+                }
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Corrupt part count " + count);
+                }
+                List<String> eTags = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    eTags.add(in.readUTF());
+                }
+                return new Progress(key, path, mimeType, length, uploadId, eTags);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    // Talks to the app's bucket through the shared S3 client, which is built on first use
+    static class AmazonS3Api implements Api {
+        @Override
+        public boolean exists(String key) throws IOException {
+            try {
+                // a HEAD request, no body is transferred
+                ClientFactory.s3Client().getObjectMetadata(bucket(), key);
+                return true;
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == 404) {
+                    return false;
+                }
+                throw new IOException(e);
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void putObject(String key, File file, String mimeType) throws IOException {
+            try {
+                ClientFactory.s3Client().putObject(new PutObjectRequest(bucket(), key, file)
+                        .withMetadata(metadata(mimeType)));
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public String initiate(String key, String mimeType) throws IOException {
+            try {
+                return ClientFactory.s3Client().initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(bucket(), key, metadata(mimeType))).getUploadId();
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public String uploadPart(String key, String uploadId, int partNumber, File file, long offset, long length)
+                throws IOException {
+            try {
+                return ClientFactory.s3Client().uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket())
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(length)).getETag();
+            } catch (AmazonS3Exception e) {
+                if ("NoSuchUpload".equals(e.getErrorCode())) {
+                    throw new NoSuchUploadException(uploadId, e);
+                }
+                throw new IOException(e);
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void complete(String key, String uploadId, List<String> eTags) throws IOException {
+            List<PartETag> parts = new ArrayList<>(eTags.size());
+            for (int i = 0; i < eTags.size(); i++) {
+                parts.add(new PartETag(i + 1, eTags.get(i)));
+            }
+            try {
+                ClientFactory.s3Client().completeMultipartUpload(
+                        new CompleteMultipartUploadRequest(bucket(), key, uploadId, parts));
+            } catch (AmazonClientException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static ObjectMetadata metadata(String mimeType) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(mimeType);
+            return metadata;
+        }
+
+        private static String bucket() throws IOException {
+            try {
+                return AWSMobileClient.getInstance().getConfiguration()
+                        .optJsonObject("S3TransferUtility").getString("Bucket");
+            } catch (JSONException e) {
+                throw new IOException("Can't find the S3 bucket", e);
+            }
+        }
+    }
+}
@@ -1,28 +1,130 @@
 package com.example.demo.mypetapp;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
+import android.support.v7.recyclerview.extensions.AsyncDifferConfig;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.AdapterListUpdateCallback;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MyAdapter extends RecyclerView.Adapter<MyAdapter.ViewHolder> {
 
-    private List<ListPetsQuery.Item> mData = new ArrayList<>();;
-    private LayoutInflater mInflater;
+    // rows are the same pet when their ids match, and need a rebind only when a field changed
+    static final DiffUtil.ItemCallback<ListPetsQuery.Item> DIFF_CALLBACK = diffCallback(new OptimisticReconciler());
+
+    // A pet added on this device keeps its row when the server record replaces it, so the
+    // swap is a single change rather than a removal and an insertion
+    static DiffUtil.ItemCallback<ListPetsQuery.Item> diffCallback(final OptimisticReconciler reconciler) {
+        return new DiffUtil.ItemCallback<ListPetsQuery.Item>() {
+            @Override
+            public boolean areItemsTheSame(ListPetsQuery.Item oldItem, ListPetsQuery.Item newItem) {
+                return reconciler.rowId(oldItem.id()).equals(reconciler.rowId(newItem.id()));
+            }
+
+            @Override
+            public boolean areContentsTheSame(ListPetsQuery.Item oldItem, ListPetsQuery.Item newItem) {
+                return oldItem.equals(newItem);
+            }
+        };
+    }
 
+    // rebinds only the progress bar of a row
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
+    static final int VIEW_TYPE_PET = 0;
+
+    private final AsyncListDiffer<ListPetsQuery.Item> mDiffer;
+    private final OptimisticReconciler mReconciler;
+    private TransferMonitor.Snapshot mTransfers = TransferMonitor.Snapshot.EMPTY;
+    // The current rows indexed by id and photo key, rebuilt when the differ commits a new list
+    private List<ListPetsQuery.Item> mIndexedList;
+    private PetStore mRows;
+    private LayoutInflater mInflater;
+    private ImageLoader mImageLoader;
+    private int mImageSize;
+    // Only the first bind is traced, the later ones never reach StartupTrace
+    private boolean mFirstBindTraced;
 
     // data is passed into the constructor
-    MyAdapter(Context context) {
+    MyAdapter(Context context, OptimisticReconciler reconciler) {
+        this(context, reconciler, null);
+    }
+
+    // diffs on diffExecutor, or on the differ's own background threads when it is null
+    MyAdapter(Context context, OptimisticReconciler reconciler, Executor diffExecutor) {
+        AsyncDifferConfig.Builder<ListPetsQuery.Item> config =
+                new AsyncDifferConfig.Builder<>(diffCallback(reconciler));
+        if (diffExecutor != null) {
+            config.setBackgroundThreadExecutor(diffExecutor);
+        }
+        this.mDiffer = new AsyncListDiffer<>(new AdapterListUpdateCallback(this), config.build());
+        this.mReconciler = reconciler;
         this.mInflater = LayoutInflater.from(context);
+        this.mImageLoader = ImageLoader.getInstance();
+        this.mImageSize = context.getResources().getDimensionPixelSize(R.dimen.row_image_max_size);
+        // rows keep their views across a full rebind of the list
+        setHasStableIds(true);
+    }
+
+    // The id of the pet's row, which stays the same when the server record replaces a pet
+    // added on this device
+    @Override
+    public long getItemId(int position) {
+        return stableId(mReconciler.rowId(mDiffer.getCurrentList().get(position).id()));
+    }
+
+    // A 64-bit FNV-1a hash of the row id, so no table of the ids seen has to be kept. Row ids
+    // are UUIDs, which a 64-bit hash tells apart in any list that fits in memory.
+    static long stableId(String rowId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < rowId.length(); i++) {
+            hash ^= rowId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == RecyclerView.NO_ID ? 0 : hash;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return VIEW_TYPE_PET;
+    }
+
+    // Inflates rows into the recycler's pool ahead of time, so the first fling takes its rows
+    // from there instead of inflating them mid-scroll. Must be called from the main thread.
+    public void prewarm(RecyclerView recyclerView, int count) {
+        RecyclerView.RecycledViewPool pool = recyclerView.getRecycledViewPool();
+        pool.setMaxRecycledViews(VIEW_TYPE_PET, count);
+        for (int i = pool.getRecycledViewCount(VIEW_TYPE_PET); i < count; i++) {
+            pool.putRecycledView(createViewHolder(recyclerView, VIEW_TYPE_PET));
+        }
+    }
+
+    // Decodes the photos of the rows from start to end, either way round, before they are
+    // scrolled into view
+    public void preload(int start, int end) {
+        List<ListPetsQuery.Item> items = mDiffer.getCurrentList();
+        int step = end >= start ? 1 : -1;
+        for (int i = start; i != end + step; i += step) {
+            if (i < 0 || i >= items.size()) {
+                return;
+            }
+            ListPetsQuery.Item item = items.get(i);
+            if (item.photo() != null && item.photo().localUri() != null) {
+                mImageLoader.preload(item.photo().localUri(), mImageSize, mImageSize);
+            }
+        }
     }
 
     // inflates the row layout from xml when needed
@@ -35,25 +137,112 @@ public class MyAdapter extends RecyclerView.Adapter<MyAdapter.ViewHolder> {
     // binds the data to the TextView in each row
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        ListPetsQuery.Item item = mData.get(position);
+        StartupTrace.Section firstBind = null;
+        if (!mFirstBindTraced) {
+            mFirstBindTraced = true;
+            firstBind = StartupTrace.get().begin(StartupTrace.FIRST_BIND);
+        }
+        ListPetsQuery.Item item = mDiffer.getCurrentList().get(position);
         holder.txt_name.setText(item.name());
         holder.txt_description.setText(item.description());
 
-        if (item.photo() != null && item.photo().localUri() != null)
-            holder.image_view.setImageBitmap(BitmapFactory.decodeFile(item.photo().localUri()));
-        else
+        // photos are decoded off the main thread and downsampled to the row's image bounds
+        if (item.photo() != null && item.photo().localUri() != null) {
+            mImageLoader.load(holder.image_view, item.photo().localUri(), mImageSize, mImageSize);
+        } else {
+            mImageLoader.cancel(holder.image_view);
             holder.image_view.setImageBitmap(null);
+        }
+        bindProgress(holder, item);
+        if (firstBind != null) {
+            firstBind.end();
+        }
+    }
+
+    // a progress update leaves the name, description and photo as they are
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        boolean progressOnly = !payloads.isEmpty();
+        for (Object payload : payloads) {
+            progressOnly &= payload == PAYLOAD_PROGRESS;
+        }
+        if (progressOnly) {
+            bindProgress(holder, mDiffer.getCurrentList().get(position));
+        } else {
+            super.onBindViewHolder(holder, position, payloads);
+        }
+    }
+
+    // shows the progress of the row's photo, or of its thumbnail while that is what's loading
+    private void bindProgress(ViewHolder holder, ListPetsQuery.Item item) {
+        TransferMonitor.Transfer transfer = transferFor(mTransfers, item);
+        if (transfer == null || transfer.state != TransferMonitor.IN_PROGRESS) {
+            holder.progress.setVisibility(View.GONE);
+            return;
+        }
+        int percent = transfer.percent();
+        holder.progress.setIndeterminate(percent < 0);
+        holder.progress.setProgress(Math.max(percent, 0));
+        holder.progress.setVisibility(View.VISIBLE);
+    }
+
+    // stops any pending decode once the row scrolls off screen
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        mImageLoader.cancel(holder.image_view);
+        holder.image_view.setImageBitmap(null);
     }
 
     // total number of rows
     @Override
     public int getItemCount() {
-        return mData.size();
+        return mDiffer.getCurrentList().size();
+    }
+
+    // Rebinds the progress bars of the rows whose photo was or is being transferred. Only the
+    // transfers are walked, and their rows looked up by photo key, however long the list is.
+    public void setTransfers(TransferMonitor.Snapshot transfers) {
+        TransferMonitor.Snapshot previous = mTransfers;
+        mTransfers = transfers;
+        PetStore rows = rows();
+        for (TransferMonitor.Transfer transfer : previous.transfers) {
+            notifyProgress(rows, transfer.key);
+        }
+        for (TransferMonitor.Transfer transfer : transfers.transfers) {
+            if (previous.forKey(transfer.key) == null) {
+                notifyProgress(rows, transfer.key);
+            }
+        }
+    }
+
+    private void notifyProgress(PetStore rows, String key) {
+        for (String id : rows.idsWithPhoto(key)) {
+            notifyItemChanged(rows.indexOfId(id), PAYLOAD_PROGRESS);
+        }
+    }
+
+    private PetStore rows() {
+        List<ListPetsQuery.Item> items = mDiffer.getCurrentList();
+        if (items != mIndexedList) {
+            mRows = new PetStore();
+            mRows.addAll(items);
+            mIndexedList = items;
+        }
+        return mRows;
+    }
+
+    private static TransferMonitor.Transfer transferFor(TransferMonitor.Snapshot transfers, ListPetsQuery.Item item) {
+        if (item.photo() == null || transfers.transfers.isEmpty()) {
+            return null;
+        }
+        TransferMonitor.Transfer transfer = transfers.forKey(item.photo().key());
+        return transfer != null ? transfer : transfers.forKey(NewPetPipeline.thumbnailKey(item.photo().key()));
     }
 
-    // resets the list with a new set of data
+    // diffs a snapshot of the new data against the current rows off the main thread,
+    // then dispatches only the inserts, moves, removals and changes
     public void setItems(List<ListPetsQuery.Item> items) {
-        mData = items;
+        mDiffer.submitList(new ArrayList<>(items));
     }
 
     // stores and recycles views as they are scrolled off screen
@@ -61,12 +250,14 @@ public class MyAdapter extends RecyclerView.Adapter<MyAdapter.ViewHolder> {
         TextView txt_name;
         TextView txt_description;
         ImageView image_view;
+        ProgressBar progress;
 
         ViewHolder(View itemView) {
             super(itemView);
             txt_name = itemView.findViewById(R.id.txt_name);
             txt_description = itemView.findViewById(R.id.txt_description);
             image_view = itemView.findViewById(R.id.image_view);
+            progress = itemView.findViewById(R.id.progress_transfer);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+package com.example.demo.mypetapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+// Adds a pet without serializing the mutation behind the photo upload. The S3 keys of the
+// full image and its thumbnail are derived from a hash of the source file's content, so the
+// mutation can be sent as soon as the full image is encoded, while both variants upload in
+// parallel with it. The mutation only names a key that is going to be uploaded. Two photos
+// with the same name no longer share a key, and the same photo added twice maps to objects
+// that are already stored.
+public class NewPetPipeline {
+
+    private static final String TAG = NewPetPipeline.class.getSimpleName();
+
+    static final int PHOTO_MAX_DIMENSION = 1600;
+    static final int THUMBNAIL_MAX_DIMENSION = 320;
+    static final PhotoCompressor.Format FORMAT = PhotoCompressor.Format.JPEG;
+
+    private static final int QUALITY = 85;
+    private static final String PHOTO_PREFIX = "public/";
+    private static final String THUMBNAIL_PREFIX = "public/thumbnails/";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final String PHOTO_SUFFIX = "_" + PHOTO_MAX_DIMENSION + FORMAT.extension;
+    // The keys photoKey() makes, the only photos that come with a thumbnail
+    private static final Pattern PIPELINE_PHOTO_KEY =
+            Pattern.compile(Pattern.quote(PHOTO_PREFIX) + "[0-9a-f]{64}" + Pattern.quote(PHOTO_SUFFIX));
+
+    // Shared by all pipelines so the full image and the thumbnail encode side by side
+    private static final Executor ENCODE_EXECUTOR = Executors.newFixedThreadPool(2);
+
+    interface Encoder {
+        PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension) throws IOException;
+    }
+
+    interface StepCallback {
+        void onDone(boolean succeeded);
+    }
+
+    // Sends the CreatePetMutation, with the photo's key unless there is no photo
+    interface MutationSender {
+        void send(@Nullable String photoKey, StepCallback callback);
+    }
+
+    interface Listener {
+        // The pet exists on the server, the photos may still be uploading
+        void onMutationDone(boolean succeeded);
+
+        void onPhotosUploaded(boolean succeeded);
+    }
+
+    private final Encoder mEncoder;
+    private final S3Transport mTransport;
+    private final Executor mEncodeExecutor;
+
+    NewPetPipeline(Encoder encoder, S3Transport transport, Executor encodeExecutor) {
+        mEncoder = encoder;
+        mTransport = transport;
+        mEncodeExecutor = encodeExecutor;
+    }
+
+    // Encodes into the app cache and uploads through TransferUtility
+    static NewPetPipeline create(Context context) {
+        final File outputDir = new File(context.getCacheDir(), "uploads");
+        Encoder encoder = new Encoder() {
+            @Override
+            public PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension)
+                    throws IOException {
+                return new PhotoCompressor(outputDir, maxDimension, QUALITY, FORMAT).compress(sourcePath, baseName);
+            }
+        };
+        S3Transport transport =
+                new TransferUtilityTransport(ClientFactory.transferMonitor(), ClientFactory.callMetrics());
+        return new NewPetPipeline(encoder, transport, ENCODE_EXECUTOR);
+    }
+
+    static String photoKey(String contentHash) {
+        return PHOTO_PREFIX + PhotoCompressor.outputName(contentHash, PHOTO_MAX_DIMENSION, FORMAT);
+    }
+
+    // The photo's name with the thumbnail's size, e.g. public/thumbnails/<hash>_320.jpg
+    static String thumbnailKey(String photoKey) {
+        String name = photoKey.substring(photoKey.lastIndexOf('/') + 1);
+        if (name.endsWith(PHOTO_SUFFIX)) {
+            name = name.substring(0, name.length() - PHOTO_SUFFIX.length());
+        }
+        return THUMBNAIL_PREFIX + PhotoCompressor.outputName(name, THUMBNAIL_MAX_DIMENSION, FORMAT);
+    }
+
+    // Pets added before thumbnails existed, or by another client, only have the full photo
+    static boolean hasThumbnail(String photoKey) {
+        return PIPELINE_PHOTO_KEY.matcher(photoKey).matches();
+    }
+
+    static String photoMimeType() {
+        return FORMAT.mimeType;
+    }
+
+    // Hex SHA-256 of the file, read in chunks so a large photo is never held in memory
+    static String contentHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Hashes and encodes the photo, then starts the mutation and both uploads at once. The
+    // thumbnail is encoded alongside the full image. Without a photo only the mutation runs,
+    // and a photo that can't be read or encoded is left out of the mutation.
+    public void run(final String sourcePath, final MutationSender mutation, final Listener listener) {
+        final StepCallback mutationDone = new StepCallback() {
+            @Override
+            public void onDone(boolean succeeded) {
+                listener.onMutationDone(succeeded);
+            }
+        };
+        if (sourcePath == null) {
+            mutation.send(null, mutationDone);
+            return;
+        }
+
+        mEncodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String hash;
+                try {
+                    hash = contentHash(new File(sourcePath));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read photo, adding the pet without it", e);
+                    mutation.send(null, mutationDone);
+                    listener.onPhotosUploaded(false);
+                    return;
+                }
+
+                String photoKey = photoKey(hash);
+                UploadCounter uploads = new UploadCounter(2, listener);
+                encodeAndUploadThumbnail(sourcePath, hash, thumbnailKey(photoKey), uploads);
+
+                File file;
+                String mimeType;
+                try {
+                    PhotoCompressor.Result result = mEncoder.encode(sourcePath, hash, PHOTO_MAX_DIMENSION);
+                    file = result.file;
+                    mimeType = result.mimeType;
+                } catch (IOException e) {
+                    // The key names a JPEG, so only a JPEG original can stand in
+                    if (!isJpeg(new File(sourcePath))) {
+                        Log.e(TAG, "Failed to encode photo, adding the pet without it", e);
+                        mutation.send(null, mutationDone);
+                        uploads.onDone(false);
+                        return;
+                    }
+                    Log.e(TAG, "Failed to compress photo, uploading the original. ", e);
+                    file = new File(sourcePath);
+                    mimeType = FORMAT.mimeType;
+                }
+                mutation.send(photoKey, mutationDone);
+                upload(photoKey, file, mimeType, uploads);
+            }
+        });
+    }
+
+    private void encodeAndUploadThumbnail(final String sourcePath, final String hash, final String key,
+                                          final UploadCounter uploads) {
+        mEncodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PhotoCompressor.Result result;
+                try {
+                    result = mEncoder.encode(sourcePath, hash, THUMBNAIL_MAX_DIMENSION);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to encode " + key, e);
+                    uploads.onDone(false);
+                    return;
+                }
+                upload(key, result.file, result.mimeType, uploads);
+            }
+        });
+    }
+
+    private void upload(final String key, File file, String mimeType, final UploadCounter uploads) {
+        mTransport.upload(key, file, mimeType, new S3Transport.TransferCallback() {
+            @Override
+            public void onCompleted(long bytes) {
+                uploads.onDone(true);
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                Log.e(TAG, "Failed to upload " + key, e);
+                uploads.onDone(false);
+            }
+        });
+    }
+
+    // Whether the file starts with the JPEG start-of-image marker
+    static boolean isJpeg(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                return in.read() == 0xff && in.read() == 0xd8;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Reports the uploads once all of them have finished
+    private static class UploadCounter {
+        private final Listener mListener;
+        private int mRemaining;
+        private boolean mSucceeded = true;
+
+        UploadCounter(int count, Listener listener) {
+            mRemaining = count;
+            mListener = listener;
+        }
+
+        void onDone(boolean succeeded) {
+            boolean finished;
+            boolean allSucceeded;
+            synchronized (this) {
+                mSucceeded &= succeeded;
+                finished = --mRemaining == 0;
+                allSucceeded = mSucceeded;
+            }
+            if (finished) {
+                mListener.onPhotosUploaded(allSucceeded);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps the pets added on this device, which are shown under their client id right away,
+// until the server has them. A pet is created under its client id, so the mutation
+// response, the onCreatePet event and the refetched first page all carry the id of the
+// optimistic row and replace it in place, in whatever order they arrive. Server records are
+// matched by id only: a pet from elsewhere that looks the same is a pet of its own. Should
+// the response carry another id, the row keeps the client id across the swap.
+public class OptimisticReconciler {
+
+    // Added on this device and not on the server yet, in the order added
+    private final LinkedHashMap<String, ListPetsQuery.Item> mPending = new LinkedHashMap<>();
+    private final Map<String, String> mClientIdByServerId = new HashMap<>();
+
+    // Starts tracking a pet that was just added under its client id
+    public synchronized void track(ListPetsQuery.Item optimistic) {
+        mPending.put(optimistic.id(), optimistic);
+    }
+
+    // The mutation response, which settles the pet
+    public synchronized void onCreated(String clientId, String serverId) {
+        mPending.remove(clientId);
+        if (!clientId.equals(serverId)) {
+            mClientIdByServerId.put(serverId, clientId);
+        }
+    }
+
+    public synchronized void onFailed(String clientId) {
+        mPending.remove(clientId);
+    }
+
+    // Returns the client id of the optimistic row this server record replaces, or null if the
+    // record has the row's id already or is not a pet added on this device
+    public synchronized String claim(ListPetsQuery.Item serverPet) {
+        return mClientIdByServerId.get(serverPet.id());
+    }
+
+    // The id a row keeps across the swap, so the adapter sees one row change instead of a
+    // removal and an insertion
+    public synchronized String rowId(String id) {
+        String clientId = mClientIdByServerId.get(id);
+        return clientId != null ? clientId : id;
+    }
+
+    // A first page replaces the list, so the pets still waiting for the server are kept at
+    // its end, unless the page has them already
+    public synchronized List<ListPetsQuery.Item> reconcilePage(List<ListPetsQuery.Item> page, boolean firstPage) {
+        if (!firstPage || mPending.isEmpty()) {
+            return page;
+        }
+        List<ListPetsQuery.Item> items = new ArrayList<>(page.size() + mPending.size());
+        Set<String> ids = new HashSet<>(page.size() * 2);
+        for (ListPetsQuery.Item item : page) {
+            items.add(item);
+            ids.add(item.id());
+        }
+        for (ListPetsQuery.Item pending : mPending.values()) {
+            if (!ids.contains(pending.id())) {
+                items.add(pending);
+            }
+        }
+        return items;
+    }
+
+    // Whether the pet added under this client id is still waiting for its mutation response
+    public synchronized boolean isPending(String clientId) {
+        return mPending.containsKey(clientId);
+    }
+
+    public synchronized int pendingCount() {
+        return mPending.size();
+    }
+}
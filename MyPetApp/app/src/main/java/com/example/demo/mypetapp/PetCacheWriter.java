@@ -0,0 +1,241 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.apollographql.apollo.cache.CacheHeaders;
+import com.apollographql.apollo.cache.normalized.ApolloStore;
+import com.apollographql.apollo.cache.normalized.CacheReference;
+import com.apollographql.apollo.cache.normalized.Record;
+import com.apollographql.apollo.cache.normalized.Transaction;
+import com.apollographql.apollo.cache.normalized.WriteableStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+// Writes an optimistic pet straight into the normalized cache: one record for the pet,
+// one for its photo and a reference appended to each cached first page of listPets.
+// The items already in the list are never read or rewritten, so an add costs the same
+// whether the cache holds ten pets or ten thousand.
+public class PetCacheWriter {
+
+    private static final String TAG = PetCacheWriter.class.getSimpleName();
+
+    static final String QUERY_ROOT = "QUERY_ROOT";
+    static final String PHOTO_KEY_SUFFIX = ".photo";
+    private static final String LIST_PETS_FIELD = "listPets";
+
+    // The few record operations the writer needs, so it can run inside a store transaction
+    interface Records {
+        @Nullable
+        Record read(String key);
+
+        Set<String> merge(Collection<Record> records);
+    }
+
+    private final Executor mExecutor;
+
+    // The store is looked up on the executor, so the writer can exist before the client is built
+    PetCacheWriter(Executor executor) {
+        mExecutor = executor;
+    }
+
+    // Adds the pet in a single write transaction off the calling thread, then notifies
+    // the watchers of the records that changed. onDone may be null.
+    public void addPet(final ListPetsQuery.Item pet, @Nullable final Runnable onDone) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ApolloStore store = ClientFactory.appSyncClient().getStore();
+                    Set<String> changedKeys = store.writeTransaction(new Transaction<WriteableStore, Set<String>>() {
+                        @Nullable
+                        @Override
+                        public Set<String> execute(WriteableStore cache) {
+                            return appendPet(new StoreRecords(cache), pet);
+                        }
+                    });
+                    store.publish(changedKeys);
+                    Log.d(TAG, "Wrote pet " + pet.id() + " to " + changedKeys.size() + " cache records");
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to write pet " + pet.id() + " to the cache", e);
+                }
+                if (onDone != null) {
+                    onDone.run();
+                }
+            }
+        });
+    }
+
+    // Writes the live events of one frame in a single transaction
+    public void applyEvents(final List<LiveSync.Event> events) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ApolloStore store = ClientFactory.appSyncClient().getStore();
+                    Set<String> changedKeys = store.writeTransaction(new Transaction<WriteableStore, Set<String>>() {
+                        @Nullable
+                        @Override
+                        public Set<String> execute(WriteableStore cache) {
+                            return applyEvents(new StoreRecords(cache), events);
+                        }
+                    });
+                    store.publish(changedKeys);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to write " + events.size() + " live events to the cache", e);
+                }
+            }
+        });
+    }
+
+    // Created and updated pets are merged by id. Created pets are appended to the cached first
+    // pages, deleted pets are dropped from every cached page.
+    static Set<String> applyEvents(Records records, List<LiveSync.Event> events) {
+        List<Record> updates = new ArrayList<>();
+        List<CacheReference> created = new ArrayList<>();
+        Set<CacheReference> deleted = new HashSet<>();
+        for (LiveSync.Event event : events) {
+            if (event.type == LiveSync.Event.DELETED) {
+                deleted.add(new CacheReference(event.pet.id()));
+                continue;
+            }
+            updates.addAll(petRecords(event.pet));
+            if (event.type == LiveSync.Event.CREATED) {
+                created.add(new CacheReference(event.pet.id()));
+            }
+        }
+
+        Record root = created.isEmpty() && deleted.isEmpty() ? null : records.read(QUERY_ROOT);
+        if (root != null) {
+            for (Map.Entry<String, Object> field : root.fields().entrySet()) {
+                if (!field.getKey().startsWith(LIST_PETS_FIELD) || !(field.getValue() instanceof CacheReference)) {
+                    continue;
+                }
+                Record connection = records.read(((CacheReference) field.getValue()).key());
+                if (connection == null || !(connection.field("items") instanceof List)) {
+                    continue;
+                }
+                List<Object> references = new ArrayList<Object>((List<?>) connection.field("items"));
+                boolean changed = references.removeAll(deleted);
+                if (isFirstPage(field.getKey())) {
+                    for (CacheReference reference : created) {
+                        if (!references.contains(reference)) {
+                            references.add(reference);
+                            changed = true;
+                        }
+                    }
+                }
+                if (changed) {
+                    updates.add(Record.builder(connection.key()).addField("items", references).build());
+                }
+            }
+        }
+
+        if (updates.isEmpty()) {
+            return new HashSet<>();
+        }
+        return records.merge(updates);
+    }
+
+    // Returns the keys of the records that changed. Nothing is written when no list is cached yet,
+    // the next network fetch brings the pet in.
+    static Set<String> appendPet(Records records, ListPetsQuery.Item pet) {
+        Set<String> changedKeys = new HashSet<>();
+        Record root = records.read(QUERY_ROOT);
+        if (root == null) {
+            return changedKeys;
+        }
+
+        List<Record> updates = new ArrayList<>();
+        CacheReference petReference = new CacheReference(pet.id());
+        for (Map.Entry<String, Object> field : root.fields().entrySet()) {
+            if (!isFirstPage(field.getKey()) || !(field.getValue() instanceof CacheReference)) {
+                continue;
+            }
+            Record connection = records.read(((CacheReference) field.getValue()).key());
+            if (connection == null) {
+                continue;
+            }
+            Object items = connection.field("items");
+            List<Object> references = items instanceof List
+                    ? new ArrayList<Object>((List<?>) items) : new ArrayList<Object>();
+            if (references.contains(petReference)) {
+                continue;
+            }
+            // Only the list of references is replaced, the item records stay untouched
+            references.add(petReference);
+            updates.add(Record.builder(connection.key()).addField("items", references).build());
+        }
+        if (updates.isEmpty()) {
+            return changedKeys;
+        }
+
+        updates.addAll(petRecords(pet));
+        changedKeys.addAll(records.merge(updates));
+        return changedKeys;
+    }
+
+    static List<Record> petRecords(ListPetsQuery.Item pet) {
+        List<Record> records = new ArrayList<>();
+        Record.Builder petRecord = Record.builder(pet.id())
+                .addField("__typename", pet.__typename())
+                .addField("id", pet.id())
+                .addField("name", pet.name())
+                .addField("description", pet.description());
+
+        ListPetsQuery.Photo photo = pet.photo();
+        if (photo == null) {
+            petRecord.addField("photo", null);
+        } else {
+            String photoKey = pet.id() + PHOTO_KEY_SUFFIX;
+            petRecord.addField("photo", new CacheReference(photoKey));
+            records.add(Record.builder(photoKey)
+                    .addField("__typename", photo.__typename())
+                    .addField("bucket", photo.bucket())
+                    .addField("key", photo.key())
+                    .addField("region", photo.region())
+                    .addField("localUri", photo.localUri())
+                    .addField("mimeType", photo.mimeType())
+                    .build());
+        }
+        records.add(0, petRecord.build());
+        return records;
+    }
+
+    // Unfiltered listPets fields that start at the beginning of the list, with or without a limit
+    static boolean isFirstPage(String fieldKey) {
+        if (fieldKey.equals(LIST_PETS_FIELD)) {
+            return true;
+        }
+        return fieldKey.startsWith(LIST_PETS_FIELD + "(")
+                && !fieldKey.contains("\"nextToken\":\"")
+                && !fieldKey.contains("\"filter\":{");
+    }
+
+    private static class StoreRecords implements Records {
+        private final WriteableStore mCache;
+
+        StoreRecords(WriteableStore cache) {
+            mCache = cache;
+        }
+
+        @Nullable
+        @Override
+        public Record read(String key) {
+            return mCache.read(key, CacheHeaders.NONE);
+        }
+
+        @Override
+        public Set<String> merge(Collection<Record> records) {
+            return mCache.merge(records, CacheHeaders.NONE);
+        }
+    }
+}
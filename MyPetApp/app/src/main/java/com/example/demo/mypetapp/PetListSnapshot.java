@@ -0,0 +1,219 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The rows the list showed last, kept in one small binary file so the next launch can draw
+// them in onCreate, before a client is built or the normalized cache is read. The first page
+// then replaces them as usual, and the diff leaves the rows that did not change alone. Each
+// write goes to a temporary file that is renamed into place, so a read never sees half a
+// snapshot.
+public class PetListSnapshot {
+
+    private static final String TAG = PetListSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "pet_list.snapshot";
+    // Renders that follow each other within this time are written once
+    static final long WRITE_DELAY_MS = 1000;
+
+    private static final int MAGIC = 0x50455453;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Anything longer comes from a corrupt file
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Shared by all snapshots, so a recreated activity does not start another thread
+    private static final ScheduledExecutorService WRITE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private final File mFile;
+    private final int mMaxPets;
+    private final long mDelayMillis;
+    private final ScheduledExecutorService mExecutor;
+
+    private List<ListPetsQuery.Item> mPending;
+    private boolean mScheduled;
+    // What the file holds, so an unchanged render is not written again
+    private List<ListPetsQuery.Item> mWritten;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            List<ListPetsQuery.Item> pets;
+            synchronized (PetListSnapshot.this) {
+                pets = mPending;
+                mPending = null;
+                mScheduled = false;
+                if (pets.equals(mWritten)) {
+                    return;
+                }
+            }
+            try {
+                write(pets);
+                synchronized (PetListSnapshot.this) {
+                    mWritten = pets;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write the pet list snapshot", e);
+            }
+        }
+    };
+
+    // Keeps the first maxPets rows, about what the first frame can show
+    PetListSnapshot(File file, int maxPets) {
+        this(file, maxPets, WRITE_DELAY_MS, WRITE_EXECUTOR);
+    }
+
+    PetListSnapshot(File file, int maxPets, long delayMillis, ScheduledExecutorService executor) {
+        mFile = file;
+        mMaxPets = maxPets;
+        mDelayMillis = delayMillis;
+        mExecutor = executor;
+    }
+
+    // Streams the rows back in one pass, or returns an empty list if there is no usable
+    // snapshot. A snapshot of maxPets rows is small enough to read on the main thread.
+    public List<ListPetsQuery.Item> read() {
+        if (!mFile.isFile()) {
+            return Collections.emptyList();
+        }
+        List<ListPetsQuery.Item> pets;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE));
+            try {
+                pets = readPets(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding the pet list snapshot", e);
+            mFile.delete();
+            return Collections.emptyList();
+        }
+        synchronized (this) {
+            if (mWritten == null) {
+                mWritten = pets;
+            }
+        }
+        return pets;
+    }
+
+    // Writes the rendered rows off the calling thread, once the list has settled for a moment
+    public void save(List<ListPetsQuery.Item> pets) {
+        List<ListPetsQuery.Item> first = new ArrayList<>(pets.subList(0, Math.min(pets.size(), mMaxPets)));
+        synchronized (this) {
+            mPending = first;
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mExecutor.schedule(mWrite, mDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void write(List<ListPetsQuery.Item> pets) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pets.size());
+            for (ListPetsQuery.Item pet : pets) {
+                writePet(out, pet);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private static List<ListPetsQuery.Item> readPets(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a pet list snapshot of version " + VERSION);
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad pet count " + count);
+        }
+        List<ListPetsQuery.Item> pets = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            pets.add(readPet(in));
+        }
+        return pets;
+    }
+
+    // Every field is kept, so a row equals the server's copy and the diff does not rebind it
+    private static void writePet(DataOutputStream out, ListPetsQuery.Item pet) throws IOException {
+        writeString(out, pet.__typename());
+        writeString(out, pet.id());
+        writeString(out, pet.name());
+        writeString(out, pet.description());
+        ListPetsQuery.Photo photo = pet.photo();
+        out.writeBoolean(photo != null);
+        if (photo != null) {
+            writeString(out, photo.__typename());
+            writeString(out, photo.bucket());
+            writeString(out, photo.key());
+            writeString(out, photo.region());
+            writeString(out, photo.localUri());
+            writeString(out, photo.mimeType());
+        }
+    }
+
+    private static ListPetsQuery.Item readPet(DataInputStream in) throws IOException {
+        String typename = readString(in);
+        String id = readString(in);
+        String name = readString(in);
+        String description = readString(in);
+        ListPetsQuery.Photo photo = null;
+        if (in.readBoolean()) {
+            photo = new ListPetsQuery.Photo(readString(in), readString(in), readString(in), readString(in),
+                    readString(in), readString(in));
+        }
+        return new ListPetsQuery.Item(typename, id, name, description, photo);
+    }
+
+    // Length-prefixed UTF-8, as writeUTF() cannot hold a description over 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,568 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.amplify.generated.graphql.CreatePetMutation;
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.apollographql.apollo.GraphQLCall;
+import com.apollographql.apollo.api.Response;
+import com.apollographql.apollo.exception.ApolloException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import type.CreatePetInput;
+import type.S3ObjectInput;
+
+// Durable queue of pets waiting to be created on the server. Pets added within a short
+// window are sent together as one batch, and the list is refreshed once per batch rather
+// than once per pet. The queue is written to disk before enqueue returns, so pets added
+// offline are replayed after the process dies. While the sync scheduler reports no network
+// the queue holds its pets instead of spending their attempts. Failed pets are only sent
+// again once RETRY_DELAY_MS has passed, however often the scheduler asks for a sync in the
+// meantime, so the queue's own retry delay alone decides how fast attempts are spent.
+// The file is rewritten once per batch rather than once per pet. Each pet is created under
+// its client id, which makes sending it again safe: a pet the server already created,
+// because the process died before the batch was written or a failed attempt reached the
+// server, is refused as a duplicate and counts as created under that id.
+public class PetMutationQueue implements SyncScheduler.Job {
+
+    private static final String TAG = PetMutationQueue.class.getSimpleName();
+
+    static final int DEFAULT_MAX_BATCH = 25;
+    static final long DEFAULT_WINDOW_MS = 200;
+    static final int MAX_ATTEMPTS = 5;
+    static final long RETRY_DELAY_MS = 5000;
+
+    public static class PendingPet {
+        final String clientId;
+        final String name;
+        final String description;
+        // photo fields are null for a pet without a photo
+        final String bucket;
+        final String key;
+        final String region;
+        final String localUri;
+        final String mimeType;
+        int attempts;
+
+        PendingPet(String clientId, String name, String description, String bucket, String key,
+                   String region, String localUri, String mimeType) {
+            this.clientId = clientId;
+            this.name = name;
+            this.description = description;
+            this.bucket = bucket;
+            this.key = key;
+            this.region = region;
+            this.localUri = localUri;
+            this.mimeType = mimeType;
+        }
+
+        static PendingPet create(String name, String description, String bucket, String key,
+                                 String region, String localUri, String mimeType) {
+            return new PendingPet(UUID.randomUUID().toString(), name, description,
+                    bucket, key, region, localUri, mimeType);
+        }
+
+        boolean hasPhoto() {
+            return key != null;
+        }
+
+        // The row shown until the server answers, keyed by the client id the server takes as well
+        ListPetsQuery.Item optimisticItem() {
+            return new ListPetsQuery.Item("Pet",
+                    clientId,
+                    name,
+                    description,
+                    hasPhoto() ? new ListPetsQuery.Photo(
+                            "S3Object",
+                            bucket,
+                            key,
+                            region,
+                            localUri,
+                            mimeType) : null);
+        }
+    }
+
+    interface Sender {
+        // Creates the batch with a single request and calls back once for every pet in it
+        void create(List<PendingPet> pets, SendCallback callback);
+
+        // Called once after every batch that created at least one pet
+        void refreshList();
+    }
+
+    interface SendCallback {
+        void onSuccess(PendingPet pet, String id);
+
+        void onFailure(PendingPet pet, Exception e);
+    }
+
+    // Called once per pet, after it was created or after its last attempt failed
+    interface Listener {
+        void onCreated(PendingPet pet, String id);
+
+        void onFailed(PendingPet pet, Exception e);
+    }
+
+    interface Store {
+        List<PendingPet> load() throws IOException;
+
+        void save(List<PendingPet> pets) throws IOException;
+    }
+
+    private final Store mStore;
+    private final Sender mSender;
+    private final ScheduledExecutorService mExecutor;
+    private final int mMaxBatch;
+    private final long mWindowMs;
+
+    private final List<PendingPet> mQueue = new ArrayList<>();
+    private final Map<String, Listener> mListeners = new HashMap<>();
+    private int mInFlight;
+    private int mCreatedInBatch;
+    private boolean mFlushScheduled;
+    private boolean mPaused;
+    // Set while failed pets wait out the retry delay, only new pets are sent until then
+    private boolean mRetryWaiting;
+    private int mRetryGeneration;
+    // Waiting for the queue to run dry, and whether anything failed since they asked
+    private final List<SyncScheduler.JobCallback> mSyncCallbacks = new ArrayList<>();
+    private boolean mSyncFailed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PetMutationQueue(Store store, Sender sender, ScheduledExecutorService executor, int maxBatch, long windowMs) {
+        mStore = store;
+        mSender = sender;
+        mExecutor = executor;
+        mMaxBatch = maxBatch;
+        mWindowMs = windowMs;
+    }
+
+    // Loads pets left over from a previous process and sends them
+    public void start() {
+        synchronized (this) {
+            try {
+                mQueue.addAll(mStore.load());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read pending pets", e);
+            }
+            if (mQueue.isEmpty()) {
+                return;
+            }
+        }
+        scheduleFlush(0);
+    }
+
+    public void enqueue(PendingPet pet, Listener listener) {
+        List<PendingPet> pets = new ArrayList<>();
+        pets.add(pet);
+        enqueueAll(pets, listener);
+    }
+
+    // Adds many pets with a single write to disk, e.g. for an import
+    public void enqueueAll(List<PendingPet> pets, Listener listener) {
+        boolean fullBatch;
+        synchronized (this) {
+            mQueue.addAll(pets);
+            if (listener != null) {
+                for (PendingPet pet : pets) {
+                    mListeners.put(pet.clientId, listener);
+                }
+            }
+            persist();
+            fullBatch = mQueue.size() >= mMaxBatch;
+        }
+        scheduleFlush(fullBatch ? 0 : mWindowMs);
+    }
+
+    // Sends whatever is queued right away, e.g. once the network is back
+    public void flushNow() {
+        scheduleFlush(0);
+    }
+
+    // Resumes sending and reports once every queued pet was tried
+    @Override
+    public void sync(long maxBytes, SyncScheduler.JobCallback callback) {
+        synchronized (this) {
+            mPaused = false;
+            if (!mQueue.isEmpty() || mInFlight > 0) {
+                mSyncCallbacks.add(callback);
+                callback = null;
+            }
+        }
+        if (callback != null) {
+            callback.onSynced(true);
+            return;
+        }
+        scheduleFlush(0);
+    }
+
+    // Holds the queued pets until the next sync
+    @Override
+    public void pause() {
+        List<SyncScheduler.JobCallback> callbacks;
+        synchronized (this) {
+            mPaused = true;
+            callbacks = takeSyncCallbacks();
+        }
+        for (SyncScheduler.JobCallback callback : callbacks) {
+            callback.onSynced(false);
+        }
+    }
+
+    public synchronized int size() {
+        return mQueue.size();
+    }
+
+    public synchronized List<PendingPet> pending() {
+        return new ArrayList<>(mQueue);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        synchronized (this) {
+            if (mFlushScheduled && delayMs > 0) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mExecutor.schedule(mFlush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final List<PendingPet> batch;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPaused || mInFlight > 0 || mQueue.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>();
+            for (PendingPet pet : mQueue) {
+                if (batch.size() == mMaxBatch) {
+                    break;
+                }
+                if (pet.attempts == 0 || !mRetryWaiting) {
+                    batch.add(pet);
+                }
+            }
+            if (batch.isEmpty()) {
+                // the retry sends them, and answers whoever asked for a sync
+                return;
+            }
+            mInFlight = batch.size();
+            mCreatedInBatch = 0;
+        }
+
+        mSender.create(batch, new SendCallback() {
+            @Override
+            public void onSuccess(PendingPet pet, String id) {
+                onSent(pet, id, null);
+            }
+
+            @Override
+            public void onFailure(PendingPet pet, Exception e) {
+                onSent(pet, null, e);
+            }
+        });
+    }
+
+    private void onSent(PendingPet pet, String id, Exception error) {
+        Listener listener = null;
+        boolean batchDone;
+        boolean refresh;
+        boolean moreQueued;
+        int retry = 0;
+        List<SyncScheduler.JobCallback> synced = null;
+        boolean syncFailed = false;
+        synchronized (this) {
+            boolean finished = true;
+            if (error == null) {
+                mCreatedInBatch++;
+            } else if (mPaused) {
+                // the network went away mid-batch, which is not the pet's fault
+                finished = false;
+            } else if (++pet.attempts < MAX_ATTEMPTS) {
+                // stays queued and is sent again once the retry delay has passed
+                finished = false;
+            } else {
+                Log.e(TAG, "Giving up on pet " + pet.clientId + " after " + pet.attempts + " attempts");
+            }
+            if (error != null) {
+                mSyncFailed = true;
+            }
+            if (finished) {
+                mQueue.remove(pet);
+                listener = mListeners.remove(pet.clientId);
+            }
+
+            batchDone = --mInFlight == 0;
+            refresh = batchDone && mCreatedInBatch > 0;
+            moreQueued = batchDone && hasUnsentPets();
+            if (batchDone && hasFailedPets() && !mPaused) {
+                mRetryWaiting = true;
+                retry = ++mRetryGeneration;
+            }
+            if (batchDone && !moreQueued) {
+                syncFailed = mSyncFailed;
+                synced = takeSyncCallbacks();
+            }
+            // once per batch, a pet the server created since is found again if the process dies first
+            if (batchDone) {
+                persist();
+            }
+        }
+
+        if (listener != null) {
+            if (error == null) {
+                listener.onCreated(pet, id);
+            } else {
+                listener.onFailed(pet, error);
+            }
+        }
+        if (refresh) {
+            mSender.refreshList();
+        }
+        if (synced != null) {
+            for (SyncScheduler.JobCallback callback : synced) {
+                callback.onSynced(!syncFailed);
+            }
+        }
+        if (moreQueued) {
+            scheduleFlush(0);
+        }
+        if (retry != 0) {
+            scheduleRetry(retry);
+        }
+    }
+
+    // Lets the failed pets go again once the delay has passed, unless a later failure
+    // started a new delay
+    private void scheduleRetry(final int generation) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PetMutationQueue.this) {
+                    if (generation != mRetryGeneration) {
+                        return;
+                    }
+                    mRetryWaiting = false;
+                }
+                flush();
+            }
+        }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private List<SyncScheduler.JobCallback> takeSyncCallbacks() {
+        List<SyncScheduler.JobCallback> callbacks = new ArrayList<>(mSyncCallbacks);
+        mSyncCallbacks.clear();
+        mSyncFailed = false;
+        return callbacks;
+    }
+
+    // Pets that arrived while a batch was in flight; failed ones wait for the retry delay
+    private boolean hasUnsentPets() {
+        for (PendingPet pet : mQueue) {
+            if (pet.attempts == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasFailedPets() {
+        for (PendingPet pet : mQueue) {
+            if (pet.attempts > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void persist() {
+        try {
+            mStore.save(mQueue);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write pending pets", e);
+        }
+    }
+
+    // Keeps the queue in a small binary file that is replaced atomically on every write
+    static class FileStore implements Store {
+        private static final int VERSION = 1;
+
+        private final File mFile;
+
+        FileStore(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public List<PendingPet> load() throws IOException {
+            List<PendingPet> pets = new ArrayList<>();
+            if (!mFile.exists()) {
+                return pets;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return pets;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    PendingPet pet = new PendingPet(in.readUTF(), readString(in), readString(in),
+                            readString(in), readString(in), readString(in), readString(in), readString(in));
+                    pet.attempts = in.readInt();
+                    pets.add(pet);
+                }
+            } finally {
+                in.close();
+            }
+            return pets;
+        }
+
+        @Override
+        public void save(List<PendingPet> pets) throws IOException {
+            File temp = new File(mFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(pets.size());
+                for (PendingPet pet : pets) {
+                    out.writeUTF(pet.clientId);
+                    writeString(out, pet.name);
+                    writeString(out, pet.description);
+                    writeString(out, pet.bucket);
+                    writeString(out, pet.key);
+                    writeString(out, pet.region);
+                    writeString(out, pet.localUri);
+                    writeString(out, pet.mimeType);
+                    out.writeInt(pet.attempts);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    // Sends each batch as one CreatePetsMutation and refreshes the first page of the list
+    static class AppSyncSender implements Sender {
+        @Override
+        public void create(final List<PendingPet> pets, final SendCallback callback) {
+            List<CreatePetInput> inputs = new ArrayList<>(pets.size());
+            for (PendingPet pet : pets) {
+                CreatePetInput.Builder input = CreatePetInput.builder()
+                        .id(pet.clientId)
+                        .name(pet.name)
+                        .description(pet.description);
+                if (pet.hasPhoto()) {
+                    input.photo(S3ObjectInput.builder()
+                            .bucket(pet.bucket)
+                            .key(pet.key)
+                            .region(pet.region)
+                            .mimeType(pet.mimeType)
+                            .build());
+                }
+                inputs.add(input.build());
+            }
+
+            final CallMetrics metrics = ClientFactory.callMetrics();
+            final long start = metrics.start();
+            ClientFactory.appSyncClient().mutate(new CreatePetsMutation(inputs))
+                    .enqueue(new GraphQLCall.Callback<CreatePetsMutation.Data>() {
+                        @Override
+                        public void onResponse(@Nonnull Response<CreatePetsMutation.Data> response) {
+                            if (response.data() == null) {
+                                metrics.recordError(CallMetrics.CREATE_PET);
+                                failAll(new IllegalStateException("createPet failed: " + response.errors()));
+                                return;
+                            }
+                            metrics.recordResponse(CallMetrics.CREATE_PET, start, false);
+                            for (int i = 0; i < pets.size(); i++) {
+                                PendingPet pet = pets.get(i);
+                                CreatePetMutation.CreatePet created = response.data().createPet(i);
+                                if (created != null) {
+                                    callback.onSuccess(pet, created.id());
+                                } else if (CreatePetsMutation.alreadyCreated(response.errors(), i)) {
+                                    Log.d(TAG, "Pet " + pet.clientId + " was already created");
+                                    callback.onSuccess(pet, pet.clientId);
+                                } else {
+                                    callback.onFailure(pet, new IllegalStateException(
+                                            "createPet failed: " + response.errors()));
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(@Nonnull ApolloException e) {
+                            metrics.recordError(CallMetrics.CREATE_PET);
+                            failAll(e);
+                        }
+
+                        private void failAll(Exception e) {
+                            for (PendingPet pet : pets) {
+                                callback.onFailure(pet, e);
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        // The batch is on the server by now, so a first page the list started fetching before
+        // may not have it; only one started from here on is shared
+        public void refreshList() {
+            ListPetsCoalescer coalescer = ClientFactory.listPetsCoalescer();
+            coalescer.query(null, PetPager.DEFAULT_PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, coalescer.mark(),
+                    new PetPager.PageCallback() {
+                        @Override
+                        public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+                            Log.d(TAG, "Refreshed the pet list after a batch");
+                        }
+
+                        @Override
+                        public void onUnchanged(String nextToken) {
+                            Log.d(TAG, "Refreshed the pet list after a batch, it is unchanged");
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            Log.e(TAG, "Failed to refresh the pet list", e);
+                        }
+                    });
+        }
+    }
+}
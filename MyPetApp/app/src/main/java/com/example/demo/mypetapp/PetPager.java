@@ -0,0 +1,192 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import java.util.List;
+
+// Loads the pet list page by page using listPets(limit, nextToken), staying one page
+// ahead of the last visible row.
+public class PetPager {
+
+    private static final String TAG = PetPager.class.getSimpleName();
+
+    static final int DEFAULT_PAGE_SIZE = 20;
+
+    interface PageSource {
+        void loadPage(String nextToken, int limit, PageCallback callback);
+    }
+
+    interface PageCallback {
+        void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache);
+
+        // The network copy of a page equals the cached copy onPage() was just given
+        void onUnchanged(String nextToken);
+
+        void onError(Exception e);
+    }
+
+    interface Listener {
+        // The first page replaces the list, every following page is appended to it.
+        // Called on the thread that delivered the page.
+        void onPageLoaded(List<ListPetsQuery.Item> items, boolean firstPage, boolean fromCache);
+    }
+
+    private final PageSource mSource;
+    private final int mPageSize;
+    private final Listener mListener;
+
+    private String mNextToken;
+    private String mCachedNextToken;
+    private boolean mLoading;
+    private boolean mEndReached;
+    private int mGeneration;
+
+    PetPager(PageSource source, int pageSize, Listener listener) {
+        mSource = source;
+        mPageSize = pageSize;
+        mListener = listener;
+    }
+
+    // Starts over from the first page
+    public void refresh() {
+        final int generation;
+        synchronized (this) {
+            generation = ++mGeneration;
+            mNextToken = null;
+            mCachedNextToken = null;
+            mEndReached = false;
+            mLoading = true;
+        }
+        mSource.loadPage(null, mPageSize, new PageHandler(generation, true));
+    }
+
+    // Fetches the next page once fewer than a page of rows is left below the last visible one
+    public void loadMoreIfNeeded(int lastVisiblePosition, int itemCount) {
+        final int generation;
+        final String nextToken;
+        synchronized (this) {
+            if (mLoading || mEndReached || itemCount - 1 - lastVisiblePosition > mPageSize) {
+                return;
+            }
+            mLoading = true;
+            generation = mGeneration;
+            nextToken = mNextToken;
+        }
+        mSource.loadPage(nextToken, mPageSize, new PageHandler(generation, false));
+    }
+
+    public synchronized boolean isLoading() {
+        return mLoading;
+    }
+
+    public synchronized boolean hasMore() {
+        return !mEndReached;
+    }
+
+    public int pageSize() {
+        return mPageSize;
+    }
+
+    static ListPetsQuery pageQuery(String nextToken, int limit) {
+        return ListPetsQuery.builder()
+                .limit(limit)
+                .nextToken(nextToken)
+                .build();
+    }
+
+    // The query whose cached result the list shows first
+    static ListPetsQuery firstPageQuery() {
+        return pageQuery(null, DEFAULT_PAGE_SIZE);
+    }
+
+    private class PageHandler implements PageCallback {
+        private final int mPageGeneration;
+        private final boolean mFirstPage;
+
+        PageHandler(int generation, boolean firstPage) {
+            mPageGeneration = generation;
+            mFirstPage = firstPage;
+        }
+
+        @Override
+        public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+            if (update(nextToken, fromCache)) {
+                mListener.onPageLoaded(items, mFirstPage, fromCache);
+            }
+        }
+
+        // The list already shows the page
+        @Override
+        public void onUnchanged(String nextToken) {
+            update(nextToken, false);
+        }
+
+        private boolean update(String nextToken, boolean fromCache) {
+            synchronized (PetPager.this) {
+                if (mPageGeneration != mGeneration) {
+                    return false;
+                }
+                if (fromCache && mFirstPage) {
+                    // The network copy of the first page is still on its way
+                    mCachedNextToken = nextToken;
+                } else {
+                    mNextToken = nextToken;
+                    mEndReached = nextToken == null;
+                    mLoading = false;
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(TAG, "Failed to load page", e);
+            synchronized (PetPager.this) {
+                if (mPageGeneration != mGeneration) {
+                    return;
+                }
+                if (mFirstPage) {
+                    // Keep paging through whatever the cache holds while offline
+                    mNextToken = mCachedNextToken;
+                    mEndReached = mCachedNextToken == null;
+                }
+                mLoading = false;
+            }
+        }
+    }
+
+    // Reads pages through the app's ListPetsCoalescer, so a page another part of the app is
+    // already fetching is not fetched twice. The first page is served from the cache before
+    // the network answers, following pages prefer the network. A page requested while the
+    // client is still warming is sent as soon as it is built.
+    static class AppSyncPageSource implements PageSource {
+        @Override
+        public void loadPage(String nextToken, int limit, final PageCallback callback) {
+            // The trace keeps the first page of a cold start and ignores the pages after it
+            final StartupTrace.Section cacheRead = StartupTrace.get().begin(StartupTrace.CACHE_READ);
+            final StartupTrace.Section networkResponse = StartupTrace.get().begin(StartupTrace.NETWORK_RESPONSE);
+            ClientFactory.listPetsCoalescer().query(nextToken, limit, nextToken == null
+                    ? ListPetsCoalescer.CACHE_AND_NETWORK
+                    : ListPetsCoalescer.NETWORK_FIRST, new PageCallback() {
+                @Override
+                public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+                    (fromCache ? cacheRead : networkResponse).end();
+                    callback.onPage(items, nextToken, fromCache);
+                }
+
+                @Override
+                public void onUnchanged(String nextToken) {
+                    networkResponse.end();
+                    callback.onUnchanged(nextToken);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    callback.onError(e);
+                }
+            });
+        }
+    }
+}
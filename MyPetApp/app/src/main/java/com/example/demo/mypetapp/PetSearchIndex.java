@@ -0,0 +1,275 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.amazonaws.mobileconnectors.appsync.AWSAppSyncClient;
+import com.amazonaws.mobileconnectors.appsync.fetcher.AppSyncResponseFetchers;
+import com.apollographql.apollo.GraphQLCall;
+import com.apollographql.apollo.api.Response;
+import com.apollographql.apollo.exception.ApolloException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+
+import type.ModelPetFilterInput;
+import type.ModelStringFilterInput;
+
+// An inverted index over the name and description of every pet the app has seen. Each
+// word maps to the pets that contain it, and the words are kept sorted so a query word
+// matches every indexed word it is a prefix of. That answers as-you-type searches
+// offline; pets that were never paged in are found through RemoteSearch.
+public class PetSearchIndex {
+
+    static final int DEFAULT_LIMIT = 100;
+    // Removed pets leave stale postings behind until this many pile up
+    private static final int MIN_DEAD_FOR_REBUILD = 1024;
+
+    interface RemoteSearch {
+        void search(String query, RemoteCallback callback);
+    }
+
+    interface RemoteCallback {
+        void onResults(List<ListPetsQuery.Item> items);
+
+        void onError(Exception e);
+    }
+
+    // The documents containing one word, in the order they were indexed
+    private static class Postings {
+        int[] docs = new int[2];
+        int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(docs, 0, grown, 0, size);
+                docs = grown;
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    private static final Comparator<ListPetsQuery.Item> BY_NAME = new Comparator<ListPetsQuery.Item>() {
+        @Override
+        public int compare(ListPetsQuery.Item a, ListPetsQuery.Item b) {
+            int byName = String.CASE_INSENSITIVE_ORDER.compare(nonNull(a.name()), nonNull(b.name()));
+            return byName != 0 ? byName : a.id().compareTo(b.id());
+        }
+    };
+
+    private final TreeMap<String, Postings> mWords = new TreeMap<>();
+    // Indexed by document number, null once the pet is removed or re-indexed
+    private final List<ListPetsQuery.Item> mDocs = new ArrayList<>();
+    private final Map<String, Integer> mDocById = new HashMap<>();
+    private int mDead;
+
+    public synchronized void putAll(List<ListPetsQuery.Item> items) {
+        for (ListPetsQuery.Item item : items) {
+            put(item);
+        }
+    }
+
+    // Adds a pet, or replaces the indexed copy of one with the same id
+    public synchronized void put(ListPetsQuery.Item item) {
+        Integer doc = mDocById.get(item.id());
+        if (doc != null) {
+            ListPetsQuery.Item indexed = mDocs.get(doc);
+            if (nonNull(indexed.name()).equals(nonNull(item.name()))
+                    && nonNull(indexed.description()).equals(nonNull(item.description()))) {
+                // Same words, e.g. only the photo changed
+                mDocs.set(doc, item);
+                return;
+            }
+            kill(doc);
+        }
+        index(item);
+    }
+
+    public synchronized void remove(String id) {
+        Integer doc = mDocById.remove(id);
+        if (doc != null) {
+            kill(doc);
+        }
+    }
+
+    public synchronized int size() {
+        return mDocById.size();
+    }
+
+    // Pets whose name or description has a word starting with each word of the query,
+    // sorted by name. An empty query matches every pet.
+    public synchronized List<ListPetsQuery.Item> search(String query, int limit, boolean descending) {
+        BitSet matches = null;
+        for (String word : words(query)) {
+            BitSet docs = new BitSet(mDocs.size());
+            // every indexed word that starts with the query word
+            for (Postings postings : mWords.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    docs.set(postings.docs[i]);
+                }
+            }
+            if (matches == null) {
+                matches = docs;
+            } else {
+                matches.and(docs);
+            }
+            if (matches.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        if (matches == null) {
+            matches = new BitSet(mDocs.size());
+            matches.set(0, mDocs.size());
+        }
+
+        // Keeps the best `limit` matches only, instead of sorting all of them
+        final Comparator<ListPetsQuery.Item> order = descending ? Collections.reverseOrder(BY_NAME) : BY_NAME;
+        PriorityQueue<ListPetsQuery.Item> best = new PriorityQueue<>(Math.max(1, limit),
+                Collections.reverseOrder(order));
+        for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+            ListPetsQuery.Item item = mDocs.get(doc);
+            if (item == null) {
+                continue;
+            }
+            if (best.size() < limit) {
+                best.add(item);
+            } else if (limit > 0 && order.compare(item, best.peek()) < 0) {
+                best.poll();
+                best.add(item);
+            }
+        }
+        List<ListPetsQuery.Item> results = new ArrayList<>(best);
+        Collections.sort(results, order);
+        return results;
+    }
+
+    private void index(ListPetsQuery.Item item) {
+        int doc = mDocs.size();
+        mDocs.add(item);
+        mDocById.put(item.id(), doc);
+        Set<String> words = new HashSet<>(words(item.name()));
+        words.addAll(words(item.description()));
+        for (String word : words) {
+            Postings postings = mWords.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                mWords.put(word, postings);
+            }
+            postings.add(doc);
+        }
+    }
+
+    private void kill(int doc) {
+        mDocs.set(doc, null);
+        mDead++;
+        if (mDead >= MIN_DEAD_FOR_REBUILD && mDead > mDocById.size()) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        List<ListPetsQuery.Item> live = new ArrayList<>(mDocById.size());
+        for (ListPetsQuery.Item item : mDocs) {
+            if (item != null) {
+                live.add(item);
+            }
+        }
+        mWords.clear();
+        mDocs.clear();
+        mDocById.clear();
+        mDead = 0;
+        for (ListPetsQuery.Item item : live) {
+            index(item);
+        }
+    }
+
+    // Lower-cased runs of letters and digits
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static String nonNull(String text) {
+        return text == null ? "" : text;
+    }
+
+    // Asks the server for pets whose name or description contains the query, for when the
+    // list has pages that were never loaded. The server compares case-sensitively and
+    // applies the limit before the filter, so this is a best effort on top of the index.
+    static class AppSyncRemoteSearch implements RemoteSearch {
+        static final int SCAN_LIMIT = 1000;
+
+        @Override
+        public void search(final String query, final RemoteCallback callback) {
+            final String text = query.trim();
+            final ModelPetFilterInput filter = ModelPetFilterInput.builder()
+                    .or(Arrays.asList(
+                            ModelPetFilterInput.builder()
+                                    .name(ModelStringFilterInput.builder().contains(text).build())
+                                    .build(),
+                            ModelPetFilterInput.builder()
+                                    .description(ModelStringFilterInput.builder().contains(text).build())
+                                    .build()))
+                    .build();
+
+            final CallMetrics metrics = ClientFactory.callMetrics();
+            ClientFactory.whenAppSyncReady(new AsyncLazy.Callback<AWSAppSyncClient>() {
+                @Override
+                public void onReady(AWSAppSyncClient client) {
+                    final long start = metrics.start();
+                    client.query(ListPetsQuery.builder().filter(filter).limit(SCAN_LIMIT).build())
+                            .responseFetcher(AppSyncResponseFetchers.NETWORK_ONLY)
+                            .enqueue(new GraphQLCall.Callback<ListPetsQuery.Data>() {
+                                @Override
+                                public void onResponse(@Nonnull Response<ListPetsQuery.Data> response) {
+                                    metrics.recordResponse(CallMetrics.LIST_PETS, start, response.fromCache());
+                                    if (response.data() == null || response.data().listPets() == null) {
+                                        callback.onResults(Collections.<ListPetsQuery.Item>emptyList());
+                                        return;
+                                    }
+                                    callback.onResults(response.data().listPets().items());
+                                }
+
+                                @Override
+                                public void onFailure(@Nonnull ApolloException e) {
+                                    metrics.recordError(CallMetrics.LIST_PETS);
+                                    callback.onError(e);
+                                }
+                            });
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    metrics.recordError(CallMetrics.LIST_PETS);
+                    callback.onError(e);
+                }
+            });
+        }
+    }
+}
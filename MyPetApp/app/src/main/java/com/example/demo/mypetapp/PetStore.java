@@ -0,0 +1,203 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+// The pets the list shows, in order, indexed by id and by photo key, so finding a pet's row
+// or the rows showing a photo takes a lookup instead of a scan over every pet. One thread
+// writes to it, the main thread in the app; any thread may read a snapshot.
+public class PetStore extends AbstractList<ListPetsQuery.Item> implements RandomAccess {
+
+    private final ArrayList<ListPetsQuery.Item> mPets = new ArrayList<>();
+    private final Map<String, Row> mRows = new HashMap<>();
+    // Ids of the pets whose photo or thumbnail is stored under each key
+    private final Map<String, Set<String>> mIdsByPhotoKey = new HashMap<>();
+    private Thread mWriter;
+
+    @Override
+    public synchronized ListPetsQuery.Item get(int index) {
+        return mPets.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mPets.size();
+    }
+
+    // The row of the pet with this id, or -1
+    public synchronized int indexOfId(String id) {
+        Row row = mRows.get(id);
+        return row != null ? row.position : -1;
+    }
+
+    // The pet with this id, or null
+    public synchronized ListPetsQuery.Item getById(String id) {
+        Row row = mRows.get(id);
+        return row != null ? mPets.get(row.position) : null;
+    }
+
+    // The ids of the pets showing the photo, or the thumbnail, stored under key
+    public synchronized List<String> idsWithPhoto(String key) {
+        Set<String> ids = mIdsByPhotoKey.get(key);
+        return ids != null ? new ArrayList<>(ids) : Collections.<String>emptyList();
+    }
+
+    // A copy for readers on other threads
+    public synchronized List<ListPetsQuery.Item> snapshot() {
+        return new ArrayList<>(mPets);
+    }
+
+    @Override
+    public synchronized ListPetsQuery.Item set(int index, ListPetsQuery.Item pet) {
+        checkWriter();
+        ListPetsQuery.Item previous = mPets.set(index, pet);
+        if (previous != pet) {
+            if (!previous.id().equals(pet.id())) {
+                unindex(previous, index);
+            }
+            index(pet, index);
+        }
+        return previous;
+    }
+
+    // Replaces the pet with the same id, returning its row, or -1 if there is none
+    public synchronized int replace(ListPetsQuery.Item pet) {
+        int index = indexOfId(pet.id());
+        if (index >= 0) {
+            set(index, pet);
+        }
+        return index;
+    }
+
+    @Override
+    public synchronized void add(int index, ListPetsQuery.Item pet) {
+        checkWriter();
+        mPets.add(index, pet);
+        if (index < mPets.size() - 1) {
+            reindexFrom(index);
+        } else {
+            index(pet, index);
+        }
+    }
+
+    @Override
+    public synchronized ListPetsQuery.Item remove(int index) {
+        checkWriter();
+        ListPetsQuery.Item removed = mPets.remove(index);
+        unindex(removed, index);
+        if (index < mPets.size()) {
+            reindexFrom(index);
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends ListPetsQuery.Item> pets) {
+        checkWriter();
+        mPets.ensureCapacity(mPets.size() + pets.size());
+        for (ListPetsQuery.Item pet : pets) {
+            mPets.add(pet);
+            index(pet, mPets.size() - 1);
+        }
+        return !pets.isEmpty();
+    }
+
+    @Override
+    public synchronized void clear() {
+        checkWriter();
+        mPets.clear();
+        mRows.clear();
+        mIdsByPhotoKey.clear();
+    }
+
+    private void checkWriter() {
+        Thread thread = Thread.currentThread();
+        if (mWriter == null) {
+            mWriter = thread;
+        } else if (mWriter != thread) {
+            throw new IllegalStateException("PetStore is written by " + mWriter.getName()
+                    + ", not " + thread.getName());
+        }
+    }
+
+    private void reindexFrom(int start) {
+        for (int i = start; i < mPets.size(); i++) {
+            index(mPets.get(i), i);
+        }
+    }
+
+    // A pet that moved keeps its photo entries, they only change with its photo key
+    private void index(ListPetsQuery.Item pet, int position) {
+        String photoKey = pet.photo() != null ? pet.photo().key() : null;
+        Row row = mRows.get(pet.id());
+        if (row == null) {
+            row = new Row();
+            mRows.put(pet.id(), row);
+        } else if (photoKey == null ? row.photoKey == null : photoKey.equals(row.photoKey)) {
+            row.position = position;
+            return;
+        } else {
+            unindexPhoto(row.photoKey, pet.id());
+        }
+        row.position = position;
+        row.photoKey = photoKey;
+        indexPhoto(photoKey, pet.id());
+    }
+
+    // A slot that still holds a pet which has moved on leaves the pet's entries alone
+    private void unindex(ListPetsQuery.Item pet, int position) {
+        Row row = mRows.get(pet.id());
+        if (row == null || row.position != position) {
+            return;
+        }
+        mRows.remove(pet.id());
+        unindexPhoto(row.photoKey, pet.id());
+    }
+
+    private void indexPhoto(String photoKey, String id) {
+        if (photoKey == null) {
+            return;
+        }
+        addId(photoKey, id);
+        addId(NewPetPipeline.thumbnailKey(photoKey), id);
+    }
+
+    private void unindexPhoto(String photoKey, String id) {
+        if (photoKey == null) {
+            return;
+        }
+        removeId(photoKey, id);
+        removeId(NewPetPipeline.thumbnailKey(photoKey), id);
+    }
+
+    private void addId(String key, String id) {
+        Set<String> ids = mIdsByPhotoKey.get(key);
+        if (ids == null) {
+            ids = new HashSet<>(2);
+            mIdsByPhotoKey.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private void removeId(String key, String id) {
+        Set<String> ids = mIdsByPhotoKey.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            mIdsByPhotoKey.remove(key);
+        }
+    }
+
+    private static class Row {
+        int position;
+        String photoKey;
+    }
+}
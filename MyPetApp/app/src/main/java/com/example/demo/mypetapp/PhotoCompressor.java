@@ -0,0 +1,180 @@
+package com.example.demo.mypetapp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Shrinks a picked photo before it is uploaded: applies the EXIF orientation, scales it
+// down to a maximum dimension and re-encodes it at a target quality. The output file name
+// only depends on the given base name and the settings, so a retried upload reuses both the
+// encoded file and its S3 key.
+public class PhotoCompressor {
+
+    private static final String TAG = PhotoCompressor.class.getSimpleName();
+
+    public enum Format {
+        JPEG("image/jpeg", ".jpg"),
+        WEBP("image/webp", ".webp");
+
+        final String mimeType;
+        final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+
+        Bitmap.CompressFormat compressFormat() {
+            return this == WEBP ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    public static class Result {
+        public final File file;
+        public final String mimeType;
+        public final long sourceBytes;
+        public final long outputBytes;
+        public final long encodeMillis;
+
+        Result(File file, String mimeType, long sourceBytes, long outputBytes, long encodeMillis) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.sourceBytes = sourceBytes;
+            this.outputBytes = outputBytes;
+            this.encodeMillis = encodeMillis;
+        }
+    }
+
+    private final File mOutputDir;
+    private final int mMaxDimension;
+    private final int mQuality;
+    private final Format mFormat;
+
+    public PhotoCompressor(File outputDir, int maxDimension, int quality, Format format) {
+        mOutputDir = outputDir;
+        mMaxDimension = maxDimension;
+        mQuality = quality;
+        mFormat = format;
+    }
+
+    // Names the output after baseName, which has to identify the source's content, e.g. its
+    // hash: two photos with the same file name would otherwise share an output. Blocking, call
+    // it off the main thread.
+    public Result compress(String sourcePath, String baseName) throws IOException {
+        File source = new File(sourcePath);
+        File output = new File(mOutputDir, outputName(baseName, mMaxDimension, mFormat));
+
+        // A retry of the same photo reuses what the previous attempt produced
+        if (output.exists() && output.lastModified() >= source.lastModified()) {
+            return new Result(output, mFormat.mimeType, source.length(), output.length(), 0);
+        }
+
+        long start = System.nanoTime();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(sourcePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unable to read image bounds of " + sourcePath);
+        }
+
+        int[] target = scaledSize(options.outWidth, options.outHeight, mMaxDimension);
+        // Decode at the smallest power of two that still covers the target, then scale the rest
+        options.inSampleSize = ImageLoader.calculateInSampleSize(
+                options.outWidth, options.outHeight, target[0], target[1]);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = BitmapFactory.decodeFile(sourcePath, options);
+        if (sampled == null) {
+            throw new IOException("Unable to decode " + sourcePath);
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postScale((float) target[0] / sampled.getWidth(), (float) target[1] / sampled.getHeight());
+        applyOrientation(matrix, new ExifInterface(sourcePath).getAttributeInt(
+                ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+        Bitmap transformed = Bitmap.createBitmap(
+                sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+        if (transformed != sampled) {
+            sampled.recycle();
+        }
+
+        if (!mOutputDir.exists() && !mOutputDir.mkdirs()) {
+            throw new IOException("Unable to create " + mOutputDir);
+        }
+        // Encode straight into a temp file and move it in place once complete
+        File temp = new File(mOutputDir, output.getName() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            if (!transformed.compress(mFormat.compressFormat(), mQuality, out)) {
+                throw new IOException("Unable to encode " + sourcePath);
+            }
+        } finally {
+            out.close();
+            transformed.recycle();
+        }
+        if (!temp.renameTo(output)) {
+            throw new IOException("Unable to move " + temp + " to " + output);
+        }
+
+        long encodeMillis = (System.nanoTime() - start) / 1000000;
+        Log.d(TAG, "Compressed " + source.getName() + " from " + source.length() + " to "
+                + output.length() + " bytes in " + encodeMillis + " ms");
+        return new Result(output, mFormat.mimeType, source.length(), output.length(), encodeMillis);
+    }
+
+    // Fits width x height inside maxDimension x maxDimension, never scaling up
+    static int[] scaledSize(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        if (longest <= maxDimension) {
+            return new int[] {width, height};
+        }
+        float scale = (float) maxDimension / longest;
+        return new int[] {
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale))};
+    }
+
+    static String outputName(String sourceName, int maxDimension, Format format) {
+        int dot = sourceName.lastIndexOf('.');
+        String baseName = dot > 0 ? sourceName.substring(0, dot) : sourceName;
+        return baseName + "_" + maxDimension + format.extension;
+    }
+
+    static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// An app-private cache of downloaded photos, bounded by the bytes on disk. The least recently
+// used photos are deleted first. The cached keys, their sizes and their order of use are
+// appended to a journal, so the next process knows which photos it has without touching the
+// network. Hits are not written one by one: the keys read since the last record are written
+// in a batch, once each, before the next record or flush, and the journal is compacted once
+// it has too many redundant records. The scheduler downloads into a temporary file and renames it before calling put(),
+// so the cache never holds a partial photo. The photos of the rows on screen are kept out of
+// eviction; the listener hears about every other photo that is evicted, so rows pointing at its
+// file can let go of it. Every call may read or write the disk, keep them off the main thread.
+public class PhotoDiskCache implements PhotoDownloadScheduler.DownloadIndex {
+
+    private static final String TAG = PhotoDiskCache.class.getSimpleName();
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    static final String JOURNAL = "journal";
+    private static final String JOURNAL_TEMP = "journal.tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DELETE = "DEL";
+
+    // The journal is rewritten once it has this many more records than the cache has photos
+    private static final int MIN_REDUNDANT_RECORDS = 2000;
+    // Distinct keys read before their READ records are written without waiting for a flush
+    static final int MAX_UNWRITTEN_READS = 100;
+
+    interface EvictionListener {
+        void onEvicted(String key, File file);
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+    // Replaced as a whole, so the main thread never waits for the disk to set it
+    private volatile Set<String> mKept = Collections.emptySet();
+    private volatile EvictionListener mEvictionListener;
+
+    // Sizes by key, least recently used first
+    private final LinkedHashMap<String, Long> mSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+    private Writer mJournal;
+    private int mRecords;
+    // Keys read since the last record was written, in the order of their last read
+    private final LinkedHashSet<String> mUnwrittenReads = new LinkedHashSet<>();
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    PhotoDiskCache(File dir, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    // Where the photo for key is kept
+    public File fileFor(String key) {
+        return new File(mDir, key.replace('/', '_'));
+    }
+
+    // Returns the size of the cached photo, or -1 if it has to be downloaded
+    @Override
+    public synchronized long sizeOf(String key) {
+        open();
+        Long size = mSizes.get(key);
+        if (size != null && fileFor(key).length() == size) {
+            mHitCount++;
+            // a lost READ only makes the next process's order slightly stale
+            mUnwrittenReads.remove(key);
+            mUnwrittenReads.add(key);
+            if (mUnwrittenReads.size() >= MAX_UNWRITTEN_READS) {
+                writeReads();
+                compactIfNeeded();
+            }
+            return size;
+        }
+        if (size != null) {
+            // deleted or truncated behind our back
+            mSizes.remove(key);
+            mBytes -= size;
+            append(DELETE + " " + key, true);
+        }
+        mMissCount++;
+        return -1;
+    }
+
+    // Records a photo that was just moved into fileFor(key), then evicts down to the budget.
+    // The listener is told about the evicted photos once the cache is unlocked.
+    @Override
+    public void put(String key, long size) {
+        List<String> evicted;
+        synchronized (this) {
+            open();
+            Long previous = mSizes.put(key, size);
+            if (previous != null) {
+                mBytes -= previous;
+            }
+            mBytes += size;
+            append(PUT + " " + size + " " + key, true);
+            evicted = trimToSize(key);
+            compactIfNeeded();
+        }
+        EvictionListener listener = mEvictionListener;
+        if (listener != null) {
+            for (String evictedKey : evicted) {
+                listener.onEvicted(evictedKey, fileFor(evictedKey));
+            }
+        }
+    }
+
+    // The keys of the photos on screen, which are not evicted until the next call. Cheap
+    // enough for the main thread.
+    public void keep(Collection<String> keys) {
+        mKept = new HashSet<>(keys);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    public synchronized long size() {
+        open();
+        return mBytes;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    // Writes and flushes the buffered journal records, e.g. when the app goes to the background
+    public synchronized void flush() {
+        if (mJournal == null) {
+            return;
+        }
+        writeReads();
+        compactIfNeeded();
+        try {
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to flush the photo cache journal", e);
+        }
+    }
+
+    // Returns the keys it evicted
+    private List<String> trimToSize(String newest) {
+        List<String> evicted = new ArrayList<>();
+        Set<String> kept = mKept;
+        Iterator<Map.Entry<String, Long>> iterator = mSizes.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(newest) || kept.contains(eldest.getKey())) {
+                // a single photo over the budget is still kept until the next one arrives, and
+                // the photos on screen until they scroll away
+                continue;
+            }
+            File file = fileFor(eldest.getKey());
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            mBytes -= eldest.getValue();
+            iterator.remove();
+            mEvictionCount++;
+            evicted.add(eldest.getKey());
+            append(DELETE + " " + eldest.getKey(), false);
+        }
+        flush();
+        return evicted;
+    }
+
+    // Reads the journal the first time the cache is used, and deletes the files it does not list
+    private void open() {
+        if (mJournal != null) {
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+        }
+        File journal = new File(mDir, JOURNAL);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding the photo cache journal", e);
+                mSizes.clear();
+                mRecords = 0;
+            }
+        }
+
+        Set<String> names = new HashSet<>();
+        names.add(JOURNAL);
+        mBytes = 0;
+        for (Iterator<Map.Entry<String, Long>> it = mSizes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            File file = fileFor(entry.getKey());
+            if (file.length() != entry.getValue()) {
+                // the system may clear the cache directory while we are not running
+                it.remove();
+                continue;
+            }
+            names.add(file.getName());
+            mBytes += entry.getValue();
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                // partial downloads and photos whose PUT record was lost
+                if (!names.contains(file.getName()) && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+        rewriteJournal();
+        Log.d(TAG, "Opened with " + mSizes.size() + " photos, " + mBytes + " bytes");
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                mRecords++;
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    // a torn last line
+                    continue;
+                }
+                String op = line.substring(0, space);
+                String rest = line.substring(space + 1);
+                if (PUT.equals(op)) {
+                    int keyStart = rest.indexOf(' ');
+                    if (keyStart < 0) {
+                        continue;
+                    }
+                    try {
+                        mSizes.put(rest.substring(keyStart + 1), Long.parseLong(rest.substring(0, keyStart)));
+                    } catch (NumberFormatException e) {
+                        // a torn last line
+                    }
+                } else if (READ.equals(op)) {
+                    mSizes.get(rest);
+                } else if (DELETE.equals(op)) {
+                    mSizes.remove(rest);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mRecords >= MIN_REDUNDANT_RECORDS && mRecords >= 2 * mSizes.size()) {
+            rewriteJournal();
+        }
+    }
+
+    // Replaces the journal with one PUT per cached photo, least recently used first
+    private void rewriteJournal() {
+        closeJournal();
+        // mSizes already has them in order
+        mUnwrittenReads.clear();
+        File journal = new File(mDir, JOURNAL);
+        File temp = new File(mDir, JOURNAL_TEMP);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8));
+            try {
+                for (Map.Entry<String, Long> entry : mSizes.entrySet()) {
+                    out.write(PUT + " " + entry.getValue() + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(journal)) {
+                throw new IOException("Unable to replace " + journal);
+            }
+            mRecords = mSizes.size();
+            mJournal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), UTF_8));
+        } catch (IOException e) {
+            // keep caching in memory, the next process starts empty
+            Log.e(TAG, "Unable to write the photo cache journal", e);
+            mJournal = new NullWriter();
+        }
+    }
+
+    // One READ record per key read since the last record
+    private void writeReads() {
+        for (String key : mUnwrittenReads) {
+            if (mSizes.containsKey(key)) {
+                write(READ + " " + key, false);
+            }
+        }
+        mUnwrittenReads.clear();
+    }
+
+    // The reads before the record are written first, so the journal keeps the order of use
+    private void append(String record, boolean flush) {
+        writeReads();
+        write(record, flush);
+    }
+
+    private void write(String record, boolean flush) {
+        try {
+            mJournal.write(record);
+            mJournal.write('\n');
+            if (flush) {
+                mJournal.flush();
+            }
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to append to the photo cache journal", e);
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close the photo cache journal", e);
+        }
+        mJournal = null;
+    }
+
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
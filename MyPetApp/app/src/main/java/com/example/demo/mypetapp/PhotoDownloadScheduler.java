@@ -0,0 +1,278 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Queues photo downloads so that only a few run at once, each key is fetched once
+// while in flight, photos already on disk are not fetched again, and rows that are
+// on screen go first. A photo is downloaded next to its file and renamed into place
+// once complete, so a file that exists is never a partial one. A key that failed to
+// download is not asked for again until its backoff has passed, so a photo missing from
+// the bucket costs a few requests rather than one per page and live event, and a photo
+// that is still being uploaded or a one-off network error is retried later. The index is read and
+// written on its own executor, since the disk cache behind it does disk I/O; listeners
+// are called on that executor or on the transport's callback thread.
+public class PhotoDownloadScheduler {
+
+    private static final String TAG = PhotoDownloadScheduler.class.getSimpleName();
+
+    static final int PRIORITY_NORMAL = 0;
+    static final int PRIORITY_VISIBLE = 1;
+
+    static final String PARTIAL_SUFFIX = ".part";
+
+    // A failed key is tried again after 5 s, doubling up to 5 min
+    static final long RETRY_BASE_MS = 5000;
+    static final long RETRY_MAX_MS = 5 * 60 * 1000;
+
+    // Remembers the size of every completed download, so a partial or foreign file is not mistaken for ours
+    interface DownloadIndex {
+        long sizeOf(String key);
+
+        void put(String key, long size);
+    }
+
+    interface Listener {
+        void onDownloaded(String key, File file);
+    }
+
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    private final S3Transport mTransport;
+    private final DownloadIndex mIndex;
+    private final Executor mIndexExecutor;
+    private final int mMaxConcurrent;
+    private final Clock mClock;
+
+    private final Map<String, Request> mRequests = new HashMap<>();
+    private final PriorityQueue<Request> mPending = new PriorityQueue<>();
+    // Keys whose last download failed, until one succeeds or they are cleared
+    private final Map<String, Retry> mRetries = new HashMap<>();
+    private int mActive;
+    private long mSequence;
+
+    PhotoDownloadScheduler(S3Transport transport, DownloadIndex index, Executor indexExecutor, int maxConcurrent) {
+        this(transport, index, indexExecutor, maxConcurrent, SYSTEM_CLOCK);
+    }
+
+    PhotoDownloadScheduler(S3Transport transport, DownloadIndex index, Executor indexExecutor, int maxConcurrent,
+                           Clock clock) {
+        mTransport = transport;
+        mIndex = index;
+        mIndexExecutor = indexExecutor;
+        mMaxConcurrent = maxConcurrent;
+        mClock = clock;
+    }
+
+    // Downloads key into file unless the completed file is already there. The listener is
+    // called once the file is available, straight away when nothing had to be fetched. A key
+    // that failed is dropped until its retry delay has passed; the next enqueue after that
+    // fetches it again. Returns without touching the disk.
+    public void enqueue(final String key, final File file, final int priority, final Listener listener) {
+        if (isBackingOff(key)) {
+            return;
+        }
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                lookUp(key, file, priority, listener);
+            }
+        });
+    }
+
+    private void lookUp(String key, File file, int priority, Listener listener) {
+        long size = mIndex.sizeOf(key);
+        if (size >= 0 && file.length() == size) {
+            listener.onDownloaded(key, file);
+            return;
+        }
+
+        if (isBackingOff(key)) {
+            return;
+        }
+        synchronized (this) {
+            Request request = mRequests.get(key);
+            if (request != null) {
+                request.listeners.add(listener);
+                if (priority > request.priority && mPending.remove(request)) {
+                    request.priority = priority;
+                    mPending.add(request);
+                }
+                return;
+            }
+
+            request = new Request(key, file, priority, mSequence++);
+            request.listeners.add(listener);
+            mRequests.put(key, request);
+            mPending.add(request);
+        }
+        pump();
+    }
+
+    // Moves queued downloads for the given keys ahead of everything else. The queue is only
+    // rebuilt when a priority changed; returns whether one did.
+    public synchronized boolean prioritize(Collection<String> visibleKeys) {
+        boolean changed = false;
+        for (Request request : mPending) {
+            if (priorityFor(request, visibleKeys) != request.priority) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+        List<Request> queued = new ArrayList<>(mPending);
+        mPending.clear();
+        for (Request request : queued) {
+            request.priority = priorityFor(request, visibleKeys);
+            mPending.add(request);
+        }
+        return true;
+    }
+
+    private static int priorityFor(Request request, Collection<String> visibleKeys) {
+        return visibleKeys.contains(request.key) ? PRIORITY_VISIBLE : PRIORITY_NORMAL;
+    }
+
+    public synchronized int activeCount() {
+        return mActive;
+    }
+
+    public synchronized int pendingCount() {
+        return mPending.size();
+    }
+
+    // Keys that failed and are waiting out their retry delay
+    public synchronized int failedCount() {
+        return mRetries.size();
+    }
+
+    // Lets a failed key be fetched on its next enqueue, e.g. once its photo was uploaded
+    public synchronized void retryNow(String key) {
+        mRetries.remove(key);
+    }
+
+    // Lets every failed key be fetched again, e.g. once the network is back. Returns false
+    // when no key had failed.
+    public synchronized boolean retryAllNow() {
+        boolean failed = !mRetries.isEmpty();
+        mRetries.clear();
+        return failed;
+    }
+
+    private synchronized boolean isBackingOff(String key) {
+        Retry retry = mRetries.get(key);
+        return retry != null && mClock.uptimeMillis() < retry.notBeforeMillis;
+    }
+
+    private void pump() {
+        while (true) {
+            final Request next;
+            synchronized (this) {
+                if (mActive >= mMaxConcurrent || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.poll();
+                mActive++;
+            }
+            final File partial = new File(next.file.getPath() + PARTIAL_SUFFIX);
+            mTransport.download(next.key, partial, new S3Transport.TransferCallback() {
+                @Override
+                public void onCompleted(final long bytes) {
+                    mIndexExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!partial.renameTo(next.file)) {
+                                Log.e(TAG, "Unable to move " + partial + " into place");
+                                finish(next, false);
+                                return;
+                            }
+                            mIndex.put(next.key, bytes);
+                            finish(next, true);
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    partial.delete();
+                    long delay;
+                    synchronized (PhotoDownloadScheduler.this) {
+                        Retry retry = mRetries.get(next.key);
+                        if (retry == null) {
+                            retry = new Retry();
+                            mRetries.put(next.key, retry);
+                        }
+                        delay = retry.backoff.nextDelayMillis();
+                        retry.notBeforeMillis = mClock.uptimeMillis() + delay;
+                    }
+                    Log.e(TAG, "Unable to download " + next.key + ", trying again in " + delay + " ms", e);
+                    finish(next, false);
+                }
+            });
+        }
+    }
+
+    private void finish(Request request, boolean succeeded) {
+        synchronized (this) {
+            mRequests.remove(request.key);
+            mActive--;
+            if (succeeded) {
+                mRetries.remove(request.key);
+            }
+        }
+        if (succeeded) {
+            for (Listener listener : request.listeners) {
+                listener.onDownloaded(request.key, request.file);
+            }
+        }
+        pump();
+    }
+
+    private static class Retry {
+        final Backoff backoff = new Backoff(RETRY_BASE_MS, RETRY_MAX_MS);
+        long notBeforeMillis;
+    }
+
+    private static class Request implements Comparable<Request> {
+        final String key;
+        final File file;
+        final long sequence;
+        final List<Listener> listeners = new ArrayList<>();
+        int priority;
+
+        Request(String key, File file, int priority, long sequence) {
+            this.key = key;
+            this.file = file;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.demo.mypetapp;
+
+import java.io.File;
+
+// The S3 operations the app needs, so that schedulers and pipelines can be
+// exercised against a local stand-in instead of TransferUtility.
+public interface S3Transport {
+
+    interface TransferCallback {
+        // bytes is what actually went over the network, 0 for an upload whose object was already stored
+        void onCompleted(long bytes);
+
+        void onFailed(Exception e);
+    }
+
+    void download(String key, File file, TransferCallback callback);
+
+    void upload(String key, File file, String mimeType, TransferCallback callback);
+}
@@ -0,0 +1,178 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Records how long each phase of a cold start takes, from AuthenticationActivity to the
+// first bound row of the pet list. Each phase is reported once, to a pluggable sink;
+// once the first row is bound and the network has answered, the trace is finished and
+// begin() costs next to nothing.
+public class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    static final String CONFIG_PARSE = "config_parse";
+    static final String IDENTITY_RESTORE = "identity_restore";
+    static final String CLIENT_BUILD = "client_build";
+    static final String SNAPSHOT_READ = "snapshot_read";
+    static final String CACHE_READ = "cache_read";
+    static final String NETWORK_RESPONSE = "network_response";
+    static final String FIRST_BIND = "first_bind";
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    interface Sink {
+        // Called on the thread that ended the span
+        void onSpan(Span span);
+    }
+
+    // A finished phase. Times are relative to the start of the trace.
+    static class Span {
+        final String name;
+        final long startMillis;
+        final long durationMillis;
+        final String thread;
+
+        Span(String name, long startMillis, long durationMillis, String thread) {
+            this.name = name;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.thread = thread;
+        }
+
+        long endMillis() {
+            return startMillis + durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "span=" + name + " start_ms=" + startMillis + " duration_ms=" + durationMillis + " thread=" + thread;
+        }
+    }
+
+    // A phase that is running. end() may be called from any thread, only the first call counts.
+    class Section {
+        private final String mName;
+        private final long mStartNanos;
+        private boolean mEnded;
+
+        Section(String name, long startNanos) {
+            mName = name;
+            mStartNanos = startNanos;
+        }
+
+        public void end() {
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                mEnded = true;
+            }
+            record(mName, mStartNanos, mClock.nanoTime());
+        }
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final StartupTrace sInstance = new StartupTrace(SYSTEM_CLOCK, new LogSink());
+
+    private final Clock mClock;
+    private volatile Sink mSink;
+    private final long mOriginNanos;
+    private final Set<String> mRecorded = new HashSet<>();
+    private volatile boolean mFinished;
+    // Handed out for phases that were already reported
+    private final Section mNoop = new Section("", 0) {
+        @Override
+        public void end() {
+        }
+    };
+
+    StartupTrace(Clock clock, Sink sink) {
+        mClock = clock;
+        mSink = sink;
+        mOriginNanos = clock.nanoTime();
+    }
+
+    // The trace of this process, starting when the class is first loaded
+    public static StartupTrace get() {
+        return sInstance;
+    }
+
+    public void setSink(Sink sink) {
+        mSink = sink;
+    }
+
+    // Starts a phase. Phases that were already reported are ignored.
+    public Section begin(String name) {
+        if (mFinished) {
+            return mNoop;
+        }
+        synchronized (this) {
+            if (mRecorded.contains(name)) {
+                return mNoop;
+            }
+        }
+        return new Section(name, mClock.nanoTime());
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    private void record(String name, long startNanos, long endNanos) {
+        synchronized (this) {
+            if (mFinished || !mRecorded.add(name)) {
+                return;
+            }
+            // With a warm cache the first row is bound before the network answers
+            mFinished = mRecorded.contains(FIRST_BIND) && mRecorded.contains(NETWORK_RESPONSE);
+        }
+        Span span = new Span(name, (startNanos - mOriginNanos) / 1000000,
+                (endNanos - startNanos) / 1000000, Thread.currentThread().getName());
+        mSink.onSpan(span);
+    }
+
+    // Writes one line per span to logcat, e.g. for `adb logcat -s StartupTrace`
+    static class LogSink implements Sink {
+        @Override
+        public void onSpan(Span span) {
+            Log.i(TAG, span.toString());
+        }
+    }
+
+    // Keeps the spans in memory, for tests and for reporting them in bulk
+    static class Collector implements Sink {
+        private final List<Span> mSpans = new ArrayList<>();
+
+        @Override
+        public synchronized void onSpan(Span span) {
+            mSpans.add(span);
+        }
+
+        public synchronized List<Span> spans() {
+            return Collections.unmodifiableList(new ArrayList<>(mSpans));
+        }
+
+        public synchronized Span span(String name) {
+            for (Span span : mSpans) {
+                if (span.name.equals(name)) {
+                    return span;
+                }
+            }
+            return null;
+        }
+    }
+}
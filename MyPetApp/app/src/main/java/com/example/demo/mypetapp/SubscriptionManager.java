@@ -0,0 +1,529 @@
+package com.example.demo.mypetapp;
+
+import android.util.Log;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.amazonaws.amplify.generated.graphql.OnCreatePetSubscription;
+import com.amazonaws.amplify.generated.graphql.OnDeletePetSubscription;
+import com.amazonaws.amplify.generated.graphql.OnUpdatePetSubscription;
+import com.amazonaws.mobileconnectors.appsync.AppSyncSubscriptionCall;
+import com.apollographql.apollo.api.Response;
+import com.apollographql.apollo.exception.ApolloException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+// Owns the pet subscriptions for the whole process. Screens acquire it while they are
+// started and release it when they stop; the connection is only closed once nobody has
+// held it for IDLE_TIMEOUT_MS, so moving between activities never reconnects. A lost
+// connection is retried with jittered exponential backoff, and after every gap the pets
+// on the first page that changed meanwhile are fetched instead of the whole list. Deletes
+// and pets past the first page are left to the screen, which counts the gaps and refetches
+// its list when it comes back after one.
+public class SubscriptionManager {
+
+    private static final String TAG = SubscriptionManager.class.getSimpleName();
+
+    static final long IDLE_TIMEOUT_MS = 30000;
+    static final long BACKOFF_BASE_MS = 1000;
+    static final long BACKOFF_MAX_MS = 60000;
+    // How long a connection attempt has to fail before it counts as established
+    static final long ACK_TIMEOUT_MS = 5000;
+
+    // Receives live and caught-up events, e.g. a LiveSync
+    interface EventSink {
+        void onEvent(int type, ListPetsQuery.Item pet);
+    }
+
+    interface Connection {
+        void connect(ConnectionCallback callback);
+
+        void disconnect();
+    }
+
+    interface ConnectionCallback {
+        // Once the server has acknowledged the subscriptions, never for an attempt that fails first
+        void onConnected();
+
+        void onEvent(int type, ListPetsQuery.Item pet);
+
+        void onDisconnected(Exception e);
+    }
+
+    // Fetches the pets that changed while no events were received
+    interface CatchUp {
+        void fetchChanges(CatchUpCallback callback);
+    }
+
+    interface CatchUpCallback {
+        void onChanges(List<LiveSync.Event> events);
+
+        void onError(Exception e);
+    }
+
+    private final Connection mConnection;
+    private final CatchUp mCatchUp;
+    private final Backoff mBackoff;
+    private final ScheduledExecutorService mExecutor;
+    private final long mIdleTimeoutMs;
+
+    private EventSink mSink;
+    private int mHolders;
+    private boolean mRunning;
+    private boolean mConnected;
+    private boolean mConnecting;
+    // set once events may have been missed, cleared by a successful catch-up
+    private boolean mGap;
+    private int mGaps;
+    private int mConnectionId;
+    private int mReconnects;
+    private ScheduledFuture<?> mIdleStop;
+    private ScheduledFuture<?> mRetry;
+
+    SubscriptionManager(Connection connection, CatchUp catchUp, Backoff backoff,
+                        ScheduledExecutorService executor, long idleTimeoutMs) {
+        mConnection = connection;
+        mCatchUp = catchUp;
+        mBackoff = backoff;
+        mExecutor = executor;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    // Events that arrive while no sink is set are dropped, and caught up on once one is set again
+    public void setSink(EventSink sink) {
+        int connectionId;
+        synchronized (this) {
+            mSink = sink;
+            if (sink == null || !mGap || !mConnected) {
+                return;
+            }
+            connectionId = mConnectionId;
+        }
+        catchUp(connectionId);
+    }
+
+    // Hands a change made on this device to the sink right away, e.g. an optimistic add
+    public void dispatchLocal(int type, ListPetsQuery.Item pet) {
+        EventSink sink;
+        synchronized (this) {
+            sink = mSink;
+        }
+        if (sink != null) {
+            sink.onEvent(type, pet);
+        }
+    }
+
+    // Keeps the subscriptions running until the matching release()
+    public void acquire() {
+        synchronized (this) {
+            mHolders++;
+            if (mIdleStop != null) {
+                mIdleStop.cancel(false);
+                mIdleStop = null;
+            }
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        // Subscribing waits for the AppSync client, which may still be warming
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    public synchronized void release() {
+        if (mHolders == 0 || --mHolders > 0) {
+            return;
+        }
+        mIdleStop = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stopIfIdle();
+            }
+        }, mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    // Connections re-established after the first one
+    public synchronized int reconnects() {
+        return mReconnects;
+    }
+
+    // How many times events may have been missed since the process started
+    public synchronized int gaps() {
+        return mGaps;
+    }
+
+    private void openGap() {
+        if (!mGap) {
+            mGap = true;
+            mGaps++;
+        }
+    }
+
+    private void stopIfIdle() {
+        synchronized (this) {
+            if (mHolders > 0 || !mRunning) {
+                return;
+            }
+            Log.d(TAG, "No screen needs live updates, closing the subscriptions");
+            mRunning = false;
+            mConnected = false;
+            mConnecting = false;
+            openGap();
+            mConnectionId++;
+            if (mRetry != null) {
+                mRetry.cancel(false);
+                mRetry = null;
+            }
+        }
+        mConnection.disconnect();
+    }
+
+    private void connect() {
+        final int connectionId;
+        synchronized (this) {
+            if (!mRunning || mConnected || mConnecting) {
+                return;
+            }
+            mConnecting = true;
+            connectionId = ++mConnectionId;
+        }
+
+        mConnection.connect(new ConnectionCallback() {
+            @Override
+            public void onConnected() {
+                boolean catchUp;
+                synchronized (SubscriptionManager.this) {
+                    if (connectionId != mConnectionId) {
+                        return;
+                    }
+                    if (mGap) {
+                        mReconnects++;
+                    }
+                    mConnected = true;
+                    mConnecting = false;
+                    mBackoff.reset();
+                    catchUp = mGap;
+                }
+                if (catchUp) {
+                    catchUp(connectionId);
+                }
+            }
+
+            @Override
+            public void onEvent(int type, ListPetsQuery.Item pet) {
+                EventSink sink;
+                synchronized (SubscriptionManager.this) {
+                    if (connectionId != mConnectionId) {
+                        return;
+                    }
+                    sink = mSink;
+                    if (sink == null) {
+                        openGap();
+                    }
+                }
+                if (sink != null) {
+                    sink.onEvent(type, pet);
+                }
+            }
+
+            @Override
+            public void onDisconnected(Exception e) {
+                long delay;
+                synchronized (SubscriptionManager.this) {
+                    if (connectionId != mConnectionId) {
+                        return;
+                    }
+                    mConnected = false;
+                    mConnecting = false;
+                    openGap();
+                    if (!mRunning) {
+                        return;
+                    }
+                    delay = mBackoff.nextDelayMillis();
+                    mRetry = mExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                Log.w(TAG, "Subscription lost, reconnecting in " + delay + " ms", e);
+            }
+        });
+    }
+
+    private void catchUp(final int connectionId) {
+        mCatchUp.fetchChanges(new CatchUpCallback() {
+            @Override
+            public void onChanges(List<LiveSync.Event> events) {
+                EventSink sink;
+                synchronized (SubscriptionManager.this) {
+                    if (connectionId != mConnectionId || mSink == null) {
+                        return;
+                    }
+                    mGap = false;
+                    sink = mSink;
+                }
+                Log.d(TAG, "Caught up on " + events.size() + " changed pets");
+                for (LiveSync.Event event : events) {
+                    sink.onEvent(event.type, event.pet);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                // the gap stays open and is retried after the next reconnect
+                Log.e(TAG, "Failed to catch up after reconnecting", e);
+            }
+        });
+    }
+
+    // Pets that are new or differ from the cached copy. A pet missing from a fresh page may
+    // just have moved to a later one, so no deletes are derived from it.
+    static List<LiveSync.Event> changes(List<ListPetsQuery.Item> cached, List<ListPetsQuery.Item> fresh) {
+        Map<String, ListPetsQuery.Item> known = new HashMap<>();
+        for (ListPetsQuery.Item item : cached) {
+            known.put(item.id(), item);
+        }
+        List<LiveSync.Event> events = new ArrayList<>();
+        for (ListPetsQuery.Item item : fresh) {
+            ListPetsQuery.Item previous = known.get(item.id());
+            if (previous == null) {
+                events.add(new LiveSync.Event(LiveSync.Event.CREATED, item));
+            } else if (!previous.equals(item)) {
+                events.add(new LiveSync.Event(LiveSync.Event.UPDATED, item));
+            }
+        }
+        return events;
+    }
+
+    // Compares the cached first page with a fresh copy from the network. Pet has no
+    // updatedAt field to ask for changes since a point in time, so the page the user sees
+    // first is refetched and only the pets that differ are reported.
+    static class FirstPageCatchUp implements CatchUp {
+        @Override
+        public void fetchChanges(final CatchUpCallback callback) {
+            // what the server had before the reconnect may miss the events of the gap
+            final long connected = ClientFactory.listPetsCoalescer().mark();
+            query(ListPetsCoalescer.CACHE_ONLY, -1, new PetPager.PageCallback() {
+                @Override
+                public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+                    fetchFromNetwork(items, connected, callback);
+                }
+
+                // only a cache-and-network query is answered twice
+                @Override
+                public void onUnchanged(String nextToken) {
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    fetchFromNetwork(Collections.<ListPetsQuery.Item>emptyList(), connected, callback);
+                }
+            });
+        }
+
+        // Shares the network half of a first page the list started refreshing since the reconnect
+        private void fetchFromNetwork(final List<ListPetsQuery.Item> cached, long connected,
+                                      final CatchUpCallback callback) {
+            query(ListPetsCoalescer.NETWORK_ONLY, connected, new PetPager.PageCallback() {
+                @Override
+                public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+                    callback.onChanges(changes(cached, items));
+                }
+
+                // the network agrees with the cache
+                @Override
+                public void onUnchanged(String nextToken) {
+                    callback.onChanges(Collections.<LiveSync.Event>emptyList());
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    callback.onError(e);
+                }
+            });
+        }
+
+        private static void query(int fetcher, long freshAfter, PetPager.PageCallback callback) {
+            ClientFactory.listPetsCoalescer().query(null, PetPager.DEFAULT_PAGE_SIZE, fetcher, freshAfter, callback);
+        }
+    }
+
+    // onCreatePet, onUpdatePet and onDeletePet as one connection. The connection counts as
+    // lost as soon as any of the three fails. The SDK's callback has no acknowledgement, so
+    // the connection is established by its first event, or once ACK_TIMEOUT_MS pass without
+    // a failure; a subscription the server rejects fails well within that.
+    static class AppSyncConnection implements Connection {
+        private final ScheduledExecutorService mExecutor;
+        private final long mAckTimeoutMs;
+        private Subscriptions mSubscriptions;
+
+        AppSyncConnection(ScheduledExecutorService executor, long ackTimeoutMs) {
+            mExecutor = executor;
+            mAckTimeoutMs = ackTimeoutMs;
+        }
+
+        @Override
+        public synchronized void connect(final ConnectionCallback callback) {
+            final CallMetrics metrics = ClientFactory.callMetrics();
+            final Subscriptions subscriptions = new Subscriptions(callback);
+            mSubscriptions = subscriptions;
+
+            AppSyncSubscriptionCall<OnCreatePetSubscription.Data> created =
+                    ClientFactory.appSyncClient().subscribe(OnCreatePetSubscription.builder().build());
+            created.execute(subscriptions.new Callback<OnCreatePetSubscription.Data>() {
+                @Override
+                void onData(@Nonnull Response<OnCreatePetSubscription.Data> response) {
+                    metrics.recordEvent(CallMetrics.ON_CREATE_PET);
+                    if (response.data() == null || response.data().onCreatePet() == null) {
+                        return;
+                    }
+                    OnCreatePetSubscription.OnCreatePet pet = response.data().onCreatePet();
+                    OnCreatePetSubscription.Photo photo = pet.photo();
+                    callback.onEvent(LiveSync.Event.CREATED, new ListPetsQuery.Item(pet.__typename(), pet.id(),
+                            pet.name(), pet.description(), photo == null ? null : new ListPetsQuery.Photo(
+                                    photo.__typename(), photo.bucket(), photo.key(), photo.region(),
+                                    photo.localUri(), photo.mimeType())));
+                }
+
+                @Override
+                public void onFailure(@Nonnull ApolloException e) {
+                    metrics.recordError(CallMetrics.ON_CREATE_PET);
+                    super.onFailure(e);
+                }
+            });
+            subscriptions.add(created);
+
+            AppSyncSubscriptionCall<OnUpdatePetSubscription.Data> updated =
+                    ClientFactory.appSyncClient().subscribe(OnUpdatePetSubscription.builder().build());
+            updated.execute(subscriptions.new Callback<OnUpdatePetSubscription.Data>() {
+                @Override
+                void onData(@Nonnull Response<OnUpdatePetSubscription.Data> response) {
+                    if (response.data() == null || response.data().onUpdatePet() == null) {
+                        return;
+                    }
+                    OnUpdatePetSubscription.OnUpdatePet pet = response.data().onUpdatePet();
+                    OnUpdatePetSubscription.Photo photo = pet.photo();
+                    callback.onEvent(LiveSync.Event.UPDATED, new ListPetsQuery.Item(pet.__typename(), pet.id(),
+                            pet.name(), pet.description(), photo == null ? null : new ListPetsQuery.Photo(
+                                    photo.__typename(), photo.bucket(), photo.key(), photo.region(),
+                                    photo.localUri(), photo.mimeType())));
+                }
+            });
+            subscriptions.add(updated);
+
+            AppSyncSubscriptionCall<OnDeletePetSubscription.Data> deleted =
+                    ClientFactory.appSyncClient().subscribe(OnDeletePetSubscription.builder().build());
+            deleted.execute(subscriptions.new Callback<OnDeletePetSubscription.Data>() {
+                @Override
+                void onData(@Nonnull Response<OnDeletePetSubscription.Data> response) {
+                    if (response.data() == null || response.data().onDeletePet() == null) {
+                        return;
+                    }
+                    OnDeletePetSubscription.OnDeletePet pet = response.data().onDeletePet();
+                    callback.onEvent(LiveSync.Event.DELETED, new ListPetsQuery.Item(pet.__typename(), pet.id(),
+                            pet.name(), pet.description(), null));
+                }
+            });
+            subscriptions.add(deleted);
+
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    subscriptions.alive();
+                }
+            }, mAckTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            if (mSubscriptions != null) {
+                mSubscriptions.cancel();
+                mSubscriptions = null;
+            }
+        }
+    }
+
+    // The calls of one connection attempt, torn down together when one of them is lost
+    private static class Subscriptions {
+        private final ConnectionCallback mCallback;
+        private final List<AppSyncSubscriptionCall> mCalls = new ArrayList<>();
+        private boolean mConnected;
+        private boolean mLost;
+
+        Subscriptions(ConnectionCallback callback) {
+            mCallback = callback;
+        }
+
+        synchronized void add(AppSyncSubscriptionCall call) {
+            mCalls.add(call);
+        }
+
+        synchronized void cancel() {
+            mLost = true;
+            for (AppSyncSubscriptionCall call : mCalls) {
+                call.cancel();
+            }
+            mCalls.clear();
+        }
+
+        // Reports the connection once, unless it was lost first
+        void alive() {
+            synchronized (this) {
+                if (mConnected || mLost) {
+                    return;
+                }
+                mConnected = true;
+            }
+            mCallback.onConnected();
+        }
+
+        private void lost(Exception e) {
+            synchronized (this) {
+                if (mLost) {
+                    return;
+                }
+            }
+            cancel();
+            mCallback.onDisconnected(e);
+        }
+
+        abstract class Callback<T> implements AppSyncSubscriptionCall.Callback<T> {
+            abstract void onData(@Nonnull Response<T> response);
+
+            @Override
+            public void onResponse(@Nonnull Response<T> response) {
+                alive();
+                onData(response);
+            }
+
+            @Override
+            public void onFailure(@Nonnull ApolloException e) {
+                lost(e);
+            }
+
+            @Override
+            public void onCompleted() {
+                lost(null);
+            }
+        }
+    }
+}
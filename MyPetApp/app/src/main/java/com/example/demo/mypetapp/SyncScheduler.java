@@ -0,0 +1,306 @@
+package com.example.demo.mypetapp;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends the work that needs the network whenever there is one. Network callbacks, not a
+// check at a single point in time, start a pass: once the network is back the pending pets
+// and photo uploads are drained together, after a short window so that a flapping network or
+// a burst of new work costs a single pass. On a metered network large photos wait for an
+// unmetered one, and a failed pass is retried with exponential backoff while the network
+// stays up.
+public class SyncScheduler {
+
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+
+    static final long BATCH_WINDOW_MS = 500;
+    static final long BACKOFF_BASE_MS = 2000;
+    static final long BACKOFF_MAX_MS = 5 * 60 * 1000;
+    // Photos that need a multipart upload wait for an unmetered network
+    static final long METERED_MAX_BYTES = MultipartUploader.MIN_PART_SIZE;
+
+    interface Connectivity {
+        // Reports the network, if there is one, and every change from then on
+        void start(NetworkListener listener);
+    }
+
+    interface NetworkListener {
+        void onAvailable(boolean metered);
+
+        void onLost();
+    }
+
+    // Work that is kept while there is no network
+    interface Job {
+        // Sends what is pending, leaving files larger than maxBytes for another pass, and
+        // calls back once all of it was tried
+        void sync(long maxBytes, JobCallback callback);
+
+        // The network is gone, nothing more should be tried until the next sync
+        void pause();
+    }
+
+    interface JobCallback {
+        void onSynced(boolean succeeded);
+    }
+
+    interface Timer {
+        void postDelayed(Runnable task, long delayMillis);
+
+        long uptimeMillis();
+    }
+
+    private final Connectivity mConnectivity;
+    private final Timer mTimer;
+    private final Backoff mBackoff;
+    private final long mWindowMillis;
+    private final long mMeteredMaxBytes;
+    private final List<Job> mJobs = new CopyOnWriteArrayList<>();
+
+    private boolean mStarted;
+    private boolean mConnected;
+    private boolean mMetered;
+    // Bumped when the network goes away, so a pass or a retry from before is dropped
+    private int mGeneration;
+    private boolean mPassScheduled;
+    private boolean mRunning;
+    private boolean mRerun;
+    private long mConnectedAtMillis = -1;
+    private long mLastSyncMillis = -1;
+    private int mPasses;
+
+    private final NetworkListener mNetworkListener = new NetworkListener() {
+        @Override
+        public void onAvailable(boolean metered) {
+            synchronized (SyncScheduler.this) {
+                if (!mConnected) {
+                    mConnected = true;
+                    mConnectedAtMillis = mTimer.uptimeMillis();
+                    mBackoff.reset();
+                    Log.d(TAG, "Network available" + (metered ? ", metered" : ""));
+                } else if (mMetered == metered) {
+                    return;
+                }
+                mMetered = metered;
+            }
+            // also when the network became unmetered, for the photos that were held back
+            schedulePass(mWindowMillis);
+        }
+
+        @Override
+        public void onLost() {
+            synchronized (SyncScheduler.this) {
+                if (!mConnected) {
+                    return;
+                }
+                mConnected = false;
+                mGeneration++;
+                mPassScheduled = false;
+                mRunning = false;
+                mRerun = false;
+                Log.d(TAG, "Network lost");
+            }
+            pauseJobs();
+        }
+    };
+
+    SyncScheduler(Connectivity connectivity, Timer timer, Backoff backoff, long windowMillis, long meteredMaxBytes) {
+        mConnectivity = connectivity;
+        mTimer = timer;
+        mBackoff = backoff;
+        mWindowMillis = windowMillis;
+        mMeteredMaxBytes = meteredMaxBytes;
+    }
+
+    // A job is held until a callback reports a network
+    public void addJob(Job job) {
+        boolean connected;
+        synchronized (this) {
+            connected = mConnected;
+        }
+        if (!connected) {
+            job.pause();
+        }
+        mJobs.add(job);
+        requestSync();
+    }
+
+    public void removeJob(Job job) {
+        mJobs.remove(job);
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        mConnectivity.start(mNetworkListener);
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    // Called when new work was queued; it goes out with the next pass
+    public void requestSync() {
+        schedulePass(mWindowMillis);
+    }
+
+    // Milliseconds from the last reconnect to the pass that sent everything, -1 before that
+    public synchronized long lastSyncMillis() {
+        return mLastSyncMillis;
+    }
+
+    public synchronized int passes() {
+        return mPasses;
+    }
+
+    private void pauseJobs() {
+        for (Job job : mJobs) {
+            job.pause();
+        }
+    }
+
+    private void schedulePass(long delayMillis) {
+        final int generation;
+        synchronized (this) {
+            if (!mConnected || mPassScheduled) {
+                return;
+            }
+            mPassScheduled = true;
+            generation = mGeneration;
+        }
+        mTimer.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                runPass(generation);
+            }
+        }, delayMillis);
+    }
+
+    private void runPass(final int generation) {
+        long maxBytes;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mPassScheduled = false;
+            if (mRunning) {
+                mRerun = true;
+                return;
+            }
+            mRunning = true;
+            mPasses++;
+            maxBytes = mMetered ? mMeteredMaxBytes : Long.MAX_VALUE;
+        }
+        List<Job> jobs = new ArrayList<>(mJobs);
+        final AtomicInteger remaining = new AtomicInteger(jobs.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        if (jobs.isEmpty()) {
+            onPassDone(generation, true);
+            return;
+        }
+        for (Job job : jobs) {
+            job.sync(maxBytes, new JobCallback() {
+                @Override
+                public void onSynced(boolean succeeded) {
+                    if (!succeeded) {
+                        failed.set(true);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        onPassDone(generation, !failed.get());
+                    }
+                }
+            });
+        }
+    }
+
+    private void onPassDone(int generation, boolean succeeded) {
+        long delay;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mRunning = false;
+            if (succeeded) {
+                mBackoff.reset();
+                if (mConnectedAtMillis >= 0) {
+                    mLastSyncMillis = mTimer.uptimeMillis() - mConnectedAtMillis;
+                    mConnectedAtMillis = -1;
+                    Log.i(TAG, "Synced " + mLastSyncMillis + " ms after reconnecting");
+                }
+            }
+            if (mRerun) {
+                // work that was queued during the pass
+                delay = 0;
+            } else if (succeeded) {
+                delay = -1;
+            } else {
+                delay = mBackoff.nextDelayMillis();
+                Log.w(TAG, "Sync failed, retrying in " + delay + " ms");
+            }
+            mRerun = false;
+        }
+        if (delay >= 0) {
+            schedulePass(delay);
+        }
+    }
+
+    // Follows the default network through ConnectivityManager callbacks
+    static class ConnectivityManagerSource implements Connectivity {
+        private final ConnectivityManager mConnectivityManager;
+
+        ConnectivityManagerSource(Context context) {
+            mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+
+        @Override
+        public void start(final NetworkListener listener) {
+            mConnectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+                        listener.onAvailable(!capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+                    }
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    listener.onLost();
+                }
+            });
+        }
+    }
+
+    // Runs the passes on a background thread
+    static class ExecutorTimer implements Timer {
+        private final ScheduledExecutorService mExecutor;
+
+        ExecutorTimer(ScheduledExecutorService executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.demo.mypetapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Collects the progress of every upload and download in flight and publishes it to observers
+// as snapshots, at most a few times a second however many transfers are running. Progress
+// callbacks only write a few array slots, so they neither allocate nor log.
+public class TransferMonitor {
+
+    static final int UPLOAD = 0;
+    static final int DOWNLOAD = 1;
+
+    static final int IN_PROGRESS = 0;
+    static final int COMPLETED = 1;
+    static final int FAILED = 2;
+
+    static final int DEFAULT_SNAPSHOTS_PER_SECOND = 10;
+    private static final int INITIAL_CAPACITY = 16;
+
+    interface Scheduler {
+        // Runs publish on the main thread after the delay
+        void postDelayed(Runnable publish, long delayMillis);
+
+        long uptimeMillis();
+    }
+
+    interface Observer {
+        // Called on the main thread
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    // One transfer as of a snapshot
+    static class Transfer {
+        final String key;
+        final int direction;
+        final long bytesCurrent;
+        // -1 until the size is known
+        final long bytesTotal;
+        final int state;
+
+        Transfer(String key, int direction, long bytesCurrent, long bytesTotal, int state) {
+            this.key = key;
+            this.direction = direction;
+            this.bytesCurrent = bytesCurrent;
+            this.bytesTotal = bytesTotal;
+            this.state = state;
+        }
+
+        // 0 to 100, or -1 while the size is unknown
+        int percent() {
+            if (bytesTotal <= 0) {
+                return state == COMPLETED ? 100 : -1;
+            }
+            return (int) Math.min(100, bytesCurrent * 100 / bytesTotal);
+        }
+    }
+
+    // The transfers in flight, and those that finished since the previous snapshot
+    static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<Transfer>emptyList());
+
+        final List<Transfer> transfers;
+        private final Map<String, Transfer> mByKey;
+
+        Snapshot(List<Transfer> transfers) {
+            this.transfers = Collections.unmodifiableList(transfers);
+            mByKey = new HashMap<>(transfers.size() * 2);
+            for (Transfer transfer : transfers) {
+                mByKey.put(transfer.key, transfer);
+            }
+        }
+
+        Transfer forKey(String key) {
+            return mByKey.get(key);
+        }
+
+        int activeCount() {
+            int active = 0;
+            for (Transfer transfer : transfers) {
+                if (transfer.state == IN_PROGRESS) {
+                    active++;
+                }
+            }
+            return active;
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final long mIntervalMillis;
+    private final List<Observer> mObservers = new CopyOnWriteArrayList<>();
+
+    // One slot per transfer, reused once the transfer was published as finished
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private int[] mDirections = new int[INITIAL_CAPACITY];
+    private long[] mCurrent = new long[INITIAL_CAPACITY];
+    private long[] mTotal = new long[INITIAL_CAPACITY];
+    private int[] mStates = new int[INITIAL_CAPACITY];
+    private int[] mFree = new int[INITIAL_CAPACITY];
+    private int mFreeCount;
+    private int mSlots;
+
+    private boolean mPublishScheduled;
+    private long mLastPublishMillis = Long.MIN_VALUE / 2;
+    private Snapshot mLatest = Snapshot.EMPTY;
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    TransferMonitor(Scheduler scheduler, int maxSnapshotsPerSecond) {
+        mScheduler = scheduler;
+        mIntervalMillis = 1000 / maxSnapshotsPerSecond;
+    }
+
+    public void addObserver(Observer observer) {
+        mObservers.add(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        mObservers.remove(observer);
+    }
+
+    // The last published snapshot
+    public synchronized Snapshot latest() {
+        return mLatest;
+    }
+
+    // Returns the id to report the transfer's progress with
+    public synchronized int start(String key, int direction, long bytesTotal) {
+        int id;
+        if (mFreeCount > 0) {
+            id = mFree[--mFreeCount];
+        } else {
+            if (mSlots == mKeys.length) {
+                grow();
+            }
+            id = mSlots++;
+        }
+        mKeys[id] = key;
+        mDirections[id] = direction;
+        mCurrent[id] = 0;
+        mTotal[id] = bytesTotal;
+        mStates[id] = IN_PROGRESS;
+        schedulePublish();
+        return id;
+    }
+
+    // Called for every progress tick, from any thread
+    public synchronized void progress(int id, long bytesCurrent, long bytesTotal) {
+        mCurrent[id] = bytesCurrent;
+        mTotal[id] = bytesTotal;
+        schedulePublish();
+    }
+
+    public synchronized void finish(int id, boolean succeeded) {
+        if (mStates[id] != IN_PROGRESS) {
+            return;
+        }
+        mStates[id] = succeeded ? COMPLETED : FAILED;
+        if (succeeded && mTotal[id] > 0) {
+            mCurrent[id] = mTotal[id];
+        }
+        schedulePublish();
+    }
+
+    // At most one publish is pending, and it runs no sooner than one interval after the last
+    private void schedulePublish() {
+        if (mPublishScheduled) {
+            return;
+        }
+        mPublishScheduled = true;
+        long delay = mLastPublishMillis + mIntervalMillis - mScheduler.uptimeMillis();
+        mScheduler.postDelayed(mPublish, Math.max(0, delay));
+    }
+
+    private void publish() {
+        Snapshot snapshot;
+        synchronized (this) {
+            mPublishScheduled = false;
+            mLastPublishMillis = mScheduler.uptimeMillis();
+            List<Transfer> transfers = new ArrayList<>(mSlots - mFreeCount);
+            for (int id = 0; id < mSlots; id++) {
+                if (mKeys[id] == null) {
+                    continue;
+                }
+                transfers.add(new Transfer(mKeys[id], mDirections[id], mCurrent[id], mTotal[id], mStates[id]));
+                if (mStates[id] != IN_PROGRESS) {
+                    // reported once, then the slot is free again
+                    mKeys[id] = null;
+                    mFree[mFreeCount++] = id;
+                }
+            }
+            snapshot = new Snapshot(transfers);
+            mLatest = snapshot;
+        }
+        for (Observer observer : mObservers) {
+            observer.onSnapshot(snapshot);
+        }
+    }
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        String[] keys = new String[capacity];
+        int[] directions = new int[capacity];
+        long[] current = new long[capacity];
+        long[] total = new long[capacity];
+        int[] states = new int[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSlots);
+        System.arraycopy(mDirections, 0, directions, 0, mSlots);
+        System.arraycopy(mCurrent, 0, current, 0, mSlots);
+        System.arraycopy(mTotal, 0, total, 0, mSlots);
+        System.arraycopy(mStates, 0, states, 0, mSlots);
+        mKeys = keys;
+        mDirections = directions;
+        mCurrent = current;
+        mTotal = total;
+        mStates = states;
+        mFree = new int[capacity];
+    }
+
+    // Publishes on the main looper
+    static class MainThreadScheduler implements Scheduler {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postDelayed(Runnable publish, long delayMillis) {
+            mMainHandler.postDelayed(publish, delayMillis);
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    }
+}
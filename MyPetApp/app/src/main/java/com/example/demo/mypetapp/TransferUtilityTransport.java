@@ -0,0 +1,158 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+
+import java.io.File;
+
+// Runs downloads through the shared TransferUtility, and uploads through the uploader that
+// skips stored photos and resumes interrupted ones. Every transfer is reported to the monitor
+// while bytes are moving, and its time and size to the metrics.
+public class TransferUtilityTransport implements S3Transport {
+
+    private final TransferMonitor mMonitor;
+    private final CallMetrics mMetrics;
+
+    TransferUtilityTransport(TransferMonitor monitor, CallMetrics metrics) {
+        mMonitor = monitor;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void download(final String key, final File file, final TransferCallback callback) {
+        final int transferId = mMonitor.start(key, TransferMonitor.DOWNLOAD, -1);
+        final long start = mMetrics.start();
+        // The S3 client is built on the first transfer, off the calling thread
+        ClientFactory.whenTransferUtilityReady(new AsyncLazy.Callback<TransferUtility>() {
+            @Override
+            public void onReady(TransferUtility transferUtility) {
+                TransferObserver observer = transferUtility.download(key, file);
+                observer.setTransferListener(new CallbackListener(file, mMonitor, transferId,
+                        mMetrics, start, callback));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                mMonitor.finish(transferId, false);
+                mMetrics.recordError(CallMetrics.DOWNLOAD);
+                callback.onFailed(e);
+            }
+        });
+    }
+
+    @Override
+    public void upload(final String key, File file, String mimeType, final TransferCallback callback) {
+        ClientFactory.photoUploader().upload(key, file, mimeType, new MultipartUploader.UploadCallback() {
+            // Timed from the existence check, or from the attempt that sends the bytes, so the
+            // time spent waiting for a network is not counted against the throughput
+            private volatile long mStart = mMetrics.start();
+            // -1 while nothing is being sent, so an upload waiting for a network or already
+            // stored never shows as in progress
+            private volatile int mTransferId = -1;
+
+            @Override
+            public void onStarted(long bytesTotal) {
+                mStart = mMetrics.start();
+                if (mTransferId < 0) {
+                    mTransferId = mMonitor.start(key, TransferMonitor.UPLOAD, bytesTotal);
+                }
+            }
+
+            @Override
+            public void onProgress(long bytesSent, long bytesTotal) {
+                if (mTransferId >= 0) {
+                    mMonitor.progress(mTransferId, bytesSent, bytesTotal);
+                }
+            }
+
+            @Override
+            public void onStopped(Exception e) {
+                stop(false);
+            }
+
+            @Override
+            public void onCompleted(long bytes) {
+                stop(true);
+                if (bytes > 0) {
+                    mMetrics.recordTransfer(CallMetrics.UPLOAD, mStart, bytes);
+                } else {
+                    mMetrics.recordSkipped(CallMetrics.UPLOAD);
+                }
+                callback.onCompleted(bytes);
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                stop(false);
+                mMetrics.recordError(CallMetrics.UPLOAD);
+                callback.onFailed(e);
+            }
+
+            private void stop(boolean succeeded) {
+                if (mTransferId >= 0) {
+                    mMonitor.finish(mTransferId, succeeded);
+                    mTransferId = -1;
+                }
+            }
+        });
+    }
+
+    // Reports the first terminal state of a transfer exactly once
+    private static class CallbackListener implements TransferListener {
+        private final File mFile;
+        private final TransferMonitor mMonitor;
+        private final int mTransferId;
+        private final CallMetrics mMetrics;
+        private final long mStart;
+        private final TransferCallback mCallback;
+        private boolean mDone;
+
+        CallbackListener(File file, TransferMonitor monitor, int transferId, CallMetrics metrics, long start,
+                         TransferCallback callback) {
+            mFile = file;
+            mMonitor = monitor;
+            mTransferId = transferId;
+            mMetrics = metrics;
+            mStart = start;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onStateChanged(int id, TransferState state) {
+            if (mDone) {
+                return;
+            }
+            if (TransferState.COMPLETED == state) {
+                mDone = true;
+                mMonitor.finish(mTransferId, true);
+                mMetrics.recordTransfer(CallMetrics.DOWNLOAD, mStart, mFile.length());
+                mCallback.onCompleted(mFile.length());
+            } else if (TransferState.FAILED == state || TransferState.CANCELED == state) {
+                mDone = true;
+                mMonitor.finish(mTransferId, false);
+                mMetrics.recordError(CallMetrics.DOWNLOAD);
+                mCallback.onFailed(new IllegalStateException("Transfer " + id + " " + state));
+            }
+        }
+
+        // Runs for every chunk, so it only hands the numbers to the monitor
+        @Override
+        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            if (!mDone) {
+                mMonitor.progress(mTransferId, bytesCurrent, bytesTotal);
+            }
+        }
+
+        @Override
+        public void onError(int id, Exception ex) {
+            if (!mDone) {
+                mDone = true;
+                mMonitor.finish(mTransferId, false);
+                mMetrics.recordError(CallMetrics.DOWNLOAD);
+                mCallback.onFailed(ex);
+            }
+        }
+    }
+}
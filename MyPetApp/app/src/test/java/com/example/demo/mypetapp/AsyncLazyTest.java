@@ -0,0 +1,200 @@
+package com.example.demo.mypetapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncLazyTest {
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void warmedClients_doNotDelayTheFirstFrame() throws Exception {
+        // init() only starts warming AppSync, the S3 client waits for the first transfer
+        SlowFactory appSync = new SlowFactory(0);
+        SlowFactory s3 = new SlowFactory(0);
+        QueuedExecutor warmExecutor = new QueuedExecutor();
+        AsyncLazy<String> client = new AsyncLazy<>(appSync, warmExecutor);
+        AsyncLazy<String> transferUtility = new AsyncLazy<>(s3, warmExecutor);
+
+        client.warm();
+        final String[] firstRow = {null};
+        client.whenReady(new AsyncLazy.Callback<String>() {
+            @Override
+            public void onReady(String value) {
+                // the cached first page is read as soon as the client exists
+                firstRow[0] = value;
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        });
+
+        // nothing was built on the calling thread, so the first frame is drawn right away
+        assertEquals(0, appSync.calls.get());
+        assertNull(firstRow[0]);
+        assertEquals(1, warmExecutor.queued.size());
+
+        warmExecutor.runAll();
+        assertEquals("client", firstRow[0]);
+        assertEquals(1, appSync.calls.get());
+        assertEquals(0, s3.calls.get());
+        assertNull(transferUtility.peek());
+    }
+
+    @Test
+    public void get_afterPublication_doesNotLock() throws Exception {
+        final AsyncLazy<String> lazy = new AsyncLazy<>(new SlowFactory(0), mExecutor);
+        assertEquals("client", lazy.get());
+
+        // Another thread holds the monitor for the rest of the test; get() must not care
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lazy) {
+                    held.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+        holder.start();
+        assertTrue(held.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("client", lazy.get());
+        }
+        done.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void concurrentCallers_buildOnce() throws Exception {
+        SlowFactory factory = new SlowFactory(50);
+        final AsyncLazy<String> lazy = new AsyncLazy<>(factory, mExecutor);
+        lazy.warm();
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        final AtomicInteger results = new AtomicInteger();
+        for (int i = 0; i < 32; i++) {
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if ("client".equals(lazy.get())) {
+                        results.incrementAndGet();
+                    }
+                }
+            });
+        }
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(2, TimeUnit.SECONDS));
+
+        assertEquals(32, results.get());
+        assertEquals(1, factory.calls.get());
+    }
+
+    @Test
+    public void failedBuild_isRetriedOnNextUse() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        AsyncLazy<String> lazy = new AsyncLazy<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    throw new Exception("no network configuration yet");
+                }
+                return "client";
+            }
+        }, mExecutor);
+
+        try {
+            lazy.get();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertNull(lazy.peek());
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        lazy.whenReady(new AsyncLazy.Callback<String>() {
+            @Override
+            public void onReady(String value) {
+                ready.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        });
+        assertTrue(ready.await(1, TimeUnit.SECONDS));
+        assertEquals("client", lazy.peek());
+        assertEquals(2, calls.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Holds what is submitted until the test runs it
+    static class QueuedExecutor implements Executor {
+        final List<Runnable> queued = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> commands = new ArrayList<>(queued);
+            queued.clear();
+            for (Runnable command : commands) {
+                command.run();
+            }
+        }
+    }
+
+    // Stands in for a client builder that takes a while
+    static class SlowFactory implements Callable<String> {
+        final AtomicInteger calls = new AtomicInteger();
+        private final long mMillis;
+
+        SlowFactory(long millis) {
+            mMillis = millis;
+        }
+
+        @Override
+        public String call() {
+            calls.incrementAndGet();
+            sleep(mMillis);
+            return "client";
+        }
+    }
+}
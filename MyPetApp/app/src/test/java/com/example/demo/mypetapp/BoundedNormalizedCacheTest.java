@@ -0,0 +1,386 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.apollographql.apollo.cache.CacheHeaders;
+import com.apollographql.apollo.cache.normalized.CacheKey;
+import com.apollographql.apollo.cache.normalized.CacheReference;
+import com.apollographql.apollo.cache.normalized.NormalizedCache;
+import com.apollographql.apollo.cache.normalized.Record;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BoundedNormalizedCacheTest {
+
+    private static final String FIRST_PAGE = "QUERY_ROOT.listPets({\"limit\":20})";
+
+    @Test
+    public void leastRecentlyRead_areEvictedFirst() {
+        MapStore store = new MapStore();
+        QueuedExecutor executor = new QueuedExecutor();
+        BoundedNormalizedCache cache = cache(store, 100, Long.MAX_VALUE, executor);
+        executor.runAll();
+
+        for (int i = 0; i < 100; i++) {
+            cache.merge(Collections.singletonList(pet("pet-" + i)), CacheHeaders.NONE);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.loadRecord("pet-" + i, CacheHeaders.NONE));
+        }
+        for (int i = 100; i < 120; i++) {
+            cache.merge(Collections.singletonList(pet("pet-" + i)), CacheHeaders.NONE);
+        }
+        executor.runAll();
+
+        assertEquals(90, cache.recordCount());
+        assertEquals(90, store.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(store.contains("pet-" + i));
+        }
+        assertFalse(store.contains("pet-10"));
+        assertFalse(store.contains("pet-39"));
+        assertTrue(store.contains("pet-40"));
+        assertTrue(store.contains("pet-119"));
+    }
+
+    @Test
+    public void pendingPetsAndTheRoot_areKept() {
+        MapStore store = new MapStore();
+        QueuedExecutor executor = new QueuedExecutor();
+        OptimisticReconciler reconciler = new OptimisticReconciler();
+        BoundedNormalizedCache cache = new BoundedNormalizedCache(store, store,
+                new BoundedNormalizedCache.OptimisticPins(reconciler), 10, Long.MAX_VALUE, executor);
+        executor.runAll();
+
+        ListPetsQuery.Item optimistic = new ListPetsQuery.Item("Pet", "client-1", "Rex", "Pending", new ListPetsQuery.Photo(
+                "S3Object", "bucket", "public/rex.jpg", "us-east-1", null, "image/jpeg"));
+        reconciler.track(optimistic);
+        cache.merge(Collections.singletonList(Record.builder(PetCacheWriter.QUERY_ROOT).build()), CacheHeaders.NONE);
+        cache.merge(PetCacheWriter.petRecords(optimistic), CacheHeaders.NONE);
+        for (int i = 0; i < 20; i++) {
+            cache.merge(Collections.singletonList(pet("pet-" + i)), CacheHeaders.NONE);
+        }
+        executor.runAll();
+
+        assertEquals(9, cache.recordCount());
+        assertTrue(store.contains(PetCacheWriter.QUERY_ROOT));
+        assertTrue(store.contains("client-1"));
+        assertTrue(store.contains("client-1" + PetCacheWriter.PHOTO_KEY_SUFFIX));
+
+        // once the server has the pet, its optimistic records may go like any other
+        reconciler.onCreated("client-1", "server-1");
+        cache.merge(Arrays.asList(pet("pet-20"), pet("pet-21")), CacheHeaders.NONE);
+        executor.runAll();
+        assertFalse(store.contains("client-1"));
+        assertTrue(store.contains(PetCacheWriter.QUERY_ROOT));
+    }
+
+    @Test
+    public void storedRecords_areIndexedAsOldestAndCompactedAway() {
+        MapStore store = new MapStore();
+        for (int i = 0; i < 1000; i++) {
+            store.merge(pet("old-" + i), CacheHeaders.NONE);
+        }
+        long budget = store.bytes() / 2;
+        QueuedExecutor executor = new QueuedExecutor();
+        BoundedNormalizedCache cache = cache(store, Integer.MAX_VALUE, budget, executor);
+
+        // touched before the index is read, so it is newer than anything stored
+        assertNotNull(cache.loadRecord("old-0", CacheHeaders.NONE));
+        cache.merge(Collections.singletonList(pet("new")), CacheHeaders.NONE);
+        executor.runAll();
+
+        assertTrue(cache.sizeBytes() <= budget * 9 / 10);
+        assertEquals(store.bytes(), cache.sizeBytes());
+        assertTrue(store.contains("old-0"));
+        assertTrue(store.contains("new"));
+        assertFalse(store.contains("old-1"));
+        assertEquals(1, cache.compactionCount());
+        assertEquals(1, store.compactions);
+    }
+
+    @Test
+    public void cacheOnlyFirstPage_survivesEviction() {
+        MapStore store = new MapStore();
+        int stored = 100000;
+        for (int i = 0; i < stored; i++) {
+            store.merge(PetCacheWriter.petRecords(new ListPetsQuery.Item("Pet", "pet-" + i, "Pet " + i, "Good pet",
+                    new ListPetsQuery.Photo("S3Object", "bucket", "public/pet-" + i + ".jpg", "us-east-1", null,
+                            "image/jpeg"))), CacheHeaders.NONE);
+        }
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < PetPager.DEFAULT_PAGE_SIZE; i++) {
+            items.add(new CacheReference("pet-" + (stored - 1 - i * 997)));
+        }
+        store.merge(Record.builder(PetCacheWriter.QUERY_ROOT)
+                .addField("listPets({\"limit\":20})", new CacheReference(FIRST_PAGE)).build(), CacheHeaders.NONE);
+        store.merge(Record.builder(FIRST_PAGE).addField("items", items).build(), CacheHeaders.NONE);
+
+        QueuedExecutor executor = new QueuedExecutor();
+        BoundedNormalizedCache cache = cache(store, BoundedNormalizedCache.DEFAULT_MAX_RECORDS, Long.MAX_VALUE,
+                executor);
+        // only the page is read, its pets stay among the least recently read records
+        assertNotNull(cache.loadRecord(PetCacheWriter.QUERY_ROOT, CacheHeaders.NONE));
+        assertNotNull(cache.loadRecord(FIRST_PAGE, CacheHeaders.NONE));
+
+        executor.runAll();
+
+        assertTrue(store.size() <= BoundedNormalizedCache.DEFAULT_MAX_RECORDS * 9 / 10);
+        // every record the page references is still there, so the offline page reads whole
+        assertEquals(2 + 2 * PetPager.DEFAULT_PAGE_SIZE, readFirstPage(cache));
+        assertEquals(store.size(), cache.recordCount());
+        assertEquals(store.bytes(), cache.sizeBytes());
+    }
+
+    @Test
+    public void oldQueries_areEvictedWholeAndPrunedFromTheRoot() {
+        MapStore store = new MapStore();
+        QueuedExecutor executor = new QueuedExecutor();
+        BoundedNormalizedCache cache = cache(store, 200, Long.MAX_VALUE, executor);
+        executor.runAll();
+
+        // pages of ten pets each under their own query variables, the first pet shared by all of them
+        for (int page = 0; page < 30; page++) {
+            cache.merge(page(page, 10), CacheHeaders.NONE);
+            executor.runAll();
+            assertTrue(cache.recordCount() <= 200);
+        }
+
+        Record root = store.loadRecord(PetCacheWriter.QUERY_ROOT, CacheHeaders.NONE);
+        // the root only keeps the queries whose page is still stored
+        assertTrue(root.fields().size() < 30);
+        for (Object field : root.fields().values()) {
+            String page = ((CacheReference) field).key();
+            assertTrue(store.contains(page));
+            for (Object item : (List<?>) store.loadRecord(page, CacheHeaders.NONE).field("items")) {
+                assertTrue(store.contains(((CacheReference) item).key()));
+            }
+        }
+        // the oldest page went with its own pets, the shared pet stayed for the pages still there
+        assertFalse(store.contains(pageKey(0)));
+        assertFalse(store.contains("page-0-pet-1"));
+        assertTrue(store.contains("shared"));
+        assertTrue(store.contains(pageKey(29)));
+        assertEquals(store.size(), cache.recordCount());
+        // replaced in place, never removed and written again
+        assertTrue(store.rootReplacements > 0);
+        assertEquals(0, store.rootRemovals);
+    }
+
+    @Test
+    public void passThatFreesNothing_backsOff() {
+        MapStore store = new MapStore();
+        QueuedExecutor executor = new QueuedExecutor();
+        final Set<String> pinned = new HashSet<>();
+        BoundedNormalizedCache cache = new BoundedNormalizedCache(store, store, new BoundedNormalizedCache.Pins() {
+            @Override
+            public boolean isPinned(String key) {
+                return pinned.contains(key);
+            }
+        }, 10, Long.MAX_VALUE, executor);
+        executor.runAll();
+
+        // pets added offline, all of them waiting for the server
+        for (int i = 0; i < 200; i++) {
+            pinned.add("pet-" + i);
+            cache.merge(Collections.singletonList(pet("pet-" + i)), CacheHeaders.NONE);
+            executor.runAll();
+        }
+        assertEquals(200, cache.recordCount());
+        // after the first pass at 16, 32, 64 and 128 writes, not after every write
+        assertTrue(executor.executed <= 6);
+
+        pinned.clear();
+        for (int i = 200; i < 200 + BoundedNormalizedCache.MAX_EVICTION_BACKOFF; i++) {
+            cache.merge(Collections.singletonList(pet("pet-" + i)), CacheHeaders.NONE);
+            executor.runAll();
+        }
+        assertTrue(cache.recordCount() <= 10);
+        assertEquals(store.size(), cache.recordCount());
+    }
+
+    @Test
+    public void shrunkRecords_areMeasuredAgain() {
+        MapStore store = new MapStore();
+        QueuedExecutor executor = new QueuedExecutor();
+        BoundedNormalizedCache cache = cache(store, Integer.MAX_VALUE, Long.MAX_VALUE, executor);
+        executor.runAll();
+
+        cache.merge(Collections.singletonList(Record.builder("pet-1")
+                .addField("description", longText(10000)).build()), CacheHeaders.NONE);
+        long large = cache.sizeBytes();
+        cache.merge(Collections.singletonList(Record.builder("pet-1")
+                .addField("description", "Short").build()), CacheHeaders.NONE);
+
+        assertTrue(cache.sizeBytes() < large - 9000);
+        assertEquals(store.bytes(), cache.sizeBytes());
+    }
+
+    private static List<Record> page(int page, int pets) {
+        List<Record> records = new ArrayList<>();
+        List<Object> items = new ArrayList<>();
+        items.add(new CacheReference("shared"));
+        records.add(pet("shared"));
+        for (int i = 1; i < pets; i++) {
+            String id = "page-" + page + "-pet-" + i;
+            items.add(new CacheReference(id));
+            records.add(pet(id));
+        }
+        records.add(Record.builder(pageKey(page)).addField("items", items).build());
+        records.add(Record.builder(PetCacheWriter.QUERY_ROOT)
+                .addField("listPets({\"page\":" + page + "})", new CacheReference(pageKey(page))).build());
+        return records;
+    }
+
+    private static String pageKey(int page) {
+        return "QUERY_ROOT.listPets({\"page\":" + page + "})";
+    }
+
+    private static String longText(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append('a');
+        }
+        return text.toString();
+    }
+
+    // Follows the references of the first page the way a CACHE_ONLY read does, returning the
+    // number of records read
+    private static int readFirstPage(NormalizedCache cache) {
+        Record root = cache.loadRecord(PetCacheWriter.QUERY_ROOT, CacheHeaders.NONE);
+        Record page = cache.loadRecord(((CacheReference) root.field("listPets({\"limit\":20})")).key(),
+                CacheHeaders.NONE);
+        int read = 2;
+        for (Object item : (List<?>) page.field("items")) {
+            Record pet = cache.loadRecord(((CacheReference) item).key(), CacheHeaders.NONE);
+            Record photo = cache.loadRecord(((CacheReference) pet.field("photo")).key(), CacheHeaders.NONE);
+            read += photo != null ? 2 : 1;
+        }
+        return read;
+    }
+
+    private static BoundedNormalizedCache cache(MapStore store, int maxRecords, long maxBytes, Executor executor) {
+        return new BoundedNormalizedCache(store, store, new BoundedNormalizedCache.Pins() {
+            @Override
+            public boolean isPinned(String key) {
+                return false;
+            }
+        }, maxRecords, maxBytes, executor);
+    }
+
+    private static Record pet(String id) {
+        return Record.builder(id)
+                .addField("__typename", "Pet")
+                .addField("id", id)
+                .addField("name", "Pet " + id)
+                .addField("description", "Good pet")
+                .build();
+    }
+
+    // Records in a sorted map, which stand in for the database's records table
+    static class MapStore extends NormalizedCache implements BoundedNormalizedCache.Storage {
+        private final TreeMap<String, Record> mRecords = new TreeMap<>();
+        int compactions;
+        int rootReplacements;
+        int rootRemovals;
+
+        @Override
+        public synchronized Record loadRecord(String key, CacheHeaders cacheHeaders) {
+            return mRecords.get(key);
+        }
+
+        @Override
+        protected synchronized Set<String> performMerge(Record apolloRecord, CacheHeaders cacheHeaders) {
+            Record existing = mRecords.get(apolloRecord.key());
+            if (existing == null) {
+                mRecords.put(apolloRecord.key(), apolloRecord);
+                return Collections.singleton(apolloRecord.key());
+            }
+            return existing.mergeWith(apolloRecord);
+        }
+
+        @Override
+        public synchronized void clearAll() {
+            mRecords.clear();
+        }
+
+        @Override
+        public synchronized boolean remove(CacheKey cacheKey) {
+            if (cacheKey.key().equals(PetCacheWriter.QUERY_ROOT)) {
+                rootRemovals++;
+            }
+            return mRecords.remove(cacheKey.key()) != null;
+        }
+
+        @Override
+        public synchronized void forEachRecord(BoundedNormalizedCache.RecordVisitor visitor) {
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                visitor.onRecord(entry.getKey(), entry.getValue().sizeEstimateBytes(),
+                        BoundedNormalizedCache.references(entry.getValue().fields()));
+            }
+        }
+
+        @Override
+        public long sizeOf(Record record) {
+            return record.sizeEstimateBytes();
+        }
+
+        @Override
+        public synchronized void compact() {
+            compactions++;
+        }
+
+        @Override
+        public synchronized void replace(Record record) {
+            if (record.key().equals(PetCacheWriter.QUERY_ROOT)) {
+                rootReplacements++;
+            }
+            mRecords.put(record.key(), record);
+        }
+
+        synchronized boolean contains(String key) {
+            return mRecords.containsKey(key);
+        }
+
+        synchronized int size() {
+            return mRecords.size();
+        }
+
+        synchronized long bytes() {
+            long bytes = 0;
+            for (Record record : mRecords.values()) {
+                bytes += record.sizeEstimateBytes();
+            }
+            return bytes;
+        }
+    }
+
+    // Runs what was queued, including what the queued work queues, when the test says so
+    static class QueuedExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<>();
+        int executed;
+
+        @Override
+        public void execute(Runnable command) {
+            executed++;
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+}
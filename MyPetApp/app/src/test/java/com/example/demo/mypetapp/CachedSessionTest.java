@@ -0,0 +1,107 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachedSessionTest {
+
+    private static final long NOW = 1546300800000L;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final int RETURNING_LAUNCHES = 1000;
+
+    @Test
+    public void freshTokens_skipSignIn() {
+        CachedSession session = new CachedSession(new LocalIdentity(jwt(NOW + HOUR), "refresh"));
+
+        assertEquals(CachedSession.VALID, session.check(NOW));
+    }
+
+    @Test
+    public void tokensAboutToExpire_areRefreshedInTheBackground() {
+        long expiry = NOW + CachedSession.REFRESH_WINDOW_MS / 2;
+
+        assertEquals(CachedSession.NEEDS_REFRESH,
+                new CachedSession(new LocalIdentity(jwt(expiry), "refresh")).check(NOW));
+        // nothing to refresh with, but the tokens still work for a few minutes
+        assertEquals(CachedSession.VALID,
+                new CachedSession(new LocalIdentity(jwt(expiry), null)).check(NOW));
+    }
+
+    @Test
+    public void expiredOrMissingTokens_needTheSignInFlow() {
+        assertEquals(CachedSession.SIGN_IN_REQUIRED,
+                new CachedSession(new LocalIdentity(jwt(NOW - HOUR), "refresh")).check(NOW));
+        // within the clock skew allowance counts as expired
+        assertEquals(CachedSession.SIGN_IN_REQUIRED,
+                new CachedSession(new LocalIdentity(jwt(NOW + CachedSession.CLOCK_SKEW_MS / 2), "refresh")).check(NOW));
+        assertEquals(CachedSession.SIGN_IN_REQUIRED,
+                new CachedSession(new LocalIdentity(null, null)).check(NOW));
+        assertEquals(CachedSession.SIGN_IN_REQUIRED,
+                new CachedSession(new LocalIdentity("not a token", "refresh")).check(NOW));
+        assertEquals(CachedSession.SIGN_IN_REQUIRED,
+                new CachedSession(new LocalIdentity("a.%%%.c", "refresh")).check(NOW));
+    }
+
+    @Test
+    public void expiry_isReadFromThePayload() {
+        assertEquals(NOW + HOUR, CachedSession.expiryMillis(jwt(NOW + HOUR)));
+        assertEquals(-1, CachedSession.expiryMillis(token("{\"sub\":\"user\"}")));
+    }
+
+    @Test
+    public void returningUser_reachesTheListWithoutARoundTrip() {
+        LocalIdentity identity = new LocalIdentity(jwt(NOW + HOUR), "refresh");
+        CachedSession session = new CachedSession(identity);
+
+        int skipped = 0;
+        for (int i = 0; i < RETURNING_LAUNCHES; i++) {
+            if (session.check(NOW) != CachedSession.SIGN_IN_REQUIRED) {
+                skipped++;
+            }
+        }
+
+        // every launch skips the sign-in screen on one read of the stored id token
+        assertEquals(RETURNING_LAUNCHES, skipped);
+        assertEquals(RETURNING_LAUNCHES, identity.reads);
+    }
+
+    private static String jwt(long expiryMillis) {
+        return token("{\"sub\":\"user\",\"token_use\":\"id\",\"exp\":" + expiryMillis / 1000 + "}");
+    }
+
+    private static String token(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8))
+                + ".signature";
+    }
+
+    // Stands in for the tokens a previous sign-in left on the device
+    static class LocalIdentity implements CachedSession.TokenStore {
+        private final String mIdToken;
+        private final String mRefreshToken;
+        int reads;
+
+        LocalIdentity(String idToken, String refreshToken) {
+            mIdToken = idToken;
+            mRefreshToken = refreshToken;
+        }
+
+        @Override
+        public String idToken() {
+            reads++;
+            return mIdToken;
+        }
+
+        @Override
+        public String refreshToken() {
+            return mRefreshToken;
+        }
+    }
+}
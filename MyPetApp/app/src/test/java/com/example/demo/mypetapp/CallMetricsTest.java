@@ -0,0 +1,167 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CallMetricsTest {
+
+    private static final int SAMPLES = 1000000;
+
+    @Test
+    public void histogram_keepsEveryValueWithinAnEighth() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            value = Math.min(value, CallMetrics.Histogram.MAX_VALUE);
+            int bucket = CallMetrics.Histogram.bucket(value);
+            long lowest = CallMetrics.Histogram.lowestIn(bucket);
+            long highest = CallMetrics.Histogram.highestIn(bucket);
+            assertTrue(bucket < CallMetrics.Histogram.BUCKETS);
+            assertTrue(lowest <= value && value <= highest);
+            assertTrue(highest - lowest <= lowest / 8);
+        }
+        for (long value = 0; value < 8; value++) {
+            assertEquals(value, CallMetrics.Histogram.highestIn(CallMetrics.Histogram.bucket(value)));
+        }
+
+        CallMetrics.Histogram histogram = new CallMetrics.Histogram();
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10000, histogram.count());
+        assertEquals(10000, histogram.max());
+        assertWithinAnEighth(5000, histogram.valueAt(50));
+        assertWithinAnEighth(9900, histogram.valueAt(99));
+        assertEquals(10000, histogram.valueAt(100));
+    }
+
+    @Test
+    public void calls_showUpInTheExportedSnapshot() {
+        ManualClock clock = new ManualClock();
+        Collector sink = new Collector();
+        CallMetrics metrics = new CallMetrics(clock, sink);
+
+        long start = metrics.start();
+        clock.advanceMicros(800);
+        metrics.recordResponse(CallMetrics.LIST_PETS, start, true);
+        clock.advanceMicros(120000);
+        metrics.recordResponse(CallMetrics.LIST_PETS, start, false);
+        metrics.recordError(CallMetrics.CREATE_PET);
+        metrics.recordEvent(CallMetrics.ON_CREATE_PET);
+        start = metrics.start();
+        clock.advanceMicros(500000);
+        metrics.recordTransfer(CallMetrics.UPLOAD, start, 1000000);
+        metrics.export();
+
+        assertEquals(1, sink.snapshots.size());
+        CallMetrics.Snapshot snapshot = sink.snapshots.get(0);
+        assertEquals(4, snapshot.operations.size());
+        assertNull(snapshot.operation("s3_download"));
+
+        CallMetrics.OperationSnapshot listPets = snapshot.operation("ListPetsQuery");
+        assertEquals(2, listPets.count);
+        assertEquals(1, listPets.cacheHits);
+        assertEquals(1, listPets.networkResponses);
+        assertWithinAnEighth(800, listPets.p50Micros);
+        assertEquals(120800, listPets.maxMicros);
+        assertEquals(1, snapshot.operation("CreatePetMutation").errors);
+        assertEquals(0, snapshot.operation("CreatePetMutation").count);
+        assertEquals(1, snapshot.operation("OnCreatePetSubscription").networkResponses);
+
+        CallMetrics.OperationSnapshot upload = snapshot.operation("s3_upload");
+        assertEquals(1000000, upload.bytes);
+        assertWithinAnEighth(2000000, upload.p50BytesPerSecond);
+
+        // nothing new, nothing exported
+        metrics.export();
+        assertEquals(1, sink.snapshots.size());
+        metrics.recordError(CallMetrics.DOWNLOAD);
+        metrics.export();
+        assertEquals(2, sink.snapshots.size());
+    }
+
+    @Test
+    public void skippedUploads_areCountedApart() {
+        ManualClock clock = new ManualClock();
+        CallMetrics metrics = new CallMetrics(clock, new Collector());
+
+        long start = metrics.start();
+        clock.advanceMicros(500000);
+        metrics.recordTransfer(CallMetrics.UPLOAD, start, 1000000);
+        metrics.recordSkipped(CallMetrics.UPLOAD);
+        metrics.recordSkipped(CallMetrics.UPLOAD);
+
+        CallMetrics.OperationSnapshot upload = metrics.snapshot().operation("s3_upload");
+        assertEquals(2, upload.skipped);
+        assertEquals(1, upload.count);
+        assertEquals(1000000, upload.bytes);
+        assertWithinAnEighth(2000000, upload.p50BytesPerSecond);
+        assertTrue(upload.toString().contains(" skipped=2"));
+    }
+
+    @Test
+    public void concurrentRecording_losesNoSamples() throws InterruptedException {
+        final CallMetrics metrics = new CallMetrics(new Collector());
+        record(metrics, SAMPLES);
+
+        // four threads recording the same operation at once
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    record(metrics, SAMPLES);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        CallMetrics.OperationSnapshot listPets = metrics.snapshot().operation("ListPetsQuery");
+        assertEquals(5 * SAMPLES, listPets.count);
+        assertEquals(5 * SAMPLES, listPets.cacheHits + listPets.networkResponses);
+    }
+
+    private static void record(CallMetrics metrics, int samples) {
+        for (int i = 0; i < samples; i++) {
+            long start = metrics.start();
+            metrics.recordResponse(CallMetrics.LIST_PETS, start - (i & 0xffff) * 1000, (i & 1) == 0);
+        }
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 8);
+    }
+
+    static class ManualClock implements CallMetrics.Clock {
+        private long mNanos;
+
+        void advanceMicros(long micros) {
+            mNanos += micros * 1000;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    static class Collector implements CallMetrics.Sink {
+        final List<CallMetrics.Snapshot> snapshots = new ArrayList<>();
+
+        @Override
+        public void onSnapshot(CallMetrics.Snapshot snapshot) {
+            snapshots.add(snapshot);
+        }
+    }
+}
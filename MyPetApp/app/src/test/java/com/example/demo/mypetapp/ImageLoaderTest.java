@@ -0,0 +1,230 @@
+package com.example.demo.mypetapp;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ImageLoaderTest {
+
+    private static final int ROWS = 300;
+    private static final int VISIBLE_ROWS = 8;
+    private static final int SIZE = 100;
+
+    private CountingDecoder mDecoder;
+    private QueuedExecutor mDecodeExecutor;
+    private Executor mDirectExecutor;
+
+    @Before
+    public void setUp() {
+        mDecoder = new CountingDecoder();
+        mDecodeExecutor = new QueuedExecutor();
+        mDirectExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    @Test
+    public void inSampleSize_keepsBothDimensionsAtOrAboveTarget() {
+        assertEquals(1, ImageLoader.calculateInSampleSize(100, 100, 200, 200));
+        assertEquals(1, ImageLoader.calculateInSampleSize(300, 300, 200, 200));
+        assertEquals(2, ImageLoader.calculateInSampleSize(400, 400, 200, 200));
+        assertEquals(16, ImageLoader.calculateInSampleSize(4032, 3024, 200, 150));
+        assertEquals(8, ImageLoader.calculateInSampleSize(4032, 1024, 200, 100));
+        assertEquals(1, ImageLoader.calculateInSampleSize(4032, 3024, 0, 0));
+    }
+
+    @Test
+    public void scrollingBackAndForth_decodesEachPhotoOnce() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDirectExecutor, mDirectExecutor);
+        List<ImageView> rows = createRows(VISIBLE_ROWS);
+
+        scroll(loader, rows, 0, ROWS);
+        scroll(loader, rows, ROWS - VISIBLE_ROWS, -ROWS);
+
+        LruCache<String, Bitmap> cache = loader.cache();
+
+        assertEquals(ROWS, mDecoder.count);
+        assertEquals(ROWS, cache.missCount());
+        assertTrue(cache.hitCount() >= ROWS);
+    }
+
+    @Test
+    public void boundedCache_evictsAndStaysUnderBudget() {
+        // room for 20 decoded thumbnails
+        int budget = 20 * SIZE * SIZE * 4;
+        ImageLoader loader = new ImageLoader(mDecoder, budget, mDirectExecutor, mDirectExecutor);
+        List<ImageView> rows = createRows(VISIBLE_ROWS);
+
+        scroll(loader, rows, 0, ROWS);
+        scroll(loader, rows, ROWS - VISIBLE_ROWS, -ROWS);
+
+        LruCache<String, Bitmap> cache = loader.cache();
+
+        assertTrue(cache.size() <= budget);
+        assertTrue(cache.evictionCount() > 0);
+        // the most recent rows are served from memory on the way back up
+        assertTrue(mDecoder.count < 2 * ROWS);
+    }
+
+    @Test
+    public void recycledView_cancelsPendingDecode() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDecodeExecutor, mDirectExecutor);
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+
+        loader.load(view, "/photos/0.jpg", SIZE, SIZE);
+        loader.cancel(view);
+        mDecodeExecutor.runAll();
+
+        assertEquals(0, mDecoder.count);
+        assertNull(view.getDrawable());
+    }
+
+    @Test
+    public void reboundView_onlyShowsLatestPhoto() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDecodeExecutor, mDirectExecutor);
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+
+        loader.load(view, "/photos/0.jpg", SIZE, SIZE);
+        loader.load(view, "/photos/1.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+
+        assertEquals(1, mDecoder.count);
+        assertNotNull(loader.cache().get(ImageLoader.cacheKey("/photos/1.jpg", SIZE, SIZE)));
+        assertNull(loader.cache().get(ImageLoader.cacheKey("/photos/0.jpg", SIZE, SIZE)));
+    }
+
+    @Test
+    public void preloadedPhoto_isShownWhenTheRowIsBound() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDecodeExecutor, mDirectExecutor);
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+
+        loader.preload("/photos/0.jpg", SIZE, SIZE);
+        loader.preload("/photos/0.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+        loader.load(view, "/photos/0.jpg", SIZE, SIZE);
+
+        assertEquals(1, mDecoder.count);
+        assertNotNull(view.getDrawable());
+    }
+
+    @Test
+    public void preloadOfACachedPhoto_leavesTheStatsAlone() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDecodeExecutor, mDirectExecutor);
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+        loader.load(view, "/photos/0.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+        LruCache<String, Bitmap> cache = loader.cache();
+        int hits = cache.hitCount();
+        int misses = cache.missCount();
+
+        for (int i = 0; i < 10; i++) {
+            loader.preload("/photos/0.jpg", SIZE, SIZE);
+        }
+        mDecodeExecutor.runAll();
+
+        assertEquals(1, mDecoder.count);
+        assertEquals(hits, cache.hitCount());
+        assertEquals(misses, cache.missCount());
+    }
+
+    @Test
+    public void evictedPhoto_isPreloadedAgain() {
+        // room for one decoded thumbnail
+        ImageLoader loader = new ImageLoader(mDecoder, SIZE * SIZE * 4, mDecodeExecutor, mDirectExecutor);
+
+        loader.preload("/photos/0.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+        loader.preload("/photos/1.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+        loader.preload("/photos/0.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+
+        assertEquals(3, mDecoder.count);
+    }
+
+    @Test
+    public void rowBoundDuringPreload_isNotDecodedTwice() {
+        ImageLoader loader = new ImageLoader(mDecoder, 64 * 1024 * 1024, mDecodeExecutor, mDirectExecutor);
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+
+        loader.preload("/photos/0.jpg", SIZE, SIZE);
+        loader.load(view, "/photos/0.jpg", SIZE, SIZE);
+        assertNull(view.getDrawable());
+        mDecodeExecutor.runAll();
+
+        assertEquals(1, mDecoder.count);
+        assertNotNull(view.getDrawable());
+
+        // and a row that is already loading is not preloaded again
+        ImageView other = new ImageView(RuntimeEnvironment.application);
+        loader.load(other, "/photos/1.jpg", SIZE, SIZE);
+        loader.preload("/photos/1.jpg", SIZE, SIZE);
+        mDecodeExecutor.runAll();
+        assertEquals(2, mDecoder.count);
+    }
+
+    // binds a window of rows one position at a time, like a slow fling
+    private void scroll(ImageLoader loader, List<ImageView> rows, int from, int distance) {
+        int step = distance > 0 ? 1 : -1;
+        for (int first = from; first != from + distance; first += step) {
+            if (first < 0 || first + rows.size() > ROWS) {
+                break;
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                loader.load(rows.get(i), "/photos/" + (first + i) + ".jpg", SIZE, SIZE);
+            }
+        }
+    }
+
+    private List<ImageView> createRows(int count) {
+        List<ImageView> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new ImageView(RuntimeEnvironment.application));
+        }
+        return rows;
+    }
+
+    private static class CountingDecoder implements ImageLoader.Decoder {
+        int count;
+
+        @Override
+        public Bitmap decode(String path, int reqWidth, int reqHeight) {
+            count++;
+            return Bitmap.createBitmap(reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    private static class QueuedExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            for (Runnable runnable : mQueue) {
+                runnable.run();
+            }
+            mQueue.clear();
+        }
+    }
+}
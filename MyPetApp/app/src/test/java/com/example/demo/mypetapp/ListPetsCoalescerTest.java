@@ -0,0 +1,214 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ListPetsCoalescerTest {
+
+    private static final int PAGE_SIZE = PetPager.DEFAULT_PAGE_SIZE;
+
+    @Test
+    public void addPetFlow_sendsTheFirstPageOnce() {
+        FakeClient client = new FakeClient();
+        ListPetsCoalescer coalescer = new ListPetsCoalescer(client);
+        PetPagerTest.RecordingListener listener = new PetPagerTest.RecordingListener();
+        PetPager pager = new PetPager(new CoalescedSource(coalescer), PAGE_SIZE, listener);
+        RecordingCallback refresh = new RecordingCallback();
+        RecordingCallback catchUpCache = new RecordingCallback();
+        RecordingCallback catchUpNetwork = new RecordingCallback();
+
+        // the pet was saved and the connection came back, then the list refreshes and the
+        // batch refresh and the catch-up follow it
+        long saved = coalescer.mark();
+        pager.refresh();
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, saved, refresh);
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.CACHE_ONLY, catchUpCache);
+        client.answerCache(0, pets(PAGE_SIZE), "20");
+        client.answerCache(1, pets(PAGE_SIZE), "20");
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, saved, catchUpNetwork);
+        client.answerNetwork(0, pets(PAGE_SIZE), "20");
+
+        assertEquals(1, client.networkRequests);
+        assertEquals(2, client.cacheReads);
+        assertEquals(2, coalescer.executions());
+        assertEquals(2, coalescer.shared());
+
+        // the network copy equals the cached one, the list is only given it once
+        assertEquals(1, listener.pages);
+        assertFalse(pager.isLoading());
+        assertTrue(pager.hasMore());
+        assertEquals(1, refresh.pages);
+        assertEquals(1, catchUpCache.pages);
+        assertEquals(1, catchUpNetwork.pages);
+        assertEquals(pets(PAGE_SIZE), catchUpNetwork.items);
+    }
+
+    @Test
+    public void networkCopyThatDiffers_isDelivered() {
+        FakeClient client = new FakeClient();
+        ListPetsCoalescer coalescer = new ListPetsCoalescer(client);
+        PetPagerTest.RecordingListener listener = new PetPagerTest.RecordingListener();
+        PetPager pager = new PetPager(new CoalescedSource(coalescer), PAGE_SIZE, listener);
+
+        pager.refresh();
+        client.answerCache(0, pets(PAGE_SIZE), "20");
+        List<ListPetsQuery.Item> fresh = pets(PAGE_SIZE);
+        fresh.set(0, new ListPetsQuery.Item("Pet", "new", "New", "Just added", null));
+        client.answerNetwork(0, fresh, "20");
+
+        assertEquals(2, listener.pages);
+        assertEquals(fresh, listener.rows);
+    }
+
+    @Test
+    public void executionStartedBeforeTheMark_isNotShared() {
+        FakeClient client = new FakeClient();
+        ListPetsCoalescer coalescer = new ListPetsCoalescer(client);
+        RecordingCallback listing = new RecordingCallback();
+        RecordingCallback refresh = new RecordingCallback();
+        RecordingCallback catchUp = new RecordingCallback();
+
+        // the list asked before the batch reached the server, the refresh after it
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.CACHE_AND_NETWORK, listing);
+        long created = coalescer.mark();
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, created, refresh);
+        // a reconnect before the batch was sent is served by the refresh as well
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, created - 1, catchUp);
+
+        assertEquals(2, client.networkRequests);
+        assertEquals(1, coalescer.shared());
+        List<ListPetsQuery.Item> withNewPet = pets(PAGE_SIZE + 1);
+        client.answerNetwork(0, pets(PAGE_SIZE), "20");
+        client.answerNetwork(1, withNewPet, "20");
+        assertEquals(pets(PAGE_SIZE), listing.items);
+        assertEquals(withNewPet, refresh.items);
+        assertEquals(withNewPet, catchUp.items);
+    }
+
+    @Test
+    public void lateCaller_isGivenTheCachedCopy() {
+        FakeClient client = new FakeClient();
+        ListPetsCoalescer coalescer = new ListPetsCoalescer(client);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback late = new RecordingCallback();
+
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.CACHE_AND_NETWORK, first);
+        client.answerCache(0, pets(PAGE_SIZE), "20");
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.CACHE_AND_NETWORK, late);
+        assertEquals(1, late.pages);
+        assertTrue(late.fromCache);
+
+        client.answerNetwork(0, pets(PAGE_SIZE), "20");
+        assertEquals(1, client.networkRequests);
+        assertEquals(1, first.unchanged);
+        assertEquals(1, late.unchanged);
+    }
+
+    @Test
+    public void finishedQuery_isSentAgain() {
+        FakeClient client = new FakeClient();
+        ListPetsCoalescer coalescer = new ListPetsCoalescer(client);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback joined = new RecordingCallback();
+        RecordingCallback next = new RecordingCallback();
+
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, first);
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, joined);
+        client.fail(0, new Exception("offline"));
+        assertEquals(1, first.errors);
+        assertEquals(1, joined.errors);
+
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.NETWORK_ONLY, next);
+        // another page, limit or fetcher is a query of its own
+        coalescer.query("20", PAGE_SIZE, ListPetsCoalescer.NETWORK_FIRST, new RecordingCallback());
+        coalescer.query(null, 5, ListPetsCoalescer.NETWORK_ONLY, new RecordingCallback());
+        coalescer.query(null, PAGE_SIZE, ListPetsCoalescer.CACHE_ONLY, new RecordingCallback());
+        assertEquals(5, client.queries.size());
+        assertEquals(1, coalescer.shared());
+    }
+
+    private static List<ListPetsQuery.Item> pets(int count) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(new ListPetsQuery.Item("Pet", "pet-" + i, "Pet " + i, "Good pet", null));
+        }
+        return pets;
+    }
+
+    // Pages the way PetPager.AppSyncPageSource does
+    static class CoalescedSource implements PetPager.PageSource {
+        private final ListPetsCoalescer mCoalescer;
+
+        CoalescedSource(ListPetsCoalescer coalescer) {
+            mCoalescer = coalescer;
+        }
+
+        @Override
+        public void loadPage(String nextToken, int limit, PetPager.PageCallback callback) {
+            mCoalescer.query(nextToken, limit, nextToken == null
+                    ? ListPetsCoalescer.CACHE_AND_NETWORK
+                    : ListPetsCoalescer.NETWORK_FIRST, callback);
+        }
+    }
+
+    // Holds every query until the test answers it, counting what reached the cache and network
+    static class FakeClient implements ListPetsCoalescer.Client {
+        final List<PetPager.PageCallback> queries = new ArrayList<>();
+        int networkRequests;
+        int cacheReads;
+
+        @Override
+        public void query(String nextToken, int limit, int fetcher, PetPager.PageCallback callback) {
+            queries.add(callback);
+            if (fetcher != ListPetsCoalescer.CACHE_ONLY) {
+                networkRequests++;
+            }
+            if (fetcher == ListPetsCoalescer.CACHE_ONLY || fetcher == ListPetsCoalescer.CACHE_AND_NETWORK) {
+                cacheReads++;
+            }
+        }
+
+        void answerCache(int query, List<ListPetsQuery.Item> items, String nextToken) {
+            queries.get(query).onPage(items, nextToken, true);
+        }
+
+        void answerNetwork(int query, List<ListPetsQuery.Item> items, String nextToken) {
+            queries.get(query).onPage(items, nextToken, false);
+        }
+
+        void fail(int query, Exception e) {
+            queries.get(query).onError(e);
+        }
+    }
+
+    static class RecordingCallback implements PetPager.PageCallback {
+        List<ListPetsQuery.Item> items;
+        boolean fromCache;
+        int pages;
+        int unchanged;
+        int errors;
+
+        @Override
+        public void onPage(List<ListPetsQuery.Item> items, String nextToken, boolean fromCache) {
+            this.items = items;
+            this.fromCache = fromCache;
+            pages++;
+        }
+
+        @Override
+        public void onUnchanged(String nextToken) {
+            unchanged++;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors++;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LiveSyncTest {
+
+    private static final int FRAME_MILLIS = 16;
+    private static final int EVENTS_PER_SECOND = 1000;
+    private static final int SECONDS = 2;
+    private static final int LIST_SIZE = 1000;
+
+    @Test
+    public void burst_isAppliedInOneFrame() {
+        ManualFrames frames = new ManualFrames();
+        List<ListPetsQuery.Item> pets = pets(10);
+        Recorder recorder = new Recorder();
+        LiveSync liveSync = new LiveSync(pets, frames, recorder, recorder);
+
+        for (int i = 0; i < 100; i++) {
+            liveSync.onEvent(LiveSync.Event.CREATED, pet("new" + i, "New " + i, null));
+        }
+        assertEquals(1, frames.pending.size());
+        frames.runAll();
+
+        assertEquals(110, pets.size());
+        assertEquals(1, recorder.dispatches);
+        assertEquals(100, recorder.events);
+    }
+
+    @Test
+    public void events_areAppliedById() {
+        ManualFrames frames = new ManualFrames();
+        List<ListPetsQuery.Item> pets = pets(3);
+        Recorder recorder = new Recorder();
+        LiveSync liveSync = new LiveSync(pets, frames, recorder, recorder);
+
+        liveSync.onEvent(LiveSync.Event.UPDATED, pet("1", "Renamed", null));
+        liveSync.onEvent(LiveSync.Event.DELETED, pet("0", null, null));
+        liveSync.onEvent(LiveSync.Event.CREATED, pet("3", "Created", null));
+        liveSync.onEvent(LiveSync.Event.UPDATED, pet("3", "Created and renamed", null));
+        liveSync.onEvent(LiveSync.Event.CREATED, pet("4", "Created and deleted", null));
+        liveSync.onEvent(LiveSync.Event.DELETED, pet("4", null, null));
+        frames.runAll();
+
+        assertEquals(3, pets.size());
+        assertEquals("Renamed", pets.get(0).name());
+        assertEquals("2", pets.get(1).id());
+        assertEquals("Created and renamed", pets.get(2).name());
+    }
+
+    @Test
+    public void update_keepsDownloadedPhoto() {
+        ListPetsQuery.Item current = pet("1", "Rex", new ListPetsQuery.Photo("S3Object", "bucket",
+                "public/rex.jpg", "us-east-1", "/sdcard/Download/public/rex.jpg", "image/jpeg"));
+        ListPetsQuery.Item updated = pet("1", "Rex II", new ListPetsQuery.Photo("S3Object", "bucket",
+                "public/rex.jpg", "us-east-1", null, "image/jpeg"));
+        ListPetsQuery.Item newPhoto = pet("1", "Rex II", new ListPetsQuery.Photo("S3Object", "bucket",
+                "public/rex2.jpg", "us-east-1", null, "image/jpeg"));
+
+        assertEquals("/sdcard/Download/public/rex.jpg", LiveSync.keepLocalPhoto(updated, current).photo().localUri());
+        assertEquals("Rex II", LiveSync.keepLocalPhoto(updated, current).name());
+        assertNull(LiveSync.keepLocalPhoto(newPhoto, current).photo().localUri());
+    }
+
+    @Test
+    public void thousandEventsPerSecond_costOneAdapterUpdatePerFrame() {
+        List<ListPetsQuery.Item> pets = pets(LIST_SIZE);
+        ManualFrames frames = new ManualFrames();
+        Recorder recorder = new Recorder();
+        LiveSync liveSync = new LiveSync(pets, frames, recorder, recorder);
+
+        // one event every millisecond on a simulated clock, and a frame every 16ms
+        Random random = new Random(42);
+        int total = EVENTS_PER_SECOND * SECONDS;
+        int ticks = 0;
+        for (int i = 0; i < total; i++) {
+            String id = String.valueOf(random.nextInt(LIST_SIZE));
+            int type = random.nextInt(3);
+            liveSync.onEvent(type, pet(type == LiveSync.Event.CREATED ? "new" + i : id, "Pet " + i, null));
+            // however many events arrive, a frame is only posted once
+            assertTrue(frames.pending.size() <= 1);
+            if ((i + 1) % FRAME_MILLIS == 0) {
+                ticks++;
+                frames.runAll();
+            }
+        }
+        assertTrue(frames.pending.isEmpty());
+        assertEquals(ticks, recorder.dispatches);
+        assertTrue(recorder.dispatches < total / 10);
+        // events for the same pet within a frame are applied once
+        assertTrue(recorder.events < total);
+        Set<String> ids = new HashSet<>();
+        for (ListPetsQuery.Item pet : pets) {
+            assertTrue(ids.add(pet.id()));
+        }
+    }
+
+    private static List<ListPetsQuery.Item> pets(int count) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(pet(String.valueOf(i), "Pet " + i, null));
+        }
+        return pets;
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name, ListPetsQuery.Photo photo) {
+        return new ListPetsQuery.Item("Pet", id, name, "Good pet", photo);
+    }
+
+    static class ManualFrames implements LiveSync.FrameScheduler {
+        final List<Runnable> pending = new ArrayList<>();
+
+        @Override
+        public void postFrame(Runnable frame) {
+            pending.add(frame);
+        }
+
+        void runAll() {
+            List<Runnable> frames = new ArrayList<>(pending);
+            pending.clear();
+            for (Runnable frame : frames) {
+                frame.run();
+            }
+        }
+    }
+
+    static class Recorder implements LiveSync.Store, LiveSync.Listener {
+        volatile int dispatches;
+        volatile int events;
+
+        @Override
+        public void apply(List<LiveSync.Event> applied) {
+        }
+
+        @Override
+        public void onPetsChanged(List<LiveSync.Event> applied) {
+            dispatches++;
+            events += applied.size();
+        }
+    }
+}
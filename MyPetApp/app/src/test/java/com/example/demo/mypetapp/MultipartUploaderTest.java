@@ -0,0 +1,445 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultipartUploaderTest {
+
+    private static final long PART_SIZE = 64 * 1024;
+    private static final String KEY = "public/0123abcd_1600.jpg";
+    private static final String MIME_TYPE = "image/jpeg";
+
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mDir;
+    private File mJournalDir;
+    private LocalS3 mS3;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("uploads").toFile();
+        mJournalDir = new File(mDir, "journal");
+        mS3 = new LocalS3();
+    }
+
+    @Test
+    public void smallFile_isASinglePut() throws IOException {
+        File file = photo("small.jpg", PART_SIZE / 2, 1);
+
+        long sent = uploader().uploadBlocking(KEY, file, MIME_TYPE);
+
+        assertEquals(file.length(), sent);
+        assertEquals(1, mS3.puts);
+        assertEquals(0, mS3.initiated);
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+    }
+
+    @Test
+    public void largeFile_isStoredInParts() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 3 + 100, 2);
+
+        long sent = uploader().uploadBlocking(KEY, file, MIME_TYPE);
+
+        assertEquals(file.length(), sent);
+        assertEquals(4, mS3.partsUploaded);
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+        assertEquals(0, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+    }
+
+    @Test
+    public void storedContent_isNotSentAgain() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 3, 3);
+        File copy = photo("copy.jpg", PART_SIZE * 3, 3);
+        uploader().uploadBlocking(KEY, file, MIME_TYPE);
+        long bytesBefore = mS3.bytesReceived;
+
+        // the same photo picked again, under its content key
+        long sent = uploader().uploadBlocking(KEY, copy, MIME_TYPE);
+
+        assertEquals(0, sent);
+        assertEquals(bytesBefore, mS3.bytesReceived);
+    }
+
+    @Test
+    public void interruptedUpload_resumesFromTheLastPart() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 10, 4);
+        mS3.failAfterParts = 7;
+        try {
+            uploader().uploadBlocking(KEY, file, MIME_TYPE);
+            fail("the connection should drop");
+        } catch (IOException expected) {
+        }
+
+        // a new process, with nothing but the journal on disk
+        mS3.failAfterParts = -1;
+        long sent = uploader().uploadBlocking(KEY, file, MIME_TYPE);
+
+        assertEquals(file.length() - PART_SIZE * 7, sent);
+        assertEquals(file.length(), mS3.bytesReceived);
+        assertEquals(1, mS3.initiated);
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+    }
+
+    @Test
+    public void resumeAll_finishesUnfinishedUploads() throws IOException, InterruptedException {
+        File first = photo("first.jpg", PART_SIZE * 4, 5);
+        File second = photo("second.jpg", PART_SIZE * 4, 6);
+        mS3.failAfterParts = 2;
+        for (File file : Arrays.asList(first, second)) {
+            try {
+                uploader().uploadBlocking("public/" + file.getName(), file, MIME_TYPE);
+                fail("the connection should drop");
+            } catch (IOException expected) {
+            }
+            mS3.partsUploaded = 0;
+        }
+        mS3.failAfterParts = -1;
+
+        final CountDownLatch done = new CountDownLatch(1);
+        new MultipartUploader(mS3, new MultipartUploader.FileJournal(mJournalDir), PART_SIZE, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+                done.countDown();
+            }
+        }).resumeAll();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertArrayEquals(bytes(first), mS3.objects.get("public/first.jpg"));
+        assertArrayEquals(bytes(second), mS3.objects.get("public/second.jpg"));
+        assertEquals(0, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+    }
+
+    @Test
+    public void unreadableJournalEntry_isDropped() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 4, 13);
+        mS3.failAfterParts = 2;
+        try {
+            uploader().uploadBlocking(KEY, file, MIME_TYPE);
+            fail("the connection should drop");
+        } catch (IOException expected) {
+        }
+        mS3.failAfterParts = -1;
+        // cut short by a full disk
+        File corrupt = new File(mJournalDir, "public_corrupt.jpg");
+        FileOutputStream out = new FileOutputStream(corrupt);
+        out.write(new byte[] {0, 0, 0, 1, 0});
+        out.close();
+
+        uploader().resumeAll();
+
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+        assertFalse(corrupt.exists());
+        assertEquals(0, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+    }
+
+    @Test
+    public void changedFile_startsOver() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 4, 7);
+        mS3.failAfterParts = 2;
+        try {
+            uploader().uploadBlocking(KEY, file, MIME_TYPE);
+            fail("the connection should drop");
+        } catch (IOException expected) {
+        }
+        mS3.failAfterParts = -1;
+        // the cache was cleared and the photo encoded again, a little differently
+        file = photo("large.jpg", PART_SIZE * 4 + 10, 7);
+
+        long sent = uploader().uploadBlocking(KEY, file, MIME_TYPE);
+
+        assertEquals(file.length(), sent);
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+    }
+
+    @Test
+    public void expiredUpload_isRestarted() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 4, 8);
+        mS3.failAfterParts = 2;
+        try {
+            uploader().uploadBlocking(KEY, file, MIME_TYPE);
+            fail("the connection should drop");
+        } catch (IOException expected) {
+        }
+        mS3.failAfterParts = -1;
+        mS3.sessions.clear();
+
+        long sent = uploader().uploadBlocking(KEY, file, MIME_TYPE);
+
+        assertEquals(file.length(), sent);
+        assertEquals(2, mS3.initiated);
+        assertArrayEquals(bytes(file), mS3.objects.get(KEY));
+    }
+
+    @Test
+    public void upload_reportsTheOutcome() throws IOException {
+        File file = photo("large.jpg", PART_SIZE * 2, 9);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader().upload(KEY, file, MIME_TYPE, callback);
+        assertEquals(Collections.singletonList(file.length()), callback.completed);
+        assertEquals(Collections.singletonList(file.length()), callback.started);
+        // once before the first part, then after every part
+        assertEquals(Arrays.asList(0L, PART_SIZE, 2 * PART_SIZE), callback.progress);
+
+        uploader().upload("public/missing.jpg", new File(mDir, "missing.jpg"), MIME_TYPE, callback);
+        assertEquals(1, callback.failed.size());
+    }
+
+    @Test
+    public void storedObject_isNeverReportedAsStarted() throws IOException {
+        File file = photo("small.jpg", PART_SIZE / 2, 12);
+        uploader().uploadBlocking(KEY, file, MIME_TYPE);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader().upload(KEY, file, MIME_TYPE, callback);
+
+        // nothing was sent, so nothing is counted as transferred
+        assertEquals(Collections.singletonList(0L), callback.completed);
+        assertTrue(callback.started.isEmpty());
+        assertTrue(callback.progress.isEmpty());
+    }
+
+    @Test
+    public void scheduledUploads_waitForTheNetwork() throws IOException {
+        SyncSchedulerTest.VirtualTimer timer = new SyncSchedulerTest.VirtualTimer();
+        SyncSchedulerTest.FakeNetwork network = new SyncSchedulerTest.FakeNetwork();
+        SyncScheduler scheduler = new SyncScheduler(network, timer, new Backoff(1000, 60 * 1000),
+                SyncScheduler.BATCH_WINDOW_MS, PART_SIZE);
+        MultipartUploader uploader = uploader();
+        uploader.scheduleWith(scheduler);
+        scheduler.start();
+        File small = photo("small.jpg", PART_SIZE / 2, 10);
+        File large = photo("large.jpg", PART_SIZE * 3, 11);
+        RecordingCallback smallCallback = new RecordingCallback();
+        RecordingCallback largeCallback = new RecordingCallback();
+
+        uploader.upload("public/small.jpg", small, MIME_TYPE, smallCallback);
+        uploader.upload("public/large.jpg", large, MIME_TYPE, largeCallback);
+        timer.advance(60 * 1000);
+        assertEquals(0, mS3.objects.size());
+        assertEquals(2, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+        assertTrue(smallCallback.started.isEmpty());
+        assertTrue(largeCallback.started.isEmpty());
+
+        // a metered network only takes the small photo, the large one is not started while it waits
+        network.connect(true);
+        timer.advance(60 * 1000);
+        assertArrayEquals(bytes(small), mS3.objects.get("public/small.jpg"));
+        assertNull(mS3.objects.get("public/large.jpg"));
+        assertEquals(1, smallCallback.completed.size());
+        assertEquals(Collections.singletonList(small.length()), smallCallback.progress);
+        assertTrue(largeCallback.started.isEmpty());
+
+        // the first try on Wi-Fi drops, the retry continues from the last part
+        mS3.failAfterParts = 1;
+        network.connect(false);
+        timer.advance(SyncScheduler.BATCH_WINDOW_MS);
+        assertTrue(largeCallback.completed.isEmpty());
+        assertEquals(1, largeCallback.stopped);
+        mS3.failAfterParts = -1;
+        timer.advance(60 * 1000);
+
+        assertArrayEquals(bytes(large), mS3.objects.get("public/large.jpg"));
+        // only the parts the retry sent
+        assertEquals(Collections.singletonList(2 * PART_SIZE), largeCallback.completed);
+        assertTrue(largeCallback.failed.isEmpty());
+        assertEquals(2, largeCallback.started.size());
+        assertEquals(Arrays.asList(0L, PART_SIZE, PART_SIZE, 2 * PART_SIZE, 3 * PART_SIZE),
+                largeCallback.progress);
+        assertEquals(3, mS3.partsUploaded);
+        assertEquals(0, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+    }
+
+    @Test
+    public void failingUpload_isReportedOnceItsAttemptsRunOut() throws IOException {
+        SyncSchedulerTest.VirtualTimer timer = new SyncSchedulerTest.VirtualTimer();
+        SyncSchedulerTest.FakeNetwork network = new SyncSchedulerTest.FakeNetwork();
+        SyncScheduler scheduler = new SyncScheduler(network, timer, new Backoff(1000, 60 * 1000),
+                SyncScheduler.BATCH_WINDOW_MS, Long.MAX_VALUE);
+        MultipartUploader uploader = uploader();
+        uploader.scheduleWith(scheduler);
+        scheduler.start();
+        File file = photo("large.jpg", PART_SIZE * 3, 14);
+        RecordingCallback callback = new RecordingCallback();
+        // the first part is rejected every time
+        mS3.failAfterParts = 0;
+
+        uploader.upload(KEY, file, MIME_TYPE, callback);
+        network.connect(false);
+        timer.advance(60 * 60 * 1000);
+
+        assertEquals(MultipartUploader.MAX_ATTEMPTS - 1, callback.stopped);
+        assertEquals(1, callback.failed.size());
+        assertTrue(callback.completed.isEmpty());
+        assertEquals(MultipartUploader.MAX_ATTEMPTS, scheduler.passes());
+        assertEquals(0, new MultipartUploader.FileJournal(mJournalDir).loadAll().size());
+        assertEquals(0, uploader.lockedKeys());
+    }
+
+    @Test
+    public void finishedUploads_releaseTheirKeyLocks() throws IOException {
+        MultipartUploader uploader = uploader();
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < 10; i++) {
+            uploader.upload("public/photo-" + i + ".jpg", photo("photo-" + i + ".jpg", PART_SIZE * 2, 20 + i),
+                    MIME_TYPE, callback);
+        }
+
+        assertEquals(10, callback.completed.size());
+        assertEquals(0, uploader.lockedKeys());
+    }
+
+    static class RecordingCallback implements MultipartUploader.UploadCallback {
+        final List<Long> started = new ArrayList<>();
+        final List<Long> progress = new ArrayList<>();
+        final List<Long> completed = new ArrayList<>();
+        final List<Exception> failed = new ArrayList<>();
+        int stopped;
+
+        @Override
+        public void onStarted(long bytesTotal) {
+            started.add(bytesTotal);
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long bytesTotal) {
+            progress.add(bytesSent);
+        }
+
+        @Override
+        public void onStopped(Exception e) {
+            stopped++;
+        }
+
+        @Override
+        public void onCompleted(long bytes) {
+            completed.add(bytes);
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            failed.add(e);
+        }
+    }
+
+    private MultipartUploader uploader() {
+        return new MultipartUploader(mS3, new MultipartUploader.FileJournal(mJournalDir), PART_SIZE, INLINE);
+    }
+
+    private File photo(String name, long length, int seed) throws IOException {
+        File file = new File(mDir, name);
+        byte[] content = new byte[(int) length];
+        new Random(seed).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+    private static byte[] bytes(File file) throws IOException {
+        return read(file, 0, file.length());
+    }
+
+    private static byte[] read(File file, long offset, long length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) length];
+            in.seek(offset);
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Stands in for the bucket: keeps objects and unfinished uploads in memory and can drop
+    // the connection after a number of parts
+    static class LocalS3 implements MultipartUploader.Api {
+        final Map<String, byte[]> objects = new HashMap<>();
+        final Map<String, TreeMap<Integer, byte[]>> sessions = new HashMap<>();
+        long bytesReceived;
+        int puts;
+        int initiated;
+        int partsUploaded;
+        int failAfterParts = -1;
+
+        @Override
+        public boolean exists(String key) {
+            return objects.containsKey(key);
+        }
+
+        @Override
+        public void putObject(String key, File file, String mimeType) throws IOException {
+            byte[] content = bytes(file);
+            bytesReceived += content.length;
+            puts++;
+            objects.put(key, content);
+        }
+
+        @Override
+        public String initiate(String key, String mimeType) {
+            String uploadId = "upload-" + ++initiated;
+            sessions.put(uploadId, new TreeMap<Integer, byte[]>());
+            return uploadId;
+        }
+
+        @Override
+        public String uploadPart(String key, String uploadId, int partNumber, File file, long offset, long length)
+                throws IOException {
+            TreeMap<Integer, byte[]> parts = sessions.get(uploadId);
+            if (parts == null) {
+                throw new MultipartUploader.NoSuchUploadException(uploadId, null);
+            }
+            if (partsUploaded == failAfterParts) {
+                throw new IOException("Connection reset");
+            }
+            byte[] part = read(file, offset, length);
+            bytesReceived += part.length;
+            partsUploaded++;
+            parts.put(partNumber, part);
+            return "etag-" + partNumber;
+        }
+
+        @Override
+        public void complete(String key, String uploadId, List<String> eTags) throws IOException {
+            TreeMap<Integer, byte[]> parts = sessions.remove(uploadId);
+            if (parts == null || parts.size() != eTags.size()) {
+                throw new IOException("Invalid part list for " + uploadId);
+            }
+            List<String> expected = new ArrayList<>();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+                expected.add("etag-" + part.getKey());
+                content.write(part.getValue());
+            }
+            assertEquals(expected, eTags);
+            objects.put(key, content.toByteArray());
+        }
+    }
+}
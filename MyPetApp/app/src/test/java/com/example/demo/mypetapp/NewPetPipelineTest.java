@@ -0,0 +1,337 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NewPetPipelineTest {
+
+    private static final long ENCODE_PHOTO_MS = 60;
+    private static final long ENCODE_THUMBNAIL_MS = 15;
+    private static final long UPLOAD_PHOTO_MS = 120;
+    private static final long UPLOAD_THUMBNAIL_MS = 20;
+    private static final long MUTATION_MS = 50;
+
+    private File mDir;
+    private File mPhoto;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("photos").toFile();
+        mPhoto = photo("DCIM", "IMG_0001.jpg", 1);
+    }
+
+    @Test
+    public void keys_areDerivedFromTheContent() throws IOException {
+        File other = photo("Camera", "IMG_0001.jpg", 2);
+        File copy = photo("Download", "rex.jpg", 1);
+
+        String hash = NewPetPipeline.contentHash(mPhoto);
+        String photoKey = NewPetPipeline.photoKey(hash);
+        assertEquals(64, hash.length());
+        assertEquals("public/" + hash + "_1600.jpg", photoKey);
+        assertEquals("public/thumbnails/" + hash + "_320.jpg", NewPetPipeline.thumbnailKey(photoKey));
+        assertTrue(NewPetPipeline.hasThumbnail(photoKey));
+        // added before thumbnails existed
+        assertFalse(NewPetPipeline.hasThumbnail("public/IMG_0001.jpg"));
+        // same name, different photo
+        assertNotEquals(hash, NewPetPipeline.contentHash(other));
+        // same photo, different name
+        assertEquals(hash, NewPetPipeline.contentHash(copy));
+    }
+
+    @Test
+    public void contentHash_matchesAKnownDigest() throws IOException {
+        File file = new File(mDir, "abc");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("abc".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                NewPetPipeline.contentHash(file));
+    }
+
+    @Test
+    public void mutation_doesNotWaitForUploads() throws IOException {
+        HeldS3 s3 = new HeldS3();
+        HeldAppSync appSync = new HeldAppSync();
+        NewPetPipeline pipeline = new NewPetPipeline(new InstantEncoder(), s3, new DirectExecutor());
+        Timeline timeline = new Timeline();
+
+        pipeline.run(mPhoto.getPath(), appSync, timeline);
+
+        // the mutation and both uploads are in flight together
+        String photoKey = NewPetPipeline.photoKey(NewPetPipeline.contentHash(mPhoto));
+        assertEquals(photoKey, appSync.photoKey);
+        Collections.sort(s3.uploadedKeys);
+        assertEquals("[" + photoKey + ", " + NewPetPipeline.thumbnailKey(photoKey) + "]", s3.uploadedKeys.toString());
+
+        // the pet is created while both uploads are still held
+        appSync.callback.onDone(true);
+        assertTrue(timeline.mutationSucceeded);
+        assertEquals(1, timeline.done.getCount());
+
+        s3.completeAll();
+        assertTrue(timeline.photosSucceeded);
+        assertEquals(0, timeline.done.getCount());
+    }
+
+    @Test
+    public void withoutPhoto_onlyTheMutationRuns() throws InterruptedException {
+        LocalS3 s3 = new LocalS3();
+        NewPetPipeline pipeline = new NewPetPipeline(new SlowEncoder(), s3, Executors.newFixedThreadPool(2));
+        Timeline timeline = new Timeline();
+
+        LocalAppSync appSync = new LocalAppSync();
+        pipeline.run(null, appSync, timeline);
+
+        assertFalse(timeline.done.await(MUTATION_MS * 4, TimeUnit.MILLISECONDS));
+        assertTrue(timeline.mutationSucceeded);
+        assertNull(appSync.photoKey);
+        assertTrue(s3.uploadedKeys.isEmpty());
+    }
+
+    @Test
+    public void unreadablePhoto_addsThePetWithoutIt() throws InterruptedException {
+        LocalS3 s3 = new LocalS3();
+        NewPetPipeline pipeline = new NewPetPipeline(new SlowEncoder(), s3, Executors.newFixedThreadPool(2));
+        Timeline timeline = new Timeline();
+
+        LocalAppSync appSync = new LocalAppSync();
+        pipeline.run(new File(mDir, "deleted.jpg").getPath(), appSync, timeline);
+        assertTrue(timeline.done.await(5, TimeUnit.SECONDS));
+
+        assertTrue(timeline.mutationSucceeded);
+        assertNull(appSync.photoKey);
+        assertFalse(timeline.photosSucceeded);
+        assertTrue(s3.uploadedKeys.isEmpty());
+    }
+
+    @Test
+    public void failedThumbnail_isReported() throws InterruptedException {
+        LocalS3 s3 = new LocalS3();
+        NewPetPipeline.Encoder encoder = new SlowEncoder() {
+            @Override
+            public PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension)
+                    throws IOException {
+                if (maxDimension == NewPetPipeline.THUMBNAIL_MAX_DIMENSION) {
+                    throw new IOException("corrupt");
+                }
+                return super.encode(sourcePath, baseName, maxDimension);
+            }
+        };
+        NewPetPipeline pipeline = new NewPetPipeline(encoder, s3, Executors.newFixedThreadPool(2));
+        Timeline timeline = new Timeline();
+
+        pipeline.run(mPhoto.getPath(), new LocalAppSync(), timeline);
+        assertTrue(timeline.done.await(5, TimeUnit.SECONDS));
+
+        assertTrue(timeline.mutationSucceeded);
+        assertFalse(timeline.photosSucceeded);
+        assertEquals(1, s3.uploadedKeys.size());
+    }
+
+    @Test
+    public void failedEncode_ofAJpeg_uploadsTheOriginal() throws InterruptedException, IOException {
+        LocalS3 s3 = new LocalS3();
+        NewPetPipeline pipeline = new NewPetPipeline(new FailingEncoder(), s3, Executors.newFixedThreadPool(2));
+        Timeline timeline = new Timeline();
+        File jpeg = photo("DCIM", "IMG_0002.jpg", 3);
+        RandomAccessFile header = new RandomAccessFile(jpeg, "rw");
+        header.write(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1});
+        header.close();
+
+        LocalAppSync appSync = new LocalAppSync();
+        pipeline.run(jpeg.getPath(), appSync, timeline);
+        assertTrue(timeline.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(NewPetPipeline.photoKey(NewPetPipeline.contentHash(jpeg)), appSync.photoKey);
+        assertFalse(timeline.photosSucceeded);
+        assertEquals(Collections.singletonList(NewPetPipeline.photoKey(NewPetPipeline.contentHash(jpeg))),
+                s3.uploadedKeys);
+        assertEquals("image/jpeg", s3.mimeTypes.get(0));
+    }
+
+    @Test
+    public void failedEncode_ofAnotherFormat_addsThePetWithoutIt() throws InterruptedException {
+        LocalS3 s3 = new LocalS3();
+        NewPetPipeline pipeline = new NewPetPipeline(new FailingEncoder(), s3, Executors.newFixedThreadPool(2));
+        Timeline timeline = new Timeline();
+
+        LocalAppSync appSync = new LocalAppSync();
+        pipeline.run(mPhoto.getPath(), appSync, timeline);
+        assertTrue(timeline.done.await(5, TimeUnit.SECONDS));
+
+        // the pet never points at a key that is not uploaded
+        assertNull(appSync.photoKey);
+        assertTrue(timeline.mutationSucceeded);
+        assertFalse(timeline.photosSucceeded);
+        assertTrue(s3.uploadedKeys.isEmpty());
+    }
+
+    // A stand-in photo whose content depends on seed only
+    private File photo(String dir, String name, int seed) throws IOException {
+        File folder = new File(mDir, dir);
+        folder.mkdirs();
+        File file = new File(folder, name);
+        byte[] bytes = new byte[256 * 1024];
+        new Random(seed).nextBytes(bytes);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class SlowEncoder implements NewPetPipeline.Encoder {
+        @Override
+        public PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension)
+                throws IOException {
+            boolean thumbnail = maxDimension == NewPetPipeline.THUMBNAIL_MAX_DIMENSION;
+            sleep(thumbnail ? ENCODE_THUMBNAIL_MS : ENCODE_PHOTO_MS);
+            return new PhotoCompressor.Result(new File(sourcePath + "_" + maxDimension), "image/jpeg",
+                    4000000, thumbnail ? 20000 : 400000, 0);
+        }
+    }
+
+    static class InstantEncoder implements NewPetPipeline.Encoder {
+        @Override
+        public PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension) {
+            return new PhotoCompressor.Result(new File(sourcePath + "_" + maxDimension), "image/jpeg",
+                    4000000, maxDimension == NewPetPipeline.THUMBNAIL_MAX_DIMENSION ? 20000 : 400000, 0);
+        }
+    }
+
+    static class FailingEncoder implements NewPetPipeline.Encoder {
+        @Override
+        public PhotoCompressor.Result encode(String sourcePath, String baseName, int maxDimension)
+                throws IOException {
+            throw new IOException("unsupported");
+        }
+    }
+
+    // Stands in for S3: every upload takes a fixed time on its own thread
+    static class LocalS3 implements S3Transport {
+        final List<String> uploadedKeys = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mimeTypes = Collections.synchronizedList(new ArrayList<String>());
+        private final Executor mNetwork = Executors.newCachedThreadPool();
+
+        @Override
+        public void download(String key, File file, TransferCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void upload(final String key, File file, final String mimeType, final TransferCallback callback) {
+            mNetwork.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sleep(key.contains("thumbnails") ? UPLOAD_THUMBNAIL_MS : UPLOAD_PHOTO_MS);
+                    mimeTypes.add(mimeType);
+                    uploadedKeys.add(key);
+                    callback.onCompleted(0);
+                }
+            });
+        }
+    }
+
+    // Takes uploads without completing them until the test does
+    static class HeldS3 implements S3Transport {
+        final List<String> uploadedKeys = new ArrayList<>();
+        private final List<TransferCallback> mCallbacks = new ArrayList<>();
+
+        @Override
+        public void download(String key, File file, TransferCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void upload(String key, File file, String mimeType, TransferCallback callback) {
+            uploadedKeys.add(key);
+            mCallbacks.add(callback);
+        }
+
+        void completeAll() {
+            for (TransferCallback callback : mCallbacks) {
+                callback.onCompleted(0);
+            }
+            mCallbacks.clear();
+        }
+    }
+
+    // Takes the mutation without answering it until the test does
+    static class HeldAppSync implements NewPetPipeline.MutationSender {
+        String photoKey;
+        NewPetPipeline.StepCallback callback;
+
+        @Override
+        public void send(String photoKey, NewPetPipeline.StepCallback callback) {
+            this.photoKey = photoKey;
+            this.callback = callback;
+        }
+    }
+
+    static class DirectExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    // Stands in for the CreatePetMutation round trip
+    static class LocalAppSync implements NewPetPipeline.MutationSender {
+        volatile String photoKey;
+
+        @Override
+        public void send(String photoKey, final NewPetPipeline.StepCallback callback) {
+            this.photoKey = photoKey;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sleep(MUTATION_MS);
+                    callback.onDone(true);
+                }
+            }).start();
+        }
+    }
+
+    static class Timeline implements NewPetPipeline.Listener {
+        final CountDownLatch done = new CountDownLatch(2);
+        volatile boolean mutationSucceeded;
+        volatile boolean photosSucceeded;
+
+        @Override
+        public void onMutationDone(boolean succeeded) {
+            mutationSucceeded = succeeded;
+            done.countDown();
+        }
+
+        @Override
+        public void onPhotosUploaded(boolean succeeded) {
+            photosSucceeded = succeeded;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.example.demo.mypetapp;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OptimisticReconcilerTest {
+
+    private static final String RESPONSE = "response";
+    private static final String SUBSCRIPTION = "subscription";
+    private static final String REFETCH = "refetch";
+
+    @Test
+    public void everyDeliveryOrder_endsWithOneRow() {
+        String[][] orders = {
+                {RESPONSE, SUBSCRIPTION, REFETCH},
+                {RESPONSE, REFETCH, SUBSCRIPTION},
+                {SUBSCRIPTION, RESPONSE, REFETCH},
+                {SUBSCRIPTION, REFETCH, RESPONSE},
+                {REFETCH, RESPONSE, SUBSCRIPTION},
+                {REFETCH, SUBSCRIPTION, RESPONSE},
+        };
+        for (String[] order : orders) {
+            Screen screen = new Screen(existing(3));
+            ListPetsQuery.Item optimistic = screen.add("client-1", "Rex");
+            // created under the client id
+            ListPetsQuery.Item server = serverCopy(optimistic, "client-1");
+            screen.frame();
+            assertEquals(1, screen.updates.inserted);
+
+            screen.updates = new CountingUpdates();
+            for (String delivery : order) {
+                screen.deliver(delivery, optimistic, server);
+            }
+
+            String label = order[0] + ", " + order[1] + ", " + order[2];
+            assertEquals(label, 4, screen.rows.size());
+            assertEquals(label, 1, count(screen.rows, "client-1"));
+            // the server record is the row that is shown already
+            assertEquals(label, 0, screen.updates.inserted);
+            assertEquals(label, 0, screen.updates.removed);
+            assertEquals(label, 0, screen.updates.changed);
+            assertEquals(label, 0, screen.reconciler.pendingCount());
+        }
+    }
+
+    @Test
+    public void serverRecordInTheSameFrame_isAddedOnce() {
+        Screen screen = new Screen(existing(3));
+        ListPetsQuery.Item optimistic = screen.add("client-1", "Rex");
+        // the subscription beats the first frame
+        screen.liveSync.onEvent(LiveSync.Event.CREATED, serverCopy(optimistic, "client-1"));
+        screen.frame();
+
+        assertEquals(4, screen.rows.size());
+        assertEquals("client-1", screen.rows.get(3).id());
+        assertEquals(1, screen.updates.inserted);
+        assertEquals(0, screen.updates.changed);
+
+        screen.deliver(RESPONSE, optimistic, serverCopy(optimistic, "client-1"));
+        assertEquals(4, screen.rows.size());
+        assertEquals(1, screen.updates.inserted);
+        assertEquals(0, screen.updates.changed);
+    }
+
+    @Test
+    public void serverIdOtherThanTheClientId_replacesTheRowInPlace() {
+        Screen screen = new Screen(existing(1));
+        ListPetsQuery.Item optimistic = screen.add("client-1", "Rex");
+        screen.frame();
+        screen.store.clear();
+        screen.updates = new CountingUpdates();
+
+        screen.deliver(RESPONSE, optimistic, serverCopy(optimistic, "server-1"));
+        screen.deliver(SUBSCRIPTION, optimistic, serverCopy(optimistic, "server-1"));
+
+        assertEquals(2, screen.rows.size());
+        assertEquals(1, count(screen.rows, "server-1"));
+        assertEquals(0, screen.updates.inserted);
+        assertEquals(0, screen.updates.removed);
+        assertEquals(1, screen.updates.changed);
+        // the store swaps the client id for the server's
+        LiveSync.Event created = screen.store.get(0);
+        LiveSync.Event deleted = screen.store.get(1);
+        assertEquals(LiveSync.Event.CREATED, created.type);
+        assertEquals("server-1", created.pet.id());
+        assertEquals(LiveSync.Event.DELETED, deleted.type);
+        assertEquals("client-1", deleted.pet.id());
+    }
+
+    @Test
+    public void identicalPets_keepOneRowEach() {
+        Screen screen = new Screen(existing(1));
+        ListPetsQuery.Item first = screen.add("client-1", "Rex");
+        ListPetsQuery.Item second = screen.add("client-2", "Rex");
+        screen.frame();
+        screen.updates = new CountingUpdates();
+
+        screen.deliver(RESPONSE, first, serverCopy(first, "client-1"));
+        screen.deliver(SUBSCRIPTION, second, serverCopy(second, "client-2"));
+        screen.deliver(RESPONSE, second, serverCopy(second, "client-2"));
+        screen.deliver(SUBSCRIPTION, first, serverCopy(first, "client-1"));
+        screen.deliver(REFETCH, first, serverCopy(first, "client-1"));
+
+        assertEquals(3, screen.rows.size());
+        assertEquals(1, count(screen.rows, "client-1"));
+        assertEquals(1, count(screen.rows, "client-2"));
+        assertEquals(0, screen.updates.inserted);
+        assertEquals(0, screen.updates.removed);
+    }
+
+    @Test
+    public void lookalikesFromOtherDevices_areNotClaimed() {
+        OptimisticReconciler reconciler = new OptimisticReconciler();
+        reconciler.track(pet("client-1", "Rex", "public/rex.jpg"));
+
+        // the same content under another id is another pet
+        ListPetsQuery.Item lookalike = pet("server-9", "Rex", "public/rex.jpg");
+        assertNull(reconciler.claim(lookalike));
+        assertEquals("server-9", reconciler.rowId("server-9"));
+        List<ListPetsQuery.Item> page = reconciler.reconcilePage(Arrays.asList(lookalike), true);
+        assertEquals(2, page.size());
+        assertEquals("client-1", page.get(1).id());
+        assertTrue(reconciler.isPending("client-1"));
+    }
+
+    @Test
+    public void failedPet_staysUnderItsClientId() {
+        OptimisticReconciler reconciler = new OptimisticReconciler();
+        reconciler.track(pet("client-1", "Rex", null));
+        reconciler.onFailed("client-1");
+
+        assertEquals(0, reconciler.pendingCount());
+        assertNull(reconciler.claim(pet("server-1", "Rex", null)));
+    }
+
+    @Test
+    public void firstPage_keepsPetsTheServerDoesNotHaveYet() {
+        OptimisticReconciler reconciler = new OptimisticReconciler();
+        ListPetsQuery.Item pending = pet("client-2", "Max", null);
+        reconciler.track(pet("client-1", "Rex", null));
+        reconciler.track(pending);
+        List<ListPetsQuery.Item> page = existing(2);
+        page.add(pet("client-1", "Rex", null));
+
+        List<ListPetsQuery.Item> first = reconciler.reconcilePage(page, true);
+        List<ListPetsQuery.Item> next = reconciler.reconcilePage(existing(2), false);
+
+        assertEquals(4, first.size());
+        assertSame(pending, first.get(3));
+        assertEquals(2, next.size());
+    }
+
+    private static int count(List<ListPetsQuery.Item> rows, String id) {
+        int count = 0;
+        for (ListPetsQuery.Item row : rows) {
+            if (row.id().equals(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<ListPetsQuery.Item> existing(int count) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(pet("existing-" + i, "Pet " + i, null));
+        }
+        return pets;
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name, String photoKey) {
+        return new ListPetsQuery.Item("Pet", id, name, "Good pet", photoKey == null ? null
+                : new ListPetsQuery.Photo("S3Object", "bucket", photoKey, "us-east-1", null, "image/jpeg"));
+    }
+
+    private static ListPetsQuery.Item serverCopy(ListPetsQuery.Item optimistic, String serverId) {
+        return new ListPetsQuery.Item(optimistic.__typename(), serverId, optimistic.name(),
+                optimistic.description(), optimistic.photo());
+    }
+
+    // The list screen as MainActivity wires it: live events go through LiveSync, a refetched
+    // first page replaces the list, and every change reaches the adapter as a diff
+    private static class Screen implements LiveSync.Store, LiveSync.Listener {
+        final OptimisticReconciler reconciler = new OptimisticReconciler();
+        final LiveSyncTest.ManualFrames frames = new LiveSyncTest.ManualFrames();
+        final List<ListPetsQuery.Item> rows;
+        final List<ListPetsQuery.Item> server;
+        final LiveSync liveSync;
+        final List<LiveSync.Event> store = new ArrayList<>();
+        private final DiffUtil.ItemCallback<ListPetsQuery.Item> mDiffCallback = MyAdapter.diffCallback(reconciler);
+        private List<ListPetsQuery.Item> mShown;
+        CountingUpdates updates = new CountingUpdates();
+
+        Screen(List<ListPetsQuery.Item> pets) {
+            rows = new ArrayList<>(pets);
+            server = new ArrayList<>(pets);
+            mShown = new ArrayList<>(pets);
+            liveSync = new LiveSync(rows, frames, this, this, reconciler);
+        }
+
+        // What AddPetActivity does
+        ListPetsQuery.Item add(String clientId, String name) {
+            ListPetsQuery.Item optimistic = pet(clientId, name, "public/" + name + ".jpg");
+            reconciler.track(optimistic);
+            liveSync.onEvent(LiveSync.Event.CREATED, optimistic);
+            return optimistic;
+        }
+
+        void deliver(String delivery, ListPetsQuery.Item optimistic, ListPetsQuery.Item created) {
+            if (!server.contains(created)) {
+                server.add(created);
+            }
+            if (RESPONSE.equals(delivery)) {
+                reconciler.onCreated(optimistic.id(), created.id());
+                liveSync.onEvent(LiveSync.Event.UPDATED, created);
+                frame();
+            } else if (SUBSCRIPTION.equals(delivery)) {
+                liveSync.onEvent(LiveSync.Event.CREATED, created);
+                frame();
+            } else {
+                List<ListPetsQuery.Item> page = reconciler.reconcilePage(new ArrayList<>(server), true);
+                rows.clear();
+                rows.addAll(page);
+                show();
+            }
+        }
+
+        void frame() {
+            frames.runAll();
+        }
+
+        @Override
+        public void apply(List<LiveSync.Event> events) {
+            store.addAll(events);
+        }
+
+        @Override
+        public void onPetsChanged(List<LiveSync.Event> applied) {
+            show();
+        }
+
+        private void show() {
+            final List<ListPetsQuery.Item> before = mShown;
+            final List<ListPetsQuery.Item> after = new ArrayList<>(rows);
+            DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return before.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return after.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return mDiffCallback.areItemsTheSame(before.get(oldPosition), after.get(newPosition));
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return mDiffCallback.areContentsTheSame(before.get(oldPosition), after.get(newPosition));
+                }
+            }).dispatchUpdatesTo(updates);
+            mShown = after;
+        }
+    }
+
+    private static class CountingUpdates implements ListUpdateCallback {
+        int inserted;
+        int removed;
+        int moved;
+        int changed;
+        int changeCalls;
+
+        @Override
+        public void onInserted(int position, int count) {
+            inserted += count;
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            removed += count;
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            moved++;
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            changeCalls++;
+            changed += count;
+        }
+
+        @Override
+        public String toString() {
+            return "inserted=" + inserted + " removed=" + removed + " moved=" + moved + " changed=" + changed;
+        }
+    }
+}
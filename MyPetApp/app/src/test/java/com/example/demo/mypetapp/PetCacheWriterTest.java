@@ -0,0 +1,214 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+import com.apollographql.apollo.cache.normalized.CacheReference;
+import com.apollographql.apollo.cache.normalized.Record;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PetCacheWriterTest {
+
+    private static final String FIRST_PAGE = "listPets({\"limit\":20,\"nextToken\":null})";
+    private static final String SECOND_PAGE = "listPets({\"limit\":20,\"nextToken\":\"abc\"})";
+    private static final String FILTERED = "listPets({\"filter\":{\"name\":{\"contains\":\"rex\"}},\"limit\":20})";
+    private static final int ADDS = 200;
+
+    @Test
+    public void add_appendsReferenceAndWritesOnlyThePet() {
+        MemoryRecords records = seed(FIRST_PAGE, 3);
+
+        Set<String> changed = PetCacheWriter.appendPet(records, pet("new", true));
+
+        assertEquals(4, items(records, FIRST_PAGE).size());
+        assertEquals(new CacheReference("new"), items(records, FIRST_PAGE).get(3));
+        assertEquals("Rex new", records.get("new").field("name"));
+        assertEquals("public/new.jpg", records.get("new.photo").field("key"));
+        assertEquals(3, records.merged);
+        assertFalse(changed.isEmpty());
+    }
+
+    @Test
+    public void add_isIdempotent() {
+        MemoryRecords records = seed(FIRST_PAGE, 3);
+
+        PetCacheWriter.appendPet(records, pet("new", false));
+        PetCacheWriter.appendPet(records, pet("new", false));
+
+        assertEquals(4, items(records, FIRST_PAGE).size());
+    }
+
+    @Test
+    public void add_leavesLaterPagesAndFilteredListsAlone() {
+        MemoryRecords records = seed(FIRST_PAGE, 3);
+        addConnection(records, SECOND_PAGE, 3);
+        addConnection(records, FILTERED, 1);
+        addConnection(records, "listPets", 2);
+
+        PetCacheWriter.appendPet(records, pet("new", false));
+
+        assertEquals(4, items(records, FIRST_PAGE).size());
+        assertEquals(3, items(records, "listPets").size());
+        assertEquals(3, items(records, SECOND_PAGE).size());
+        assertEquals(1, items(records, FILTERED).size());
+    }
+
+    @Test
+    public void add_withoutCachedList_writesNothing() {
+        MemoryRecords records = new MemoryRecords();
+
+        assertTrue(PetCacheWriter.appendPet(records, pet("new", false)).isEmpty());
+        assertEquals(0, records.merged);
+    }
+
+    @Test
+    public void liveEvents_areWrittenInOneMerge() {
+        MemoryRecords records = seed(FIRST_PAGE, 3);
+        addConnection(records, SECOND_PAGE, 2);
+        String deletedKey = ((CacheReference) items(records, SECOND_PAGE).get(1)).key();
+        List<LiveSync.Event> events = new ArrayList<>();
+        events.add(new LiveSync.Event(LiveSync.Event.CREATED, pet("new", false)));
+        events.add(new LiveSync.Event(LiveSync.Event.UPDATED, pet("other", false)));
+        events.add(new LiveSync.Event(LiveSync.Event.DELETED,
+                new ListPetsQuery.Item("Pet", deletedKey, null, null, null)));
+
+        PetCacheWriter.applyEvents(records, events);
+
+        assertEquals(4, items(records, FIRST_PAGE).size());
+        assertEquals(1, items(records, SECOND_PAGE).size());
+        assertEquals("Rex other", records.get("other").field("name"));
+    }
+
+    @Test
+    public void addCost_staysFlatAsTheListGrows() {
+        int[] sizes = {100, 1000, 5000};
+        for (int size : sizes) {
+            MemoryRecords incremental = seed(FIRST_PAGE, size);
+            for (int i = 0; i < ADDS; i++) {
+                PetCacheWriter.appendPet(incremental, pet("inc" + i, true));
+            }
+
+            MemoryRecords rewrite = seed(FIRST_PAGE, size);
+            for (int i = 0; i < ADDS; i++) {
+                readCopyRewrite(rewrite, pet("rw" + i, true));
+            }
+
+            // rewriting the cached list touches every pet in it, the incremental add a fixed few
+            assertTrue(rewrite.reads / ADDS > size);
+            assertTrue(rewrite.merged / ADDS > size);
+            assertEquals(size + ADDS, items(incremental, FIRST_PAGE).size());
+            assertEquals(2, incremental.reads / ADDS);
+            assertEquals(3, incremental.merged / ADDS);
+        }
+    }
+
+    private static ListPetsQuery.Item pet(String id, boolean withPhoto) {
+        return new ListPetsQuery.Item("Pet", id, "Rex " + id, "Good dog", withPhoto
+                ? new ListPetsQuery.Photo("S3Object", "bucket", "public/" + id + ".jpg", "us-east-1", null, "image/jpeg")
+                : null);
+    }
+
+    private static MemoryRecords seed(String field, int size) {
+        MemoryRecords records = new MemoryRecords();
+        records.put(Record.builder(PetCacheWriter.QUERY_ROOT).build());
+        addConnection(records, field, size);
+        records.reads = 0;
+        records.merged = 0;
+        return records;
+    }
+
+    // Lays out a cached page the way the normalizer does, with path based keys
+    private static void addConnection(MemoryRecords records, String field, int size) {
+        String connectionKey = PetCacheWriter.QUERY_ROOT + "." + field;
+        List<Object> references = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String itemKey = connectionKey + ".items." + i;
+            for (Record record : PetCacheWriter.petRecords(pet("seed" + i, true))) {
+                Record.Builder copy = Record.builder(record.key().replace("seed" + i, itemKey));
+                for (Map.Entry<String, Object> entry : record.fields().entrySet()) {
+                    copy.addField(entry.getKey(), entry.getValue() instanceof CacheReference
+                            ? new CacheReference(itemKey + ".photo") : entry.getValue());
+                }
+                records.put(copy.build());
+            }
+            references.add(new CacheReference(itemKey));
+        }
+        records.put(Record.builder(connectionKey)
+                .addField("__typename", "ModelPetConnection")
+                .addField("items", references)
+                .addField("nextToken", null)
+                .build());
+        records.get(PetCacheWriter.QUERY_ROOT).fields().put(field, new CacheReference(connectionKey));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> items(MemoryRecords records, String field) {
+        return (List<Object>) records.get(PetCacheWriter.QUERY_ROOT + "." + field).field("items");
+    }
+
+    // What addPetOffline used to do: read the whole list, append, write the whole list back
+    private static void readCopyRewrite(MemoryRecords records, ListPetsQuery.Item pet) {
+        String connectionKey = PetCacheWriter.QUERY_ROOT + "." + FIRST_PAGE;
+        Record connection = records.read(connectionKey);
+        List<Record> rewritten = new ArrayList<>();
+        List<Object> references = new ArrayList<>();
+        for (Object reference : (List<?>) connection.field("items")) {
+            Record item = records.read(((CacheReference) reference).key());
+            rewritten.add(item.toBuilder().build());
+            if (item.field("photo") instanceof CacheReference) {
+                rewritten.add(records.read(((CacheReference) item.field("photo")).key()).toBuilder().build());
+            }
+            references.add(reference);
+        }
+        List<Record> added = PetCacheWriter.petRecords(pet);
+        rewritten.addAll(added);
+        references.add(new CacheReference(added.get(0).key()));
+        rewritten.add(Record.builder(connectionKey).addField("items", references).build());
+        records.merge(rewritten);
+    }
+
+    static class MemoryRecords implements PetCacheWriter.Records {
+        private final Map<String, Record> mRecords = new HashMap<>();
+        int reads;
+        int merged;
+
+        void put(Record record) {
+            mRecords.put(record.key(), record);
+        }
+
+        Record get(String key) {
+            return mRecords.get(key);
+        }
+
+        @Override
+        public Record read(String key) {
+            reads++;
+            return mRecords.get(key);
+        }
+
+        @Override
+        public Set<String> merge(Collection<Record> records) {
+            Set<String> changed = new HashSet<>();
+            for (Record record : records) {
+                merged++;
+                Record existing = mRecords.get(record.key());
+                if (existing == null) {
+                    mRecords.put(record.key(), record);
+                    changed.add(record.key());
+                } else {
+                    changed.addAll(existing.mergeWith(record));
+                }
+            }
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.demo.mypetapp;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class PetListDiffTest {
+
+    private static final int ROWS = 1000;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    private CountingAdapter mAdapter;
+    private RecyclerView mRecyclerView;
+    private CountingObserver mObserver;
+
+    @Before
+    public void setUp() {
+        // the diff runs on the test thread, and its result is dispatched on the main looper
+        mAdapter = new CountingAdapter(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mRecyclerView = new RecyclerView(RuntimeEnvironment.application);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(RuntimeEnvironment.application));
+        // a change animation would bind a second holder for the same row
+        mRecyclerView.setItemAnimator(null);
+        mRecyclerView.setAdapter(mAdapter);
+        submit(pets(ROWS));
+        mObserver = new CountingObserver();
+        mAdapter.registerAdapterDataObserver(mObserver);
+        mAdapter.binds = 0;
+    }
+
+    @Test
+    public void unchangedList_rebindsNothing() {
+        submit(pets(ROWS));
+
+        assertEquals(0, mObserver.notifications());
+        assertEquals(0, mAdapter.binds);
+    }
+
+    @Test
+    public void appendedPage_isOneRangeInsert() {
+        submit(pets(ROWS + 20));
+
+        assertEquals(1, mObserver.insertCalls);
+        assertEquals(20, mObserver.inserted);
+        assertEquals(0, mObserver.changed);
+        assertEquals(ROWS + 20, mAdapter.getItemCount());
+        // the new rows are past the end of the screen
+        assertEquals(0, mAdapter.binds);
+    }
+
+    @Test
+    public void shuffledList_movesRowsWithoutRebinding() {
+        List<ListPetsQuery.Item> shuffled = pets(ROWS);
+        Collections.shuffle(shuffled, new Random(42));
+
+        submit(shuffled);
+
+        assertTrue(mObserver.moved > 0);
+        assertEquals(0, mObserver.changed);
+        assertEquals(0, mObserver.removed);
+        // the rows that moved on screen had been bound before, and are only bound for their new pet
+        assertTrue(mAdapter.binds <= mRecyclerView.getChildCount());
+    }
+
+    @Test
+    public void downloadedPhoto_rebindsOnlyThatRow() {
+        List<ListPetsQuery.Item> after = pets(ROWS);
+        ListPetsQuery.Item item = after.get(3);
+        after.set(3, new ListPetsQuery.Item(item.__typename(), item.id(), item.name(), item.description(),
+                new ListPetsQuery.Photo("S3Object", "bucket", "public/3.jpg", "us-east-1",
+                        "/cache/3.jpg", "image/jpeg")));
+
+        submit(after);
+
+        assertEquals(1, mObserver.changed);
+        assertEquals(1, mObserver.notifications());
+        assertEquals(1, mAdapter.binds);
+    }
+
+    @Test
+    public void notifyDataSetChanged_rebindsEveryRowOnScreen() {
+        mAdapter.notifyDataSetChanged();
+        layout();
+
+        assertTrue(mRecyclerView.getChildCount() > 1);
+        assertEquals(mRecyclerView.getChildCount(), mAdapter.binds);
+    }
+
+    private void submit(List<ListPetsQuery.Item> items) {
+        mAdapter.setItems(items);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        layout();
+    }
+
+    private void layout() {
+        mRecyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mRecyclerView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    private static List<ListPetsQuery.Item> pets(int count) {
+        List<ListPetsQuery.Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new ListPetsQuery.Item("Pet", "id-" + i, "pet " + i, "description " + i, null));
+        }
+        return items;
+    }
+
+    private static class CountingAdapter extends MyAdapter {
+        int binds;
+
+        CountingAdapter(Executor diffExecutor) {
+            super(RuntimeEnvironment.application, new OptimisticReconciler(), diffExecutor);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            binds++;
+            super.onBindViewHolder(holder, position);
+        }
+    }
+
+    private static class CountingObserver extends RecyclerView.AdapterDataObserver {
+        int insertCalls;
+        int inserted;
+        int removed;
+        int moved;
+        int changed;
+        int fullRebinds;
+
+        int notifications() {
+            return inserted + removed + moved + changed + fullRebinds;
+        }
+
+        @Override
+        public void onChanged() {
+            fullRebinds++;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+            changed += itemCount;
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            insertCalls++;
+            inserted += itemCount;
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            removed += itemCount;
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            moved += itemCount;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.demo.mypetapp;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class PetListScrollTest {
+
+    private static final int ROWS = 1000;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int PREWARMED_ROWS = 8;
+    // a fling as a series of frames, each scrolling the list a bit further
+    private static final int FLINGS = 5;
+    private static final int FRAMES_PER_FLING = 30;
+    private static final int PIXELS_PER_FRAME = 80;
+
+    @Test
+    public void prewarmedPool_flingsWithoutInflating() {
+        Scroll cold = scroll(0);
+        Scroll warm = scroll(PREWARMED_ROWS);
+
+        assertTrue(warm.rowsScrolled > 0);
+        assertEquals(cold.rowsScrolled, warm.rowsScrolled);
+        assertTrue(cold.flingInflates > 0);
+        assertEquals(0, warm.flingInflates);
+        // every row that scrolls in is bound once, whether its view came from the pool or not
+        assertEquals(cold.flingBinds, warm.flingBinds);
+        assertTrue(warm.flingBinds <= warm.rowsScrolled + 2 * FLINGS);
+    }
+
+    @Test
+    public void serverRecord_keepsTheRowsItemId() {
+        OptimisticReconciler reconciler = new OptimisticReconciler();
+        MyAdapter adapter = new MyAdapter(RuntimeEnvironment.application, reconciler);
+        ListPetsQuery.Item optimistic = pet("client-1", "Rex");
+        reconciler.track(optimistic);
+        reconciler.onCreated("client-1", "server-1");
+
+        List<ListPetsQuery.Item> items = new ArrayList<>();
+        items.add(optimistic);
+        items.add(pet("existing-0", "Max"));
+        items.add(pet("server-1", "Rex"));
+        adapter.setItems(items);
+
+        assertTrue(adapter.hasStableIds());
+        assertEquals(adapter.getItemId(0), adapter.getItemId(2));
+        assertNotEquals(adapter.getItemId(0), adapter.getItemId(1));
+        assertEquals(adapter.getItemId(1), adapter.getItemId(1));
+    }
+
+    private Scroll scroll(int prewarmedRows) {
+        CountingAdapter adapter = new CountingAdapter();
+        RecyclerView recyclerView = new RecyclerView(RuntimeEnvironment.application);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(RuntimeEnvironment.application);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(adapter);
+        adapter.setItems(pets(ROWS));
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH, HEIGHT);
+
+        // what MainActivity does once the first frame is drawn
+        if (prewarmedRows > 0) {
+            adapter.prewarm(recyclerView, prewarmedRows);
+        }
+        Scroll scroll = new Scroll();
+        scroll.visibleRows = recyclerView.getChildCount();
+        adapter.inflates = 0;
+        adapter.binds = 0;
+        for (int fling = 0; fling < FLINGS; fling++) {
+            for (int frame = 0; frame < FRAMES_PER_FLING; frame++) {
+                recyclerView.scrollBy(0, PIXELS_PER_FRAME);
+            }
+        }
+        scroll.rowsScrolled = layoutManager.findFirstVisibleItemPosition();
+        scroll.flingInflates = adapter.inflates;
+        scroll.flingBinds = adapter.binds;
+        return scroll;
+    }
+
+    private static List<ListPetsQuery.Item> pets(int count) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(pet("existing-" + i, "Pet " + i));
+        }
+        return pets;
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name) {
+        return new ListPetsQuery.Item("Pet", id, name, "Good pet", null);
+    }
+
+    private static class Scroll {
+        int visibleRows;
+        int rowsScrolled;
+        int flingInflates;
+        int flingBinds;
+
+        @Override
+        public String toString() {
+            return visibleRows + " rows on screen, " + rowsScrolled + " rows scrolled in " + FLINGS + " flings, "
+                    + (float) flingInflates / FLINGS + " inflates and " + (float) flingBinds / FLINGS
+                    + " binds per fling";
+        }
+    }
+
+    private static class CountingAdapter extends MyAdapter {
+        int inflates;
+        int binds;
+
+        CountingAdapter() {
+            super(RuntimeEnvironment.application, new OptimisticReconciler());
+        }
+
+        @Override
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            inflates++;
+            return super.onCreateViewHolder(parent, viewType);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            binds++;
+            super.onBindViewHolder(holder, position);
+        }
+    }
+}
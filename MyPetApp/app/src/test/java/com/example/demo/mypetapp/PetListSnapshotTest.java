@@ -0,0 +1,139 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PetListSnapshotTest {
+
+    private File mDir;
+    private File mFile;
+    private ScheduledExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("snapshot").toFile();
+        mFile = new File(mDir, PetListSnapshot.FILE_NAME);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void roundTrip_keepsEveryField() throws IOException {
+        List<ListPetsQuery.Item> pets = pets(3);
+        pets.add(new ListPetsQuery.Item("Pet", "no-photo", null, null, null));
+        pets.add(new ListPetsQuery.Item("Pet", "long", "Rex", longText(70000) + " \u00e9\u00e8 \ud83d\udc36", null));
+
+        snapshot(Integer.MAX_VALUE).write(pets);
+
+        assertEquals(pets, snapshot(Integer.MAX_VALUE).read());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingOrCorruptSnapshot_readsAsEmpty() throws IOException {
+        assertTrue(snapshot(10).read().isEmpty());
+
+        snapshot(Integer.MAX_VALUE).write(pets(10));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+        assertTrue(snapshot(10).read().isEmpty());
+        assertFalse(mFile.exists());
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        out.close();
+        assertTrue(snapshot(10).read().isEmpty());
+    }
+
+    @Test
+    public void renders_areWrittenOnceTheListSettles() throws Exception {
+        PetListSnapshot snapshot = snapshot(PetPager.DEFAULT_PAGE_SIZE);
+        List<ListPetsQuery.Item> pets = pets(100);
+        for (int i = 1; i <= pets.size(); i++) {
+            snapshot.save(pets.subList(0, i));
+        }
+        assertFalse(mFile.exists());
+
+        waitForWrites();
+        List<ListPetsQuery.Item> read = snapshot(PetPager.DEFAULT_PAGE_SIZE).read();
+        assertEquals(pets.subList(0, PetPager.DEFAULT_PAGE_SIZE), read);
+
+        // the same rows again are not rewritten
+        long modified = mFile.lastModified();
+        assertTrue(mFile.setLastModified(modified - 10000));
+        snapshot.save(pets);
+        waitForWrites();
+        assertEquals(modified - 10000, mFile.lastModified());
+    }
+
+    @Test
+    public void longList_keepsOnlyTheFirstPage() throws Exception {
+        snapshot(Integer.MAX_VALUE).write(pets(PetPager.DEFAULT_PAGE_SIZE));
+        long pageBytes = mFile.length();
+        assertTrue(mFile.delete());
+
+        // what startup reads on the main thread depends on the page size, not on how many pets there are
+        snapshot(PetPager.DEFAULT_PAGE_SIZE).save(pets(10000));
+        waitForWrites();
+
+        assertEquals(pageBytes, mFile.length());
+        assertEquals(pets(PetPager.DEFAULT_PAGE_SIZE), snapshot(PetPager.DEFAULT_PAGE_SIZE).read());
+    }
+
+    private void waitForWrites() throws Exception {
+        // the write is scheduled after the delay, a task behind it runs once it is done
+        Thread.sleep(50);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+    }
+
+    private PetListSnapshot snapshot(int maxPets) {
+        return new PetListSnapshot(mFile, maxPets, 10, mExecutor);
+    }
+
+    private static String longText(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+
+    private static List<ListPetsQuery.Item> pets(int count) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(new ListPetsQuery.Item("Pet", "pet-" + i, "Pet " + i, "A good pet, number " + i,
+                    new ListPetsQuery.Photo("S3Object", "bucket", "public/pet-" + i + ".jpg", "us-east-1",
+                            "/data/cache/photos/public_thumbnails_pet-" + i + ".jpg", "image/jpeg")));
+        }
+        return pets;
+    }
+}
@@ -0,0 +1,418 @@
+package com.example.demo.mypetapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PetMutationQueueTest {
+
+    private static final int PETS = 200;
+    private static final long ROUND_TRIP_MS = 10;
+
+    private File mFile;
+    private ScheduledExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(Files.createTempDirectory("queue").toFile(), "pending_pets");
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void bulkCreate_refreshesOncePerBatch() throws InterruptedException {
+        LocalAppSync server = new LocalAppSync();
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                mExecutor, PetMutationQueue.DEFAULT_MAX_BATCH, PetMutationQueue.DEFAULT_WINDOW_MS);
+        Recorder recorder = new Recorder(PETS);
+
+        queue.enqueueAll(pets(PETS), recorder);
+        assertTrue(recorder.done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(PETS, recorder.created.get());
+        assertEquals(PETS, server.creates.get());
+        // one request creates a whole batch
+        assertEquals(PETS / PetMutationQueue.DEFAULT_MAX_BATCH, server.requests.get());
+        assertEquals(PETS / PetMutationQueue.DEFAULT_MAX_BATCH, server.refreshes.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void bulkCreate_writesTheFileOncePerBatch() {
+        CountingStore store = new CountingStore(new PetMutationQueue.FileStore(mFile));
+        InstantSender server = new InstantSender();
+        ManualScheduler scheduler = new ManualScheduler();
+        PetMutationQueue queue = new PetMutationQueue(store, server, scheduler,
+                PetMutationQueue.DEFAULT_MAX_BATCH, PetMutationQueue.DEFAULT_WINDOW_MS);
+
+        // full batches go out at once, the rest once the window closes
+        queue.enqueueAll(pets(PETS), null);
+        scheduler.runDelayed();
+
+        assertEquals(PETS, server.creates);
+        assertEquals(PETS / PetMutationQueue.DEFAULT_MAX_BATCH, server.requests);
+        assertEquals(1 + PETS / PetMutationQueue.DEFAULT_MAX_BATCH, store.saves);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void fileStore_roundTrips() throws IOException {
+        PetMutationQueue.FileStore store = new PetMutationQueue.FileStore(mFile);
+        PetMutationQueue.PendingPet withPhoto = PetMutationQueue.PendingPet.create("Rex", "Good dog",
+                "bucket", "public/rex_1600.jpg", "us-east-1", "/sdcard/rex.jpg", "image/jpeg");
+        withPhoto.attempts = 2;
+        PetMutationQueue.PendingPet withoutPhoto = PetMutationQueue.PendingPet.create("Tom", null,
+                null, null, null, null, null);
+
+        assertTrue(store.load().isEmpty());
+        store.save(Arrays.asList(withPhoto, withoutPhoto));
+        List<PetMutationQueue.PendingPet> loaded = store.load();
+
+        assertEquals(2, loaded.size());
+        assertEquals(withPhoto.clientId, loaded.get(0).clientId);
+        assertEquals("public/rex_1600.jpg", loaded.get(0).key);
+        assertEquals(2, loaded.get(0).attempts);
+        assertEquals("Tom", loaded.get(1).name);
+        assertNull(loaded.get(1).description);
+        assertFalse(loaded.get(1).hasPhoto());
+    }
+
+    @Test
+    public void pendingPets_areReplayedAfterProcessDeath() throws InterruptedException {
+        // The first process dies before its batch window closes
+        ScheduledExecutorService dying = Executors.newSingleThreadScheduledExecutor();
+        PetMutationQueue first = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), new LocalAppSync(),
+                dying, PetMutationQueue.DEFAULT_MAX_BATCH, PetMutationQueue.DEFAULT_WINDOW_MS);
+        first.enqueueAll(pets(30), null);
+        dying.shutdownNow();
+        assertEquals(30, first.size());
+
+        LocalAppSync server = new LocalAppSync();
+        PetMutationQueue second = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                mExecutor, PetMutationQueue.DEFAULT_MAX_BATCH, PetMutationQueue.DEFAULT_WINDOW_MS);
+        second.start();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (second.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, second.size());
+        assertEquals(30, server.creates.get());
+        assertEquals(2, server.requests.get());
+        assertEquals(2, server.refreshes.get());
+    }
+
+    @Test
+    public void replayedPets_theServerAlreadyCreated_areNotCreatedAgain() throws IOException {
+        // The process died after the server created the first batch but before the file was written
+        List<PetMutationQueue.PendingPet> pending = pets(30);
+        new PetMutationQueue.FileStore(mFile).save(pending);
+        InstantSender server = new InstantSender();
+        for (int i = 0; i < PetMutationQueue.DEFAULT_MAX_BATCH; i++) {
+            server.stored.add(pending.get(i).clientId);
+        }
+
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                new ManualScheduler(), PetMutationQueue.DEFAULT_MAX_BATCH, PetMutationQueue.DEFAULT_WINDOW_MS);
+        queue.start();
+
+        // sent again under the same client ids, which the server already has
+        assertEquals(2, server.requests);
+        assertEquals(30 - PetMutationQueue.DEFAULT_MAX_BATCH, server.creates);
+        assertEquals(30, server.stored.size());
+        assertEquals(0, queue.size());
+        assertTrue(new PetMutationQueue.FileStore(mFile).load().isEmpty());
+    }
+
+    @Test
+    public void newPets_areSentInOneRequest() {
+        InstantSender server = new InstantSender();
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                new ManualScheduler(), PetMutationQueue.DEFAULT_MAX_BATCH, 0);
+
+        queue.enqueueAll(pets(3), null);
+
+        assertEquals(1, server.requests);
+        assertEquals(3, server.creates);
+    }
+
+    @Test
+    public void failedPet_isRetriedUntilItGivesUp() throws InterruptedException {
+        LocalAppSync server = new LocalAppSync();
+        server.reachable = false;
+        ScheduledExecutorService immediate = new ImmediateScheduler();
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                immediate, PetMutationQueue.DEFAULT_MAX_BATCH, 0);
+        Recorder recorder = new Recorder(1);
+
+        queue.enqueue(pets(1).get(0), recorder);
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(PetMutationQueue.MAX_ATTEMPTS, server.requests.get());
+        assertEquals(0, server.creates.get());
+        assertEquals(1, recorder.failed.get());
+        assertEquals(0, server.refreshes.get());
+        assertEquals(0, queue.size());
+        immediate.shutdownNow();
+    }
+
+    @Test
+    public void schedulerPasses_doNotSpendAttemptsBeforeTheRetryDelay() {
+        ManualScheduler scheduler = new ManualScheduler();
+        FailingSender server = new FailingSender();
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                scheduler, PetMutationQueue.DEFAULT_MAX_BATCH, 0);
+        final int[] answered = {0};
+        SyncScheduler.JobCallback callback = new SyncScheduler.JobCallback() {
+            @Override
+            public void onSynced(boolean succeeded) {
+                answered[0]++;
+            }
+        };
+
+        queue.enqueue(pets(1).get(0), null);
+        assertEquals(1, server.requests);
+        // the sync scheduler backs off from 2s, faster than the queue's own retry
+        for (int i = 0; i < 10; i++) {
+            queue.sync(Long.MAX_VALUE, callback);
+        }
+        assertEquals(1, server.requests);
+        assertEquals(0, answered[0]);
+        assertEquals(1, queue.size());
+
+        // the retry delay has passed
+        scheduler.runDelayed();
+        assertEquals(2, server.requests);
+        assertEquals(10, answered[0]);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void pausedQueue_keepsItsAttempts() throws InterruptedException {
+        LocalAppSync server = new LocalAppSync();
+        PetMutationQueue queue = new PetMutationQueue(new PetMutationQueue.FileStore(mFile), server,
+                mExecutor, PetMutationQueue.DEFAULT_MAX_BATCH, 0);
+        Recorder recorder = new Recorder(3);
+        queue.pause();
+
+        queue.enqueueAll(pets(3), recorder);
+        Thread.sleep(200);
+        assertEquals(0, server.creates.get());
+        assertEquals(3, queue.size());
+
+        final CountDownLatch synced = new CountDownLatch(1);
+        final boolean[] succeeded = {false};
+        queue.sync(Long.MAX_VALUE, new SyncScheduler.JobCallback() {
+            @Override
+            public void onSynced(boolean result) {
+                succeeded[0] = result;
+                synced.countDown();
+            }
+        });
+
+        assertTrue(synced.await(10, TimeUnit.SECONDS));
+        assertTrue(succeeded[0]);
+        assertEquals(3, recorder.created.get());
+        assertEquals(3, server.creates.get());
+        assertEquals(0, queue.size());
+    }
+
+    private static List<PetMutationQueue.PendingPet> pets(int count) {
+        List<PetMutationQueue.PendingPet> pets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pets.add(PetMutationQueue.PendingPet.create("pet" + i, "imported", null, null, null, null, null));
+        }
+        return pets;
+    }
+
+    // Stands in for the GraphQL endpoint: every request takes a fixed round trip, and a pet
+    // is created once per client id
+    static class LocalAppSync implements PetMutationQueue.Sender {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger creates = new AtomicInteger();
+        final AtomicInteger refreshes = new AtomicInteger();
+        final Set<String> stored = Collections.synchronizedSet(new HashSet<String>());
+        volatile boolean reachable = true;
+        private final ExecutorService mNetwork = Executors.newCachedThreadPool();
+
+        @Override
+        public void create(final List<PetMutationQueue.PendingPet> pets,
+                           final PetMutationQueue.SendCallback callback) {
+            requests.incrementAndGet();
+            mNetwork.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sleep(ROUND_TRIP_MS);
+                    for (PetMutationQueue.PendingPet pet : pets) {
+                        if (!reachable) {
+                            callback.onFailure(pet, new IOException("offline"));
+                            continue;
+                        }
+                        if (stored.add(pet.clientId)) {
+                            creates.incrementAndGet();
+                        }
+                        callback.onSuccess(pet, pet.clientId);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void refreshList() {
+            refreshes.incrementAndGet();
+        }
+    }
+
+    // Answers every request on the calling thread, and knows the pets in stored by client id
+    static class InstantSender implements PetMutationQueue.Sender {
+        final Set<String> stored = new HashSet<>();
+        int requests;
+        int creates;
+
+        @Override
+        public void create(List<PetMutationQueue.PendingPet> pets, PetMutationQueue.SendCallback callback) {
+            requests++;
+            for (PetMutationQueue.PendingPet pet : pets) {
+                // a pet that is already there is refused, and counts as created
+                if (stored.add(pet.clientId)) {
+                    creates++;
+                }
+                callback.onSuccess(pet, pet.clientId);
+            }
+        }
+
+        @Override
+        public void refreshList() {
+        }
+    }
+
+    static class CountingStore implements PetMutationQueue.Store {
+        private final PetMutationQueue.Store mStore;
+        int saves;
+
+        CountingStore(PetMutationQueue.Store store) {
+            mStore = store;
+        }
+
+        @Override
+        public List<PetMutationQueue.PendingPet> load() throws IOException {
+            return mStore.load();
+        }
+
+        @Override
+        public void save(List<PetMutationQueue.PendingPet> pets) throws IOException {
+            saves++;
+            mStore.save(pets);
+        }
+    }
+
+    // Fails every request on the calling thread
+    static class FailingSender implements PetMutationQueue.Sender {
+        int requests;
+
+        @Override
+        public void create(List<PetMutationQueue.PendingPet> pets, PetMutationQueue.SendCallback callback) {
+            requests++;
+            for (PetMutationQueue.PendingPet pet : pets) {
+                callback.onFailure(pet, new IOException("500"));
+            }
+        }
+
+        @Override
+        public void refreshList() {
+        }
+    }
+
+    static class Recorder implements PetMutationQueue.Listener {
+        final CountDownLatch done;
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Recorder(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onCreated(PetMutationQueue.PendingPet pet, String id) {
+            created.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(PetMutationQueue.PendingPet pet, Exception e) {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    // Runs every scheduled task right away so retries do not wait for the retry delay
+    static class ImmediateScheduler extends ScheduledThreadPoolExecutor {
+        ImmediateScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return super.schedule(command, 0, unit);
+        }
+    }
+
+    // Runs what is due now on the calling thread, and holds delayed tasks until the test runs them
+    static class ManualScheduler extends ScheduledThreadPoolExecutor {
+        private final List<Runnable> mDelayed = new ArrayList<>();
+
+        ManualScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            if (delay > 0) {
+                mDelayed.add(command);
+            } else {
+                command.run();
+            }
+            return null;
+        }
+
+        void runDelayed() {
+            List<Runnable> due = new ArrayList<>(mDelayed);
+            mDelayed.clear();
+            for (Runnable command : due) {
+                command.run();
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
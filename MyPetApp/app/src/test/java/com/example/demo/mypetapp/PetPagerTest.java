@@ -0,0 +1,158 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PetPagerTest {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Test
+    public void firstPage_costStaysFlatAsTableGrows() {
+        for (int tableSize : new int[] {1000, 10000, 50000}) {
+            FakeListPetsEndpoint endpoint = new FakeListPetsEndpoint(tableSize);
+            RecordingListener listener = new RecordingListener();
+            PetPager pager = new PetPager(endpoint, PAGE_SIZE, listener);
+
+            pager.refresh();
+
+            // one request for one page, however large the table
+            assertEquals(1, endpoint.requests);
+            assertEquals(PAGE_SIZE, endpoint.itemsServed);
+            assertEquals(PAGE_SIZE, listener.rows.size());
+        }
+    }
+
+    @Test
+    public void scrolling_staysOnePageAhead() {
+        FakeListPetsEndpoint endpoint = new FakeListPetsEndpoint(12000);
+        RecordingListener listener = new RecordingListener();
+        PetPager pager = new PetPager(endpoint, PAGE_SIZE, listener);
+        pager.refresh();
+
+        for (int lastVisible = 0; lastVisible < 500; lastVisible++) {
+            pager.loadMoreIfNeeded(lastVisible, listener.rows.size());
+            int rowsBelow = listener.rows.size() - 1 - lastVisible;
+            assertTrue(rowsBelow >= PAGE_SIZE - 1);
+            assertTrue(rowsBelow <= 2 * PAGE_SIZE);
+        }
+
+        assertTrue(listener.rows.size() <= 500 + 2 * PAGE_SIZE);
+        assertEquals(listener.rows.size() / PAGE_SIZE, endpoint.requests);
+        assertEquals(PAGE_SIZE, listener.largestAppend);
+    }
+
+    @Test
+    public void lastPage_stopsPaging() {
+        FakeListPetsEndpoint endpoint = new FakeListPetsEndpoint(45);
+        RecordingListener listener = new RecordingListener();
+        PetPager pager = new PetPager(endpoint, PAGE_SIZE, listener);
+        pager.refresh();
+
+        for (int i = 0; i < 10; i++) {
+            pager.loadMoreIfNeeded(listener.rows.size() - 1, listener.rows.size());
+        }
+
+        assertEquals(45, listener.rows.size());
+        assertEquals(3, endpoint.requests);
+        assertFalse(pager.hasMore());
+    }
+
+    @Test
+    public void inFlightPage_isNotRequestedTwice() {
+        FakeListPetsEndpoint endpoint = new FakeListPetsEndpoint(1000);
+        endpoint.deferred = true;
+        RecordingListener listener = new RecordingListener();
+        PetPager pager = new PetPager(endpoint, PAGE_SIZE, listener);
+
+        pager.refresh();
+        pager.loadMoreIfNeeded(0, 0);
+        pager.loadMoreIfNeeded(0, 0);
+        assertEquals(1, endpoint.requests);
+
+        endpoint.deliverPending();
+        assertFalse(pager.isLoading());
+        assertEquals(PAGE_SIZE, listener.rows.size());
+    }
+
+    @Test
+    public void staleFirstPage_isDroppedAfterRefresh() {
+        FakeListPetsEndpoint endpoint = new FakeListPetsEndpoint(1000);
+        endpoint.deferred = true;
+        RecordingListener listener = new RecordingListener();
+        PetPager pager = new PetPager(endpoint, PAGE_SIZE, listener);
+
+        pager.refresh();
+        PetPager.PageCallback stale = endpoint.pendingCallback;
+        pager.refresh();
+        stale.onPage(new ArrayList<ListPetsQuery.Item>(), "stale", false);
+
+        assertEquals(0, listener.pages);
+        assertTrue(pager.isLoading());
+    }
+
+    // Stands in for the listPets resolver: serves slices of an in-memory table with an
+    // offset as the nextToken.
+    static class FakeListPetsEndpoint implements PetPager.PageSource {
+        private final List<ListPetsQuery.Item> mTable = new ArrayList<>();
+        int requests;
+        int itemsServed;
+        boolean deferred;
+        PetPager.PageCallback pendingCallback;
+        private List<ListPetsQuery.Item> mPendingItems;
+        private String mPendingToken;
+
+        FakeListPetsEndpoint(int size) {
+            for (int i = 0; i < size; i++) {
+                mTable.add(new ListPetsQuery.Item("Pet", "id-" + i, "pet " + i, "description " + i, null));
+            }
+        }
+
+        @Override
+        public void loadPage(String nextToken, int limit, PetPager.PageCallback callback) {
+            requests++;
+            int from = nextToken == null ? 0 : Integer.parseInt(nextToken);
+            int to = Math.min(mTable.size(), from + limit);
+            List<ListPetsQuery.Item> items = new ArrayList<>(mTable.subList(from, to));
+            itemsServed += items.size();
+            String token = to < mTable.size() ? String.valueOf(to) : null;
+
+            if (deferred) {
+                pendingCallback = callback;
+                mPendingItems = items;
+                mPendingToken = token;
+            } else {
+                callback.onPage(items, token, false);
+            }
+        }
+
+        void deliverPending() {
+            PetPager.PageCallback callback = pendingCallback;
+            pendingCallback = null;
+            callback.onPage(mPendingItems, mPendingToken, false);
+        }
+    }
+
+    static class RecordingListener implements PetPager.Listener {
+        final List<ListPetsQuery.Item> rows = new ArrayList<>();
+        int pages;
+        int largestAppend;
+
+        @Override
+        public void onPageLoaded(List<ListPetsQuery.Item> items, boolean firstPage, boolean fromCache) {
+            pages++;
+            if (firstPage) {
+                rows.clear();
+            } else {
+                largestAppend = Math.max(largestAppend, items.size());
+            }
+            rows.addAll(items);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PetSearchIndexTest {
+
+    private static final int PETS = 50000;
+    private static final String[] NAMES = {"Rex", "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper",
+            "Daisy", "Milo", "Bailey", "Rocky", "Sadie", "Tucker", "Molly", "Bear", "Maggie"};
+    private static final String[] WORDS = {"friendly", "labrador", "tabby", "loves", "walks", "sleepy",
+            "playful", "golden", "retriever", "siamese", "kitten", "puppy", "black", "white", "spotted",
+            "fluffy", "shy", "rescue", "senior", "young", "parrot", "hamster", "likes", "treats", "ball"};
+    // As-you-type queries, one per keystroke
+    private static final String[] KEYSTROKES = {"l", "la", "lab", "labr", "labra", "labrad", "labrado",
+            "labrador", "labrador g", "labrador go", "labrador gol", "b", "be", "bel", "bell", "bella",
+            "f", "fl", "flu", "fluf", "fluff", "fluffy", "fluffy k", "fluffy ki", "zz"};
+
+    @Test
+    public void prefixesOfEveryWord_match() {
+        PetSearchIndex index = new PetSearchIndex();
+        index.put(pet("1", "Rex", "Friendly golden retriever"));
+        index.put(pet("2", "Bella", "Shy tabby"));
+        index.put(pet("3", "Goldie", "A fish"));
+
+        assertEquals(ids("3", "1"), ids(index.search("gol", 10, false)));
+        assertEquals(ids("1"), ids(index.search("GOLDEN ret", 10, false)));
+        assertEquals(ids("2"), ids(index.search("  tab  ", 10, false)));
+        assertTrue(index.search("golden fish", 10, false).isEmpty());
+        assertEquals(3, index.search("", 10, false).size());
+    }
+
+    @Test
+    public void results_areSortedAndLimited() {
+        PetSearchIndex index = new PetSearchIndex();
+        index.put(pet("1", "charlie", "puppy"));
+        index.put(pet("2", "Bella", "puppy"));
+        index.put(pet("3", "Max", "puppy"));
+        index.put(pet("4", "Abby", "puppy"));
+
+        assertEquals(ids("4", "2", "1", "3"), ids(index.search("pup", 10, false)));
+        assertEquals(ids("3", "1"), ids(index.search("pup", 2, true)));
+        assertEquals(ids("4"), ids(index.search("pup", 1, false)));
+    }
+
+    @Test
+    public void updatesAndRemovals_areReflected() {
+        PetSearchIndex index = new PetSearchIndex();
+        index.put(pet("1", "Rex", "Labrador"));
+        index.put(pet("2", "Bella", "Tabby"));
+
+        index.put(pet("1", "Rex", "Poodle"));
+        index.remove("2");
+
+        assertTrue(index.search("lab", 10, false).isEmpty());
+        assertEquals(ids("1"), ids(index.search("poo", 10, false)));
+        assertTrue(index.search("bella", 10, false).isEmpty());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void sameWords_keepTheNewCopy() {
+        PetSearchIndex index = new PetSearchIndex();
+        index.put(pet("1", "Rex", "Labrador"));
+        ListPetsQuery.Item withPhoto = new ListPetsQuery.Item("Pet", "1", "Rex", "Labrador",
+                new ListPetsQuery.Photo("S3Object", "bucket", "public/rex.jpg", "us-east-1", "/data/rex.jpg", "image/jpeg"));
+        index.put(withPhoto);
+
+        assertSame(withPhoto, index.search("rex", 10, false).get(0));
+    }
+
+    @Test
+    public void manyRemovals_compactTheIndex() {
+        PetSearchIndex index = new PetSearchIndex();
+        String[] rounds = {"first", "second", "third", "fourth", "fifth"};
+        for (String round : rounds) {
+            for (int i = 0; i < 1000; i++) {
+                index.put(pet(String.valueOf(i), "Pet " + i, round + " round"));
+            }
+        }
+
+        assertEquals(1000, index.size());
+        assertEquals(1000, index.search("fifth", 2000, false).size());
+        assertTrue(index.search("fourth", 2000, false).isEmpty());
+    }
+
+    @Test
+    public void fiftyThousandPets_answerEveryKeystrokeLikeAFullScan() {
+        List<ListPetsQuery.Item> pets = randomPets(PETS, new Random(3));
+        PetSearchIndex index = new PetSearchIndex();
+        index.putAll(pets);
+
+        for (String query : KEYSTROKES) {
+            List<ListPetsQuery.Item> results = index.search(query, PetSearchIndex.DEFAULT_LIMIT, false);
+            int scanned = 0;
+            for (ListPetsQuery.Item pet : pets) {
+                if (matches(pet, query)) {
+                    scanned++;
+                }
+            }
+            assertEquals(query, Math.min(scanned, PetSearchIndex.DEFAULT_LIMIT), results.size());
+            for (ListPetsQuery.Item pet : results) {
+                assertTrue(query, matches(pet, query));
+            }
+        }
+        assertEquals(PETS, index.size());
+        assertFalse(index.search("labrador", 10, false).isEmpty());
+        assertTrue(index.search("zz", 10, false).isEmpty());
+    }
+
+    // What the index answers, found by checking every word of every pet
+    private static boolean matches(ListPetsQuery.Item pet, String query) {
+        List<String> words = PetSearchIndex.words(pet.name() + " " + pet.description());
+        for (String prefix : PetSearchIndex.words(query)) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(prefix)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<ListPetsQuery.Item> randomPets(int count, Random random) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder description = new StringBuilder();
+            for (int w = 0; w < 6; w++) {
+                description.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            pets.add(pet(String.valueOf(i), NAMES[random.nextInt(NAMES.length)] + " " + i,
+                    description.toString().trim()));
+        }
+        return pets;
+    }
+
+    private static List<String> ids(String... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<String> ids(List<ListPetsQuery.Item> items) {
+        List<String> ids = new ArrayList<>();
+        for (ListPetsQuery.Item item : items) {
+            ids.add(item.id());
+        }
+        return ids;
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name, String description) {
+        return new ListPetsQuery.Item("Pet", id, name, description, null);
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PetStoreTest {
+
+    private static final int PETS = 10000;
+    private static final int COMPLETIONS = 2000;
+    private static final String LOCAL_DIR = "/data/photos/";
+
+    @Test
+    public void index_followsEveryWrite() {
+        PetStore store = new PetStore();
+        store.addAll(pets(0, 10));
+        store.set(3, pet("pet-3", "Renamed", "public/other.jpg"));
+        store.remove(5);
+        store.add(2, pet("inserted", "Inserted", "public/inserted.jpg"));
+        store.add(pet("appended", "Appended", null));
+        store.set(0, pet("replaced", "Replaced", "public/pet-9.jpg"));
+
+        assertIndexed(store);
+        assertEquals(-1, store.indexOfId("pet-0"));
+        assertEquals(-1, store.indexOfId("pet-5"));
+        assertEquals("Renamed", store.getById("pet-3").name());
+        assertNull(store.getById("pet-5"));
+        assertTrue(store.idsWithPhoto("public/pet-3.jpg").isEmpty());
+        assertEquals(2, store.idsWithPhoto("public/pet-9.jpg").size());
+
+        store.clear();
+        assertEquals(-1, store.indexOfId("pet-1"));
+        assertTrue(store.idsWithPhoto("public/pet-1.jpg").isEmpty());
+    }
+
+    @Test
+    public void liveSyncFrame_keepsTheIndex() {
+        PetStore store = new PetStore();
+        store.addAll(pets(0, 100));
+        LiveSyncTest.ManualFrames frames = new LiveSyncTest.ManualFrames();
+        LiveSyncTest.Recorder recorder = new LiveSyncTest.Recorder();
+        LiveSync liveSync = new LiveSync(store, frames, recorder, recorder);
+
+        for (int i = 0; i < 100; i += 7) {
+            liveSync.onEvent(LiveSync.Event.DELETED, pet("pet-" + i, null, null));
+        }
+        liveSync.onEvent(LiveSync.Event.UPDATED, pet("pet-50", "Renamed", "public/renamed.jpg"));
+        liveSync.onEvent(LiveSync.Event.CREATED, pet("new", "New", "public/new.jpg"));
+        frames.runAll();
+
+        assertEquals(100 - 15 + 1, store.size());
+        assertIndexed(store);
+        assertEquals(-1, store.indexOfId("pet-49"));
+        assertEquals("Renamed", store.getById("pet-50").name());
+        assertEquals(store.size() - 1, store.indexOfId("new"));
+        assertTrue(store.idsWithPhoto("public/pet-50.jpg").isEmpty());
+        assertEquals("pet-50", store.idsWithPhoto("public/renamed.jpg").get(0));
+    }
+
+    @Test
+    public void thumbnailKey_findsThePet() {
+        PetStore store = new PetStore();
+        store.addAll(pets(0, 3));
+
+        List<String> ids = store.idsWithPhoto(NewPetPipeline.thumbnailKey("public/pet-1.jpg"));
+        assertEquals(1, ids.size());
+        assertEquals("pet-1", ids.get(0));
+    }
+
+    @Test
+    public void writesFromASecondThread_areRejected() throws InterruptedException {
+        final PetStore store = new PetStore();
+        store.addAll(pets(0, 3));
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.add(pet("other", "Other", null));
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        other.start();
+        other.join();
+
+        assertTrue(thrown.get() instanceof IllegalStateException);
+        assertEquals(3, store.size());
+        assertEquals(3, store.snapshot().size());
+    }
+
+    @Test
+    public void photoCompletions_at10kPets_matchTheScan() {
+        List<ListPetsQuery.Item> pets = pets(0, PETS);
+        ArrayList<ListPetsQuery.Item> list = new ArrayList<>(pets);
+        completeByScan(list, COMPLETIONS);
+
+        PetStore store = store(pets);
+        completeByIndex(store, COMPLETIONS);
+
+        // the id lookup lands on the same rows the equals() scan found
+        assertEquals(list, store.snapshot());
+        assertIndexed(store);
+    }
+
+    // What a download completion used to do: rebuild the row and find it with equals()
+    private static void completeByScan(ArrayList<ListPetsQuery.Item> pets, int completions) {
+        for (int c = 0; c < completions; c++) {
+            int i = spread(c);
+            ListPetsQuery.Item before = pet("pet-" + i, "Pet " + i, "public/pet-" + i + ".jpg");
+            int row = pets.indexOf(before);
+            pets.set(row, withLocalPhoto(before));
+        }
+    }
+
+    private static void completeByIndex(PetStore store, int completions) {
+        for (int c = 0; c < completions; c++) {
+            String key = "public/pet-" + spread(c) + ".jpg";
+            for (String id : store.idsWithPhoto(key)) {
+                store.replace(withLocalPhoto(store.getById(id)));
+            }
+        }
+    }
+
+    // Completions land all over the list rather than in order
+    private static int spread(int completion) {
+        return (int) ((completion * 7919L) % PETS);
+    }
+
+    private static ListPetsQuery.Item withLocalPhoto(ListPetsQuery.Item item) {
+        ListPetsQuery.Photo photo = item.photo();
+        return new ListPetsQuery.Item(item.__typename(), item.id(), item.name(), item.description(),
+                new ListPetsQuery.Photo(photo.__typename(), photo.bucket(), photo.key(), photo.region(),
+                        LOCAL_DIR + photo.key(), photo.mimeType()));
+    }
+
+    private static void assertIndexed(PetStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            ListPetsQuery.Item pet = store.get(i);
+            assertEquals(i, store.indexOfId(pet.id()));
+            if (pet.photo() != null) {
+                assertTrue(store.idsWithPhoto(pet.photo().key()).contains(pet.id()));
+            }
+        }
+    }
+
+    private static PetStore store(List<ListPetsQuery.Item> pets) {
+        PetStore store = new PetStore();
+        store.addAll(pets);
+        return store;
+    }
+
+    private static List<ListPetsQuery.Item> pets(int from, int to) {
+        List<ListPetsQuery.Item> pets = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            pets.add(pet("pet-" + i, "Pet " + i, "public/pet-" + i + ".jpg"));
+        }
+        return pets;
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name, String photoKey) {
+        return new ListPetsQuery.Item("Pet", id, name, "Good pet", photoKey == null ? null
+                : new ListPetsQuery.Photo("S3Object", "bucket", photoKey, "us-east-1", null, "image/jpeg"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class PhotoCompressorTest {
+
+    private static final int MAX_DIMENSION = 1600;
+
+    @Test
+    public void scaledSize_fitsLongestSideAndKeepsAspectRatio() {
+        assertSize(1600, 1200, PhotoCompressor.scaledSize(4032, 3024, MAX_DIMENSION));
+        assertSize(1200, 1600, PhotoCompressor.scaledSize(3024, 4032, MAX_DIMENSION));
+        assertSize(1600, 400, PhotoCompressor.scaledSize(8000, 2000, MAX_DIMENSION));
+        // never scaled up
+        assertSize(800, 600, PhotoCompressor.scaledSize(800, 600, MAX_DIMENSION));
+    }
+
+    @Test
+    public void outputName_isStableAndCarriesTheFormat() {
+        assertEquals("IMG_0001_1600.jpg",
+                PhotoCompressor.outputName("IMG_0001.JPG", MAX_DIMENSION, PhotoCompressor.Format.JPEG));
+        assertEquals("IMG_0001_1600.webp",
+                PhotoCompressor.outputName("IMG_0001.png", MAX_DIMENSION, PhotoCompressor.Format.WEBP));
+        assertEquals("photo_800.jpg",
+                PhotoCompressor.outputName("photo", 800, PhotoCompressor.Format.JPEG));
+    }
+
+    @Test
+    public void retry_reusesPreviouslyEncodedFile() throws IOException {
+        File dir = Files.createTempDirectory("uploads").toFile();
+        File source = new File(dir, "IMG_0001.png");
+        write(source, 12 * 1024);
+        String hash = NewPetPipeline.contentHash(source);
+        File encoded = new File(dir, hash + "_1600.jpg");
+        write(encoded, 300);
+        encoded.setLastModified(source.lastModified() + 1000);
+
+        PhotoCompressor compressor = new PhotoCompressor(dir, MAX_DIMENSION, 85, PhotoCompressor.Format.JPEG);
+        PhotoCompressor.Result result = compressor.compress(source.getAbsolutePath(), hash);
+
+        assertEquals(encoded, result.file);
+        assertEquals("image/jpeg", result.mimeType);
+        assertEquals(300, result.outputBytes);
+        assertEquals(0, result.encodeMillis);
+    }
+
+    private static void assertSize(int width, int height, int[] size) {
+        assertEquals(width, size[0]);
+        assertEquals(height, size[1]);
+    }
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+}
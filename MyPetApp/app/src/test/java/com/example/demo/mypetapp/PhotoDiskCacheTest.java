@@ -0,0 +1,267 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PhotoDiskCacheTest {
+
+    private static final int PHOTO_BYTES = 1000;
+    private static final int PHOTOS = 200;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("photos").toFile();
+    }
+
+    @Test
+    public void overBudget_evictsTheLeastRecentlyUsed() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 3 * PHOTO_BYTES);
+        store(cache, "a");
+        store(cache, "b");
+        store(cache, "c");
+
+        // a is used again, so b is now the oldest
+        assertEquals(PHOTO_BYTES, cache.sizeOf("a"));
+        store(cache, "d");
+
+        assertEquals(-1, cache.sizeOf("b"));
+        assertFalse(cache.fileFor("b").exists());
+        assertEquals(PHOTO_BYTES, cache.sizeOf("a"));
+        assertEquals(PHOTO_BYTES, cache.sizeOf("c"));
+        assertEquals(PHOTO_BYTES, cache.sizeOf("d"));
+        assertEquals(3 * PHOTO_BYTES, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void photosOnScreen_areNotEvicted() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 3 * PHOTO_BYTES);
+        store(cache, "a");
+        store(cache, "b");
+        store(cache, "c");
+        cache.keep(Arrays.asList("a", "b"));
+
+        store(cache, "d");
+
+        assertEquals(PHOTO_BYTES, cache.sizeOf("a"));
+        assertEquals(PHOTO_BYTES, cache.sizeOf("b"));
+        assertEquals(-1, cache.sizeOf("c"));
+    }
+
+    @Test
+    public void evictedPhotos_areReported() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 2 * PHOTO_BYTES);
+        final List<String> evicted = new ArrayList<>();
+        cache.setEvictionListener(new PhotoDiskCache.EvictionListener() {
+            @Override
+            public void onEvicted(String key, File file) {
+                assertFalse(file.exists());
+                evicted.add(key);
+            }
+        });
+        store(cache, "public/a.jpg");
+        store(cache, "public/b.jpg");
+        store(cache, "public/c.jpg");
+
+        assertEquals(Collections.singletonList("public/a.jpg"), evicted);
+    }
+
+    @Test
+    public void index_survivesARestart() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 3 * PHOTO_BYTES);
+        store(cache, "public/a.jpg");
+        store(cache, "public/b.jpg");
+        store(cache, "public/c.jpg");
+        cache.sizeOf("public/a.jpg");
+        cache.flush();
+
+        PhotoDiskCache restarted = new PhotoDiskCache(mDir, 3 * PHOTO_BYTES);
+        assertEquals(3 * PHOTO_BYTES, restarted.size());
+        // the order of use was kept too: b is evicted, not a
+        store(restarted, "public/d.jpg");
+        assertEquals(-1, restarted.sizeOf("public/b.jpg"));
+        assertEquals(PHOTO_BYTES, restarted.sizeOf("public/a.jpg"));
+    }
+
+    @Test
+    public void strayFiles_areDeletedOnOpen() throws IOException {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+        store(cache, "public/a.jpg");
+        store(cache, "public/b.jpg");
+        cache.flush();
+        // a download cut off by process death, and a photo the system removed
+        File partial = new File(cache.fileFor("public/c.jpg").getPath() + PhotoDownloadScheduler.PARTIAL_SUFFIX);
+        write(partial, 10);
+        assertTrue(cache.fileFor("public/b.jpg").delete());
+
+        PhotoDiskCache restarted = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+
+        assertEquals(PHOTO_BYTES, restarted.size());
+        assertEquals(-1, restarted.sizeOf("public/b.jpg"));
+        assertFalse(partial.exists());
+    }
+
+    @Test
+    public void tornJournal_keepsTheCompleteRecords() throws IOException {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+        store(cache, "public/a.jpg");
+        cache.flush();
+        FileWriter journal = new FileWriter(new File(mDir, PhotoDiskCache.JOURNAL), true);
+        journal.write("PUT 10");
+        journal.close();
+
+        PhotoDiskCache restarted = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+
+        assertEquals(PHOTO_BYTES, restarted.sizeOf("public/a.jpg"));
+        assertEquals(PHOTO_BYTES, restarted.size());
+    }
+
+    @Test
+    public void truncatedPhoto_isAMiss() throws IOException {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+        store(cache, "public/a.jpg");
+        write(cache.fileFor("public/a.jpg"), 10);
+
+        assertEquals(-1, cache.sizeOf("public/a.jpg"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void journal_isCompacted() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 5 * PHOTO_BYTES);
+        for (int i = 0; i < 5000; i++) {
+            store(cache, "public/photo-" + i + ".jpg");
+        }
+        cache.flush();
+
+        File journal = new File(mDir, PhotoDiskCache.JOURNAL);
+        assertTrue(journal.length() < 2000 * 40);
+        assertEquals(5 * PHOTO_BYTES, new PhotoDiskCache(mDir, 5 * PHOTO_BYTES).size());
+    }
+
+    @Test
+    public void repeatedHits_areJournaledOnce() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, 10 * PHOTO_BYTES);
+        for (int i = 0; i < 10; i++) {
+            store(cache, key(i));
+        }
+        cache.flush();
+        File journal = new File(mDir, PhotoDiskCache.JOURNAL);
+        long stored = journal.length();
+
+        // a list scrolled up and down over the same rows
+        for (int pass = 0; pass < 1000; pass++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(PHOTO_BYTES, cache.sizeOf(key(i)));
+            }
+        }
+        assertEquals(stored, journal.length());
+        cache.flush();
+
+        // one READ per photo, for the order of their last use
+        assertTrue(journal.length() - stored <= 10 * ("READ " + key(9) + "\n").length());
+        store(new PhotoDiskCache(mDir, 10 * PHOTO_BYTES), key(10));
+        assertEquals(-1, new PhotoDiskCache(mDir, 10 * PHOTO_BYTES).sizeOf(key(0)));
+    }
+
+    @Test
+    public void hitsOnManyPhotos_compactTheJournal() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, PHOTOS * PHOTO_BYTES);
+        for (int i = 0; i < PHOTOS; i++) {
+            store(cache, key(i));
+        }
+        for (int pass = 0; pass < 50; pass++) {
+            for (int i = 0; i < PHOTOS; i++) {
+                cache.sizeOf(key(i));
+            }
+        }
+        cache.flush();
+
+        File journal = new File(mDir, PhotoDiskCache.JOURNAL);
+        assertTrue(journal.length() < 2 * 2000 * 40);
+        assertEquals(PHOTOS * PHOTO_BYTES, new PhotoDiskCache(mDir, PHOTOS * PHOTO_BYTES).size());
+    }
+
+    @Test
+    public void warmStart_downloadsNothing() {
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, PHOTOS * PHOTO_BYTES);
+        PhotoDownloadSchedulerTest.FakeS3 s3 = new PhotoDownloadSchedulerTest.FakeS3();
+        for (int i = 0; i < PHOTOS; i++) {
+            s3.objects.put(key(i), PHOTO_BYTES);
+        }
+        PhotoDownloadSchedulerTest.RecordingListener listener = new PhotoDownloadSchedulerTest.RecordingListener();
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(s3, cache, PhotoDownloadSchedulerTest.DIRECT, 4);
+        for (int i = 0; i < PHOTOS; i++) {
+            scheduler.enqueue(key(i), cache.fileFor(key(i)), PhotoDownloadScheduler.PRIORITY_NORMAL, listener);
+        }
+        s3.completeAll();
+        cache.flush();
+        int coldRequests = s3.requests;
+
+        // the next launch, with a new process
+        PhotoDiskCache warm = new PhotoDiskCache(mDir, PHOTOS * PHOTO_BYTES);
+        scheduler = new PhotoDownloadScheduler(s3, warm, PhotoDownloadSchedulerTest.DIRECT, 4);
+        for (int i = 0; i < PHOTOS; i++) {
+            scheduler.enqueue(key(i), warm.fileFor(key(i)), PhotoDownloadScheduler.PRIORITY_NORMAL, listener);
+        }
+
+        assertEquals(PHOTOS, coldRequests);
+        assertEquals(PHOTOS, s3.requests);
+        assertEquals(PHOTOS, warm.hitCount());
+        assertEquals(2 * PHOTOS, listener.downloaded.size());
+    }
+
+    @Test
+    public void browsing_hitsTheCacheForRecentPhotos() {
+        // room for half of the photos; most views go to the first screens of the list
+        PhotoDiskCache cache = new PhotoDiskCache(mDir, PHOTOS / 2 * PHOTO_BYTES);
+        Random random = new Random(5);
+        int views = 5000;
+        for (int i = 0; i < views; i++) {
+            int photo = (int) Math.min(PHOTOS - 1, Math.abs(random.nextGaussian()) * PHOTOS / 4);
+            if (cache.sizeOf(key(photo)) < 0) {
+                store(cache, key(photo));
+            }
+        }
+        double hitRate = (double) cache.hitCount() / views;
+
+        assertEquals(views, cache.hitCount() + cache.missCount());
+        assertTrue(hitRate > 0.8);
+        assertTrue(cache.size() <= cache.maxSize());
+    }
+
+    private static String key(int i) {
+        return "public/photo-" + i + ".jpg";
+    }
+
+    // What the scheduler does once a download completes. The cache is opened first, as the
+    // scheduler's lookup before every download does.
+    private static void store(PhotoDiskCache cache, String key) {
+        cache.size();
+        write(cache.fileFor(key), PHOTO_BYTES);
+        cache.put(key, PHOTO_BYTES);
+    }
+
+    private static void write(File file, long size) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[(int) size]);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PhotoDownloadSchedulerTest {
+
+    private static final int PHOTOS = 200;
+    private static final int MAX_CONCURRENT = 4;
+
+    // Runs the index lookups on the calling thread
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mDir;
+    private FakeS3 mS3;
+    private MemoryIndex mIndex;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("downloads").toFile();
+        mS3 = new FakeS3();
+        for (int i = 0; i < PHOTOS; i++) {
+            mS3.objects.put(key(i), 1024 + i);
+        }
+        mIndex = new MemoryIndex();
+        mListener = new RecordingListener();
+    }
+
+    @Test
+    public void repeatedResumes_onlyDownloadOnce() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT);
+
+        for (int resume = 0; resume < 3; resume++) {
+            enqueueAll(scheduler);
+            mS3.completeAll();
+        }
+
+        assertEquals(PHOTOS, mS3.requests);
+        assertEquals(3 * PHOTOS, mListener.downloaded.size());
+    }
+
+    @Test
+    public void concurrentDownloads_areBounded() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT);
+
+        enqueueAll(scheduler);
+        assertEquals(MAX_CONCURRENT, mS3.inFlight.size());
+        assertEquals(PHOTOS - MAX_CONCURRENT, scheduler.pendingCount());
+
+        while (!mS3.inFlight.isEmpty()) {
+            assertTrue(scheduler.activeCount() <= MAX_CONCURRENT);
+            mS3.completeNext();
+        }
+        assertEquals(MAX_CONCURRENT, mS3.maxInFlight);
+        assertEquals(PHOTOS, mS3.requests);
+    }
+
+    @Test
+    public void inFlightKey_isRequestedOnce() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT);
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.enqueue(key(0), file(0), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        }
+        mS3.completeAll();
+
+        assertEquals(1, mS3.requests);
+        assertEquals(5, mListener.downloaded.size());
+    }
+
+    @Test
+    public void partialFile_isDownloadedAgain() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT);
+        scheduler.enqueue(key(0), file(0), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        mS3.completeAll();
+
+        // truncated by a crash or overwritten by another app
+        write(file(0), 10);
+        scheduler.enqueue(key(0), file(0), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        mS3.completeAll();
+
+        assertEquals(2, mS3.requests);
+    }
+
+    @Test
+    public void visibleRows_jumpTheQueue() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, 1);
+
+        enqueueAll(scheduler);
+        assertTrue(scheduler.prioritize(Arrays.asList(key(150), key(151), key(152))));
+        // the same rows again, as for a scroll that moved the list by a few pixels
+        assertFalse(scheduler.prioritize(Arrays.asList(key(150), key(151), key(152))));
+        for (int i = 0; i < 4; i++) {
+            mS3.completeNext();
+        }
+
+        assertEquals(Arrays.asList(key(0), key(150), key(151), key(152)), mS3.requestedKeys.subList(0, 4));
+    }
+
+    @Test
+    public void missingPhoto_isRequestedOnceUntilItsRetryIsDue() {
+        ManualClock clock = new ManualClock();
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT, clock);
+        String missing = "public/thumbnails/legacy.jpg";
+
+        // every page and live event that shows the pet asks again
+        for (int i = 0; i < 5; i++) {
+            enqueueMissing(scheduler, missing);
+        }
+        assertEquals(1, mS3.requests);
+        assertEquals(1, scheduler.failedCount());
+        assertTrue(mListener.downloaded.isEmpty());
+        assertFalse(new File(mDir, "legacy.jpg" + PhotoDownloadScheduler.PARTIAL_SUFFIX).exists());
+
+        clock.now += PhotoDownloadScheduler.RETRY_BASE_MS;
+        enqueueMissing(scheduler, missing);
+        assertEquals(2, mS3.requests);
+        // the delay doubles after each failure
+        clock.now += PhotoDownloadScheduler.RETRY_BASE_MS - 1;
+        enqueueMissing(scheduler, missing);
+        assertEquals(2, mS3.requests);
+        clock.now += 2 * PhotoDownloadScheduler.RETRY_BASE_MS;
+        enqueueMissing(scheduler, missing);
+        assertEquals(3, mS3.requests);
+    }
+
+    @Test
+    public void photoUploadedAfterItsPet_isDownloadedOnceRetried() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT,
+                new ManualClock());
+        String late = "public/late.jpg";
+        enqueueMissing(scheduler, late);
+        assertEquals(1, scheduler.failedCount());
+
+        mS3.objects.put(late, 2048);
+        scheduler.retryNow(late);
+        enqueueMissing(scheduler, late);
+
+        assertEquals(2, mS3.requests);
+        assertEquals(Arrays.asList(late), mListener.downloaded);
+        assertEquals(0, scheduler.failedCount());
+    }
+
+    @Test
+    public void failedPhotos_areRetriedOnReconnect() {
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, DIRECT, MAX_CONCURRENT,
+                new ManualClock());
+        enqueueMissing(scheduler, "public/a.jpg");
+        enqueueMissing(scheduler, "public/b.jpg");
+
+        assertTrue(scheduler.retryAllNow());
+        assertFalse(scheduler.retryAllNow());
+        enqueueMissing(scheduler, "public/a.jpg");
+        assertEquals(3, mS3.requests);
+    }
+
+    @Test
+    public void index_isOnlyUsedOnItsExecutor() {
+        QueuedExecutor disk = new QueuedExecutor();
+        PhotoDownloadScheduler scheduler = new PhotoDownloadScheduler(mS3, mIndex, disk, MAX_CONCURRENT);
+        mIndex.put(key(1), 1025);
+        write(file(1), 1025);
+
+        scheduler.enqueue(key(0), file(0), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        scheduler.enqueue(key(1), file(1), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        assertEquals(0, mIndex.lookups);
+        assertEquals(0, mS3.requests);
+
+        disk.runAll();
+        assertEquals(Arrays.asList(key(1)), mListener.downloaded);
+        mS3.completeAll();
+        // renamed and recorded on the executor as well
+        assertEquals(-1, mIndex.sizeOf(key(0)));
+        disk.runAll();
+        assertEquals(1024, mIndex.sizeOf(key(0)));
+        assertEquals(Arrays.asList(key(1), key(0)), mListener.downloaded);
+    }
+
+    private void enqueueAll(PhotoDownloadScheduler scheduler) {
+        for (int i = 0; i < PHOTOS; i++) {
+            scheduler.enqueue(key(i), file(i), PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        }
+    }
+
+    private void enqueueMissing(PhotoDownloadScheduler scheduler, String key) {
+        scheduler.enqueue(key, new File(mDir, key.substring(key.lastIndexOf('/') + 1)),
+                PhotoDownloadScheduler.PRIORITY_NORMAL, mListener);
+        mS3.completeAll();
+    }
+
+    private static String key(int i) {
+        return "public/photo-" + i + ".jpg";
+    }
+
+    private File file(int i) {
+        return new File(mDir, "photo-" + i + ".jpg");
+    }
+
+    private static void write(File file, long size) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[(int) size]);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Stands in for S3: serves objects of known size and completes transfers when told to
+    static class FakeS3 implements S3Transport {
+        final Map<String, Integer> objects = new HashMap<>();
+        final List<Object[]> inFlight = new ArrayList<>();
+        final List<String> requestedKeys = new ArrayList<>();
+        int requests;
+        int maxInFlight;
+        long bytes;
+
+        @Override
+        public void download(String key, File file, S3Transport.TransferCallback callback) {
+            requests++;
+            requestedKeys.add(key);
+            inFlight.add(new Object[] {key, file, callback});
+            maxInFlight = Math.max(maxInFlight, inFlight.size());
+        }
+
+        @Override
+        public void upload(String key, File file, String mimeType, S3Transport.TransferCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        void completeNext() {
+            Object[] transfer = inFlight.remove(0);
+            Integer size = objects.get(transfer[0]);
+            if (size == null) {
+                ((S3Transport.TransferCallback) transfer[2]).onFailed(new IOException("404 Not Found"));
+                return;
+            }
+            write((File) transfer[1], size);
+            bytes += size;
+            ((S3Transport.TransferCallback) transfer[2]).onCompleted(size);
+        }
+
+        void completeAll() {
+            while (!inFlight.isEmpty()) {
+                completeNext();
+            }
+        }
+    }
+
+    static class MemoryIndex implements PhotoDownloadScheduler.DownloadIndex {
+        private final Map<String, Long> mSizes = new HashMap<>();
+        int lookups;
+
+        @Override
+        public long sizeOf(String key) {
+            lookups++;
+            Long size = mSizes.get(key);
+            return size == null ? -1 : size;
+        }
+
+        @Override
+        public void put(String key, long size) {
+            mSizes.put(key, size);
+        }
+    }
+
+    static class QueuedExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+
+    static class ManualClock implements PhotoDownloadScheduler.Clock {
+        long now;
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+    }
+
+    static class RecordingListener implements PhotoDownloadScheduler.Listener {
+        final List<String> downloaded = new ArrayList<>();
+
+        @Override
+        public void onDownloaded(String key, File file) {
+            downloaded.add(key);
+        }
+    }
+}
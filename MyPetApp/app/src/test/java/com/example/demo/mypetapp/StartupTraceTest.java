@@ -0,0 +1,120 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+
+    private ManualClock mClock;
+    private StartupTrace.Collector mCollector;
+    private StartupTrace mTrace;
+
+    @Before
+    public void setUp() {
+        mClock = new ManualClock();
+        mCollector = new StartupTrace.Collector();
+        mTrace = new StartupTrace(mClock, mCollector);
+    }
+
+    @Test
+    public void coldStart_reportsEveryPhaseInOrder() {
+        StartupTrace.Section identity = mTrace.begin(StartupTrace.IDENTITY_RESTORE);
+        mClock.advance(300);
+        identity.end();
+
+        StartupTrace.Section clientBuild = mTrace.begin(StartupTrace.CLIENT_BUILD);
+        StartupTrace.Section config = mTrace.begin(StartupTrace.CONFIG_PARSE);
+        mClock.advance(40);
+        config.end();
+        mClock.advance(140);
+        clientBuild.end();
+
+        StartupTrace.Section cache = mTrace.begin(StartupTrace.CACHE_READ);
+        StartupTrace.Section network = mTrace.begin(StartupTrace.NETWORK_RESPONSE);
+        mClock.advance(25);
+        cache.end();
+        StartupTrace.Section bind = mTrace.begin(StartupTrace.FIRST_BIND);
+        mClock.advance(5);
+        bind.end();
+        mClock.advance(400);
+        network.end();
+
+        List<StartupTrace.Span> spans = mCollector.spans();
+        String[] order = {StartupTrace.IDENTITY_RESTORE, StartupTrace.CONFIG_PARSE, StartupTrace.CLIENT_BUILD,
+                StartupTrace.CACHE_READ, StartupTrace.FIRST_BIND, StartupTrace.NETWORK_RESPONSE};
+        assertEquals(order.length, spans.size());
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(order[i], spans.get(i).name);
+        }
+        assertEquals(300, mCollector.span(StartupTrace.IDENTITY_RESTORE).durationMillis);
+        assertEquals(300, mCollector.span(StartupTrace.CONFIG_PARSE).startMillis);
+        assertEquals(180, mCollector.span(StartupTrace.CLIENT_BUILD).durationMillis);
+        assertEquals(510, mCollector.span(StartupTrace.FIRST_BIND).endMillis());
+        assertEquals(Thread.currentThread().getName(), spans.get(0).thread);
+        // the cached rows were on screen long before the network answered
+        assertEquals(430, mCollector.span(StartupTrace.NETWORK_RESPONSE).durationMillis);
+        assertTrue(mTrace.isFinished());
+    }
+
+    @Test
+    public void repeatedPhases_areReportedOnce() {
+        for (int page = 0; page < 3; page++) {
+            StartupTrace.Section network = mTrace.begin(StartupTrace.NETWORK_RESPONSE);
+            mClock.advance(100);
+            network.end();
+            network.end();
+        }
+
+        assertEquals(1, mCollector.spans().size());
+        assertEquals(0, mCollector.span(StartupTrace.NETWORK_RESPONSE).startMillis);
+    }
+
+    @Test
+    public void sectionsAfterStartup_costNothing() {
+        mTrace.begin(StartupTrace.NETWORK_RESPONSE).end();
+        StartupTrace.Section bind = mTrace.begin(StartupTrace.FIRST_BIND);
+        bind.end();
+        assertTrue(mTrace.isFinished());
+
+        StartupTrace.Section first = mTrace.begin(StartupTrace.CACHE_READ);
+        StartupTrace.Section second = mTrace.begin(StartupTrace.NETWORK_RESPONSE);
+        first.end();
+
+        assertSame(first, second);
+        assertEquals(2, mCollector.spans().size());
+    }
+
+    @Test
+    public void sectionEndedOnAnotherThread_isReported() throws InterruptedException {
+        final StartupTrace.Section clientBuild = mTrace.begin(StartupTrace.CLIENT_BUILD);
+        Thread warm = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mClock.advance(120);
+                clientBuild.end();
+            }
+        }, "warm");
+        warm.start();
+        warm.join();
+
+        assertEquals("warm", mCollector.span(StartupTrace.CLIENT_BUILD).thread);
+        assertEquals(120, mCollector.span(StartupTrace.CLIENT_BUILD).durationMillis);
+    }
+
+    static class ManualClock implements StartupTrace.Clock {
+        private volatile long mNanos = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advance(long millis) {
+            mNanos += millis * 1000000;
+        }
+    }
+}
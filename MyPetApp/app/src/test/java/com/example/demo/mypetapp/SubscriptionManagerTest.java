@@ -0,0 +1,325 @@
+package com.example.demo.mypetapp;
+
+import com.amazonaws.amplify.generated.graphql.ListPetsQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionManagerTest {
+
+    private static final int PETS = 1000;
+    private static final int PAGE_SIZE = 20;
+    private static final int BYTES_PER_PET = 200;
+    private static final int FLAPS = 5;
+    private static final long OUTAGE_MS = 150;
+
+    private ManualScheduler mScheduler;
+    private LocalBroker mBroker;
+    private Sink mSink;
+    private SubscriptionManager mManager;
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mBroker = new LocalBroker();
+        mSink = new Sink();
+        mManager = new SubscriptionManager(mBroker, mBroker, new Backoff(10, 200, new Random(7)), mScheduler, 100);
+        mManager.setSink(mSink);
+    }
+
+    @Test
+    public void activityTransitions_keepOneConnection() {
+        mManager.acquire();
+        assertTrue(mManager.isConnected());
+        for (int i = 0; i < 20; i++) {
+            // MainActivity stops as AddPetActivity starts, and the other way round
+            mManager.acquire();
+            mManager.release();
+            mScheduler.advance(10);
+        }
+        mManager.release();
+        mScheduler.advance(50);
+        mManager.acquire();
+        mScheduler.advance(1000);
+        assertTrue(mManager.isConnected());
+
+        assertEquals(1, mBroker.connects.get());
+        assertEquals(0, mManager.reconnects());
+        assertEquals(0, mManager.gaps());
+        assertEquals(0, mBroker.bytesFetched.get());
+    }
+
+    @Test
+    public void idleConnection_isClosedAndCaughtUpOnReturn() {
+        mManager.acquire();
+        mManager.release();
+        mScheduler.advance(100);
+        assertFalse(mManager.isConnected());
+        assertEquals(1, mBroker.disconnects.get());
+
+        mBroker.renameFirstPagePets(3);
+        mManager.acquire();
+        assertTrue(mManager.isConnected());
+
+        assertEquals(1, mManager.reconnects());
+        // the screen that comes back refetches its list
+        assertEquals(1, mManager.gaps());
+        assertEquals(3, mSink.events.get());
+    }
+
+    @Test
+    public void flaps_reconnectWithBackoffAndOnlyFetchTheGap() {
+        mManager.acquire();
+        assertTrue(mManager.isConnected());
+
+        for (int flap = 0; flap < FLAPS; flap++) {
+            mBroker.goDown();
+            mBroker.renameFirstPagePets(2);
+            mScheduler.advance(OUTAGE_MS);
+            assertFalse(mManager.isConnected());
+            mBroker.comeBack();
+            // the next retry is at most one backoff ceiling away
+            mScheduler.advance(200);
+            assertTrue(mManager.isConnected());
+            assertEquals(2 * (flap + 1), mSink.events.get());
+        }
+
+        assertEquals(FLAPS, mManager.reconnects());
+        // however many attempts each outage took
+        assertEquals(FLAPS, mManager.gaps());
+        // each simulated outage spans several retries, but backoff keeps them far below one per millisecond
+        assertTrue(mBroker.connects.get() > FLAPS + 1);
+        assertTrue(mBroker.connects.get() < FLAPS * OUTAGE_MS / 10);
+        assertEquals(2 * FLAPS, mSink.events.get());
+        assertEquals((long) FLAPS * PAGE_SIZE * BYTES_PER_PET, mBroker.bytesFetched.get());
+    }
+
+    @Test
+    public void backoff_growsWithJitterUpToTheCap() {
+        Backoff backoff = new Backoff(100, 1000, new Random(1));
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+        }
+        assertEquals(ceilings.length, backoff.attempts());
+        assertEquals(1000, backoff.ceilingMillis(100));
+
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+
+    @Test
+    public void changes_reportNewAndEditedPetsOnly() {
+        List<ListPetsQuery.Item> cached = new ArrayList<>();
+        cached.add(pet("1", "Rex"));
+        cached.add(pet("2", "Tom"));
+        cached.add(pet("3", "Kitty"));
+        List<ListPetsQuery.Item> fresh = new ArrayList<>();
+        fresh.add(pet("1", "Rex"));
+        fresh.add(pet("2", "Tommy"));
+        fresh.add(pet("4", "Spot"));
+
+        List<LiveSync.Event> events = SubscriptionManager.changes(cached, fresh);
+
+        assertEquals(2, events.size());
+        assertEquals(LiveSync.Event.UPDATED, events.get(0).type);
+        assertEquals("Tommy", events.get(0).pet.name());
+        assertEquals(LiveSync.Event.CREATED, events.get(1).type);
+        assertEquals("4", events.get(1).pet.id());
+    }
+
+    private static ListPetsQuery.Item pet(String id, String name) {
+        return new ListPetsQuery.Item("Pet", id, name, "Good pet", null);
+    }
+
+    // Stands in for the AppSync endpoint: accepts connections while up, drops them when it
+    // goes down, and serves the first page for catch-up
+    static class LocalBroker implements SubscriptionManager.Connection, SubscriptionManager.CatchUp {
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final AtomicInteger bytesFetched = new AtomicInteger();
+        private final List<ListPetsQuery.Item> mPets = new ArrayList<>();
+        private List<ListPetsQuery.Item> mClientFirstPage;
+        private SubscriptionManager.ConnectionCallback mCallback;
+        private boolean mDown;
+        private int mRenames;
+
+        LocalBroker() {
+            for (int i = 0; i < PETS; i++) {
+                mPets.add(pet(String.valueOf(i), "Pet " + i));
+            }
+            mClientFirstPage = firstPage();
+        }
+
+        @Override
+        public void connect(SubscriptionManager.ConnectionCallback callback) {
+            connects.incrementAndGet();
+            synchronized (this) {
+                if (mDown) {
+                    callback.onDisconnected(new Exception("broker unreachable"));
+                    return;
+                }
+                mCallback = callback;
+            }
+            callback.onConnected();
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            disconnects.incrementAndGet();
+            mCallback = null;
+        }
+
+        @Override
+        public void fetchChanges(SubscriptionManager.CatchUpCallback callback) {
+            List<LiveSync.Event> events;
+            synchronized (this) {
+                List<ListPetsQuery.Item> fresh = firstPage();
+                bytesFetched.addAndGet(fresh.size() * BYTES_PER_PET);
+                events = SubscriptionManager.changes(mClientFirstPage, fresh);
+                mClientFirstPage = fresh;
+            }
+            callback.onChanges(events);
+        }
+
+        void goDown() {
+            SubscriptionManager.ConnectionCallback callback;
+            synchronized (this) {
+                mDown = true;
+                callback = mCallback;
+                mCallback = null;
+            }
+            callback.onDisconnected(new Exception("connection reset"));
+        }
+
+        synchronized void comeBack() {
+            mDown = false;
+        }
+
+        // Edits made by other devices while this one is not listening
+        synchronized void renameFirstPagePets(int count) {
+            for (int i = 0; i < count; i++) {
+                int index = mRenames++ % PAGE_SIZE;
+                ListPetsQuery.Item pet = mPets.get(index);
+                mPets.set(index, pet(pet.id(), pet.name() + "*"));
+            }
+        }
+
+        private List<ListPetsQuery.Item> firstPage() {
+            return new ArrayList<>(mPets.subList(0, PAGE_SIZE));
+        }
+    }
+
+    // Runs submitted work on the calling thread, and scheduled work once the test moves the
+    // simulated clock past it
+    static class ManualScheduler extends ScheduledThreadPoolExecutor {
+        private final List<Task> mTasks = new ArrayList<>();
+        private long mNow;
+
+        ManualScheduler() {
+            super(1);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            Task task = new Task(command, mNow + unit.toMillis(delay));
+            mTasks.add(task);
+            return task;
+        }
+
+        void advance(long millis) {
+            long until = mNow + millis;
+            Task next;
+            while ((next = nextDue(until)) != null) {
+                mTasks.remove(next);
+                mNow = next.due;
+                next.command.run();
+            }
+            mNow = until;
+        }
+
+        private Task nextDue(long until) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (!task.cancelled && task.due <= until && (next == null || task.due < next.due)) {
+                    next = task;
+                }
+            }
+            return next;
+        }
+
+        private class Task implements ScheduledFuture<Object> {
+            final Runnable command;
+            final long due;
+            boolean cancelled;
+
+            Task(Runnable command, long due) {
+                this.command = command;
+                this.due = due;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(due - mNow, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                cancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+
+            @Override
+            public boolean isDone() {
+                return cancelled || !mTasks.contains(this);
+            }
+
+            @Override
+            public Object get() {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) {
+                return null;
+            }
+        }
+    }
+
+    static class Sink implements SubscriptionManager.EventSink {
+        final AtomicInteger events = new AtomicInteger();
+
+        @Override
+        public void onEvent(int type, ListPetsQuery.Item pet) {
+            events.incrementAndGet();
+        }
+    }
+}
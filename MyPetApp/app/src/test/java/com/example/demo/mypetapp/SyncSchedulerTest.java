@@ -0,0 +1,272 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SyncSchedulerTest {
+
+    private static final long WINDOW_MS = SyncScheduler.BATCH_WINDOW_MS;
+    private static final long LARGE = SyncScheduler.METERED_MAX_BYTES * 2;
+    private static final long SMALL = 200 * 1024;
+    private static final long MUTATION_MS = 20;
+    private static final long UPLOAD_MS = 300;
+
+    @Test
+    public void reconnect_drainsEverythingInOnePass() {
+        Fixture fixture = new Fixture();
+        fixture.mutations.add(20, 0);
+        fixture.uploads.add(5, SMALL);
+
+        // ten minutes offline: nothing is tried
+        fixture.timer.advance(10 * 60 * 1000);
+        assertEquals(0, fixture.mutations.attempts + fixture.uploads.attempts);
+        assertTrue(fixture.mutations.paused);
+
+        fixture.network.connect(false);
+        fixture.timer.advance(60 * 1000);
+
+        long expected = WINDOW_MS + Math.max(20 * MUTATION_MS, 5 * UPLOAD_MS);
+        assertEquals(0, fixture.mutations.pending.size());
+        assertEquals(0, fixture.uploads.pending.size());
+        assertEquals(1, fixture.scheduler.passes());
+        assertEquals(expected, fixture.scheduler.lastSyncMillis());
+    }
+
+    @Test
+    public void newWork_isBatchedIntoOnePass() {
+        Fixture fixture = new Fixture();
+        fixture.network.connect(false);
+        fixture.timer.advance(60 * 1000);
+        int passes = fixture.scheduler.passes();
+
+        for (int i = 0; i < 10; i++) {
+            fixture.uploads.add(1, SMALL);
+            fixture.scheduler.requestSync();
+            fixture.timer.advance(WINDOW_MS / 20);
+        }
+        fixture.timer.advance(60 * 1000);
+
+        assertEquals(passes + 1, fixture.scheduler.passes());
+        assertEquals(0, fixture.uploads.pending.size());
+    }
+
+    @Test
+    public void meteredNetwork_holdsLargePhotos() {
+        Fixture fixture = new Fixture();
+        fixture.uploads.add(3, SMALL);
+        fixture.uploads.add(2, LARGE);
+
+        fixture.network.connect(true);
+        fixture.timer.advance(60 * 1000);
+        assertEquals(3, fixture.uploads.sent);
+        assertEquals(2, fixture.uploads.pending.size());
+
+        // Wi-Fi comes up
+        fixture.network.connect(false);
+        fixture.timer.advance(60 * 1000);
+        assertEquals(5, fixture.uploads.sent);
+        assertEquals(0, fixture.uploads.pending.size());
+    }
+
+    @Test
+    public void failures_backOff() {
+        Fixture fixture = new Fixture();
+        fixture.mutations.add(1, 0);
+        fixture.mutations.down = true;
+
+        fixture.network.connect(false);
+        List<Long> passTimes = new ArrayList<>();
+        for (int second = 0; second < 10 * 60; second++) {
+            int passes = fixture.scheduler.passes();
+            fixture.timer.advance(1000);
+            if (fixture.scheduler.passes() > passes) {
+                passTimes.add(fixture.timer.uptimeMillis());
+            }
+        }
+
+        // 2 s, 4 s, 8 s... up to the ceiling, instead of one attempt per second
+        assertTrue(passTimes.size() < 15);
+        for (int i = 2; i < passTimes.size(); i++) {
+            long gap = passTimes.get(i) - passTimes.get(i - 1);
+            assertTrue(gap >= SyncScheduler.BACKOFF_BASE_MS);
+            assertTrue(gap <= SyncScheduler.BACKOFF_MAX_MS + MUTATION_MS + 1000);
+        }
+        assertTrue(passTimes.get(passTimes.size() - 1) - passTimes.get(passTimes.size() - 2)
+                > passTimes.get(2) - passTimes.get(1));
+
+        // a reconnect starts over with a short delay
+        fixture.mutations.down = false;
+        fixture.network.disconnect();
+        fixture.network.connect(false);
+        fixture.timer.advance(WINDOW_MS + MUTATION_MS);
+        assertEquals(0, fixture.mutations.pending.size());
+    }
+
+    @Test
+    public void lostNetwork_pausesTheJobs() {
+        Fixture fixture = new Fixture();
+        fixture.uploads.add(10, SMALL);
+        fixture.network.connect(false);
+        fixture.timer.advance(WINDOW_MS + 2 * UPLOAD_MS);
+        assertEquals(2, fixture.uploads.sent);
+
+        fixture.network.disconnect();
+        fixture.timer.advance(60 * 1000);
+        assertTrue(fixture.uploads.paused);
+        assertEquals(8, fixture.uploads.pending.size());
+        assertFalse(fixture.scheduler.isConnected());
+
+        fixture.network.connect(false);
+        fixture.timer.advance(60 * 1000);
+        assertEquals(0, fixture.uploads.pending.size());
+    }
+
+    private static class Fixture {
+        final VirtualTimer timer = new VirtualTimer();
+        final FakeNetwork network = new FakeNetwork();
+        final SyncScheduler scheduler = new SyncScheduler(network, timer,
+                new Backoff(SyncScheduler.BACKOFF_BASE_MS, SyncScheduler.BACKOFF_MAX_MS, new Random(7)),
+                WINDOW_MS, SyncScheduler.METERED_MAX_BYTES);
+        final FakeJob mutations = new FakeJob(timer, MUTATION_MS);
+        final FakeJob uploads = new FakeJob(timer, UPLOAD_MS);
+
+        Fixture() {
+            scheduler.addJob(mutations);
+            scheduler.addJob(uploads);
+            scheduler.start();
+        }
+    }
+
+    // Stands in for the ConnectivityManager callbacks
+    static class FakeNetwork implements SyncScheduler.Connectivity {
+        private SyncScheduler.NetworkListener mListener;
+
+        @Override
+        public void start(SyncScheduler.NetworkListener listener) {
+            mListener = listener;
+        }
+
+        void connect(boolean metered) {
+            mListener.onAvailable(metered);
+        }
+
+        void disconnect() {
+            mListener.onLost();
+        }
+    }
+
+    // Runs the posted tasks in order of their due time, on a clock the test moves
+    static class VirtualTimer implements SyncScheduler.Timer {
+        private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+        private long mNow;
+        private long mSequence;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mTasks.add(new Task(mNow + delayMillis, mSequence++, task));
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        void advance(long millis) {
+            long end = mNow + millis;
+            while (!mTasks.isEmpty() && mTasks.peek().due <= end) {
+                Task task = mTasks.poll();
+                mNow = task.due;
+                task.runnable.run();
+            }
+            mNow = end;
+        }
+
+        private static class Task implements Comparable<Task> {
+            final long due;
+            final long sequence;
+            final Runnable runnable;
+
+            Task(long due, long sequence, Runnable runnable) {
+                this.due = due;
+                this.sequence = sequence;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (due != other.due) {
+                    return due < other.due ? -1 : 1;
+                }
+                return Long.compare(sequence, other.sequence);
+            }
+        }
+    }
+
+    // Sends its items one after the other, each taking a fixed time on the virtual clock
+    static class FakeJob implements SyncScheduler.Job {
+        final List<Long> pending = new ArrayList<>();
+        int sent;
+        int attempts;
+        boolean down;
+        boolean paused;
+        private final VirtualTimer mTimer;
+        private final long mItemMillis;
+
+        FakeJob(VirtualTimer timer, long itemMillis) {
+            mTimer = timer;
+            mItemMillis = itemMillis;
+        }
+
+        void add(int count, long bytes) {
+            for (int i = 0; i < count; i++) {
+                pending.add(bytes);
+            }
+        }
+
+        @Override
+        public void sync(long maxBytes, SyncScheduler.JobCallback callback) {
+            paused = false;
+            sendFrom(0, maxBytes, true, callback);
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        private void sendFrom(int index, final long maxBytes, final boolean succeeded,
+                              final SyncScheduler.JobCallback callback) {
+            while (index < pending.size() && pending.get(index) > maxBytes) {
+                index++;
+            }
+            if (index == pending.size()) {
+                callback.onSynced(succeeded);
+                return;
+            }
+            final int item = index;
+            mTimer.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (paused) {
+                        callback.onSynced(false);
+                        return;
+                    }
+                    attempts++;
+                    if (down) {
+                        sendFrom(item + 1, maxBytes, false, callback);
+                        return;
+                    }
+                    pending.remove(item);
+                    sent++;
+                    sendFrom(item, maxBytes, succeeded, callback);
+                }
+            }, mItemMillis);
+        }
+    }
+}
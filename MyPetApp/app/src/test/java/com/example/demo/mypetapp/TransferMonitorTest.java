@@ -0,0 +1,197 @@
+package com.example.demo.mypetapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransferMonitorTest {
+
+    private static final int TRANSFERS = 50;
+    private static final int TICKS = 2000;
+    private static final int SNAPSHOTS_PER_SECOND = 10;
+
+    @Test
+    public void snapshot_reportsEveryTransfer() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TransferMonitor monitor = new TransferMonitor(scheduler, SNAPSHOTS_PER_SECOND);
+        RecordingObserver observer = new RecordingObserver();
+        monitor.addObserver(observer);
+
+        int photo = monitor.start("public/a.jpg", TransferMonitor.DOWNLOAD, -1);
+        int upload = monitor.start("public/b.jpg", TransferMonitor.UPLOAD, 1000);
+        monitor.progress(photo, 250, 1000);
+        monitor.progress(upload, 100, 1000);
+        monitor.finish(upload, true);
+        scheduler.runPending();
+
+        TransferMonitor.Snapshot snapshot = observer.snapshots.get(0);
+        assertEquals(2, snapshot.transfers.size());
+        assertEquals(25, snapshot.forKey("public/a.jpg").percent());
+        assertEquals(TransferMonitor.IN_PROGRESS, snapshot.forKey("public/a.jpg").state);
+        assertEquals(100, snapshot.forKey("public/b.jpg").percent());
+        assertEquals(TransferMonitor.COMPLETED, snapshot.forKey("public/b.jpg").state);
+        assertEquals(1, snapshot.activeCount());
+        assertSame(snapshot, monitor.latest());
+
+        // a finished transfer is reported once
+        monitor.progress(photo, 500, 1000);
+        scheduler.advance(1000);
+        scheduler.runPending();
+        snapshot = observer.snapshots.get(1);
+        assertEquals(1, snapshot.transfers.size());
+        assertNull(snapshot.forKey("public/b.jpg"));
+        assertEquals(50, snapshot.forKey("public/a.jpg").percent());
+    }
+
+    @Test
+    public void unknownSize_hasNoPercentage() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TransferMonitor monitor = new TransferMonitor(scheduler, SNAPSHOTS_PER_SECOND);
+        int id = monitor.start("public/a.jpg", TransferMonitor.DOWNLOAD, -1);
+        scheduler.runPending();
+
+        assertEquals(-1, monitor.latest().forKey("public/a.jpg").percent());
+
+        monitor.finish(id, false);
+        monitor.finish(id, true);
+        scheduler.advance(1000);
+        scheduler.runPending();
+        assertEquals(TransferMonitor.FAILED, monitor.latest().forKey("public/a.jpg").state);
+    }
+
+    @Test
+    public void publishing_isThrottled() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TransferMonitor monitor = new TransferMonitor(scheduler, SNAPSHOTS_PER_SECOND);
+        int id = monitor.start("public/a.jpg", TransferMonitor.DOWNLOAD, 1000);
+        assertEquals(0, scheduler.lastDelay);
+        scheduler.runPending();
+
+        scheduler.advance(30);
+        for (int i = 0; i < 100; i++) {
+            monitor.progress(id, i, 1000);
+        }
+
+        // one publish for all the ticks, at the end of the interval
+        assertEquals(1, scheduler.posted);
+        assertEquals(1000 / SNAPSHOTS_PER_SECOND - 30, scheduler.lastDelay);
+    }
+
+    @Test
+    public void fiftyConcurrentTransfers_publishAtTheThrottledRate() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TransferMonitor monitor = new TransferMonitor(scheduler, SNAPSHOTS_PER_SECOND);
+        RecordingObserver observer = new RecordingObserver(scheduler);
+        monitor.addObserver(observer);
+        int[] ids = new int[TRANSFERS];
+        for (int t = 0; t < TRANSFERS; t++) {
+            ids[t] = monitor.start("public/photo-" + t + ".jpg", TransferMonitor.DOWNLOAD, TICKS);
+        }
+
+        // every transfer ticks once per simulated millisecond, and the main thread runs what is due
+        for (int i = 1; i <= TICKS; i++) {
+            for (int id : ids) {
+                monitor.progress(id, i, TICKS);
+            }
+            // however many ticks arrive, one publish at most is waiting
+            assertTrue(scheduler.posted <= 1);
+            scheduler.advance(1);
+            scheduler.runDue();
+        }
+        for (int id : ids) {
+            monitor.finish(id, true);
+        }
+        scheduler.advance(1000 / SNAPSHOTS_PER_SECOND);
+        scheduler.runDue();
+
+        // one snapshot per interval over the two simulated seconds, then the one with the outcomes
+        int interval = 1000 / SNAPSHOTS_PER_SECOND;
+        assertEquals(TICKS / interval + 1, observer.snapshots.size());
+        for (int i = 1; i < observer.snapshots.size(); i++) {
+            assertTrue(observer.times.get(i) - observer.times.get(i - 1) >= interval);
+        }
+        TransferMonitor.Snapshot last = monitor.latest();
+        assertEquals(TRANSFERS, last.transfers.size());
+        assertEquals(0, last.activeCount());
+    }
+
+    @Test
+    public void finishedSlots_areReused() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TransferMonitor monitor = new TransferMonitor(scheduler, SNAPSHOTS_PER_SECOND);
+        int[] ids = new int[TRANSFERS];
+        for (int t = 0; t < TRANSFERS; t++) {
+            ids[t] = monitor.start("public/photo-" + t + ".jpg", TransferMonitor.DOWNLOAD, TICKS);
+            monitor.finish(ids[t], true);
+        }
+        scheduler.runPending();
+
+        // the next transfers take the published slots instead of growing the arrays
+        for (int t = 0; t < TRANSFERS; t++) {
+            int id = monitor.start("public/next-" + t + ".jpg", TransferMonitor.DOWNLOAD, TICKS);
+            assertTrue(id < TRANSFERS);
+        }
+    }
+
+    // Runs the pending publish when told to, on a clock the test moves
+    static class ManualScheduler implements TransferMonitor.Scheduler {
+        private Runnable mPending;
+        private long mDue;
+        long now = 1000;
+        long lastDelay = -1;
+        int posted;
+
+        @Override
+        public void postDelayed(Runnable publish, long delayMillis) {
+            mPending = publish;
+            mDue = now + delayMillis;
+            lastDelay = delayMillis;
+            posted++;
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+
+        void advance(long millis) {
+            now += millis;
+        }
+
+        void runPending() {
+            Runnable pending = mPending;
+            mPending = null;
+            posted = 0;
+            pending.run();
+        }
+
+        void runDue() {
+            if (mPending != null && now >= mDue) {
+                runPending();
+            }
+        }
+    }
+
+    static class RecordingObserver implements TransferMonitor.Observer {
+        final List<TransferMonitor.Snapshot> snapshots = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        private final ManualScheduler mScheduler;
+
+        RecordingObserver() {
+            this(null);
+        }
+
+        RecordingObserver(ManualScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public void onSnapshot(TransferMonitor.Snapshot snapshot) {
+            snapshots.add(snapshot);
+            times.add(mScheduler != null ? mScheduler.now : 0L);
+        }
+    }
+}